@@ -0,0 +1,22 @@
+package com.rustleund.dcchallenge;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Accepts the same arguments as {@link org.openjdk.jmh.Main}, and always adds the {@link GCProfiler}
+ * so allocation rates ({@code gc.alloc.rate.norm}) are reported next to every result.
+ */
+public final class Benchmarks {
+
+	private Benchmarks() {
+		//
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(commandLineOptions).addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,74 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.impl.InMemoryNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.impl.InMemoryNodeConnectionFactory;
+import com.rustleund.dcchallenge.hashinglookup.impl.ConsistentHashingLookup;
+
+/**
+ * End to end cost of {@link DistributedCache#get(Object)} and {@link DistributedCache#put(Object, Object)}: ring lookup, connection lookup
+ * and the call into an {@link InMemoryNodeConnection}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Thread)
+public class DistributedCacheBenchmark {
+
+	@Param({ "1", "4", "16" })
+	public int numberOfNodes;
+
+	private DistributedCache<String, String> cache;
+	private String[] keys;
+	private int nextKey;
+
+	@Setup
+	public void setup() throws IOException {
+		ConsistentHashingLookup<Node> hashingLookup = new ConsistentHashingLookup<>(100, Hashing.murmur3_32(), node -> node.getNodeId().toString());
+		cache = new DistributedCache<>(hashingLookup, Funnels.stringFunnel(Charset.defaultCharset()), new InMemoryNodeConnectionFactory());
+		IntStream.range(0, numberOfNodes).forEach(i -> cache.nodeAdded(new Node(UUID.randomUUID(), "host" + i, i, NodeType.A)));
+		keys = new Random(42).ints(1024).mapToObj(i -> "key" + i).toArray(String[]::new);
+		for (String key : keys) {
+			cache.put(key, key);
+		}
+	}
+
+	private String nextKey() {
+		return keys[nextKey++ & (keys.length - 1)];
+	}
+
+	@Benchmark
+	public String get() throws IOException {
+		return cache.get(nextKey());
+	}
+
+	@Benchmark
+	public void put() throws IOException {
+		String key = nextKey();
+		cache.put(key, key);
+	}
+}
@@ -0,0 +1,140 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.impl.SimulatedNodeConnection;
+import com.rustleund.dcchallenge.hashinglookup.BoundedLoad;
+import com.rustleund.dcchallenge.hashinglookup.impl.ConsistentHashingLookup;
+
+/**
+ * Read latency under a Zipfian key popularity, against nodes that each serve one request at a time, see {@link SimulatedNodeConnection}.
+ * Reported in {@link Mode#SampleTime} so the p99 and p99.9 of each {@link ReadRouting} can be compared: reading only from the owner queues up
+ * on the nodes holding the hottest keys, while replicated reads with bounded loads (see {@link BoundedLoad}) spill the excess to the next
+ * replica in ring order.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@Threads(8)
+@State(Scope.Benchmark)
+public class SkewedReadBenchmark {
+
+	private static final int NUMBER_OF_NODES = 8;
+	private static final int NUMBER_OF_KEYS = 10000;
+	private static final long SERVICE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	public enum ReadRouting {
+
+		/**
+		 * No replication, every read goes to the owner
+		 */
+		OWNER(DistributedCacheOptions.builder()),
+
+		/**
+		 * Three replicas, reads go to the replica with the fewest reads in flight
+		 */
+		LEAST_BUSY(DistributedCacheOptions.builder().replicationFactor(3)),
+
+		/**
+		 * Three replicas, reads go to the first replica in ring order under 1.25 times the average reads in flight
+		 */
+		BOUNDED_LOAD(DistributedCacheOptions.builder().replicationFactor(3).balanceFactor(0.25));
+
+		private final DistributedCacheOptions.Builder options;
+
+		ReadRouting(DistributedCacheOptions.Builder options) {
+			this.options = options;
+		}
+	}
+
+	@Param
+	public ReadRouting routing;
+
+	/**
+	 * The Zipf exponent of key popularity; around 1 is typical of cache workloads
+	 */
+	@Param({ "0.99", "1.2" })
+	public double skew;
+
+	private DistributedCache<String, String> cache;
+	private final List<SimulatedNodeConnection<?, ?>> connections = new ArrayList<>();
+	private String[] keys;
+	private double[] cumulativeProbabilities;
+
+	@Setup
+	public void setup() throws IOException {
+		NodeConnectionFactory simulatedNodes = new NodeConnectionFactory() {
+			@Override
+			public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+				SimulatedNodeConnection<KeyT, ValueT> connection = new SimulatedNodeConnection<>(node, SERVICE_NANOS);
+				connections.add(connection);
+				return connection;
+			}
+		};
+		ConsistentHashingLookup<Node> hashingLookup = new ConsistentHashingLookup<>(160, Hashing.murmur3_32(), node -> node.getNodeId().toString());
+		cache = new DistributedCache<>(hashingLookup, Funnels.stringFunnel(Charset.defaultCharset()), simulatedNodes,
+				routing.options.rebalanceExecutor(MoreExecutors.directExecutor()).build());
+		IntStream.range(0, NUMBER_OF_NODES).forEach(i -> cache.nodeAdded(new Node(UUID.randomUUID(), "node" + i, i, NodeType.A)));
+
+		keys = IntStream.range(0, NUMBER_OF_KEYS).mapToObj(i -> "key" + i).toArray(String[]::new);
+		for (String key : keys) {
+			cache.put(key, key);
+		}
+		cumulativeProbabilities = new double[NUMBER_OF_KEYS];
+		double total = 0;
+		for (int rank = 0; rank < NUMBER_OF_KEYS; rank++) {
+			total += 1 / Math.pow(rank + 1, skew);
+			cumulativeProbabilities[rank] = total;
+		}
+		for (int rank = 0; rank < NUMBER_OF_KEYS; rank++) {
+			cumulativeProbabilities[rank] /= total;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		connections.forEach(SimulatedNodeConnection::close);
+		connections.clear();
+	}
+
+	private String nextKey() {
+		int rank = Arrays.binarySearch(cumulativeProbabilities, ThreadLocalRandom.current().nextDouble());
+		return keys[Math.min(rank < 0 ? -rank - 1 : rank, NUMBER_OF_KEYS - 1)];
+	}
+
+	@Benchmark
+	public String get() throws IOException {
+		return cache.get(nextKey());
+	}
+}
@@ -0,0 +1,63 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * A {@link NodeConnection} for benchmarks that stores values in a {@link ConcurrentHashMap} and does no logging, so that measurements
+ * only include the cost of the client side request path. Values with a time to live read as missing once expired, and are removed by the
+ * read that finds them expired.
+ */
+public class InMemoryNodeConnection<KeyT, ValueT> implements NodeConnection<KeyT, ValueT> {
+
+	private final Map<KeyT, Versioned<ValueT>> store = new ConcurrentHashMap<>();
+
+	@Override
+	public void open() {
+		//
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) {
+		store.put(key, Versioned.of(value, Versioned.UNVERSIONED));
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		store.put(key, Versioned.of(value, Versioned.UNVERSIONED).expiringAt(Versioned.expiryAfter(System.currentTimeMillis(), timeToLive, unit)));
+	}
+
+	@Override
+	public ValueT get(KeyT key) {
+		Versioned<ValueT> entry = store.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.getExpiresAtMillis() != Versioned.NEVER_EXPIRES && entry.isExpired(System.currentTimeMillis())) {
+			store.remove(key, entry);
+			return null;
+		}
+		return entry.getValue();
+	}
+
+	@Override
+	public void invalidate(KeyT key) {
+		store.remove(key);
+	}
+
+	@Override
+	public Stream<KeyT> keys() {
+		long now = System.currentTimeMillis();
+		return store.entrySet().stream().filter(entry -> !entry.getValue().isExpired(now)).map(Map.Entry::getKey);
+	}
+
+	@Override
+	public void close() {
+		store.clear();
+	}
+}
@@ -0,0 +1,16 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
+
+/**
+ * A {@link NodeConnectionFactory} for benchmarks, always returns an {@link InMemoryNodeConnection}
+ */
+public class InMemoryNodeConnectionFactory implements NodeConnectionFactory {
+
+	@Override
+	public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+		return new InMemoryNodeConnection<>();
+	}
+}
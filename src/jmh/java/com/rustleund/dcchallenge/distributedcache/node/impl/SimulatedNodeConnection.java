@@ -0,0 +1,105 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rustleund.dcchallenge.distributedcache.node.AsyncNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * An {@link AsyncNodeConnection} for benchmarks that behaves like a remote node with a single worker: requests queue on one thread and each one
+ * holds it for a fixed service time. A node that gets more than its share of requests builds a queue, so skewed workloads show up in tail
+ * latency. The worker parks rather than spins, so the simulation does not compete with the benchmark threads for CPU. Values with a time to
+ * live read as missing once expired, and versioned puts keep the newest version.
+ */
+public class SimulatedNodeConnection<KeyT, ValueT> implements AsyncNodeConnection<KeyT, ValueT> {
+
+	private final Map<KeyT, Versioned<ValueT>> store = new ConcurrentHashMap<>();
+	private final ExecutorService worker;
+	private final long serviceNanos;
+
+	/**
+	 * @param node The node to simulate, used to name the worker thread
+	 * @param serviceNanos How long each request keeps the worker busy
+	 */
+	public SimulatedNodeConnection(Node node, long serviceNanos) {
+		this.worker = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("simulated-" + node.getHostname()).build());
+		this.serviceNanos = serviceNanos;
+	}
+
+	private <T> CompletableFuture<T> serve(Supplier<T> request) {
+		return CompletableFuture.supplyAsync(() -> {
+			LockSupport.parkNanos(serviceNanos);
+			return request.get();
+		}, worker);
+	}
+
+	@Override
+	public void open() {
+		//
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value) {
+		return serve(() -> {
+			store.put(key, Versioned.of(value, Versioned.UNVERSIONED));
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		return serve(() -> {
+			store.put(key, Versioned.of(value, Versioned.UNVERSIONED).expiringAt(Versioned.expiryAfter(System.currentTimeMillis(), timeToLive, unit)));
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<ValueT> getAsync(KeyT key) {
+		return serve(() -> {
+			Versioned<ValueT> entry = store.get(key);
+			if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+				return null;
+			}
+			return entry.getValue();
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> invalidateAsync(KeyT key) {
+		return serve(() -> {
+			store.remove(key);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> putIfNewerAsync(KeyT key, Versioned<ValueT> entry) {
+		return serve(() -> {
+			store.merge(key, entry, (stored, replacement) -> replacement.supersedes(stored) ? replacement : stored);
+			return null;
+		});
+	}
+
+	@Override
+	public Stream<KeyT> keys() {
+		long now = System.currentTimeMillis();
+		return store.entrySet().stream().filter(entry -> !entry.getValue().isTombstone() && !entry.getValue().isExpired(now)).map(Map.Entry::getKey);
+	}
+
+	@Override
+	public void close() {
+		worker.shutdownNow();
+		store.clear();
+	}
+}
@@ -0,0 +1,67 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+
+/**
+ * Single threaded cost of {@link ConsistentHashingLookup#lookupValue(Object, Funnel)} for different ring sizes and replica counts, and the
+ * cost of membership churn ({@link ConsistentHashingLookup#storeValue(Object)} followed by {@link ConsistentHashingLookup#removeValue(Object)}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConsistentHashingLookupBenchmark {
+
+	private static final Funnel<CharSequence> KEY_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+
+	@Param({ "4", "16", "64", "256" })
+	public int numberOfNodes;
+
+	@Param({ "1", "16", "160" })
+	public int numberOfReplicas;
+
+	private ConsistentHashingLookup<String> lookup;
+	private String[] keys;
+	private int nextKey;
+	private int nextChurnNode;
+
+	@Setup
+	public void setup() {
+		lookup = new ConsistentHashingLookup<>(numberOfReplicas, Hashing.murmur3_32(), value -> value);
+		IntStream.range(0, numberOfNodes).mapToObj(i -> "node" + i).forEach(lookup::storeValue);
+		keys = new Random(42).ints(1024).mapToObj(i -> "key" + i).toArray(String[]::new);
+	}
+
+	@Benchmark
+	public String lookupValue() {
+		return lookup.lookupValue(keys[nextKey++ & (keys.length - 1)], KEY_FUNNEL);
+	}
+
+	@Benchmark
+	public void storeAndRemoveValue() {
+		String churnNode = "churn" + (nextChurnNode++ & 1023);
+		lookup.storeValue(churnNode);
+		lookup.removeValue(churnNode);
+	}
+}
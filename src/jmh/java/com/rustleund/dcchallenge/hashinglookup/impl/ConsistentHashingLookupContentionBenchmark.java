@@ -0,0 +1,105 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+
+/**
+ * Compares lookup throughput of {@link ConsistentHashingLookup} against the previous fully synchronized implementation
+ * ({@link LockingConsistentHashingLookup}) with 1, 8 and 32 threads looking up keys concurrently.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsistentHashingLookupContentionBenchmark {
+
+	private static final Funnel<CharSequence> KEY_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+	private static final int NUMBER_OF_NODES = 16;
+	private static final int NUMBER_OF_REPLICAS = 100;
+
+	@State(Scope.Benchmark)
+	public static class Lookups {
+
+		HashingLookup<String> snapshot;
+		HashingLookup<String> locking;
+
+		@Setup
+		public void setup() {
+			HashFunction hashFunction = Hashing.murmur3_32();
+			snapshot = new ConsistentHashingLookup<>(NUMBER_OF_REPLICAS, hashFunction, value -> value);
+			locking = new LockingConsistentHashingLookup<>(NUMBER_OF_REPLICAS, hashFunction, value -> value);
+			IntStream.range(0, NUMBER_OF_NODES).mapToObj(i -> "node" + i).forEach(node -> {
+				snapshot.storeValue(node);
+				locking.storeValue(node);
+			});
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Keys {
+
+		private final String[] keys = new Random().ints(1024).mapToObj(i -> "key" + i).toArray(String[]::new);
+		private int next;
+
+		String nextKey() {
+			return keys[next++ & (keys.length - 1)];
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String snapshot1Thread(Lookups lookups, Keys keys) {
+		return lookups.snapshot.lookupValue(keys.nextKey(), KEY_FUNNEL);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public String snapshot8Threads(Lookups lookups, Keys keys) {
+		return lookups.snapshot.lookupValue(keys.nextKey(), KEY_FUNNEL);
+	}
+
+	@Benchmark
+	@Threads(32)
+	public String snapshot32Threads(Lookups lookups, Keys keys) {
+		return lookups.snapshot.lookupValue(keys.nextKey(), KEY_FUNNEL);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String locking1Thread(Lookups lookups, Keys keys) {
+		return lookups.locking.lookupValue(keys.nextKey(), KEY_FUNNEL);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public String locking8Threads(Lookups lookups, Keys keys) {
+		return lookups.locking.lookupValue(keys.nextKey(), KEY_FUNNEL);
+	}
+
+	@Benchmark
+	@Threads(32)
+	public String locking32Threads(Lookups lookups, Keys keys) {
+		return lookups.locking.lookupValue(keys.nextKey(), KEY_FUNNEL);
+	}
+}
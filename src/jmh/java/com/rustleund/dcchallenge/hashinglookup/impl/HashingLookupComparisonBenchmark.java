@@ -0,0 +1,67 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+
+/**
+ * Single threaded cost of {@link HashingLookup#lookupValue(Object, Funnel)} and of membership churn for each {@link LookupImplementation}. See
+ * {@link HashingLookupDistributionReport} for how evenly each one spreads keys and how many keys move when membership changes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashingLookupComparisonBenchmark {
+
+	private static final Funnel<CharSequence> KEY_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+
+	@Param
+	public LookupImplementation implementation;
+
+	@Param({ "4", "16", "64" })
+	public int numberOfNodes;
+
+	private HashingLookup<String> lookup;
+	private String[] keys;
+	private int nextKey;
+	private int nextChurnNode;
+
+	@Setup
+	public void setup() {
+		lookup = implementation.create();
+		IntStream.range(0, numberOfNodes).mapToObj(i -> "node" + i).forEach(lookup::storeValue);
+		keys = new Random(42).ints(1024).mapToObj(i -> "key" + i).toArray(String[]::new);
+	}
+
+	@Benchmark
+	public String lookupValue() {
+		return lookup.lookupValue(keys[nextKey++ & (keys.length - 1)], KEY_FUNNEL);
+	}
+
+	@Benchmark
+	public void storeAndRemoveValue() {
+		String churnNode = "churn" + (nextChurnNode++ & 1023);
+		lookup.storeValue(churnNode);
+		lookup.removeValue(churnNode);
+	}
+}
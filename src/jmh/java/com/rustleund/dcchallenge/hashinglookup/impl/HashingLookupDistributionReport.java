@@ -0,0 +1,81 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+
+/**
+ * Prints, for each {@link LookupImplementation} and cluster size, how evenly keys are spread over the nodes and how many keys change owner
+ * when a node is added or removed. Run with
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.rustleund.dcchallenge.hashinglookup.impl.HashingLookupDistributionReport [numberOfKeys]
+ * </pre>
+ * <p>
+ * The load columns are the coefficient of variation (standard deviation / mean) of keys per node and the most loaded node relative to the
+ * mean. The moved columns are the fraction of all keys that changed owner, next to the minimum possible ({@code 1 / (n + 1)} when adding,
+ * {@code 1 / n} when removing). The removed node is one from the middle, not the most recently added.
+ */
+public final class HashingLookupDistributionReport {
+
+	private static final Funnel<CharSequence> KEY_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+	private static final int[] NODE_COUNTS = { 4, 16, 64 };
+
+	private HashingLookupDistributionReport() {
+		//
+	}
+
+	public static void main(String[] args) {
+		int numberOfKeys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		String[] keys = IntStream.range(0, numberOfKeys).mapToObj(i -> "key" + i).toArray(String[]::new);
+		System.out.printf("%-12s %6s %10s %10s %12s %12s %12s %12s%n", "lookup", "nodes", "load cv", "max/mean", "add moved", "add ideal", "remove moved",
+				"remove ideal");
+		for (LookupImplementation implementation : LookupImplementation.values()) {
+			for (int numberOfNodes : NODE_COUNTS) {
+				HashingLookup<String> lookup = implementation.create();
+				IntStream.range(0, numberOfNodes).mapToObj(i -> "node" + i).forEach(lookup::storeValue);
+				String[] owners = owners(lookup, keys);
+
+				Map<String, Integer> load = new HashMap<>();
+				for (String owner : owners) {
+					load.merge(owner, 1, Integer::sum);
+				}
+				double mean = (double) numberOfKeys / numberOfNodes;
+				double variance = IntStream.range(0, numberOfNodes).mapToDouble(i -> Math.pow(load.getOrDefault("node" + i, 0) - mean, 2)).sum() / numberOfNodes;
+				int max = load.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+
+				lookup.storeValue("added");
+				String[] afterAdd = owners(lookup, keys);
+				lookup.removeValue("added");
+				lookup.removeValue("node" + numberOfNodes / 2);
+				String[] afterRemove = owners(lookup, keys);
+
+				System.out.printf("%-12s %6d %10.4f %10.3f %12.4f %12.4f %12.4f %12.4f%n", implementation, numberOfNodes, Math.sqrt(variance) / mean,
+						max / mean, moved(owners, afterAdd), 1.0 / (numberOfNodes + 1), moved(owners, afterRemove), 1.0 / numberOfNodes);
+			}
+		}
+	}
+
+	private static String[] owners(HashingLookup<String> lookup, String[] keys) {
+		String[] owners = new String[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			owners[i] = lookup.lookupValue(keys[i], KEY_FUNNEL);
+		}
+		return owners;
+	}
+
+	private static double moved(String[] before, String[] after) {
+		int moved = 0;
+		for (int i = 0; i < before.length; i++) {
+			if (!before[i].equals(after[i])) {
+				moved++;
+			}
+		}
+		return (double) moved / before.length;
+	}
+}
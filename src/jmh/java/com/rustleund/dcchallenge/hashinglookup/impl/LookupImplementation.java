@@ -0,0 +1,43 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import com.google.common.hash.Hashing;
+import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+
+/**
+ * The {@link HashingLookup} implementations compared by {@link HashingLookupComparisonBenchmark} and {@link HashingLookupDistributionReport}
+ */
+public enum LookupImplementation {
+
+	RING_16 {
+		@Override
+		public HashingLookup<String> create() {
+			return new ConsistentHashingLookup<>(16, Hashing.murmur3_32(), value -> value);
+		}
+	},
+	RING_160 {
+		@Override
+		public HashingLookup<String> create() {
+			return new ConsistentHashingLookup<>(160, Hashing.murmur3_32(), value -> value);
+		}
+	},
+	MAGLEV {
+		@Override
+		public HashingLookup<String> create() {
+			return new MaglevHashingLookup<>(Hashing.murmur3_32(), value -> value);
+		}
+	},
+	JUMP {
+		@Override
+		public HashingLookup<String> create() {
+			return new JumpHashingLookup<>(Hashing.murmur3_128());
+		}
+	},
+	RENDEZVOUS {
+		@Override
+		public HashingLookup<String> create() {
+			return new RendezvousHashingLookup<>(Hashing.murmur3_128(), value -> value);
+		}
+	};
+
+	public abstract HashingLookup<String> create();
+}
@@ -0,0 +1,30 @@
+package com.rustleund.dcchallenge;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking remote cache interface. Futures complete exceptionally with an {@link IOException} on network issues.
+ *
+ * @param <KeyT> The type of keys in the cache
+ * @param <ValueT> The type of values in the cache
+ * @see BlockingRemoteCache to use an {@link AsyncRemoteCache} where a {@link RemoteCache} is expected
+ */
+public interface AsyncRemoteCache<KeyT, ValueT> {
+
+	CompletableFuture<Void> putAsync(KeyT key, ValueT value);
+
+	/**
+	 * @return A future completed once the value is stored
+	 * @see RemoteCache#put(Object, Object, long, TimeUnit)
+	 */
+	CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit);
+
+	/**
+	 * @return A future of the value under the given key, completed with {@code null} if there is no value
+	 */
+	CompletableFuture<ValueT> getAsync(KeyT key);
+
+	CompletableFuture<Void> invalidateAsync(KeyT key);
+}
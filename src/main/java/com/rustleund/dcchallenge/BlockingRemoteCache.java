@@ -0,0 +1,41 @@
+package com.rustleund.dcchallenge;
+
+import static com.rustleund.dcchallenge.util.FutureUtil.await;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts an {@link AsyncRemoteCache} to the blocking {@link RemoteCache} interface by waiting on each returned future.
+ *
+ * @param <KeyT> The type of keys in the cache
+ * @param <ValueT> The type of values in the cache
+ */
+public class BlockingRemoteCache<KeyT, ValueT> implements RemoteCache<KeyT, ValueT> {
+
+	private final AsyncRemoteCache<KeyT, ValueT> asyncRemoteCache;
+
+	public BlockingRemoteCache(AsyncRemoteCache<KeyT, ValueT> asyncRemoteCache) {
+		this.asyncRemoteCache = asyncRemoteCache;
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) throws IOException {
+		await(asyncRemoteCache.putAsync(key, value));
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		await(asyncRemoteCache.putAsync(key, value, timeToLive, unit));
+	}
+
+	@Override
+	public ValueT get(KeyT key) throws IOException {
+		return await(asyncRemoteCache.getAsync(key));
+	}
+
+	@Override
+	public void invalidate(KeyT key) throws IOException {
+		await(asyncRemoteCache.invalidateAsync(key));
+	}
+}
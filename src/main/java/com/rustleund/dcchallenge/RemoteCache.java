@@ -1,6 +1,10 @@
 package com.rustleund.dcchallenge;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple remote cache interface. Methods throw {@link IOException} to allow clients to reasonably recover from network issues.
@@ -12,7 +16,60 @@ public interface RemoteCache<KeyT, ValueT> {
 
 	void put(KeyT key, ValueT value) throws IOException;
 
+	/**
+	 * Store a value that expires once the given time to live has passed, after which it reads as missing.
+	 *
+	 * @param key The key to store
+	 * @param value The value to store
+	 * @param timeToLive How long the value is kept for, must be positive
+	 * @param unit The unit of the time to live
+	 * @throws IOException If a communication error occurs
+	 */
+	void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException;
+
 	ValueT get(KeyT key) throws IOException;
 
 	void invalidate(KeyT key) throws IOException;
+
+	/**
+	 * Get the values for many keys at once. The default implementation calls {@link #get(Object)} for each key.
+	 *
+	 * @param keys The keys to get values for
+	 * @return A {@link Map} of each key that has a value to its value, keys without a value are not included
+	 * @throws IOException If a communication error occurs
+	 */
+	default Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		Map<KeyT, ValueT> values = new HashMap<>();
+		for (KeyT key : keys) {
+			ValueT value = get(key);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Store many key/value pairs at once. The default implementation calls {@link #put(Object, Object)} for each entry.
+	 *
+	 * @param entries The key/value pairs to store
+	 * @throws IOException If a communication error occurs
+	 */
+	default void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		for (Map.Entry<KeyT, ValueT> entry : entries.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Invalidate many keys at once. The default implementation calls {@link #invalidate(Object)} for each key.
+	 *
+	 * @param keys The keys to invalidate
+	 * @throws IOException If a communication error occurs
+	 */
+	default void invalidateAll(Collection<KeyT> keys) throws IOException {
+		for (KeyT key : keys) {
+			invalidate(key);
+		}
+	}
 }
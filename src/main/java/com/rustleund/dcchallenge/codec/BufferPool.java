@@ -0,0 +1,85 @@
+package com.rustleund.dcchallenge.codec;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of heap {@link ByteBuffer}s to encode into, so encoding does not allocate a new buffer for every value. Buffers come in power of two
+ * sizes, and each size keeps a bounded number of released buffers. Requests larger than the largest pooled size get a new buffer, which is
+ * dropped on release.
+ * <p>
+ * Safe to use from many threads. A buffer must not be used after it is released.
+ */
+public final class BufferPool {
+
+	private static final BufferPool SHARED = new BufferPool(1 << 16, 64);
+
+	private static final int MINIMUM_BUFFER_BYTES = 64;
+
+	private final int maximumPooledBytes;
+	private final List<Queue<ByteBuffer>> buffersBySize;
+
+	/**
+	 * @param maximumPooledBytes The size of the largest buffers to pool, rounded up to a power of two
+	 * @param buffersPerSize The most released buffers to keep of each size
+	 */
+	public BufferPool(int maximumPooledBytes, int buffersPerSize) {
+		checkArgument(maximumPooledBytes > 0 && maximumPooledBytes <= 1 << 30, "Maximum pooled bytes must be between 1 and 2^30");
+		checkArgument(buffersPerSize > 0, "Buffers per size must be positive");
+		this.maximumPooledBytes = sizeFor(maximumPooledBytes);
+		int sizeClasses = sizeClass(this.maximumPooledBytes) + 1;
+		this.buffersBySize = new ArrayList<>(sizeClasses);
+		for (int i = 0; i < sizeClasses; i++) {
+			buffersBySize.add(new ArrayBlockingQueue<>(buffersPerSize));
+		}
+	}
+
+	/**
+	 * @return A pool shared by everything that does not need its own, pooling buffers of up to 64 KiB
+	 */
+	public static BufferPool shared() {
+		return SHARED;
+	}
+
+	/**
+	 * @param minimumCapacity The number of bytes the buffer must hold
+	 * @return A cleared buffer with at least the given capacity, to {@link #release(ByteBuffer)} once it is no longer used
+	 */
+	public ByteBuffer acquire(int minimumCapacity) {
+		int size = sizeFor(minimumCapacity);
+		if (size > maximumPooledBytes) {
+			return ByteBuffer.allocate(minimumCapacity);
+		}
+		ByteBuffer buffer = buffersBySize.get(sizeClass(size)).poll();
+		if (buffer == null) {
+			return ByteBuffer.allocate(size);
+		}
+		((Buffer) buffer).clear();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer from {@link #acquire(int)} to the pool. Buffers of sizes the pool does not keep, or beyond the number kept, are dropped.
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (!buffer.hasArray() || capacity > maximumPooledBytes || capacity < MINIMUM_BUFFER_BYTES || Integer.bitCount(capacity) != 1) {
+			return;
+		}
+		buffersBySize.get(sizeClass(capacity)).offer(buffer);
+	}
+
+	private static int sizeFor(int capacity) {
+		return capacity <= MINIMUM_BUFFER_BYTES ? MINIMUM_BUFFER_BYTES : Integer.highestOneBit(capacity - 1) << 1;
+	}
+
+	private static int sizeClass(int size) {
+		return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MINIMUM_BUFFER_BYTES);
+	}
+}
@@ -0,0 +1,49 @@
+package com.rustleund.dcchallenge.codec;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns values into bytes and back, for node stores and connections that do not keep Java objects. Implementations write straight into the
+ * target buffer and decode from a view of the source, so values can be encoded into {@link BufferPool pooled} buffers or slabs and read back
+ * without copying the bytes first. See {@link Codecs} for the built-in codecs.
+ *
+ * @param <T> The type of values encoded
+ */
+public interface Codec<T> {
+
+	/**
+	 * @param value The value to encode
+	 * @return The exact number of bytes {@link #encode(Object, ByteBuffer)} will write for the value
+	 */
+	int encodedSize(T value);
+
+	/**
+	 * Write the value at the target's position, advancing the position by {@link #encodedSize(Object)} bytes
+	 *
+	 * @param value The value to encode
+	 * @param target The buffer to write to, must have at least {@link #encodedSize(Object)} bytes remaining
+	 */
+	void encode(T value, ByteBuffer target);
+
+	/**
+	 * Read a value from all of the source's remaining bytes
+	 *
+	 * @param source The buffer to read from, positioned at the start of the encoded value and limited to its end
+	 * @return The decoded value
+	 */
+	T decode(ByteBuffer source);
+
+	/**
+	 * @param value The value to encode
+	 * @param pool The pool to take the buffer from
+	 * @return A buffer from the pool holding the encoded value between its position and limit, to {@link BufferPool#release(ByteBuffer) release}
+	 *         once it is no longer needed
+	 */
+	default ByteBuffer encode(T value, BufferPool pool) {
+		ByteBuffer buffer = pool.acquire(encodedSize(value));
+		encode(value, buffer);
+		((Buffer) buffer).flip();
+		return buffer;
+	}
+}
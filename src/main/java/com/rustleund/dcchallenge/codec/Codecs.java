@@ -0,0 +1,425 @@
+package com.rustleund.dcchallenge.codec;
+
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+
+/**
+ * Built-in {@link Codec}s
+ */
+public final class Codecs {
+
+	private static final int LENGTH_PREFIX_BYTES = Integer.BYTES;
+
+	/**
+	 * The key most recently encoded by {@link #encodeKey(Codec, Object)} on each thread, so the node a key is routed to can reuse the bytes it
+	 * was hashed from
+	 */
+	private static final ThreadLocal<EncodedKey> LAST_ENCODED_KEY = new ThreadLocal<>();
+
+	/**
+	 * The key types whose encoding may be reused, because an instance always encodes to the same bytes
+	 */
+	private static final Set<Class<?>> IMMUTABLE_KEY_TYPES = ImmutableSet.of(String.class, Integer.class, Long.class, Short.class, Byte.class,
+			Character.class, Boolean.class, Float.class, Double.class, UUID.class);
+
+	private Codecs() {
+		//
+	}
+
+	/**
+	 * @return A {@link Codec} for {@link String}s, encoded as UTF-8
+	 */
+	public static Codec<String> utf8() {
+		return Utf8Codec.INSTANCE;
+	}
+
+	/**
+	 * @return A {@link Codec} for byte arrays, encoded as they are
+	 */
+	public static Codec<byte[]> byteArray() {
+		return ByteArrayCodec.INSTANCE;
+	}
+
+	/**
+	 * @return A {@link Codec} for {@link Integer}s, encoded as 4 big-endian bytes
+	 */
+	public static Codec<Integer> int32() {
+		return Int32Codec.INSTANCE;
+	}
+
+	/**
+	 * @return A {@link Codec} for {@link Long}s, encoded as 8 big-endian bytes
+	 */
+	public static Codec<Long> int64() {
+		return Int64Codec.INSTANCE;
+	}
+
+	/**
+	 * @return A {@link Codec} for {@link Double}s, encoded as the 8 big-endian bytes of their IEEE 754 bits
+	 */
+	public static Codec<Double> float64() {
+		return Float64Codec.INSTANCE;
+	}
+
+	/**
+	 * @param codec The {@link Codec} to encode values with
+	 * @return A {@link Codec} that writes the encoded length of each value before it, so values can be read back from a buffer holding more
+	 *         than one
+	 */
+	public static <T> Codec<T> lengthPrefixed(Codec<T> codec) {
+		return new LengthPrefixedCodec<>(codec);
+	}
+
+	/**
+	 * @param elementCodec The {@link Codec} to encode each element with
+	 * @return A {@link Codec} for lists, encoded as the number of elements followed by each element, length prefixed
+	 */
+	public static <E> Codec<List<E>> list(Codec<E> elementCodec) {
+		return new ListCodec<>(elementCodec);
+	}
+
+	/**
+	 * A {@link Codec} for values made of two parts, such as a compound key. Each part is encoded with its own codec, length prefixed.
+	 *
+	 * @param firstCodec The {@link Codec} of the first part
+	 * @param first Gets the first part of a value
+	 * @param secondCodec The {@link Codec} of the second part
+	 * @param second Gets the second part of a value
+	 * @param combine Builds a value back from its parts
+	 */
+	public static <T, A, B> Codec<T> composite(Codec<A> firstCodec, Function<? super T, ? extends A> first, Codec<B> secondCodec,
+			Function<? super T, ? extends B> second, BiFunction<? super A, ? super B, ? extends T> combine) {
+		return new CompositeCodec<>(firstCodec, first, secondCodec, second, combine);
+	}
+
+	/**
+	 * A {@link Funnel} that hashes keys by their encoded bytes. Use it as the key funnel of a cache whose nodes encode keys with the same codec
+	 * instance: the node reuses the bytes the key was hashed from through {@link #encodeKey(Codec, Object)}, so each key of an immutable type is
+	 * encoded once per request.
+	 *
+	 * @param codec The {@link Codec} keys are encoded with
+	 */
+	public static <T> Funnel<T> funnel(Codec<T> codec) {
+		return new EncodedKeyFunnel<>(codec);
+	}
+
+	/**
+	 * Encode a key. If the same key instance was the last one encoded with the same codec on this thread, for example to hash it with
+	 * {@link #funnel(Codec)}, the earlier encoding is handed over instead of encoding the key again. Only keys of immutable JDK types such as
+	 * {@link String}, the boxed primitives and {@link UUID} are reused, as any other key could have changed since, and each encoding is reused
+	 * at most once. The thread only keeps the key weakly reachable in between.
+	 *
+	 * @return A heap buffer holding the encoded key between its position and limit. It may be shared, and must not be written to.
+	 */
+	public static <T> ByteBuffer encodeKey(Codec<T> codec, T key) {
+		EncodedKey last = LAST_ENCODED_KEY.get();
+		if (last != null && last.codec == codec && last.key.get() == key) {
+			LAST_ENCODED_KEY.remove();
+			return last.bytes;
+		}
+		ByteBuffer bytes = ByteBuffer.allocate(codec.encodedSize(key));
+		codec.encode(key, bytes);
+		((Buffer) bytes).flip();
+		if (key != null && IMMUTABLE_KEY_TYPES.contains(key.getClass())) {
+			LAST_ENCODED_KEY.set(new EncodedKey(codec, key, bytes.duplicate()));
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return A view of the next {@code length} bytes of the source, which are skipped in the source
+	 */
+	private static ByteBuffer next(ByteBuffer source, int length) {
+		ByteBuffer view = source.duplicate();
+		((Buffer) view).limit(view.position() + length);
+		((Buffer) source).position(source.position() + length);
+		return view;
+	}
+
+	private static <T> int prefixedSize(Codec<T> codec, T value) {
+		return LENGTH_PREFIX_BYTES + codec.encodedSize(value);
+	}
+
+	private static <T> void encodePrefixed(Codec<T> codec, T value, ByteBuffer target) {
+		target.putInt(codec.encodedSize(value));
+		codec.encode(value, target);
+	}
+
+	private static <T> T decodePrefixed(Codec<T> codec, ByteBuffer source) {
+		return codec.decode(next(source, source.getInt()));
+	}
+
+	private static final class EncodedKey {
+		private final Codec<?> codec;
+		private final WeakReference<Object> key;
+		private final ByteBuffer bytes;
+
+		private EncodedKey(Codec<?> codec, Object key, ByteBuffer bytes) {
+			this.codec = codec;
+			this.key = new WeakReference<>(key);
+			this.bytes = bytes;
+		}
+	}
+
+	private enum Utf8Codec implements Codec<String> {
+		INSTANCE;
+
+		/**
+		 * Counts an unpaired surrogate as the one byte {@link String#getBytes(java.nio.charset.Charset)} replaces it with, so the size always
+		 * matches what {@link #encode(String, ByteBuffer)} writes
+		 */
+		@Override
+		public int encodedSize(String value) {
+			int size = 0;
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c < 0x80) {
+					size++;
+				} else if (c < 0x800) {
+					size += 2;
+				} else if (!Character.isSurrogate(c)) {
+					size += 3;
+				} else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+					size += 4;
+					i++;
+				} else {
+					size++;
+				}
+			}
+			return size;
+		}
+
+		@Override
+		public void encode(String value, ByteBuffer target) {
+			// ASCII is written a char at a time, anything else falls back to the JDK encoder
+			int start = target.position();
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c >= 0x80) {
+					((Buffer) target).position(start);
+					target.put(value.getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+				target.put((byte) c);
+			}
+		}
+
+		@Override
+		public String decode(ByteBuffer source) {
+			int length = source.remaining();
+			if (source.hasArray()) {
+				String value = new String(source.array(), source.arrayOffset() + source.position(), length, StandardCharsets.UTF_8);
+				((Buffer) source).position(source.limit());
+				return value;
+			}
+			byte[] bytes = new byte[length];
+			source.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	private enum ByteArrayCodec implements Codec<byte[]> {
+		INSTANCE;
+
+		@Override
+		public int encodedSize(byte[] value) {
+			return value.length;
+		}
+
+		@Override
+		public void encode(byte[] value, ByteBuffer target) {
+			target.put(value);
+		}
+
+		@Override
+		public byte[] decode(ByteBuffer source) {
+			byte[] bytes = new byte[source.remaining()];
+			source.get(bytes);
+			return bytes;
+		}
+	}
+
+	private enum Int32Codec implements Codec<Integer> {
+		INSTANCE;
+
+		@Override
+		public int encodedSize(Integer value) {
+			return Integer.BYTES;
+		}
+
+		@Override
+		public void encode(Integer value, ByteBuffer target) {
+			target.putInt(value);
+		}
+
+		@Override
+		public Integer decode(ByteBuffer source) {
+			return source.getInt();
+		}
+	}
+
+	private enum Int64Codec implements Codec<Long> {
+		INSTANCE;
+
+		@Override
+		public int encodedSize(Long value) {
+			return Long.BYTES;
+		}
+
+		@Override
+		public void encode(Long value, ByteBuffer target) {
+			target.putLong(value);
+		}
+
+		@Override
+		public Long decode(ByteBuffer source) {
+			return source.getLong();
+		}
+	}
+
+	private enum Float64Codec implements Codec<Double> {
+		INSTANCE;
+
+		@Override
+		public int encodedSize(Double value) {
+			return Double.BYTES;
+		}
+
+		@Override
+		public void encode(Double value, ByteBuffer target) {
+			target.putDouble(value);
+		}
+
+		@Override
+		public Double decode(ByteBuffer source) {
+			return source.getDouble();
+		}
+	}
+
+	private static final class LengthPrefixedCodec<T> implements Codec<T> {
+		private final Codec<T> codec;
+
+		private LengthPrefixedCodec(Codec<T> codec) {
+			this.codec = codec;
+		}
+
+		@Override
+		public int encodedSize(T value) {
+			return prefixedSize(codec, value);
+		}
+
+		@Override
+		public void encode(T value, ByteBuffer target) {
+			encodePrefixed(codec, value, target);
+		}
+
+		@Override
+		public T decode(ByteBuffer source) {
+			return decodePrefixed(codec, source);
+		}
+	}
+
+	private static final class ListCodec<E> implements Codec<List<E>> {
+		private final Codec<E> elementCodec;
+
+		private ListCodec(Codec<E> elementCodec) {
+			this.elementCodec = elementCodec;
+		}
+
+		@Override
+		public int encodedSize(List<E> value) {
+			int size = Integer.BYTES;
+			for (E element : value) {
+				size += prefixedSize(elementCodec, element);
+			}
+			return size;
+		}
+
+		@Override
+		public void encode(List<E> value, ByteBuffer target) {
+			target.putInt(value.size());
+			value.forEach(element -> encodePrefixed(elementCodec, element, target));
+		}
+
+		@Override
+		public List<E> decode(ByteBuffer source) {
+			int size = source.getInt();
+			List<E> elements = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				elements.add(decodePrefixed(elementCodec, source));
+			}
+			return elements;
+		}
+	}
+
+	private static final class CompositeCodec<T, A, B> implements Codec<T> {
+		private final Codec<A> firstCodec;
+		private final Function<? super T, ? extends A> first;
+		private final Codec<B> secondCodec;
+		private final Function<? super T, ? extends B> second;
+		private final BiFunction<? super A, ? super B, ? extends T> combine;
+
+		private CompositeCodec(Codec<A> firstCodec, Function<? super T, ? extends A> first, Codec<B> secondCodec, Function<? super T, ? extends B> second,
+				BiFunction<? super A, ? super B, ? extends T> combine) {
+			this.firstCodec = firstCodec;
+			this.first = first;
+			this.secondCodec = secondCodec;
+			this.second = second;
+			this.combine = combine;
+		}
+
+		@Override
+		public int encodedSize(T value) {
+			return prefixedSize(firstCodec, first.apply(value)) + prefixedSize(secondCodec, second.apply(value));
+		}
+
+		@Override
+		public void encode(T value, ByteBuffer target) {
+			encodePrefixed(firstCodec, first.apply(value), target);
+			encodePrefixed(secondCodec, second.apply(value), target);
+		}
+
+		@Override
+		public T decode(ByteBuffer source) {
+			A firstPart = decodePrefixed(firstCodec, source);
+			return combine.apply(firstPart, decodePrefixed(secondCodec, source));
+		}
+	}
+
+	private static final class EncodedKeyFunnel<T> implements Funnel<T> {
+		private static final long serialVersionUID = 1L;
+
+		private final Codec<T> codec;
+
+		private EncodedKeyFunnel(Codec<T> codec) {
+			this.codec = codec;
+		}
+
+		@Override
+		public void funnel(T key, PrimitiveSink into) {
+			into.putBytes(encodeKey(codec, key));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof EncodedKeyFunnel && ((EncodedKeyFunnel<?>) obj).codec.equals(codec);
+		}
+
+		@Override
+		public int hashCode() {
+			return codec.hashCode();
+		}
+	}
+}
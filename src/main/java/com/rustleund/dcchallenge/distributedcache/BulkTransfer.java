@@ -0,0 +1,237 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * Moves values out of one node in batches. Keys are read from a stream in batches and routed a batch at a time, the values of the keys that
+ * belong elsewhere are read with their versions with one {@link NodeConnection#getAllVersioned(java.util.Collection)} per batch, and written
+ * with one {@link NodeConnection#putAllIfNewer(Map)} per destination node, so a value being moved never replaces a newer write made while it
+ * moved. When values are replicated, a key can belong to several nodes: it is written to each of them, and only removed from the source node
+ * if the source is not one of them. Writes run in parallel, with at most a fixed number outstanding per destination node across every
+ * transfer sharing the same {@link TransferLimits}; reading the next batch waits until the destination has a free slot. Once every batch is
+ * written, the moved keys are removed from the source node with a single {@link NodeConnection#invalidateAllIfNotNewer(Map)}, which leaves
+ * any key written again since it was read.
+ *
+ * @param <KeyT> The type of keys to move
+ * @param <ValueT> The type of values to move
+ */
+class BulkTransfer<KeyT, ValueT> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BulkTransfer.class);
+
+	private final Node sourceNode;
+	private final NodeConnection<KeyT, ValueT> sourceConnection;
+	private final Function<Collection<KeyT>, Map<KeyT, List<Node>>> keyRouter;
+	private final Set<Node> nodesMissingValues;
+	private final Function<Node, NodeConnection<KeyT, ValueT>> destinationConnections;
+	private final int batchSize;
+	private final TransferLimits limits;
+	private final Executor executor;
+	private final TransferProgress progress;
+
+	/**
+	 * Has a party for the transfer and one for each write outstanding
+	 */
+	private final Phaser outstandingWrites = new Phaser(1);
+	private final Set<KeyT> keysToRemove = ConcurrentHashMap.newKeySet();
+	private final Map<KeyT, Long> versionsRead = new ConcurrentHashMap<>();
+	private final Set<KeyT> failedKeys = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param sourceNode The node to move values out of
+	 * @param sourceConnection The connection to the source node
+	 * @param keyRouter Finds the nodes each of a batch of keys now belongs to, primary first. Keys routed to no nodes (there are none left) are
+	 *            counted as failed and left where they are.
+	 * @param nodesMissingValues Nodes that may not hold values they should, such as a node that was just added. A key that stays on the source
+	 *            node is copied to its other nodes only if the source is the first of them not in this set, so each copy is written once.
+	 * @param destinationConnections Finds the connection for a destination node, or {@code null} if there is none
+	 * @param batchSize The number of keys to read from the source node at a time
+	 * @param limits The limits on writes to destination nodes, shared with the other transfers running at the same time
+	 * @param executor The {@link Executor} to run batch writes on
+	 */
+	BulkTransfer(Node sourceNode, NodeConnection<KeyT, ValueT> sourceConnection, Function<Collection<KeyT>, Map<KeyT, List<Node>>> keyRouter,
+			Set<Node> nodesMissingValues, Function<Node, NodeConnection<KeyT, ValueT>> destinationConnections, int batchSize, TransferLimits limits,
+			Executor executor) {
+		this.sourceNode = sourceNode;
+		this.sourceConnection = sourceConnection;
+		this.keyRouter = keyRouter;
+		this.nodesMissingValues = nodesMissingValues;
+		this.destinationConnections = destinationConnections;
+		this.batchSize = batchSize;
+		this.limits = limits;
+		this.executor = executor;
+		this.progress = new TransferProgress(sourceNode);
+	}
+
+	TransferProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Move the values of the given keys, returning once every batch has been written and the moved keys have been removed from the source node
+	 *
+	 * @param keys The keys in the source node to consider moving
+	 * @param removeMovedKeys Whether to remove the moved keys from the source node. A node that is shutting down keeps them, it is closed once
+	 *            they have moved anyway, and a node that persists its values comes back with them.
+	 */
+	void run(Stream<KeyT> keys, boolean removeMovedKeys) {
+		try {
+			Iterator<KeyT> keyIterator = keys.iterator();
+			List<KeyT> batch = new ArrayList<>(batchSize);
+			while (keyIterator.hasNext()) {
+				batch.add(keyIterator.next());
+				if (batch.size() == batchSize) {
+					transferBatch(batch);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			if (!batch.isEmpty()) {
+				transferBatch(batch);
+			}
+			outstandingWrites.arriveAndAwaitAdvance();
+			if (removeMovedKeys) {
+				removeMovedKeysFromSource();
+			}
+		} finally {
+			progress.finish();
+			logFinished();
+		}
+	}
+
+	private void logFinished() {
+		if (progress.getKeysFailed() > 0) {
+			LOG.warn("Finished moving values out of {}, values that failed to move remain on the source node", progress);
+		} else if (progress.getKeysScanned() > 0) {
+			LOG.info("Finished moving values out of {}", progress);
+		} else {
+			LOG.debug("Finished moving values out of {}", progress);
+		}
+	}
+
+	private void transferBatch(List<KeyT> batch) {
+		progress.scanned(batch.size());
+		Map<Node, List<KeyT>> keysByDestination = new HashMap<>();
+		List<KeyT> keysToRead = new ArrayList<>();
+		Map<KeyT, List<Node>> routes = keyRouter.apply(batch);
+		batch.forEach(key -> {
+			List<Node> destinations = routes.getOrDefault(key, Collections.emptyList());
+			if (destinations.isEmpty()) {
+				progress.failed(1);
+			} else if (!destinations.contains(sourceNode) || isFirstHolder(destinations)) {
+				destinations.stream().filter(destination -> !destination.equals(sourceNode))
+						.forEach(destination -> keysByDestination.computeIfAbsent(destination, node -> new ArrayList<>()).add(key));
+				if (!destinations.contains(sourceNode)) {
+					keysToRemove.add(key);
+				}
+				keysToRead.add(key);
+			}
+		});
+		if (keysByDestination.isEmpty()) {
+			return;
+		}
+		Map<KeyT, Versioned<ValueT>> values;
+		try {
+			values = sourceConnection.getAllVersioned(keysToRead);
+		} catch (IOException e) {
+			LOG.error("Could not read a batch of {} values from node {}", keysToRead.size(), sourceNode.getNodeId(), e);
+			progress.failed(keysToRead.size());
+			keysToRead.forEach(keysToRemove::remove);
+			return;
+		}
+		values.forEach((key, value) -> versionsRead.put(key, value.getVersion()));
+		keysByDestination.forEach((destination, destinationKeys) -> {
+			Map<KeyT, Versioned<ValueT>> entries = new HashMap<>();
+			destinationKeys.forEach(key -> {
+				Versioned<ValueT> value = values.get(key);
+				if (value != null) {
+					entries.put(key, value);
+				}
+			});
+			if (!entries.isEmpty()) {
+				writeToDestination(destination, entries);
+			}
+		});
+		LOG.debug("Moving values out of {}", progress);
+	}
+
+	private boolean isFirstHolder(List<Node> destinations) {
+		return destinations.stream().filter(destination -> !nodesMissingValues.contains(destination)).findFirst().map(sourceNode::equals)
+				.orElse(false);
+	}
+
+	private void writeToDestination(Node destination, Map<KeyT, Versioned<ValueT>> entries) {
+		NodeConnection<KeyT, ValueT> destinationConnection = destinationConnections.apply(destination);
+		if (destinationConnection == null) {
+			LOG.warn("Could not move {} values from node {}, there is no connection to node {}", entries.size(), sourceNode.getNodeId(), destination.getNodeId());
+			progress.failed(entries.size());
+			failedKeys.addAll(entries.keySet());
+			return;
+		}
+		limits.awaitWrite(destination, entries.size());
+		outstandingWrites.register();
+		try {
+			executor.execute(() -> {
+				try {
+					destinationConnection.putAllIfNewer(entries);
+					progress.moved(entries.size());
+				} catch (IOException | RuntimeException e) {
+					LOG.error("Could not write {} values from node {} to node {}", entries.size(), sourceNode.getNodeId(), destination.getNodeId(), e);
+					progress.failed(entries.size());
+					failedKeys.addAll(entries.keySet());
+				} finally {
+					writeFinished(destination);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			writeFinished(destination);
+			LOG.error("Could not schedule writing {} values to node {}", entries.size(), destination.getNodeId(), e);
+			progress.failed(entries.size());
+			failedKeys.addAll(entries.keySet());
+		}
+	}
+
+	private void writeFinished(Node destination) {
+		limits.writeFinished(destination);
+		outstandingWrites.arriveAndDeregister();
+	}
+
+	/**
+	 * Remove keys that no longer belong to the source node, unless writing them to one of their new nodes failed, or they were written again
+	 * since they were read
+	 */
+	private void removeMovedKeysFromSource() {
+		failedKeys.forEach(keysToRemove::remove);
+		Map<KeyT, Long> versions = new HashMap<>();
+		keysToRemove.forEach(key -> Optional.ofNullable(versionsRead.get(key)).ifPresent(version -> versions.put(key, version)));
+		if (versions.isEmpty()) {
+			return;
+		}
+		try {
+			sourceConnection.invalidateAllIfNotNewer(versions);
+		} catch (IOException e) {
+			LOG.error("Could not remove {} moved values from node {}", versions.size(), sourceNode.getNodeId(), e);
+		}
+	}
+}
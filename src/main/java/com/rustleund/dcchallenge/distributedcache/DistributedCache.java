@@ -1,40 +1,142 @@
 package com.rustleund.dcchallenge.distributedcache;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.rustleund.dcchallenge.util.FutureUtil.await;
+import static com.rustleund.dcchallenge.util.FutureUtil.failedFuture;
+import static com.rustleund.dcchallenge.util.FutureUtil.toIOException;
 import static com.rustleund.dcchallenge.util.LambdaUtil.acceptPropagate;
 import static com.rustleund.dcchallenge.util.LambdaUtil.applyPropagate;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.EvictingQueue;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
 import com.google.common.hash.Funnel;
+import com.google.common.util.concurrent.RateLimiter;
+import com.rustleund.dcchallenge.AsyncRemoteCache;
 import com.rustleund.dcchallenge.RemoteCache;
+import com.rustleund.dcchallenge.hashinglookup.BoundedLoad;
+import com.rustleund.dcchallenge.hashinglookup.HashRing;
 import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+import com.rustleund.dcchallenge.hashinglookup.RingHashingLookup;
+import com.rustleund.dcchallenge.hashinglookup.WeightedHashingLookup;
+import com.rustleund.dcchallenge.distributedcache.node.AccessTracer;
+import com.rustleund.dcchallenge.distributedcache.node.AsyncNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.CircuitBreakingNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.ExecutorAsyncNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.InstrumentedNodeConnection;
 import com.rustleund.dcchallenge.distributedcache.node.Node;
 import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
 import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
 import com.rustleund.dcchallenge.distributedcache.node.NodeEventHandler;
+import com.rustleund.dcchallenge.distributedcache.node.TracingNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+import com.rustleund.dcchallenge.metrics.CacheMetrics;
+import com.rustleund.dcchallenge.util.LambdaUtil.CheckedFunction;
 
 /**
- * An implementation of {@link RemoteCache} that stores values on nodes in a network. Values are distributed to available nodes using a {@link HashingLookup} implementation.
- * Also implements {@link NodeEventHandler} to handle the addition and subtraction of nodes in the network.
+ * An implementation of {@link RemoteCache} that stores values on nodes in a network. Values are distributed to available nodes using a
+ * {@link HashingLookup} implementation. Also implements {@link NodeEventHandler} to handle the addition and subtraction of nodes in the
+ * network.
+ * <p>
+ * Requests can also be made without blocking through {@link AsyncRemoteCache}. Connections that are {@link AsyncNodeConnection}s are used as
+ * they are, so many requests can be outstanding on one node without a thread each; blocking connections are run on the request executor from
+ * {@link DistributedCacheOptions}.
+ * <p>
+ * If the options include {@link CacheMetrics}, every request to a node, every lookup of a key's owner and every transfer of values between
+ * nodes is recorded there. Individual requests to nodes can be traced at runtime through {@link #getAccessTracer()}.
+ * <p>
+ * In write-behind mode, see {@link DistributedCacheOptions.Builder#writeBehind(int, int, long, TimeUnit)}, puts and invalidations are
+ * buffered and sent to the nodes in batches, with repeated writes of a key collapsed into the last one. Reads through this cache see its
+ * buffered writes straight away; other clients see them once they are flushed. {@link #close()} stops the background flushes.
+ * <p>
+ * With a replication factor above 1, each value is stored on that many distinct nodes (see {@link HashingLookup#lookupValues(Object, Funnel, int)}).
+ * Writes go to every replica and complete once the configured number of replicas acknowledge them; reads go to the replica with the fewest
+ * reads outstanding, and fall back to the other replicas only if it fails or times out; a miss from a replica that answered is a miss. Values
+ * then survive a node leaving without shutting down.
+ * <p>
+ * Requests are routed with an immutable {@link RoutingTable} that membership changes replace, so they never wait for a node to be added or
+ * removed. While values move after a change, a key missing from its new nodes is read from the nodes that held it before, and writes also
+ * invalidate the key there. Every put carries a version from a hybrid logical clock, as do invalidations while values move, and values are
+ * moved with {@link NodeConnection#putAllIfNewer(Map)}, so a value being moved never replaces a newer write. Values are only read for moving
+ * once the writes routed with the previous table have finished, so none of them lands behind a move and is lost.
+ * <p>
+ * With a circuit breaker configured in the options, a node whose requests keep failing is taken out of routing, so its keys go to the next
+ * nodes on the ring and requests fail fast rather than wait on it, and is added back once a health check finds it answering again.
  *
  * @param <KeyT> The type of the keys used to store values in the cache.
  */
-public class DistributedCache<KeyT, ValueT> implements NodeEventHandler, RemoteCache<KeyT, ValueT> {
+public class DistributedCache<KeyT, ValueT> implements NodeEventHandler, RemoteCache<KeyT, ValueT>, AsyncRemoteCache<KeyT, ValueT>, Closeable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(DistributedCache.class);
+	private static final long NO_TIME_TO_LIVE = 0;
+	/**
+	 * The low bits of a version that count writes within one millisecond of the clock
+	 */
+	private static final int LOGICAL_CLOCK_BITS = 16;
 
-	private final Map<Node, NodeConnection<KeyT, ValueT>> nodeConnections = Collections.synchronizedMap(new HashMap<>());
 	private final Funnel<? super KeyT> keyFunnel;
 	private final HashingLookup<Node> hashingNodeLookup;
+	private final RingHashingLookup<Node> ringLookup;
 	private final NodeConnectionFactory nodeConnectionFactory;
+	private final DistributedCacheOptions options;
+	private final Queue<TransferProgress> recentTransfers = Queues.synchronizedQueue(EvictingQueue.create(16));
+	private final CacheMetrics metrics;
+	private final BoundedLoad<Node> outstandingReads;
+	private final Object membershipLock = new Object();
+	private volatile RoutingTable<KeyT, ValueT> routing;
+	private final AtomicLong versionClock = new AtomicLong();
+	/**
+	 * Counts the writes routed with the current routing table; replaced under the membership lock when a change moves values
+	 */
+	private volatile WriteFence writeFence = new WriteFence(null);
+	/**
+	 * Nodes taken out of routing by their circuit breaker, until a health check finds them answering; changed under the membership lock
+	 */
+	private final Map<Node, CircuitBreakingNodeConnection<KeyT, ValueT>> suspendedNodes = new ConcurrentHashMap<>();
+	private final SingleFlightLoader<KeyT, ValueT> loader;
+	private final WriteBehindBuffer<KeyT, ValueT> writeBehind;
+	/**
+	 * The membership changes running or waiting on the rebalance executor, see {@link #rebalanced()}
+	 */
+	private final Set<CompletableFuture<Void>> rebalances = ConcurrentHashMap.newKeySet();
+	/**
+	 * Caps the keys moved between nodes per second across every transfer, or {@code null} if moving values is not rate limited
+	 */
+	private final RateLimiter transferRate;
 
 	/**
 	 * @param hashingLookup The {@link HashingLookup} to use to store {@link Node}s when they are added
@@ -42,131 +144,1318 @@ public class DistributedCache<KeyT, ValueT> implements NodeEventHandler, RemoteC
 	 * @param nodeConnectionFactory The {@link NodeConnectionFactory} to use to build connections for {@link Node}s when they are added
 	 */
 	public DistributedCache(HashingLookup<Node> hashingLookup, Funnel<? super KeyT> keyFunnel, NodeConnectionFactory nodeConnectionFactory) {
+		this(hashingLookup, keyFunnel, nodeConnectionFactory, DistributedCacheOptions.defaults());
+	}
+
+	/**
+	 * @param hashingLookup The {@link HashingLookup} to use to store {@link Node}s when they are added
+	 * @param keyFunnel The {@link Funnel} to use to generate hashes for keys
+	 * @param nodeConnectionFactory The {@link NodeConnectionFactory} to use to build connections for {@link Node}s when they are added
+	 * @param options The {@link DistributedCacheOptions} to tune this cache with
+	 */
+	@SuppressWarnings("unchecked")
+	public DistributedCache(HashingLookup<Node> hashingLookup, Funnel<? super KeyT> keyFunnel, NodeConnectionFactory nodeConnectionFactory,
+			DistributedCacheOptions options) {
 		this.hashingNodeLookup = hashingLookup;
+		this.ringLookup = hashingLookup instanceof RingHashingLookup ? (RingHashingLookup<Node>) hashingLookup : null;
 		this.keyFunnel = keyFunnel;
 		this.nodeConnectionFactory = nodeConnectionFactory;
+		this.options = options;
+		this.metrics = options.getMetrics().orElse(null);
+		this.outstandingReads = new BoundedLoad<>(options.getBalanceFactor().orElse(0));
+		this.routing = ringLookup != null ? RoutingTable.<KeyT, ValueT> empty().withRing(ringLookup.snapshot()) : RoutingTable.empty();
+		this.loader = new SingleFlightLoader<>(this, options.getRequestExecutor(), options.getLoadTimeToLive(TimeUnit.NANOSECONDS),
+				options.getEarlyRefreshBeta(), options.getTicker());
+		this.writeBehind = options.isWriteBehindEnabled()
+				? new WriteBehindBuffer<>(this::getOwningNode, this::writeToNodes, options.getWriteBehindBatchSize(),
+						options.getWriteBehindMaximumSize(), options.getRequestExecutor(), options.getHealthCheckExecutor(),
+						options.getWriteBehindFlushInterval(TimeUnit.NANOSECONDS), options.getTicker())
+				: null;
+		this.transferRate = options.getTransferRateLimit().isPresent() ? RateLimiter.create(options.getTransferRateLimit().getAsDouble()) : null;
 	}
 
 	@Override
 	public void put(KeyT key, ValueT value) throws IOException {
-		getNodeConnection(key).ifPresent(acceptPropagate(con -> con.put(key, value)));
+		put(key, value, NO_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Each node drops the value once the time to live has passed. A value moved to another node keeps the time it expires at, so
+	 * redistribution never extends its life, and expired values are not moved.
+	 */
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		checkArgument(timeToLive > 0, "Time to live must be positive");
+		put(key, value, unit.toNanos(timeToLive));
+	}
+
+	/**
+	 * @param value The value to put, or {@code null} to invalidate the key
+	 * @param timeToLiveNanos How long the value lives for, or {@link #NO_TIME_TO_LIVE}
+	 */
+	private void put(KeyT key, ValueT value, long timeToLiveNanos) throws IOException {
+		if (writeBehind != null) {
+			await(writeBehind.write(key, value, timeToLiveNanos));
+			return;
+		}
+		if (isReplicated()) {
+			await(writeAsync(key, value, timeToLiveNanos));
+			return;
+		}
+		WriteFence fence = enterWriteFence();
+		try {
+			RoutingTable<KeyT, ValueT> table = routing;
+			Node owner = owningNode(table, key);
+			long version = writeVersion(table, value == null);
+			Optional.ofNullable(owner).map(table::getConnection).ifPresent(acceptPropagate(con -> write(con, key, value, version, timeToLiveNanos)));
+			if (table.isMigrating()) {
+				await(invalidatePreviousHolders(table, key, Collections.singletonList(owner)));
+			}
+		} finally {
+			fence.exit();
+		}
 	}
 
-	private Optional<NodeConnection<KeyT, ValueT>> getNodeConnection(KeyT key) {
-		return Optional.ofNullable(hashingNodeLookup.lookupValue(key, keyFunnel)).map(nodeConnections::get);
+	private boolean isReplicated() {
+		return options.getReplicationFactor() > 1;
+	}
+
+	/**
+	 * @param key A key
+	 * @return The {@link Node} that currently owns the given key, or {@code null} if there are no nodes
+	 */
+	public Node getOwningNode(KeyT key) {
+		return owningNode(routing, key);
+	}
+
+	private Node owningNode(RoutingTable<KeyT, ValueT> table, KeyT key) {
+		if (metrics == null) {
+			return lookupOwner(table, key);
+		}
+		long start = System.nanoTime();
+		Node node = lookupOwner(table, key);
+		metrics.recordRingLookup(System.nanoTime() - start);
+		return node;
+	}
+
+	private Node lookupOwner(RoutingTable<KeyT, ValueT> table, KeyT key) {
+		HashRing<Node> ring = table.getRing();
+		return ring != null ? ring.valueFor(ringLookup.hash(key, keyFunnel)) : hashingNodeLookup.lookupValue(key, keyFunnel);
+	}
+
+	/**
+	 * @param key A key
+	 * @return The {@link Node}s that hold a copy of the given key, the owner first, up to the replication factor from
+	 *         {@link DistributedCacheOptions}. Empty if there are no nodes.
+	 */
+	public List<Node> getReplicaNodes(KeyT key) {
+		return replicaNodes(routing, key);
+	}
+
+	private List<Node> replicaNodes(RoutingTable<KeyT, ValueT> table, KeyT key) {
+		if (metrics == null) {
+			return lookupReplicas(table, key);
+		}
+		long start = System.nanoTime();
+		List<Node> nodes = lookupReplicas(table, key);
+		metrics.recordRingLookup(System.nanoTime() - start);
+		return nodes;
+	}
+
+	/**
+	 * Route a batch of keys being moved with one routing table. These lookups are not timed, so the ring lookup latency in the metrics is that
+	 * of requests.
+	 */
+	private Map<KeyT, List<Node>> replicaNodes(Collection<KeyT> keys) {
+		RoutingTable<KeyT, ValueT> table = routing;
+		Map<KeyT, List<Node>> nodesByKey = Maps.newHashMapWithExpectedSize(keys.size());
+		keys.forEach(key -> nodesByKey.put(key, lookupReplicas(table, key)));
+		return nodesByKey;
+	}
+
+	private List<Node> lookupReplicas(RoutingTable<KeyT, ValueT> table, KeyT key) {
+		HashRing<Node> ring = table.getRing();
+		return ring != null ? ring.valuesFor(ringLookup.hash(key, keyFunnel), options.getReplicationFactor())
+				: hashingNodeLookup.lookupValues(key, keyFunnel, options.getReplicationFactor());
 	}
 
 	@Override
 	public ValueT get(KeyT key) throws IOException {
-		return getNodeConnection(key).map(applyPropagate(con -> con.get(key))).orElse(null);
+		WriteBehindBuffer.PendingWrite<ValueT> pendingWrite = writeBehind != null ? writeBehind.pendingWrite(key) : null;
+		if (pendingWrite != null) {
+			return pendingWrite.valueAt(writeBehind.now());
+		}
+		if (isReplicated()) {
+			return await(getAsync(key));
+		}
+		RoutingTable<KeyT, ValueT> table = routing;
+		Node owner = owningNode(table, key);
+		ValueT value = Optional.ofNullable(owner).map(table::getConnection).map(applyPropagate(con -> con.get(key))).orElse(null);
+		if (value == null && table.isMigrating()) {
+			return await(readThroughMigrations(table, key, Collections.singletonList(owner)));
+		}
+		return value;
 	}
 
 	@Override
 	public void invalidate(KeyT key) throws IOException {
-		getNodeConnection(key).ifPresent(acceptPropagate(con -> con.invalidate(key)));
+		put(key, null, NO_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Get the value under a key, loading and storing it if the cache has none. Concurrent calls for the same key on this cache share one read
+	 * and at most one load, so a popular key that is missing is loaded once rather than by every caller. With early refresh in the
+	 * {@link DistributedCacheOptions}, hot values are also reloaded in the background before their time to live runs out.
+	 *
+	 * @param key The key to get the value for
+	 * @param valueLoader Loads the value of a key from its source of truth, returning {@code null} if there is none
+	 * @return The value under the key, or {@code null} if there is none and the loader found none
+	 * @throws IOException If the cache or the loader failed; callers waiting on the same key see the same failure
+	 */
+	public ValueT getOrLoad(KeyT key, CheckedFunction<? super KeyT, ? extends ValueT, IOException> valueLoader) throws IOException {
+		return loader.getOrLoad(key, valueLoader);
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value) {
+		return writeAsync(key, value, NO_TIME_TO_LIVE);
 	}
 
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		checkArgument(timeToLive > 0, "Time to live must be positive");
+		return writeAsync(key, value, unit.toNanos(timeToLive));
+	}
+
+	@Override
+	public CompletableFuture<ValueT> getAsync(KeyT key) {
+		WriteBehindBuffer.PendingWrite<ValueT> pendingWrite = writeBehind != null ? writeBehind.pendingWrite(key) : null;
+		if (pendingWrite != null) {
+			return CompletableFuture.completedFuture(pendingWrite.valueAt(writeBehind.now()));
+		}
+		RoutingTable<KeyT, ValueT> table = routing;
+		List<Node> nodes;
+		CompletableFuture<ValueT> read;
+		if (isReplicated()) {
+			nodes = replicaNodes(table, key);
+			read = readFromReplicas(table, key, orderForRead(nodes), 0, null);
+		} else {
+			Node owner = owningNode(table, key);
+			nodes = Collections.singletonList(owner);
+			read = Optional.ofNullable(owner).map(table::getConnection).map(con -> con.getAsync(key)).orElse(CompletableFuture.completedFuture(null));
+		}
+		if (!table.isMigrating()) {
+			return read;
+		}
+		return read.thenCompose(value -> value != null ? CompletableFuture.completedFuture(value) : readThroughMigrations(table, key, nodes));
+	}
+
+	@Override
+	public CompletableFuture<Void> invalidateAsync(KeyT key) {
+		return writeAsync(key, null, NO_TIME_TO_LIVE);
+	}
+
+	/**
+	 * @param value The value to put, or {@code null} to invalidate the key
+	 * @param timeToLiveNanos How long the value lives for, or {@link #NO_TIME_TO_LIVE}
+	 */
+	private CompletableFuture<Void> writeAsync(KeyT key, ValueT value, long timeToLiveNanos) {
+		if (writeBehind != null) {
+			return writeBehind.write(key, value, timeToLiveNanos);
+		}
+		return writeToNodesAsync(key, value, timeToLiveNanos);
+	}
+
+	private CompletableFuture<Void> writeToNodesAsync(KeyT key, ValueT value, long timeToLiveNanos) {
+		WriteFence fence = enterWriteFence();
+		try {
+			RoutingTable<KeyT, ValueT> table = routing;
+			long version = writeVersion(table, value == null);
+			// Replicas that acknowledge after the write completes are still counted by the fence
+			Function<AsyncNodeConnection<KeyT, ValueT>, CompletableFuture<Void>> write = con -> fence
+					.track(writeAsync(con, key, value, version, timeToLiveNanos));
+			List<Node> nodes;
+			CompletableFuture<Void> result;
+			if (isReplicated()) {
+				nodes = replicaNodes(table, key);
+				result = writeToReplicas(table, nodes, write);
+			} else {
+				Node owner = owningNode(table, key);
+				nodes = Collections.singletonList(owner);
+				result = Optional.ofNullable(owner).map(table::getConnection).map(write).orElse(CompletableFuture.completedFuture(null));
+			}
+			if (!table.isMigrating()) {
+				return result;
+			}
+			return result.thenCompose(ignored -> invalidatePreviousHolders(table, key, nodes));
+		} finally {
+			fence.exit();
+		}
+	}
+
+	/**
+	 * Enter the fence of the current routing table, before reading the table to route a write. The write must {@link WriteFence#exit()} once
+	 * it has been sent.
+	 */
+	private WriteFence enterWriteFence() {
+		WriteFence fence = writeFence;
+		while (!fence.enter()) {
+			fence = writeFence;
+		}
+		return fence;
+	}
+
+	/**
+	 * Start counting the writes routed with the table just swapped in apart from the ones before it. Must hold the membership lock, and be
+	 * followed by moving values once the returned fence has drained.
+	 *
+	 * @return The fence of the writes routed with earlier tables
+	 */
+	private WriteFence fenceWrites() {
+		WriteFence previous = writeFence;
+		writeFence = new WriteFence(previous);
+		previous.close();
+		return previous;
+	}
+
+	/**
+	 * @param invalidation Whether the write invalidates the key
+	 * @return The version to stamp a write with. Puts, and invalidations while values are moving, get the next version of
+	 *         {@link #nextVersion()}; other invalidations are {@link Versioned#UNVERSIONED} and remove the key outright, so they leave no
+	 *         tombstone behind that would have to be purged.
+	 */
+	private long writeVersion(RoutingTable<KeyT, ValueT> table, boolean invalidation) {
+		if (invalidation && !table.isMigrating()) {
+			return Versioned.UNVERSIONED;
+		}
+		return nextVersion();
+	}
+
+	/**
+	 * @return The next version of a hybrid logical clock: the time of the clock from the options in the high bits and a counter below them. The
+	 *         versions of this cache only ever grow, even if its clock steps back, and order the writes of caches whose clocks agree.
+	 */
+	private long nextVersion() {
+		long physical = options.getClock().millis() << LOGICAL_CLOCK_BITS;
+		return versionClock.updateAndGet(version -> Math.max(version + 1, physical));
+	}
+
+	/**
+	 * @param value The value to put, or {@code null} to invalidate the key
+	 * @param version The version of the write, see {@link #writeVersion(RoutingTable, boolean)}
+	 * @param timeToLiveNanos How long the value lives for, or {@link #NO_TIME_TO_LIVE}
+	 */
+	private void write(NodeConnection<KeyT, ValueT> con, KeyT key, ValueT value, long version, long timeToLiveNanos) throws IOException {
+		if (version == Versioned.UNVERSIONED) {
+			con.invalidate(key);
+		} else {
+			con.putIfNewer(key, value != null ? versioned(value, version, timeToLiveNanos) : Versioned.tombstone(version));
+		}
+	}
+
+	private CompletableFuture<Void> writeAsync(AsyncNodeConnection<KeyT, ValueT> con, KeyT key, ValueT value, long version, long timeToLiveNanos) {
+		if (version == Versioned.UNVERSIONED) {
+			return con.invalidateAsync(key);
+		}
+		return con.putIfNewerAsync(key, value != null ? versioned(value, version, timeToLiveNanos) : Versioned.tombstone(version));
+	}
+
+	private Versioned<ValueT> versioned(ValueT value, long version, long timeToLiveNanos) {
+		Versioned<ValueT> versioned = Versioned.of(value, version);
+		if (timeToLiveNanos == NO_TIME_TO_LIVE) {
+			return versioned;
+		}
+		return versioned.expiringAt(Versioned.expiryAfter(options.getClock().millis(), timeToLiveNanos, TimeUnit.NANOSECONDS));
+	}
+
+	/**
+	 * Read a key that its current nodes do not have from the nodes that held it before the membership changes whose values are still moving,
+	 * newest change first, so a value that has not moved yet is not missed. Failures of these reads count as misses.
+	 *
+	 * @param alreadyRead The current nodes of the key, which are not read again
+	 */
+	private CompletableFuture<ValueT> readThroughMigrations(RoutingTable<KeyT, ValueT> table, KeyT key, List<Node> alreadyRead) {
+		List<AsyncNodeConnection<KeyT, ValueT>> previousHolders = previousHolders(table, key, alreadyRead).stream()
+				.map(table::getConnectionIncludingMigrations).filter(Objects::nonNull).collect(Collectors.toList());
+		return readInTurn(key, previousHolders, 0);
+	}
+
+	private CompletableFuture<ValueT> readInTurn(KeyT key, List<AsyncNodeConnection<KeyT, ValueT>> connections, int index) {
+		if (index == connections.size()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return connections.get(index).getAsync(key).handle((value, error) -> value != null ? CompletableFuture.completedFuture(value)
+				: readInTurn(key, connections, index + 1)).thenCompose(Function.identity());
+	}
+
+	/**
+	 * A write during a migration also invalidates the key on the nodes that held it before, so a later miss cannot read through to a stale
+	 * value and a transfer that has not reached the key yet has nothing to copy over the new value
+	 */
+	private CompletableFuture<Void> invalidatePreviousHolders(RoutingTable<KeyT, ValueT> table, KeyT key, List<Node> currentNodes) {
+		CompletableFuture<?>[] invalidations = previousHolders(table, key, currentNodes).stream().map(table::getConnectionIncludingMigrations)
+				.filter(Objects::nonNull).map(con -> con.invalidateAsync(key)).toArray(CompletableFuture[]::new);
+		return invalidations.length == 0 ? CompletableFuture.completedFuture(null) : CompletableFuture.allOf(invalidations);
+	}
+
+	/**
+	 * @return The nodes that may still hold the given key from a table being migrated from, newest first, not including the given nodes. Rings
+	 *         pinpoint the nodes; with other lookups every node of the earlier table may hold it.
+	 */
+	private List<Node> previousHolders(RoutingTable<KeyT, ValueT> table, KeyT key, Collection<Node> excluding) {
+		Set<Node> holders = new LinkedHashSet<>();
+		for (RoutingTable<KeyT, ValueT> previous : table.getMigrations()) {
+			HashRing<Node> previousRing = previous.getRing();
+			if (previousRing != null) {
+				holders.addAll(previousRing.valuesFor(ringLookup.hash(key, keyFunnel), options.getReplicationFactor()));
+			} else {
+				holders.addAll(previous.getConnections().keySet());
+			}
+		}
+		holders.removeAll(excluding);
+		return new ArrayList<>(holders);
+	}
+
+	/**
+	 * @return The given replicas in the order to read them in. With bounded loads, replicas under their load cap come first in ring order, so the
+	 *         owner is read unless it is hot. Otherwise replicas are ordered by the number of reads outstanding on them, fewest first; ties keep
+	 *         their order, so the owner is preferred when nodes are equally busy.
+	 */
+	private List<Node> orderForRead(List<Node> replicas) {
+		if (replicas.size() < 2) {
+			return replicas;
+		}
+		if (options.getBalanceFactor().isPresent()) {
+			List<Node> ordered = new ArrayList<>(replicas.size());
+			List<Node> overloaded = new ArrayList<>();
+			replicas.forEach(node -> (outstandingReads.hasCapacity(node) ? ordered : overloaded).add(node));
+			ordered.addAll(overloaded);
+			return ordered;
+		}
+		List<Node> ordered = new ArrayList<>(replicas);
+		ordered.sort(Comparator.comparingInt(outstandingReads::load));
+		return ordered;
+	}
+
+	/**
+	 * Read from each replica in turn until one answers. Replicas are written together, so the answer of the first replica that answers is the
+	 * value, and a miss there is a miss; only a replica that fails or times out is followed by the next one. A replica that only just became one
+	 * and is missing values that are still moving is covered by reading through the migrations. Fails if no replica answered.
+	 */
+	private CompletableFuture<ValueT> readFromReplicas(RoutingTable<KeyT, ValueT> table, KeyT key, List<Node> replicas, int index,
+			Throwable lastError) {
+		for (int i = index; i < replicas.size(); i++) {
+			Node node = replicas.get(i);
+			AsyncNodeConnection<KeyT, ValueT> con = table.getConnection(node);
+			if (con != null) {
+				int next = i + 1;
+				return countOutstanding(node, con.getAsync(key)).handle((value, error) -> {
+					if (error == null) {
+						return CompletableFuture.completedFuture(value);
+					}
+					return readFromReplicas(table, key, replicas, next, error);
+				}).thenCompose(Function.identity());
+			}
+		}
+		return lastError == null ? CompletableFuture.completedFuture(null) : failedFuture(lastError);
+	}
+
+	private <T> CompletableFuture<T> countOutstanding(Node node, CompletableFuture<T> read) {
+		outstandingReads.acquire(node);
+		read.whenComplete((value, error) -> outstandingReads.release(node));
+		return read;
+	}
+
+	/**
+	 * Send a write to every replica, completing once the number of replicas from {@link DistributedCacheOptions#getWriteAcknowledgements()}
+	 * (or every replica, if there are fewer) have acknowledged it. The remaining writes carry on in the background.
+	 */
+	private CompletableFuture<Void> writeToReplicas(RoutingTable<KeyT, ValueT> table, List<Node> replicas,
+			Function<AsyncNodeConnection<KeyT, ValueT>, CompletableFuture<Void>> write) {
+		if (replicas.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		int required = Math.min(options.getWriteAcknowledgements(), replicas.size());
+		int allowedFailures = replicas.size() - required;
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		AtomicInteger acknowledged = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		for (Node node : replicas) {
+			AsyncNodeConnection<KeyT, ValueT> con = table.getConnection(node);
+			CompletableFuture<Void> replicaWrite = con != null ? write.apply(con)
+					: failedFuture(new IOException("There is no connection to node " + node.getNodeId()));
+			replicaWrite.whenComplete((ignored, error) -> {
+				if (error == null) {
+					if (acknowledged.incrementAndGet() == required) {
+						result.complete(null);
+					}
+				} else if (failed.incrementAndGet() == allowedFailures + 1) {
+					result.completeExceptionally(error);
+				}
+			});
+		}
+		return result;
+	}
+
+	@Override
+	public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		if (writeBehind == null) {
+			return getAllFromNodes(keys, NodeConnection::getAll);
+		}
+		Map<KeyT, ValueT> buffered = new HashMap<>();
+		List<KeyT> unbuffered = new ArrayList<>();
+		long now = writeBehind.now();
+		for (KeyT key : keys) {
+			WriteBehindBuffer.PendingWrite<ValueT> pendingWrite = writeBehind.pendingWrite(key);
+			if (pendingWrite == null) {
+				unbuffered.add(key);
+			} else if (pendingWrite.valueAt(now) != null) {
+				buffered.put(key, pendingWrite.valueAt(now));
+			}
+		}
+		if (unbuffered.isEmpty()) {
+			return buffered;
+		}
+		Map<KeyT, ValueT> values = getAllFromNodes(unbuffered, NodeConnection::getAll);
+		values.putAll(buffered);
+		return values;
+	}
+
+	/**
+	 * Like {@link #getAll(Collection)}, but with the expiry of each value, so a {@link NearCache} does not keep a copy for longer than the value
+	 * lives
+	 */
+	Map<KeyT, Versioned<ValueT>> getAllEntries(Collection<KeyT> keys) throws IOException {
+		// Tombstones are misses, so keys that have one on their current nodes are read through from their previous ones like any other miss
+		NodeRead<KeyT, ValueT, Versioned<ValueT>> read = (con, nodeKeys) -> Maps.filterValues(con.getAllVersioned(nodeKeys),
+				entry -> !entry.isTombstone());
+		if (writeBehind == null) {
+			return getAllFromNodes(keys, read);
+		}
+		Map<KeyT, Versioned<ValueT>> buffered = new HashMap<>();
+		List<KeyT> unbuffered = new ArrayList<>();
+		long now = writeBehind.now();
+		for (KeyT key : keys) {
+			WriteBehindBuffer.PendingWrite<ValueT> pendingWrite = writeBehind.pendingWrite(key);
+			if (pendingWrite == null) {
+				unbuffered.add(key);
+			} else if (pendingWrite.valueAt(now) != null) {
+				Versioned<ValueT> entry = Versioned.of(pendingWrite.valueAt(now), Versioned.UNVERSIONED);
+				buffered.put(key, pendingWrite.expires()
+						? entry.expiringAt(options.getClock().millis() + TimeUnit.NANOSECONDS.toMillis(pendingWrite.remainingNanos(now)))
+						: entry);
+			}
+		}
+		if (unbuffered.isEmpty()) {
+			return buffered;
+		}
+		Map<KeyT, Versioned<ValueT>> entries = getAllFromNodes(unbuffered, read);
+		entries.putAll(buffered);
+		return entries;
+	}
+
+	private <ResultT> Map<KeyT, ResultT> getAllFromNodes(Collection<KeyT> keys, NodeRead<KeyT, ValueT, ResultT> read) throws IOException {
+		RoutingTable<KeyT, ValueT> table = routing;
+		Map<KeyT, ResultT> values;
+		Map<KeyT, List<Node>> nodesByKey = new HashMap<>();
+		if (isReplicated()) {
+			keys.forEach(key -> nodesByKey.put(key, replicaNodes(table, key)));
+			values = readInRounds(table::getConnection, Maps.transformValues(nodesByKey, this::orderForRead), read, true);
+		} else {
+			values = new ConcurrentHashMap<>();
+			Map<Node, List<KeyT>> keysByNode = new HashMap<>();
+			keys.forEach(key -> Optional.ofNullable(owningNode(table, key)).ifPresent(node -> {
+				nodesByKey.put(key, Collections.singletonList(node));
+				keysByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(key);
+			}));
+			sendToOwningNodes(table::getConnection, keysByNode, (con, nodeKeys) -> values.putAll(read.read(con, nodeKeys)));
+		}
+		if (table.isMigrating() && values.size() < keys.size()) {
+			Map<KeyT, List<Node>> previousHoldersByKey = new HashMap<>();
+			keys.stream().filter(key -> !values.containsKey(key))
+					.forEach(key -> previousHoldersByKey.put(key, previousHolders(table, key, nodesByKey.getOrDefault(key, Collections.emptyList()))));
+			values.putAll(readInRounds(table::getConnectionIncludingMigrations, previousHoldersByKey, read, false));
+		}
+		return values;
+	}
+
+	/**
+	 * Read in rounds: each key is first read from the first of its nodes, and keys that are not settled are read from their next node in the
+	 * following round, one request per node per round.
+	 *
+	 * @param replicas Whether the nodes are the replicas of their keys: a key is then settled by the first node that answers for it, even with a
+	 *            miss, and the read fails if a key got no answer from any of its nodes. Otherwise a key is settled once a node has a value for it,
+	 *            and failures count as misses.
+	 */
+	private <ResultT> Map<KeyT, ResultT> readInRounds(Function<Node, ? extends NodeConnection<KeyT, ValueT>> connections,
+			Map<KeyT, List<Node>> nodesByKey, NodeRead<KeyT, ValueT, ResultT> read, boolean replicas) throws IOException {
+		Map<KeyT, ResultT> values = new ConcurrentHashMap<>();
+		Map<KeyT, List<Node>> remaining = new HashMap<>();
+		Set<KeyT> unanswered = ConcurrentHashMap.newKeySet();
+		nodesByKey.forEach((key, nodes) -> {
+			if (!nodes.isEmpty()) {
+				remaining.put(key, nodes);
+				unanswered.add(key);
+			}
+		});
+		List<IOException> failures = new ArrayList<>();
+		for (int round = 0; !remaining.isEmpty(); round++) {
+			Map<Node, List<KeyT>> keysByNode = new HashMap<>();
+			int nodeIndex = round;
+			remaining.entrySet().removeIf(entry -> {
+				if (entry.getValue().size() <= nodeIndex) {
+					return true;
+				}
+				keysByNode.computeIfAbsent(entry.getValue().get(nodeIndex), node -> new ArrayList<>()).add(entry.getKey());
+				return false;
+			});
+			failures.addAll(sendToNodes(connections, keysByNode, (con, nodeKeys) -> {
+				values.putAll(read.read(con, nodeKeys));
+				nodeKeys.forEach(unanswered::remove);
+			}));
+			if (replicas) {
+				remaining.keySet().retainAll(unanswered);
+			} else {
+				values.keySet().forEach(remaining::remove);
+			}
+		}
+		if (replicas && !failures.isEmpty() && !unanswered.isEmpty()) {
+			throw failures.get(0);
+		}
+		return values;
+	}
+
+	@Override
+	public void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		if (writeBehind != null) {
+			await(CompletableFuture.allOf(entries.entrySet().stream().map(entry -> writeBehind.write(entry.getKey(), entry.getValue(), NO_TIME_TO_LIVE))
+					.toArray(CompletableFuture[]::new)));
+			return;
+		}
+		putAllToNodes(entries);
+	}
+
+	private void putAllToNodes(Map<KeyT, ValueT> entries) throws IOException {
+		WriteFence fence = enterWriteFence();
+		try {
+			putAllToNodes(routing, entries);
+		} finally {
+			fence.exit();
+		}
+	}
+
+	private void putAllToNodes(RoutingTable<KeyT, ValueT> table, Map<KeyT, ValueT> entries) throws IOException {
+		Map<KeyT, List<Node>> nodesByKey = new HashMap<>();
+		Map<Node, Map<KeyT, ValueT>> entriesByNode = new HashMap<>();
+		if (isReplicated()) {
+			Map<KeyT, Integer> requiredAcknowledgements = new HashMap<>();
+			entries.forEach((key, value) -> {
+				List<Node> replicas = replicaNodes(table, key);
+				nodesByKey.put(key, replicas);
+				replicas.forEach(node -> entriesByNode.computeIfAbsent(node, n -> new HashMap<>()).put(key, value));
+				requiredAcknowledgements.put(key, Math.min(options.getWriteAcknowledgements(), replicas.size()));
+			});
+			writeToReplicas(table, entriesByNode, requiredAcknowledgements, putRequest(nextVersion()), Map::keySet);
+		} else {
+			entries.forEach((key, value) -> Optional.ofNullable(owningNode(table, key)).ifPresent(node -> {
+				nodesByKey.put(key, Collections.singletonList(node));
+				entriesByNode.computeIfAbsent(node, n -> new HashMap<>()).put(key, value);
+			}));
+			sendToOwningNodes(table::getConnection, entriesByNode, putRequest(nextVersion()));
+		}
+		invalidatePreviousHolders(table, nodesByKey);
+	}
+
+	@Override
+	public void invalidateAll(Collection<KeyT> keys) throws IOException {
+		if (writeBehind != null) {
+			await(CompletableFuture.allOf(keys.stream().map(key -> writeBehind.write(key, null, NO_TIME_TO_LIVE)).toArray(CompletableFuture[]::new)));
+			return;
+		}
+		invalidateAllOnNodes(keys);
+	}
+
+	private void invalidateAllOnNodes(Collection<KeyT> keys) throws IOException {
+		WriteFence fence = enterWriteFence();
+		try {
+			invalidateAllOnNodes(routing, keys);
+		} finally {
+			fence.exit();
+		}
+	}
+
+	private void invalidateAllOnNodes(RoutingTable<KeyT, ValueT> table, Collection<KeyT> keys) throws IOException {
+		Map<KeyT, List<Node>> nodesByKey = new HashMap<>();
+		Map<Node, List<KeyT>> keysByNode = new HashMap<>();
+		if (isReplicated()) {
+			Map<KeyT, Integer> requiredAcknowledgements = new HashMap<>();
+			keys.forEach(key -> {
+				List<Node> replicas = replicaNodes(table, key);
+				nodesByKey.put(key, replicas);
+				replicas.forEach(node -> keysByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(key));
+				requiredAcknowledgements.put(key, Math.min(options.getWriteAcknowledgements(), replicas.size()));
+			});
+			writeToReplicas(table, keysByNode, requiredAcknowledgements, invalidateRequest(writeVersion(table, true)), nodeKeys -> nodeKeys);
+		} else {
+			keys.forEach(key -> Optional.ofNullable(owningNode(table, key)).ifPresent(node -> {
+				nodesByKey.put(key, Collections.singletonList(node));
+				keysByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(key);
+			}));
+			sendToOwningNodes(table::getConnection, keysByNode, invalidateRequest(writeVersion(table, true)));
+		}
+		invalidatePreviousHolders(table, nodesByKey);
+	}
+
+	/**
+	 * Send a batch of buffered writes to the nodes: plain puts and invalidations in one request per node, and puts with a time to live one at
+	 * a time with what is left of it. Puts whose time to live ran out while buffered are sent as invalidations, as they replaced whatever the
+	 * key held before.
+	 */
+	private void writeToNodes(Map<KeyT, WriteBehindBuffer.PendingWrite<ValueT>> writes) throws IOException {
+		Map<KeyT, ValueT> puts = new HashMap<>();
+		List<KeyT> invalidations = new ArrayList<>();
+		Map<KeyT, Long> remainingTimesToLive = new HashMap<>();
+		long now = writeBehind.now();
+		writes.forEach((key, write) -> {
+			if (write.getValue() == null || write.expires() && write.remainingNanos(now) <= 0) {
+				invalidations.add(key);
+			} else if (write.expires()) {
+				remainingTimesToLive.put(key, write.remainingNanos(now));
+			} else {
+				puts.put(key, write.getValue());
+			}
+		});
+		if (!puts.isEmpty()) {
+			putAllToNodes(puts);
+		}
+		if (!invalidations.isEmpty()) {
+			invalidateAllOnNodes(invalidations);
+		}
+		await(CompletableFuture.allOf(remainingTimesToLive.entrySet().stream()
+				.map(entry -> writeToNodesAsync(entry.getKey(), writes.get(entry.getKey()).getValue(), entry.getValue())).toArray(CompletableFuture<?>[]::new)));
+	}
+
+	/**
+	 * Send every write buffered in write-behind mode to the nodes, for example before the process exits. Does nothing when writes are not
+	 * buffered.
+	 *
+	 * @throws IOException If the writes could not be sent; they stay buffered and are retried with the next flush
+	 */
+	public void flush() throws IOException {
+		if (writeBehind != null) {
+			writeBehind.flush();
+		}
+	}
+
+	/**
+	 * Stop flushing writes buffered in write-behind mode in the background, and send the ones still buffered. Connections to nodes stay open
+	 * until the nodes shut down. Does nothing when writes are not buffered.
+	 *
+	 * @throws IOException If the writes could not be sent; they stay buffered and can be sent with {@link #flush()}
+	 */
+	@Override
+	public void close() throws IOException {
+		if (writeBehind != null) {
+			writeBehind.close();
+		}
+	}
+
+	private NodeRequest<KeyT, ValueT, Map<KeyT, ValueT>> putRequest(long version) {
+		return (con, nodeEntries) -> con.putAllIfNewer(Maps.transformValues(nodeEntries, value -> Versioned.of(value, version)));
+	}
+
+	private NodeRequest<KeyT, ValueT, List<KeyT>> invalidateRequest(long version) {
+		if (version == Versioned.UNVERSIONED) {
+			return NodeConnection::invalidateAll;
+		}
+		return (con, nodeKeys) -> con.putAllIfNewer(Maps.toMap(new LinkedHashSet<>(nodeKeys), key -> Versioned.tombstone(version)));
+	}
+
+	/**
+	 * The batch form of {@link #invalidatePreviousHolders(RoutingTable, Object, List)}, one request per previous holder
+	 */
+	private void invalidatePreviousHolders(RoutingTable<KeyT, ValueT> table, Map<KeyT, List<Node>> currentNodesByKey) throws IOException {
+		if (!table.isMigrating()) {
+			return;
+		}
+		Map<Node, List<KeyT>> keysByPreviousHolder = new HashMap<>();
+		currentNodesByKey.forEach((key, nodes) -> previousHolders(table, key, nodes)
+				.forEach(node -> keysByPreviousHolder.computeIfAbsent(node, n -> new ArrayList<>()).add(key)));
+		sendToOwningNodes(table::getConnectionIncludingMigrations, keysByPreviousHolder, NodeConnection::invalidateAll);
+	}
+
+	/**
+	 * Send a batch write to every replica and wait for all of them, failing if any key was acknowledged by fewer replicas than required
+	 */
+	private <GroupT> void writeToReplicas(RoutingTable<KeyT, ValueT> table, Map<Node, GroupT> groupsByNode, Map<KeyT, Integer> requiredAcknowledgements,
+			NodeRequest<KeyT, ValueT, GroupT> request, Function<GroupT, ? extends Collection<KeyT>> groupKeys) throws IOException {
+		ConcurrentHashMultiset<KeyT> acknowledgements = ConcurrentHashMultiset.create();
+		List<IOException> failures = sendToNodes(table::getConnection, groupsByNode, (con, group) -> {
+			request.send(con, group);
+			acknowledgements.addAll(groupKeys.apply(group));
+		});
+		for (Map.Entry<KeyT, Integer> required : requiredAcknowledgements.entrySet()) {
+			if (acknowledgements.count(required.getKey()) < required.getValue()) {
+				throw failures.isEmpty() ? new IOException("Fewer than " + required.getValue() + " nodes acknowledged the write of " + required.getKey())
+						: failures.get(0);
+			}
+		}
+	}
+
+	/**
+	 * Send one request per node, in parallel on the request executor when more than one node is involved. Groups for nodes without an open
+	 * connection are dropped, the same as single key requests when there are no nodes.
+	 */
+	private <GroupT> void sendToOwningNodes(Function<Node, ? extends NodeConnection<KeyT, ValueT>> connections, Map<Node, GroupT> groupsByNode,
+			NodeRequest<KeyT, ValueT, GroupT> request) throws IOException {
+		List<IOException> failures = sendToNodes(connections, groupsByNode, request);
+		if (!failures.isEmpty()) {
+			throw failures.get(0);
+		}
+	}
+
+	/**
+	 * Like {@link #sendToOwningNodes(Function, Map, NodeRequest)}, but every request is sent even if others fail
+	 *
+	 * @return The failures of the requests that failed
+	 */
+	private <GroupT> List<IOException> sendToNodes(Function<Node, ? extends NodeConnection<KeyT, ValueT>> connections, Map<Node, GroupT> groupsByNode,
+			NodeRequest<KeyT, ValueT, GroupT> request) {
+		List<IOException> failures = Collections.synchronizedList(new ArrayList<>());
+		List<Runnable> requests = new ArrayList<>(groupsByNode.size());
+		groupsByNode.forEach((node, group) -> Optional.ofNullable(connections.apply(node)).ifPresent(con -> requests.add(() -> {
+			try {
+				request.send(con, group);
+			} catch (IOException e) {
+				failures.add(e);
+			}
+		})));
+		if (requests.size() == 1) {
+			requests.get(0).run();
+		} else if (requests.size() > 1) {
+			CompletableFuture<?>[] futures = requests.stream().map(r -> CompletableFuture.runAsync(r, options.getRequestExecutor()))
+					.toArray(CompletableFuture<?>[]::new);
+			try {
+				CompletableFuture.allOf(futures).join();
+			} catch (CompletionException e) {
+				failures.add(toIOException(e));
+			}
+		}
+		return failures;
+	}
+
+	@FunctionalInterface
+	private interface NodeRequest<KeyT, ValueT, GroupT> {
+
+		void send(NodeConnection<KeyT, ValueT> nodeConnection, GroupT group) throws IOException;
+	}
+
+	@FunctionalInterface
+	private interface NodeRead<KeyT, ValueT, ResultT> {
+
+		Map<KeyT, ResultT> read(NodeConnection<KeyT, ValueT> nodeConnection, List<KeyT> keys) throws IOException;
+	}
+
+	/**
+	 * Open a connection to the new node and add it to a new routing table. The table is swapped in before the node takes any keys, and the
+	 * previous table is kept as a migration until the values have moved, so requests never wait and keys that have not moved yet are read
+	 * from their previous nodes. The values move on the rebalance executor; {@link #rebalanced()} completes once they have.
+	 */
 	@Override
 	public void nodeAdded(Node newNode) {
-		hashingNodeLookup.storeValue(newNode);
-		NodeConnection<KeyT, ValueT> newNodeConnection = nodeConnectionFactory.findNodeConnectionForNodeType(newNode);
+		AsyncNodeConnection<KeyT, ValueT> newNodeConnection = ExecutorAsyncNodeConnection
+				.asAsync(nodeConnectionFactory.findNodeConnectionForNodeType(newNode), options.getRequestExecutor());
+		newNodeConnection = new TracingNodeConnection<>(newNodeConnection, newNode, options.getAccessTracer());
+		if (metrics != null) {
+			newNodeConnection = new InstrumentedNodeConnection<>(newNodeConnection, metrics.forNode(newNode));
+		}
+		if (options.isCircuitBreakerEnabled()) {
+			newNodeConnection = new CircuitBreakingNodeConnection<>(newNodeConnection, newNode, options.newCircuitBreaker(), () -> suspendNode(newNode));
+		}
 		try {
 			newNodeConnection.open();
-			nodeConnections.put(newNode, newNodeConnection);
-			redistributeValues();
 		} catch (IOException e) {
 			LOG.error("Could not open a new connection for Node {}", newNode.getNodeId(), e);
+			return;
 		}
+		addToRouting(newNode, newNodeConnection, false);
 	}
 
-	private void redistributeValues() {
-		synchronized (nodeConnections) {
-			nodeConnections.forEach(this::tryToRedistributeValuesFromNode);
+	/**
+	 * @param restoring Whether the node is coming back after being suspended; it is then only added if it is still suspended
+	 */
+	private void addToRouting(Node node, AsyncNodeConnection<KeyT, ValueT> con, boolean restoring) {
+		RoutingTable<KeyT, ValueT> migration;
+		HashRing<Node> ringAfterChange;
+		WriteFence writesBefore;
+		synchronized (membershipLock) {
+			if (restoring && !suspendedNodes.remove(node, con)) {
+				return;
+			}
+			outstandingReads.track(node);
+			migration = routing.asMigrationSource();
+			routing = routing.withConnection(node, con).withMigration(migration);
+			hashingNodeLookup.storeValue(node);
+			ringAfterChange = publishRing();
+			writesBefore = fenceWrites();
 		}
+		redistribute(migration, ringAfterChange, Collections.singleton(node), writesBefore);
+	}
+
+	/**
+	 * Take a node whose circuit breaker opened out of routing, on the rebalance executor, as the breaker opens on whichever thread saw the
+	 * failure. Its keys go to the next nodes on the ring until a health check finds it answering again.
+	 */
+	private void suspendNode(Node node) {
+		rebalanceInBackground(() -> {
+			CircuitBreakingNodeConnection<KeyT, ValueT> con;
+			RoutingTable<KeyT, ValueT> copiesToMake;
+			WriteFence writesBefore;
+			synchronized (membershipLock) {
+				AsyncNodeConnection<KeyT, ValueT> current = routing.getConnection(node);
+				if (!(current instanceof CircuitBreakingNodeConnection) || !((CircuitBreakingNodeConnection<?, ?>) current).getCircuitBreaker().isOpen()) {
+					return;
+				}
+				con = (CircuitBreakingNodeConnection<KeyT, ValueT>) current;
+				copiesToMake = leaveRouting(node);
+				writesBefore = copiesToMake != null ? fenceWrites() : null;
+				suspendedNodes.put(node, con);
+			}
+			LOG.warn("Node {} is failing, its keys go to other nodes until it is healthy", node.getNodeId());
+			rerouteBufferedWrites(node);
+			restoreReplication(copiesToMake, writesBefore);
+			scheduleHealthCheck(node, con);
+		});
 	}
 
-	private void tryToRedistributeValuesFromNode(Node node, NodeConnection<KeyT, ValueT> nodeConnection) {
+	private void scheduleHealthCheck(Node node, CircuitBreakingNodeConnection<KeyT, ValueT> con) {
+		options.getHealthCheckExecutor().schedule(() -> checkHealth(node, con), con.getCircuitBreaker().nextRetryDelayNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Ping a suspended node, and bring it back on the rebalance executor once it answers. Otherwise check again after a longer delay.
+	 */
+	private void checkHealth(Node node, CircuitBreakingNodeConnection<KeyT, ValueT> con) {
+		if (suspendedNodes.get(node) != con) {
+			return;
+		}
 		try {
-			Stream<KeyT> allKeysForNode = nodeConnection.keys();
-			redistributeValuesFromNode(allKeysForNode, node, nodeConnection);
+			con.ping();
 		} catch (IOException e) {
-			LOG.error("Could not move values from Node {}", node.getNodeId(), e);
+			LOG.debug("Node {} is still failing", node.getNodeId(), e);
+			scheduleHealthCheck(node, con);
+			return;
 		}
+		rebalanceInBackground(() -> restoreNode(node, con));
 	}
 
-	private void redistributeValuesFromNode(Stream<KeyT> allKeysForNode, Node node, NodeConnection<KeyT, ValueT> nodeConnection) {
-		allKeysForNode.forEach(key -> maybeRedistributeValue(key, node, nodeConnection));
+	/**
+	 * Empty a suspended node that answers again, as its keys were written to other nodes while it was out, then add it back like a new node so
+	 * its keys move back to it
+	 */
+	private void restoreNode(Node node, CircuitBreakingNodeConnection<KeyT, ValueT> con) {
+		con.getCircuitBreaker().reset();
+		try (Stream<KeyT> keys = con.keys()) {
+			con.invalidateAll(keys.collect(Collectors.toList()));
+		} catch (IOException | UncheckedIOException e) {
+			LOG.warn("Node {} failed again while being brought back", node.getNodeId(), e);
+			con.getCircuitBreaker().trip();
+			scheduleHealthCheck(node, con);
+			return;
+		}
+		LOG.info("Node {} is healthy again", node.getNodeId());
+		addToRouting(node, con, true);
 	}
 
-	private void maybeRedistributeValue(KeyT key, Node oldNode, NodeConnection<KeyT, ValueT> oldNodeConnection) {
-		Node nodeWhereValueNowBelongs = hashingNodeLookup.lookupValue(key, keyFunnel);
-		if (nodeWhereValueNowBelongs == null) {
-			LOG.warn("Could not transfer value for key: {} from old node: {}, there are no active nodes to transfer to", key, oldNode.getNodeId());
-		} else if (nodeWhereValueNowBelongs != oldNode) {
-			// only move value if it now needs to be in a new node
-			tryToRedistributeValue(key, nodeWhereValueNowBelongs, oldNode, oldNodeConnection);
+	/**
+	 * Swap the current ring of the lookup into the routing table, if the lookup is a ring. Other lookups route directly, so for them the
+	 * change is visible as soon as the lookup changes.
+	 *
+	 * @return The ring now in the routing table, or {@code null} if the lookup is not a ring
+	 */
+	private HashRing<Node> publishRing() {
+		if (ringLookup != null) {
+			routing = routing.withRing(ringLookup.snapshot());
 		}
+		return routing.getRing();
 	}
 
-	private void tryToRedistributeValue(KeyT key, Node newNode, Node oldNode, NodeConnection<KeyT, ValueT> oldNodeConnection) {
-		tryToGetValueFromOldNode(key, oldNode, oldNodeConnection).ifPresent(value -> {
-			NodeConnection<KeyT, ValueT> newNodeConnection = nodeConnections.get(newNode);
-			tryToPutValueInNewNode(key, value, newNode, newNodeConnection);
-			tryToInvalidateValueInOldNode(key, oldNode, oldNodeConnection);
-		});
+	/**
+	 * @return A future that completes once the values moved by every membership change made so far have moved, including the changes those
+	 *         lead to, such as a node added back once it is healthy. Values move in the background on the rebalance executor, so this is how
+	 *         callers wait for them, for example before shutting down the nodes they moved from.
+	 */
+	public CompletableFuture<Void> rebalanced() {
+		CompletableFuture<?>[] running = rebalances.toArray(new CompletableFuture<?>[0]);
+		if (running.length == 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CompletableFuture.allOf(running).thenCompose(ignored -> rebalanced());
 	}
 
-	private Optional<ValueT> tryToGetValueFromOldNode(KeyT key, Node oldNode, NodeConnection<KeyT, ValueT> oldNodeConnection) {
+	/**
+	 * Run a membership change on the rebalance executor, tracked by {@link #rebalanced()} until it finished
+	 */
+	private void rebalanceInBackground(Runnable change) {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		rebalances.add(done);
+		Runnable tracked = () -> {
+			try {
+				change.run();
+			} finally {
+				rebalances.remove(done);
+				done.complete(null);
+			}
+		};
 		try {
-			return Optional.ofNullable(oldNodeConnection.get(key));
-		} catch (IOException e) {
-			LOG.error("Could not redistribute value for key {}, could not get value from old node {}", key, oldNode.getNodeId(), e);
-			return Optional.empty();
+			options.getRebalanceExecutor().execute(tracked);
+		} catch (RejectedExecutionException e) {
+			rebalances.remove(done);
+			done.complete(null);
+			throw e;
 		}
 	}
 
-	private void tryToPutValueInNewNode(KeyT key, ValueT value, Node newNode, NodeConnection<KeyT, ValueT> newNodeConnection) {
-		try {
-			newNodeConnection.put(key, value);
-		} catch (IOException e) {
-			LOG.error("Could not put value for key {} in new node {}", key, newNode.getNodeId(), e);
+	/**
+	 * Move values after the routing table changed from the given migration source, on the rebalance executor, then drop the migration. With a
+	 * ring only the hash ranges whose owner, or with replication whose replicas, changed are read; otherwise every node is scanned.
+	 *
+	 * @param nodesMissingValues Nodes that may not hold values they should, see {@link BulkTransfer}
+	 * @param writesBefore The writes routed before the change, which have to finish before values are read for moving
+	 */
+	private void redistribute(RoutingTable<KeyT, ValueT> migration, HashRing<Node> ringAfterChange, Set<Node> nodesMissingValues,
+			WriteFence writesBefore) {
+		HashRing<Node> ringBeforeChange = migration.getRing();
+		rebalanceInBackground(() -> {
+			try {
+				writesBefore.awaitDrained();
+				if (ringBeforeChange == null) {
+					redistributeValues(nodesMissingValues);
+				} else if (isReplicated()) {
+					redistributeChangedReplicas(ringBeforeChange, ringAfterChange, nodesMissingValues);
+				} else {
+					redistributeChangedRanges(ringBeforeChange, ringAfterChange);
+				}
+			} finally {
+				finishMigration(migration);
+			}
+		});
+	}
+
+	/**
+	 * Stop reading through to a table whose values have moved. Once no values are moving, the tombstones left by invalidations during the
+	 * migrations are no longer needed; ones from a migration that starts after this are kept, as they are newer than the next version.
+	 */
+	private void finishMigration(RoutingTable<KeyT, ValueT> migration) {
+		RoutingTable<KeyT, ValueT> table;
+		synchronized (membershipLock) {
+			routing = routing.withoutMigration(migration);
+			table = routing;
+		}
+		if (table.isMigrating()) {
+			return;
 		}
+		long purgeBefore = nextVersion();
+		table.getConnections().forEach((node, con) -> {
+			try {
+				con.purgeTombstones(purgeBefore);
+			} catch (IOException e) {
+				LOG.warn("Could not purge tombstones from Node {}", node.getNodeId(), e);
+			}
+		});
 	}
 
-	private void tryToInvalidateValueInOldNode(KeyT key, Node oldNode, NodeConnection<KeyT, ValueT> oldNodeConnection) {
+	/**
+	 * Move only the values in hash ranges that changed owner. Each previous owner is only asked for the keys in the ranges it lost.
+	 */
+	private void redistributeChangedRanges(HashRing<Node> ringBeforeChange, HashRing<Node> ringAfterChange) {
+		Map<Node, RangeSet<Integer>> movedRanges = new HashMap<>();
+		ringBeforeChange.ownershipChangesTo(ringAfterChange).rowMap().forEach((previousOwner, rangesByNewOwner) -> {
+			RangeSet<Integer> ranges = TreeRangeSet.create();
+			rangesByNewOwner.values().forEach(ranges::addAll);
+			movedRanges.put(previousOwner, ranges);
+		});
+		transferRanges(movedRanges, Collections.emptySet());
+	}
+
+	/**
+	 * Move or copy only the replicated values in hash ranges whose replicas changed. Each previous replica is only asked for the keys in those
+	 * of its ranges, so adding a node reads the ranges it takes a copy of rather than every key of every node.
+	 *
+	 * @param nodesMissingValues Nodes that may not hold values they should, see {@link BulkTransfer}
+	 */
+	private void redistributeChangedReplicas(HashRing<Node> ringBeforeChange, HashRing<Node> ringAfterChange, Set<Node> nodesMissingValues) {
+		transferRanges(ringBeforeChange.replicaChangesTo(ringAfterChange, options.getReplicationFactor()), nodesMissingValues);
+	}
+
+	/**
+	 * @param rangesBySource The hash ranges to read from each node
+	 * @param nodesMissingValues Nodes that may not hold values they should, see {@link BulkTransfer}
+	 */
+	private void transferRanges(Map<Node, RangeSet<Integer>> rangesBySource, Set<Node> nodesMissingValues) {
+		TransferLimits limits = newTransferLimits();
+		List<Runnable> transfers = new ArrayList<>();
+		rangesBySource.forEach((source, ranges) -> Optional.ofNullable(routing.getConnectionIncludingMigrations(source))
+				.ifPresent(con -> transfers.add(() -> transferValues(source, con,
+						c -> c.keysInHashRanges(ranges, key -> ringLookup.hash(key, keyFunnel)), nodesMissingValues, true, limits))));
+		runTransfers(transfers);
+	}
+
+	/**
+	 * Scan every node and move or copy each value to the nodes it now belongs to. Used when the changed ranges are not known, and to copy
+	 * replicated values again after a node left without handing them over.
+	 *
+	 * @param nodesMissingValues Nodes that may not hold values they should, see {@link BulkTransfer}
+	 */
+	private void redistributeValues(Set<Node> nodesMissingValues) {
+		TransferLimits limits = newTransferLimits();
+		List<Runnable> transfers = new ArrayList<>();
+		routing.getConnections()
+				.forEach((node, con) -> transfers.add(() -> transferValues(node, con, NodeConnection::keys, nodesMissingValues, true, limits)));
+		runTransfers(transfers);
+	}
+
+	/**
+	 * Run transfers out of several nodes at once on the transfer executor, at most the configured number at a time, returning once all of them
+	 * finished. The transfers share the limits on writes to each destination, so nodes that many values move to are not swamped.
+	 */
+	private void runTransfers(List<Runnable> transfers) {
+		if (transfers.size() == 1) {
+			transfers.get(0).run();
+			return;
+		}
+		Semaphore sources = new Semaphore(options.getTransferSourceParallelism());
+		List<CompletableFuture<Void>> running = new ArrayList<>(transfers.size());
+		for (Runnable transfer : transfers) {
+			sources.acquireUninterruptibly();
+			try {
+				running.add(CompletableFuture.runAsync(transfer, options.getTransferExecutor()).whenComplete((ignored, error) -> sources.release()));
+			} catch (RejectedExecutionException e) {
+				LOG.warn("Could not schedule a transfer, running it on this thread", e);
+				try {
+					transfer.run();
+				} finally {
+					sources.release();
+				}
+			}
+		}
 		try {
-			oldNodeConnection.invalidate(key);
-		} catch (IOException e) {
-			LOG.error("Could not invalidate value at key {} in old node {}", key, oldNode.getNodeId(), e);
+			CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			LOG.error("Could not move values between nodes", e.getCause());
+		}
+	}
+
+	private TransferLimits newTransferLimits() {
+		return new TransferLimits(options.getTransferParallelism(), transferRate);
+	}
+
+	/**
+	 * Move the values of the given node that belong to other nodes now, see {@link BulkTransfer}
+	 *
+	 * @param removeMovedKeys Whether to remove the moved values from the source node, see {@link BulkTransfer#run(Stream, boolean)}
+	 * @param limits The limits on writes to destination nodes, shared with the transfers running at the same time
+	 */
+	private void transferValues(Node sourceNode, NodeConnection<KeyT, ValueT> sourceConnection,
+			CheckedFunction<NodeConnection<KeyT, ValueT>, Stream<KeyT>, IOException> keysToConsider, Set<Node> nodesMissingValues,
+			boolean removeMovedKeys, TransferLimits limits) {
+		BulkTransfer<KeyT, ValueT> transfer = new BulkTransfer<>(sourceNode, sourceConnection, this::replicaNodes, nodesMissingValues,
+				node -> routing.getConnection(node), options.getTransferBatchSize(), limits, options.getRequestExecutor());
+		recentTransfers.add(transfer.getProgress());
+		try (Stream<KeyT> keys = keysToConsider.apply(sourceConnection)) {
+			transfer.run(keys, removeMovedKeys);
+		} catch (IOException | UncheckedIOException e) {
+			LOG.error("Could not move values from Node {}", sourceNode.getNodeId(), e);
+		}
+		if (metrics != null) {
+			TransferProgress progress = transfer.getProgress();
+			metrics.recordRedistribution(progress.getKeysMoved(), progress.getKeysFailed(), progress.getElapsed(TimeUnit.NANOSECONDS));
+		}
+	}
+
+	/**
+	 * Change the share of keys a node owns at runtime, for example after its capacity changes. Only the keys in ranges that change owner move,
+	 * on the rebalance executor, and requests keep flowing while they do.
+	 *
+	 * @param node A node in the cache
+	 * @param weight The new weight of the node relative to a node of weight 1, must be positive
+	 * @throws UnsupportedOperationException If the {@link HashingLookup} of this cache is not a {@link WeightedHashingLookup}
+	 */
+	@SuppressWarnings("unchecked")
+	public void setNodeWeight(Node node, double weight) {
+		if (!(hashingNodeLookup instanceof WeightedHashingLookup)) {
+			throw new UnsupportedOperationException("The hashing lookup of this cache does not support weights");
+		}
+		RoutingTable<KeyT, ValueT> migration;
+		HashRing<Node> ringAfterChange;
+		WriteFence writesBefore;
+		synchronized (membershipLock) {
+			migration = routing.asMigrationSource();
+			routing = routing.withMigration(migration);
+			try {
+				((WeightedHashingLookup<Node>) hashingNodeLookup).setWeight(node, weight);
+			} catch (RuntimeException e) {
+				routing = routing.withoutMigration(migration);
+				throw e;
+			}
+			ringAfterChange = publishRing();
+			writesBefore = fenceWrites();
 		}
+		// A node that gained weight may be missing copies of keys it is now a replica for; when it lost weight its values move off it
+		redistribute(migration, ringAfterChange, Collections.singleton(node), writesBefore);
 	}
 
+	/**
+	 * @return The {@link AccessTracer} requests to nodes are reported to, so tracing can be turned on and off at runtime
+	 */
+	public AccessTracer getAccessTracer() {
+		return options.getAccessTracer();
+	}
+
+	/**
+	 * @return The {@link Clock} expiries are measured with
+	 */
+	Clock getClock() {
+		return options.getClock();
+	}
+
+	/**
+	 * @return Progress of the most recent transfers of values between nodes, oldest first, including any still running
+	 */
+	public List<TransferProgress> getRecentTransfers() {
+		synchronized (recentTransfers) {
+			return new ArrayList<>(recentTransfers);
+		}
+	}
+
+	/**
+	 * Forget a node that left without shutting down. Its values are lost, unless they are replicated: then the copies on the remaining nodes are
+	 * copied again in the background, on the rebalance executor, to restore the replication factor.
+	 */
 	@Override
 	public void nodeRemoved(Node node) {
-		Optional.ofNullable(removeNode(node)).ifPresent(con -> {
+		AsyncNodeConnection<KeyT, ValueT> con;
+		RoutingTable<KeyT, ValueT> copiesToMake = null;
+		WriteFence writesBefore = null;
+		synchronized (membershipLock) {
+			con = routing.getConnection(node);
+			if (con == null) {
+				// A suspended node already left routing, and its copies were made again then
+				con = suspendedNodes.remove(node);
+				if (con == null) {
+					return;
+				}
+			} else {
+				copiesToMake = leaveRouting(node);
+				writesBefore = copiesToMake != null ? fenceWrites() : null;
+			}
+		}
+		rerouteBufferedWrites(node);
+		closeConnection(node, con);
+		restoreReplication(copiesToMake, writesBefore);
+	}
+
+	/**
+	 * Take a node out of the lookup and the routing table, without moving its values. Must hold the membership lock.
+	 *
+	 * @return With replication, the migration to pass to {@link #restoreReplication(RoutingTable, WriteFence)}; otherwise {@code null}
+	 */
+	private RoutingTable<KeyT, ValueT> leaveRouting(Node node) {
+		RoutingTable<KeyT, ValueT> migration = null;
+		if (isReplicated()) {
+			// Copies are versioned like any other move; the node that left is not read through to
+			migration = routing.withoutConnection(node).asMigrationSource();
+			routing = routing.withMigration(migration);
+		}
+		hashingNodeLookup.removeValue(node);
+		publishRing();
+		routing = routing.withoutConnection(node);
+		return migration;
+	}
+
+	/**
+	 * Copy the values of the remaining nodes again in the background, on the rebalance executor, to restore the replication factor after a node
+	 * left without handing over its values
+	 *
+	 * @param writesBefore The writes routed before the node left, which have to finish before values are read for copying
+	 */
+	private void restoreReplication(RoutingTable<KeyT, ValueT> copiesToMake, WriteFence writesBefore) {
+		if (copiesToMake == null) {
+			return;
+		}
+		rebalanceInBackground(() -> {
 			try {
-				con.close();
-			} catch (Exception e) {
-				LOG.warn("Could not close connection to node {}", node.getNodeId(), e);
+				writesBefore.awaitDrained();
+				redistributeValues(Collections.emptySet());
+			} finally {
+				finishMigration(copiesToMake);
 			}
 		});
 	}
 
-	private NodeConnection<KeyT, ValueT> removeNode(Node node) {
-		hashingNodeLookup.removeValue(node);
-		return nodeConnections.remove(node);
+	/**
+	 * Hand the writes buffered for a node that left routing to the nodes that own their keys now. They are flushed with their new nodes'
+	 * writes, which also invalidate the keys on the nodes they are moving from while values move.
+	 */
+	private void rerouteBufferedWrites(Node node) {
+		if (writeBehind != null) {
+			writeBehind.reroute(node);
+		}
+	}
+
+	private void closeConnection(Node node, AsyncNodeConnection<KeyT, ValueT> con) {
+		forgetNode(node);
+		try {
+			con.close();
+		} catch (Exception e) {
+			LOG.warn("Could not close connection to node {}", node.getNodeId(), e);
+		}
 	}
 
+	private void forgetNode(Node node) {
+		if (metrics != null) {
+			metrics.removeNode(node);
+		}
+		outstandingReads.untrack(node);
+	}
+
+	/**
+	 * Move the values of a node that is shutting down to the nodes that own them without it, then close its connection. The node leaves the
+	 * routing table first, and keys it still holds are read from it until they have moved. A suspended node has nothing to hand over, its keys
+	 * already went to other nodes, so it is only forgotten.
+	 */
 	@Override
 	public void nodeShuttingDown(Node nodeToShutdown) {
-		NodeConnection<KeyT, ValueT> nodeConnectionForNodeToShutdown = removeNode(nodeToShutdown);
-		tryToRedistributeValuesFromNode(nodeToShutdown, nodeConnectionForNodeToShutdown);
+		AsyncNodeConnection<KeyT, ValueT> con;
+		AsyncNodeConnection<KeyT, ValueT> suspended = null;
+		RoutingTable<KeyT, ValueT> migration = null;
+		WriteFence writesBefore = null;
+		synchronized (membershipLock) {
+			con = routing.getConnection(nodeToShutdown);
+			if (con == null) {
+				suspended = suspendedNodes.remove(nodeToShutdown);
+			} else {
+				migration = routing.asMigrationSource();
+				routing = routing.withMigration(migration);
+				hashingNodeLookup.removeValue(nodeToShutdown);
+				publishRing();
+				routing = routing.withoutConnection(nodeToShutdown);
+				writesBefore = fenceWrites();
+			}
+		}
+		if (con == null) {
+			if (suspended != null) {
+				closeConnection(nodeToShutdown, suspended);
+			}
+			return;
+		}
+		rerouteBufferedWrites(nodeToShutdown);
 		try {
-			nodeConnectionForNodeToShutdown.close();
-		} catch (IOException e) {
-			LOG.warn("Could not close connection to node {}", nodeToShutdown.getNodeId(), e);
+			writesBefore.awaitDrained();
+			transferValues(nodeToShutdown, con, NodeConnection::keys, Collections.emptySet(), false, newTransferLimits());
+		} finally {
+			finishMigration(migration);
 		}
+		closeConnection(nodeToShutdown, con);
 	}
 }
-
-
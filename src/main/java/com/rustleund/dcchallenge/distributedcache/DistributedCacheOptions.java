@@ -0,0 +1,541 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rustleund.dcchallenge.distributedcache.node.AccessTracer;
+import com.rustleund.dcchallenge.distributedcache.node.CircuitBreaker;
+import com.rustleund.dcchallenge.metrics.CacheMetrics;
+
+/**
+ * Tuning options for a {@link DistributedCache}. Use {@link #builder()} to override any of the defaults.
+ */
+public final class DistributedCacheOptions {
+
+	private final Executor requestExecutor;
+	private final Executor rebalanceExecutor;
+	private final int transferBatchSize;
+	private final int transferParallelism;
+	private final Executor transferExecutor;
+	private final int transferSourceParallelism;
+	private final double transferRateLimit;
+	private final CacheMetrics metrics;
+	private final AccessTracer accessTracer;
+	private final int replicationFactor;
+	private final int writeAcknowledgements;
+	private final Double balanceFactor;
+	private final int failureThreshold;
+	private final long initialRetryDelayNanos;
+	private final long maximumRetryDelayNanos;
+	private final ScheduledExecutorService healthCheckExecutor;
+	private final long loadTimeToLiveNanos;
+	private final double earlyRefreshBeta;
+	private final int writeBehindBatchSize;
+	private final int writeBehindMaximumSize;
+	private final long writeBehindFlushIntervalNanos;
+	private final Clock clock;
+	private final Ticker ticker;
+
+	private DistributedCacheOptions(Builder builder) {
+		this.requestExecutor = builder.requestExecutor != null ? builder.requestExecutor : defaultRequestExecutor();
+		this.rebalanceExecutor = builder.rebalanceExecutor != null ? builder.rebalanceExecutor : defaultRebalanceExecutor();
+		this.transferBatchSize = builder.transferBatchSize;
+		this.transferParallelism = builder.transferParallelism;
+		this.transferExecutor = builder.transferExecutor != null ? builder.transferExecutor : defaultTransferExecutor(builder.transferSourceParallelism);
+		this.transferSourceParallelism = builder.transferSourceParallelism;
+		this.transferRateLimit = builder.transferRateLimit;
+		this.metrics = builder.metrics;
+		this.accessTracer = builder.accessTracer != null ? builder.accessTracer : new AccessTracer();
+		this.replicationFactor = builder.replicationFactor;
+		this.writeAcknowledgements = builder.writeAcknowledgements != 0 ? builder.writeAcknowledgements : builder.replicationFactor / 2 + 1;
+		this.balanceFactor = builder.balanceFactor;
+		this.failureThreshold = builder.failureThreshold;
+		this.initialRetryDelayNanos = builder.initialRetryDelayNanos;
+		this.maximumRetryDelayNanos = builder.maximumRetryDelayNanos;
+		this.healthCheckExecutor = builder.healthCheckExecutor != null ? builder.healthCheckExecutor : defaultHealthCheckExecutor();
+		this.loadTimeToLiveNanos = builder.loadTimeToLiveNanos;
+		this.earlyRefreshBeta = builder.earlyRefreshBeta;
+		this.writeBehindBatchSize = builder.writeBehindBatchSize;
+		this.writeBehindMaximumSize = builder.writeBehindMaximumSize;
+		this.writeBehindFlushIntervalNanos = builder.writeBehindFlushIntervalNanos;
+		this.clock = builder.clock != null ? builder.clock : Clock.systemUTC();
+		this.ticker = builder.clock != null ? tickerOf(builder.clock) : Ticker.systemTicker();
+		checkArgument(writeAcknowledgements <= replicationFactor, "Write acknowledgements (%s) cannot exceed the replication factor (%s)", writeAcknowledgements,
+				replicationFactor);
+	}
+
+	/**
+	 * @return Options with every setting at its default
+	 */
+	public static DistributedCacheOptions defaults() {
+		return builder().build();
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	private static Executor defaultRequestExecutor() {
+		return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("distributed-cache-request-%d").build());
+	}
+
+	private static Executor defaultRebalanceExecutor() {
+		return Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("distributed-cache-rebalance-%d").build());
+	}
+
+	private static Executor defaultTransferExecutor(int sourceParallelism) {
+		return Executors.newFixedThreadPool(sourceParallelism, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("distributed-cache-transfer-%d").build());
+	}
+
+	private static Ticker tickerOf(Clock clock) {
+		return new Ticker() {
+			@Override
+			public long read() {
+				Instant now = clock.instant();
+				return TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+			}
+		};
+	}
+
+	private static ScheduledExecutorService defaultHealthCheckExecutor() {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("distributed-cache-health-%d").build());
+	}
+
+	/**
+	 * @return The {@link Executor} used to send requests to several nodes in parallel, for example the per-node groups of a multi-key request
+	 */
+	public Executor getRequestExecutor() {
+		return requestExecutor;
+	}
+
+	/**
+	 * @return The {@link Executor} that moves values to a newly added node in the background
+	 */
+	public Executor getRebalanceExecutor() {
+		return rebalanceExecutor;
+	}
+
+	/**
+	 * @return The number of keys read from a node at a time when moving its values to other nodes
+	 */
+	public int getTransferBatchSize() {
+		return transferBatchSize;
+	}
+
+	/**
+	 * @return The maximum number of batches being written to one destination node at once when moving values between nodes
+	 */
+	public int getTransferParallelism() {
+		return transferParallelism;
+	}
+
+	/**
+	 * @return The {@link Executor} that scans the nodes values are moved out of, several at once
+	 */
+	public Executor getTransferExecutor() {
+		return transferExecutor;
+	}
+
+	/**
+	 * @return The maximum number of nodes values are moved out of at once after a membership change
+	 */
+	public int getTransferSourceParallelism() {
+		return transferSourceParallelism;
+	}
+
+	/**
+	 * @return The most keys moved between nodes per second, if moving values is rate limited
+	 */
+	public OptionalDouble getTransferRateLimit() {
+		return transferRateLimit > 0 ? OptionalDouble.of(transferRateLimit) : OptionalDouble.empty();
+	}
+
+	/**
+	 * @return The {@link CacheMetrics} the cache records into, if any
+	 */
+	public Optional<CacheMetrics> getMetrics() {
+		return Optional.ofNullable(metrics);
+	}
+
+	/**
+	 * @return The {@link AccessTracer} that requests to nodes are reported to when tracing is turned on
+	 */
+	public AccessTracer getAccessTracer() {
+		return accessTracer;
+	}
+
+	/**
+	 * @return The number of distinct nodes each value is stored on
+	 */
+	public int getReplicationFactor() {
+		return replicationFactor;
+	}
+
+	/**
+	 * @return The number of replicas that must acknowledge a write before it completes
+	 */
+	public int getWriteAcknowledgements() {
+		return writeAcknowledgements;
+	}
+
+	/**
+	 * @return How far above the average number of in flight reads a replica may go before reads skip it, if reads use bounded loads
+	 */
+	public OptionalDouble getBalanceFactor() {
+		return balanceFactor != null ? OptionalDouble.of(balanceFactor) : OptionalDouble.empty();
+	}
+
+	/**
+	 * @return Whether nodes whose requests keep failing are taken out of routing until they are healthy again
+	 */
+	public boolean isCircuitBreakerEnabled() {
+		return failureThreshold > 0;
+	}
+
+	/**
+	 * @return A new {@link CircuitBreaker} for one node, with the configured threshold and retry delays
+	 * @throws IllegalStateException If circuit breakers are not enabled
+	 */
+	public CircuitBreaker newCircuitBreaker() {
+		if (!isCircuitBreakerEnabled()) {
+			throw new IllegalStateException("Circuit breakers are not enabled");
+		}
+		return new CircuitBreaker(failureThreshold, initialRetryDelayNanos, maximumRetryDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return The {@link ScheduledExecutorService} that runs the health checks of nodes taken out of routing, and the timed flushes of
+	 *         write-behind buffers
+	 */
+	public ScheduledExecutorService getHealthCheckExecutor() {
+		return healthCheckExecutor;
+	}
+
+	/**
+	 * @param unit The unit to return the time in
+	 * @return How long a value loaded by {@link DistributedCache#getOrLoad} is used before it is loaded again, or 0 if loaded values are used
+	 *         until they are invalidated
+	 */
+	public long getLoadTimeToLive(TimeUnit unit) {
+		return unit.convert(loadTimeToLiveNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return How early loaded values may be refreshed, as a multiple of the time they took to load
+	 */
+	public double getEarlyRefreshBeta() {
+		return earlyRefreshBeta;
+	}
+
+	/**
+	 * @return Whether writes are buffered and sent to the nodes in batches, see {@link Builder#writeBehind(int, long, TimeUnit)}
+	 */
+	public boolean isWriteBehindEnabled() {
+		return writeBehindBatchSize > 0;
+	}
+
+	/**
+	 * @return The number of buffered writes for one node that makes them flush, if writes are buffered
+	 */
+	public int getWriteBehindBatchSize() {
+		return writeBehindBatchSize;
+	}
+
+	/**
+	 * @return The most keys with a buffered write, if writes are buffered
+	 */
+	public int getWriteBehindMaximumSize() {
+		return writeBehindMaximumSize;
+	}
+
+	/**
+	 * @param unit The unit to return the interval in
+	 * @return How often every buffered write is flushed, if writes are buffered
+	 */
+	public long getWriteBehindFlushInterval(TimeUnit unit) {
+		return unit.convert(writeBehindFlushIntervalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return The source of time for the expiry of values put with a time to live
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @return The source of time for the time to live of loaded and buffered values, read from the {@link #getClock() clock} if one was set
+	 */
+	public Ticker getTicker() {
+		return ticker;
+	}
+
+	public static final class Builder {
+
+		private Executor requestExecutor;
+		private Executor rebalanceExecutor;
+		private int transferBatchSize = 1000;
+		private int transferParallelism = 4;
+		private Executor transferExecutor;
+		private int transferSourceParallelism = 4;
+		private double transferRateLimit;
+		private CacheMetrics metrics;
+		private AccessTracer accessTracer;
+		private int replicationFactor = 1;
+		private int writeAcknowledgements;
+		private Double balanceFactor;
+		private int failureThreshold;
+		private long initialRetryDelayNanos;
+		private long maximumRetryDelayNanos;
+		private ScheduledExecutorService healthCheckExecutor;
+		private long loadTimeToLiveNanos;
+		private double earlyRefreshBeta;
+		private int writeBehindBatchSize;
+		private int writeBehindMaximumSize;
+		private long writeBehindFlushIntervalNanos;
+		private Clock clock;
+
+		private Builder() {
+			//
+		}
+
+		/**
+		 * @param requestExecutor The {@link Executor} used to send requests to several nodes in parallel. Defaults to a cached pool of daemon threads.
+		 * @return This builder
+		 */
+		public Builder requestExecutor(Executor requestExecutor) {
+			this.requestExecutor = checkNotNull(requestExecutor);
+			return this;
+		}
+
+		/**
+		 * @param rebalanceExecutor The {@link Executor} that moves values to a newly added node in the background. Defaults to a single daemon
+		 *            thread, so rebalances run one at a time in the order nodes were added. A rebalance first waits for the writes routed before
+		 *            the change, so with a circuit breaker this must not run on the calling thread: a breaker opens on the thread of the write
+		 *            that failed.
+		 * @return This builder
+		 */
+		public Builder rebalanceExecutor(Executor rebalanceExecutor) {
+			this.rebalanceExecutor = checkNotNull(rebalanceExecutor);
+			return this;
+		}
+
+		/**
+		 * @param transferBatchSize The number of keys read from a node at a time when moving its values to other nodes. Defaults to 1000.
+		 * @return This builder
+		 */
+		public Builder transferBatchSize(int transferBatchSize) {
+			checkArgument(transferBatchSize >= 1, "Transfer batch size must be at least 1");
+			this.transferBatchSize = transferBatchSize;
+			return this;
+		}
+
+		/**
+		 * @param transferParallelism The maximum number of batches being written to one destination node at once when moving values between
+		 *            nodes, however many nodes they come from. Defaults to 4.
+		 * @return This builder
+		 */
+		public Builder transferParallelism(int transferParallelism) {
+			checkArgument(transferParallelism >= 1, "Transfer parallelism must be at least 1");
+			this.transferParallelism = transferParallelism;
+			return this;
+		}
+
+		/**
+		 * @param transferExecutor The {@link Executor} that scans the nodes values are moved out of. It needs a thread for each node scanned at
+		 *            once, see {@link #transferSourceParallelism(int)}; batch writes run on the request executor. Defaults to a pool with a
+		 *            daemon thread for each node scanned at once.
+		 * @return This builder
+		 */
+		public Builder transferExecutor(Executor transferExecutor) {
+			this.transferExecutor = checkNotNull(transferExecutor);
+			return this;
+		}
+
+		/**
+		 * @param transferSourceParallelism The maximum number of nodes values are moved out of at once after a membership change. Defaults to 4.
+		 * @return This builder
+		 */
+		public Builder transferSourceParallelism(int transferSourceParallelism) {
+			checkArgument(transferSourceParallelism >= 1, "Transfer source parallelism must be at least 1");
+			this.transferSourceParallelism = transferSourceParallelism;
+			return this;
+		}
+
+		/**
+		 * @param keysPerSecond The most keys moved between nodes per second, across every transfer of the cache, so moving values does not
+		 *            starve requests. By default moving values is not rate limited.
+		 * @return This builder
+		 */
+		public Builder transferRateLimit(double keysPerSecond) {
+			checkArgument(keysPerSecond > 0, "Transfer rate limit must be positive");
+			this.transferRateLimit = keysPerSecond;
+			return this;
+		}
+
+		/**
+		 * @param metrics The {@link CacheMetrics} to record node request latencies, owner lookups and transfers of values into. By default
+		 *            nothing is recorded.
+		 * @return This builder
+		 */
+		public Builder metrics(CacheMetrics metrics) {
+			this.metrics = checkNotNull(metrics);
+			return this;
+		}
+
+		/**
+		 * @param accessTracer The {@link AccessTracer} to report requests to nodes to. Defaults to a new tracer that logs traced requests, with
+		 *            tracing turned off.
+		 * @return This builder
+		 */
+		public Builder accessTracer(AccessTracer accessTracer) {
+			this.accessTracer = checkNotNull(accessTracer);
+			return this;
+		}
+
+		/**
+		 * @param replicationFactor The number of distinct nodes each value is stored on. Defaults to 1, no replication.
+		 * @return This builder
+		 */
+		public Builder replicationFactor(int replicationFactor) {
+			checkArgument(replicationFactor >= 1, "Replication factor must be at least 1");
+			this.replicationFactor = replicationFactor;
+			return this;
+		}
+
+		/**
+		 * @param writeAcknowledgements The number of replicas that must acknowledge a write before it completes, at most the replication factor.
+		 *            Defaults to a majority of the replicas. Writes to the other replicas carry on in the background.
+		 * @return This builder
+		 */
+		public Builder writeAcknowledgements(int writeAcknowledgements) {
+			checkArgument(writeAcknowledgements >= 1, "Write acknowledgements must be at least 1");
+			this.writeAcknowledgements = writeAcknowledgements;
+			return this;
+		}
+
+		/**
+		 * @param balanceFactor Read replicated values with bounded loads: a read goes to the first replica in ring order whose in flight reads
+		 *            stay within {@code 1 + balanceFactor} times the average, rather than to the least busy replica. Keys keep reading from
+		 *            their owner unless it is hot, see {@link com.rustleund.dcchallenge.hashinglookup.BoundedLoad}. By default reads go to the
+		 *            least busy replica. Has no effect without replication.
+		 * @return This builder
+		 */
+		public Builder balanceFactor(double balanceFactor) {
+			checkArgument(balanceFactor >= 0, "Balance factor must not be negative");
+			this.balanceFactor = balanceFactor;
+			return this;
+		}
+
+		/**
+		 * Take a node out of routing once this many requests to it fail in a row, so its keys go to the next node on the ring and requests to it
+		 * fail fast instead of waiting on a node that is down. The node is health checked after the initial retry delay, then after delays that
+		 * double up to the maximum, and is added back with its values emptied once a check succeeds. By default nodes are never taken out.
+		 *
+		 * @param failureThreshold The number of consecutive failed requests that take a node out, at least 1
+		 * @param initialRetryDelay The delay before the first health check
+		 * @param maximumRetryDelay The longest delay between health checks, at least the initial delay
+		 * @param unit The unit of both delays
+		 * @return This builder
+		 */
+		public Builder circuitBreaker(int failureThreshold, long initialRetryDelay, long maximumRetryDelay, TimeUnit unit) {
+			checkArgument(failureThreshold >= 1, "Failure threshold must be at least 1");
+			checkArgument(initialRetryDelay > 0, "Initial retry delay must be positive");
+			checkArgument(maximumRetryDelay >= initialRetryDelay, "Maximum retry delay must be at least the initial retry delay");
+			this.failureThreshold = failureThreshold;
+			this.initialRetryDelayNanos = unit.toNanos(initialRetryDelay);
+			this.maximumRetryDelayNanos = unit.toNanos(maximumRetryDelay);
+			return this;
+		}
+
+		/**
+		 * @param healthCheckExecutor The {@link ScheduledExecutorService} that runs the health checks of nodes taken out of routing, and the
+		 *            timed flushes of write-behind buffers. Defaults to a single daemon thread.
+		 * @return This builder
+		 */
+		public Builder healthCheckExecutor(ScheduledExecutorService healthCheckExecutor) {
+			this.healthCheckExecutor = checkNotNull(healthCheckExecutor);
+			return this;
+		}
+
+		/**
+		 * Reload values read through {@link DistributedCache#getOrLoad} once they have been used for the given time, and refresh hot ones in the
+		 * background before that, with a probability that rises towards the end of their time to live. A beta of 1 suits most loads; higher
+		 * values refresh earlier. By default loaded values are used until they are invalidated.
+		 *
+		 * @param timeToLive How long a loaded value is used before it is loaded again
+		 * @param unit The unit of the time to live
+		 * @param beta How early values may be refreshed, as a multiple of the time they took to load, not negative
+		 * @return This builder
+		 */
+		public Builder earlyRefresh(long timeToLive, TimeUnit unit, double beta) {
+			checkArgument(timeToLive > 0, "Time to live must be positive");
+			checkArgument(beta >= 0, "Beta must not be negative");
+			this.loadTimeToLiveNanos = unit.toNanos(timeToLive);
+			this.earlyRefreshBeta = beta;
+			return this;
+		}
+
+		/**
+		 * Buffer puts and invalidations and send them to the nodes in batches, holding up to 100 full batches of writes; see
+		 * {@link #writeBehind(int, int, long, TimeUnit)}.
+		 *
+		 * @param batchSize The number of buffered writes for one node that makes them flush, at least 1
+		 * @param flushInterval How often every buffered write is flushed
+		 * @param unit The unit of the interval
+		 * @return This builder
+		 */
+		public Builder writeBehind(int batchSize, long flushInterval, TimeUnit unit) {
+			return writeBehind(batchSize, (int) Math.min(Integer.MAX_VALUE, 100L * batchSize), flushInterval, unit);
+		}
+
+		/**
+		 * Buffer puts and invalidations and send them to the nodes in batches, for writers that rewrite the same keys many times a second. A
+		 * write of a key replaces its buffered write, so only the last one is sent. A node's writes are flushed once this many are buffered for
+		 * it, and every buffered write is flushed at the interval. Writes whose flush failed stay buffered for the next one; once the maximum
+		 * number of keys is buffered, writes of other keys fail with an {@link java.io.IOException} until the nodes take some. The cache reads its
+		 * own buffered writes back, but other clients only see them once they are flushed, and writes still buffered when the process dies are
+		 * lost; see {@link DistributedCache#flush()}. By default every write is sent straight away.
+		 *
+		 * @param batchSize The number of buffered writes for one node that makes them flush, at least 1
+		 * @param maximumSize The most keys with a buffered write, at least the batch size
+		 * @param flushInterval How often every buffered write is flushed
+		 * @param unit The unit of the interval
+		 * @return This builder
+		 */
+		public Builder writeBehind(int batchSize, int maximumSize, long flushInterval, TimeUnit unit) {
+			checkArgument(batchSize >= 1, "Write-behind batch size must be at least 1");
+			checkArgument(maximumSize >= batchSize, "Write-behind maximum size must be at least the batch size");
+			checkArgument(flushInterval > 0, "Flush interval must be positive");
+			this.writeBehindBatchSize = batchSize;
+			this.writeBehindMaximumSize = maximumSize;
+			this.writeBehindFlushIntervalNanos = unit.toNanos(flushInterval);
+			return this;
+		}
+
+		/**
+		 * @param clock The source of time for the expiry of values put with a time to live, and for the time to live of loaded and buffered
+		 *            values. Defaults to the system clock, with loaded and buffered values timed by {@link System#nanoTime()}.
+		 * @return This builder
+		 */
+		public Builder clock(Clock clock) {
+			this.clock = checkNotNull(clock);
+			return this;
+		}
+
+		public DistributedCacheOptions build() {
+			return new DistributedCacheOptions(this);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.rustleund.dcchallenge.RemoteCache;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeEventHandler;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * A {@link RemoteCache} that keeps a bounded local copy of values read through a {@link DistributedCache}, so repeated reads of hot keys do not
+ * go to a node. Writes and invalidations made through this cache go to the {@link DistributedCache} and drop the local copy. Writes made by
+ * other clients are only seen once the local copy is evicted or expires, so a time to live should be set in {@link NearCacheOptions} when
+ * that matters. A copy of a value put with a time to live, by any client, expires with the value.
+ * <p>
+ * Node events must be sent to this cache instead of the wrapped {@link DistributedCache}. After the wrapped cache has redistributed its
+ * values, local copies of keys whose owning {@link Node} changed are dropped.
+ *
+ * @param <KeyT> The type of keys in the cache
+ * @param <ValueT> The type of values in the cache
+ */
+public class NearCache<KeyT, ValueT> implements RemoteCache<KeyT, ValueT>, NodeEventHandler {
+
+	private static final int GENERATION_STRIPES = 64;
+
+	private final DistributedCache<KeyT, ValueT> distributedCache;
+	private final Clock clock;
+	private final Cache<KeyT, LocalEntry<ValueT>> localCache;
+	/**
+	 * Write generations striped by key hash. The stripe of a key is bumped before and after every local write or invalidation of it, and a
+	 * value read from a node is only kept if its stripe did not change while it was read and kept, so writes of other keys do not stop hot keys
+	 * from being kept.
+	 */
+	private final AtomicLongArray writeGenerations = new AtomicLongArray(GENERATION_STRIPES);
+
+	/**
+	 * @param distributedCache The {@link DistributedCache} to read through and write to
+	 * @param options The {@link NearCacheOptions} bounding the local cache
+	 */
+	public NearCache(DistributedCache<KeyT, ValueT> distributedCache, NearCacheOptions<KeyT, ValueT> options) {
+		this.distributedCache = distributedCache;
+		this.clock = distributedCache.getClock();
+		this.localCache = buildLocalCache(options);
+	}
+
+	private static <KeyT, ValueT> Cache<KeyT, LocalEntry<ValueT>> buildLocalCache(NearCacheOptions<KeyT, ValueT> options) {
+		CacheBuilder<Object, Object> cacheBuilder = options.toCacheBuilder();
+		Weigher<? super KeyT, ? super ValueT> weigher = options.getWeigher();
+		if (weigher == null) {
+			return cacheBuilder.build();
+		}
+		return cacheBuilder.<KeyT, LocalEntry<ValueT>> weigher((key, entry) -> weigher.weigh(key, entry.value)).build();
+	}
+
+	@Override
+	public ValueT get(KeyT key) throws IOException {
+		LocalEntry<ValueT> localEntry = localCache.getIfPresent(key);
+		if (localEntry != null && !dropIfExpired(key, localEntry, clock.millis())) {
+			return localEntry.value;
+		}
+		long generation = writeGenerations.get(stripe(key));
+		Versioned<ValueT> entry = distributedCache.getAllEntries(Collections.singletonList(key)).get(key);
+		keepLocally(key, entry, generation);
+		return entry != null ? entry.getValue() : null;
+	}
+
+	/**
+	 * Drop the local copy if its value has expired
+	 *
+	 * @return Whether the copy was dropped
+	 */
+	private boolean dropIfExpired(KeyT key, LocalEntry<ValueT> localEntry, long now) {
+		if (localEntry.expiresAtMillis == Versioned.NEVER_EXPIRES || localEntry.expiresAtMillis > now) {
+			return false;
+		}
+		localCache.asMap().remove(key, localEntry);
+		return true;
+	}
+
+	/**
+	 * Keep a value read from a node, unless the key was written since the read started. The generation is checked again after the value was
+	 * kept, so a write that raced with keeping it either sees the copy and drops it, or is seen here and the copy is dropped.
+	 */
+	private void keepLocally(KeyT key, Versioned<ValueT> remoteEntry, long generationBeforeRead) {
+		Node owningNode = distributedCache.getOwningNode(key);
+		int stripe = stripe(key);
+		if (remoteEntry == null || owningNode == null || writeGenerations.get(stripe) != generationBeforeRead) {
+			return;
+		}
+		LocalEntry<ValueT> entry = new LocalEntry<>(remoteEntry.getValue(), remoteEntry.getExpiresAtMillis(), owningNode);
+		localCache.put(key, entry);
+		if (writeGenerations.get(stripe) != generationBeforeRead) {
+			localCache.asMap().remove(key, entry);
+		}
+	}
+
+	private static int stripe(Object key) {
+		int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & (GENERATION_STRIPES - 1);
+	}
+
+	/**
+	 * Bump the generations of the stripes of the given keys, each stripe once
+	 */
+	private void bumpGenerations(Collection<KeyT> keys) {
+		boolean[] bumped = new boolean[GENERATION_STRIPES];
+		for (KeyT key : keys) {
+			int stripe = stripe(key);
+			if (!bumped[stripe]) {
+				bumped[stripe] = true;
+				writeGenerations.incrementAndGet(stripe);
+			}
+		}
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) throws IOException {
+		writeGenerations.incrementAndGet(stripe(key));
+		try {
+			distributedCache.put(key, value);
+		} finally {
+			writeGenerations.incrementAndGet(stripe(key));
+			localCache.invalidate(key);
+		}
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		writeGenerations.incrementAndGet(stripe(key));
+		try {
+			distributedCache.put(key, value, timeToLive, unit);
+		} finally {
+			writeGenerations.incrementAndGet(stripe(key));
+			localCache.invalidate(key);
+		}
+	}
+
+	@Override
+	public void invalidate(KeyT key) throws IOException {
+		writeGenerations.incrementAndGet(stripe(key));
+		try {
+			distributedCache.invalidate(key);
+		} finally {
+			writeGenerations.incrementAndGet(stripe(key));
+			localCache.invalidate(key);
+		}
+	}
+
+	@Override
+	public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		Map<KeyT, ValueT> values = new HashMap<>();
+		List<KeyT> missingKeys = new ArrayList<>();
+		long now = clock.millis();
+		keys.forEach(key -> {
+			LocalEntry<ValueT> localEntry = localCache.getIfPresent(key);
+			if (localEntry != null && !dropIfExpired(key, localEntry, now)) {
+				values.put(key, localEntry.value);
+			} else {
+				missingKeys.add(key);
+			}
+		});
+		if (!missingKeys.isEmpty()) {
+			long[] generations = new long[GENERATION_STRIPES];
+			for (int i = 0; i < GENERATION_STRIPES; i++) {
+				generations[i] = writeGenerations.get(i);
+			}
+			Map<KeyT, Versioned<ValueT>> remoteEntries = distributedCache.getAllEntries(missingKeys);
+			remoteEntries.forEach((key, entry) -> {
+				keepLocally(key, entry, generations[stripe(key)]);
+				values.put(key, entry.getValue());
+			});
+		}
+		return values;
+	}
+
+	@Override
+	public void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		bumpGenerations(entries.keySet());
+		try {
+			distributedCache.putAll(entries);
+		} finally {
+			bumpGenerations(entries.keySet());
+			localCache.invalidateAll(entries.keySet());
+		}
+	}
+
+	@Override
+	public void invalidateAll(Collection<KeyT> keys) throws IOException {
+		bumpGenerations(keys);
+		try {
+			distributedCache.invalidateAll(keys);
+		} finally {
+			bumpGenerations(keys);
+			localCache.invalidateAll(keys);
+		}
+	}
+
+	@Override
+	public void nodeAdded(Node newNode) {
+		distributedCache.nodeAdded(newNode);
+		dropEntriesWithNewOwner();
+	}
+
+	@Override
+	public void nodeRemoved(Node node) {
+		distributedCache.nodeRemoved(node);
+		dropEntriesWithNewOwner();
+	}
+
+	@Override
+	public void nodeShuttingDown(Node node) {
+		distributedCache.nodeShuttingDown(node);
+		dropEntriesWithNewOwner();
+	}
+
+	private void dropEntriesWithNewOwner() {
+		localCache.asMap().entrySet().removeIf(entry -> entry.getValue().owningNode != distributedCache.getOwningNode(entry.getKey()));
+	}
+
+	/**
+	 * @return Hit, miss and eviction counts of the local cache
+	 */
+	public CacheStats getStats() {
+		return localCache.stats();
+	}
+
+	/**
+	 * @return The number of entries currently kept locally
+	 */
+	public long getLocalSize() {
+		return localCache.size();
+	}
+
+	private static final class LocalEntry<ValueT> {
+
+		private final ValueT value;
+		private final long expiresAtMillis;
+		private final Node owningNode;
+
+		LocalEntry(ValueT value, long expiresAtMillis, Node owningNode) {
+			this.value = value;
+			this.expiresAtMillis = expiresAtMillis;
+			this.owningNode = owningNode;
+		}
+	}
+}
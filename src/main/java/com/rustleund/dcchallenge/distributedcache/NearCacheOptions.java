@@ -0,0 +1,108 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Bounds for the local cache of a {@link NearCache}. Exactly one of {@link Builder#maximumSize(long)} or
+ * {@link Builder#maximumWeight(long, Weigher)} must be set; the time to live is optional.
+ *
+ * @param <KeyT> The type of keys in the cache
+ * @param <ValueT> The type of values in the cache
+ */
+public final class NearCacheOptions<KeyT, ValueT> {
+
+	private final long maximumSize;
+	private final long maximumWeight;
+	private final Weigher<? super KeyT, ? super ValueT> weigher;
+	private final long timeToLiveNanos;
+
+	private NearCacheOptions(Builder<KeyT, ValueT> builder) {
+		checkState(builder.maximumSize >= 0 || builder.weigher != null, "Either a maximum size or a maximum weight must be set");
+		this.maximumSize = builder.maximumSize;
+		this.maximumWeight = builder.maximumWeight;
+		this.weigher = builder.weigher;
+		this.timeToLiveNanos = builder.timeToLiveNanos;
+	}
+
+	public static <KeyT, ValueT> Builder<KeyT, ValueT> builder() {
+		return new Builder<>();
+	}
+
+	/**
+	 * @return A {@link CacheBuilder} configured with these bounds, evicting the least recently used entries first
+	 */
+	CacheBuilder<Object, Object> toCacheBuilder() {
+		CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().recordStats();
+		if (maximumSize >= 0) {
+			cacheBuilder.maximumSize(maximumSize);
+		} else {
+			cacheBuilder.maximumWeight(maximumWeight);
+		}
+		if (timeToLiveNanos > 0) {
+			cacheBuilder.expireAfterWrite(timeToLiveNanos, TimeUnit.NANOSECONDS);
+		}
+		return cacheBuilder;
+	}
+
+	Weigher<? super KeyT, ? super ValueT> getWeigher() {
+		return weigher;
+	}
+
+	public static final class Builder<KeyT, ValueT> {
+
+		private long maximumSize = -1;
+		private long maximumWeight = -1;
+		private Weigher<? super KeyT, ? super ValueT> weigher;
+		private long timeToLiveNanos;
+
+		private Builder() {
+			//
+		}
+
+		/**
+		 * @param maximumSize The maximum number of entries kept locally
+		 * @return This builder
+		 */
+		public Builder<KeyT, ValueT> maximumSize(long maximumSize) {
+			checkArgument(maximumSize >= 0, "Maximum size must not be negative");
+			checkState(weigher == null, "Maximum weight is already set");
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * @param maximumWeight The maximum total weight of the entries kept locally
+		 * @param weigher The {@link Weigher} used to find the weight of each entry
+		 * @return This builder
+		 */
+		public Builder<KeyT, ValueT> maximumWeight(long maximumWeight, Weigher<? super KeyT, ? super ValueT> weigher) {
+			checkArgument(maximumWeight >= 0, "Maximum weight must not be negative");
+			checkState(maximumSize < 0, "Maximum size is already set");
+			this.maximumWeight = maximumWeight;
+			this.weigher = checkNotNull(weigher);
+			return this;
+		}
+
+		/**
+		 * @param timeToLive How long an entry is kept locally after it was read from its node
+		 * @param unit The {@link TimeUnit} of the time to live
+		 * @return This builder
+		 */
+		public Builder<KeyT, ValueT> timeToLive(long timeToLive, TimeUnit unit) {
+			checkArgument(timeToLive > 0, "Time to live must be positive");
+			this.timeToLiveNanos = unit.toNanos(timeToLive);
+			return this;
+		}
+
+		public NearCacheOptions<KeyT, ValueT> build() {
+			return new NearCacheOptions<>(this);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.rustleund.dcchallenge.distributedcache.node.AsyncNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.hashinglookup.HashRing;
+
+/**
+ * An immutable snapshot of how a {@link DistributedCache} routes requests: the open connection of every node, the ring the nodes are placed on
+ * if the cache uses a ring, and the earlier tables whose values are still being moved to their new nodes. Membership changes build a new
+ * table and swap it in, so requests never wait for a change, and a key that has not moved yet can still be read from the nodes that held it
+ * in an earlier table.
+ *
+ * @param <KeyT> The type of keys stored
+ * @param <ValueT> The type of values stored
+ */
+final class RoutingTable<KeyT, ValueT> {
+
+	private static final RoutingTable<?, ?> EMPTY = new RoutingTable<>(ImmutableMap.of(), null, ImmutableList.of());
+
+	private final ImmutableMap<Node, AsyncNodeConnection<KeyT, ValueT>> connections;
+	private final HashRing<Node> ring;
+	private final ImmutableList<RoutingTable<KeyT, ValueT>> migrations;
+
+	private RoutingTable(ImmutableMap<Node, AsyncNodeConnection<KeyT, ValueT>> connections, HashRing<Node> ring,
+			ImmutableList<RoutingTable<KeyT, ValueT>> migrations) {
+		this.connections = connections;
+		this.ring = ring;
+		this.migrations = migrations;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <KeyT, ValueT> RoutingTable<KeyT, ValueT> empty() {
+		return (RoutingTable<KeyT, ValueT>) EMPTY;
+	}
+
+	/**
+	 * @return The open connection to the given node, or {@code null} if it is not a node of this table
+	 */
+	AsyncNodeConnection<KeyT, ValueT> getConnection(Node node) {
+		return connections.get(node);
+	}
+
+	/**
+	 * @return The connection to the given node in this table, or else in the newest table still being migrated from that has one, so nodes that
+	 *         are leaving can still be read while their values move
+	 */
+	AsyncNodeConnection<KeyT, ValueT> getConnectionIncludingMigrations(Node node) {
+		AsyncNodeConnection<KeyT, ValueT> connection = connections.get(node);
+		for (int i = 0; connection == null && i < migrations.size(); i++) {
+			connection = migrations.get(i).getConnection(node);
+		}
+		return connection;
+	}
+
+	Map<Node, AsyncNodeConnection<KeyT, ValueT>> getConnections() {
+		return connections;
+	}
+
+	/**
+	 * @return The ring requests are routed with, or {@code null} if the cache does not use a ring and routes with its lookup directly
+	 */
+	HashRing<Node> getRing() {
+		return ring;
+	}
+
+	/**
+	 * @return The earlier tables whose values are still moving, newest first
+	 */
+	List<RoutingTable<KeyT, ValueT>> getMigrations() {
+		return migrations;
+	}
+
+	boolean isMigrating() {
+		return !migrations.isEmpty();
+	}
+
+	RoutingTable<KeyT, ValueT> withConnection(Node node, AsyncNodeConnection<KeyT, ValueT> connection) {
+		ImmutableMap.Builder<Node, AsyncNodeConnection<KeyT, ValueT>> newConnections = ImmutableMap.builder();
+		connections.forEach((existingNode, existingConnection) -> {
+			if (!existingNode.equals(node)) {
+				newConnections.put(existingNode, existingConnection);
+			}
+		});
+		return new RoutingTable<>(newConnections.put(node, connection).build(), ring, migrations);
+	}
+
+	RoutingTable<KeyT, ValueT> withoutConnection(Node node) {
+		ImmutableMap.Builder<Node, AsyncNodeConnection<KeyT, ValueT>> newConnections = ImmutableMap.builder();
+		connections.forEach((existingNode, existingConnection) -> {
+			if (!existingNode.equals(node)) {
+				newConnections.put(existingNode, existingConnection);
+			}
+		});
+		return new RoutingTable<>(newConnections.build(), ring, migrations);
+	}
+
+	RoutingTable<KeyT, ValueT> withRing(HashRing<Node> newRing) {
+		return new RoutingTable<>(connections, newRing, migrations);
+	}
+
+	/**
+	 * @return This table as the source of a migration: its nodes and ring, without the migrations it was itself part of
+	 */
+	RoutingTable<KeyT, ValueT> asMigrationSource() {
+		return new RoutingTable<>(connections, ring, ImmutableList.of());
+	}
+
+	/**
+	 * @param source A table returned by {@link #asMigrationSource()}, whose values are now moving
+	 * @return A table that reads through to the source
+	 */
+	RoutingTable<KeyT, ValueT> withMigration(RoutingTable<KeyT, ValueT> source) {
+		return new RoutingTable<>(connections, ring, ImmutableList.<RoutingTable<KeyT, ValueT>> builder().add(source).addAll(migrations).build());
+	}
+
+	/**
+	 * @param source A table passed to {@link #withMigration(RoutingTable)} whose values have finished moving
+	 */
+	RoutingTable<KeyT, ValueT> withoutMigration(RoutingTable<KeyT, ValueT> source) {
+		ImmutableList.Builder<RoutingTable<KeyT, ValueT>> remaining = ImmutableList.builder();
+		migrations.stream().filter(migration -> migration != source).forEach(remaining::add);
+		return new RoutingTable<>(connections, ring, remaining.build());
+	}
+}
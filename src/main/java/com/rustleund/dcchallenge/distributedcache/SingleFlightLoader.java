@@ -0,0 +1,209 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.rustleund.dcchallenge.util.FutureUtil.await;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.rustleund.dcchallenge.RemoteCache;
+import com.rustleund.dcchallenge.util.LambdaUtil.CheckedFunction;
+
+/**
+ * Reads keys through a cache, loading and storing the values that are missing, with at most one read and load of a key in flight at a time:
+ * callers that ask for a key while it is being read or loaded wait for that read instead of making their own. A loader that asks for the key
+ * it is loading on its own thread fails instead of waiting for itself.
+ * <p>
+ * With early refresh, the time each load took is remembered for a bounded number of keys, and a loaded value is treated as missing once its
+ * time to live has passed. Before that, each read refreshes the value in the background with a probability that rises as the value nears the
+ * end of its time to live, and rises sooner for values that are slow to load (XFetch, from "Optimal Probabilistic Cache Stampede
+ * Prevention"): a read at time {@code now} refreshes if {@code now - loadTime * beta * ln(random) >= expiry}. Hot keys are then almost always
+ * refreshed by a single reader before they expire, so no reader waits for them to load. Loaded values are stored with the same time to live,
+ * so the cache drops values that stop being read.
+ * <p>
+ * A refresh counts as a read in flight: it does not start while the key is being read, and readers that find the value expired while it runs
+ * wait for it rather than loading the key again.
+ *
+ * @param <KeyT> The type of keys in the cache
+ * @param <ValueT> The type of values in the cache
+ */
+final class SingleFlightLoader<KeyT, ValueT> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SingleFlightLoader.class);
+
+	/**
+	 * The most keys whose load times are remembered for early refresh; keys beyond that are only loaded when missing
+	 */
+	private static final int MAXIMUM_TRACKED_LOADS = 1 << 16;
+
+	private final RemoteCache<KeyT, ValueT> cache;
+	private final Executor refreshExecutor;
+	private final ConcurrentMap<KeyT, Flight<ValueT>> readsInFlight = new ConcurrentHashMap<>();
+	private final long timeToLiveNanos;
+	private final double beta;
+	private final Ticker ticker;
+	private final Cache<KeyT, LoadRecord> loads;
+
+	/**
+	 * @param cache The cache to read through and store loaded values in
+	 * @param refreshExecutor The {@link Executor} that early refreshes run on
+	 * @param timeToLiveNanos How long a loaded value is used for, or 0 for no early refresh
+	 * @param beta How much earlier than its expiry a value may be refreshed, as a multiple of its load time
+	 * @param ticker The source of time for expiries
+	 */
+	SingleFlightLoader(RemoteCache<KeyT, ValueT> cache, Executor refreshExecutor, long timeToLiveNanos, double beta, Ticker ticker) {
+		this.cache = cache;
+		this.refreshExecutor = refreshExecutor;
+		this.timeToLiveNanos = timeToLiveNanos;
+		this.beta = beta;
+		this.ticker = ticker;
+		this.loads = timeToLiveNanos > 0 ? CacheBuilder.newBuilder().maximumSize(MAXIMUM_TRACKED_LOADS).build() : null;
+	}
+
+	/**
+	 * @return The value under the key, loaded and stored if the cache has none
+	 * @throws IllegalStateException If the loader of a key asks for the same key again on its own thread, which would wait for itself
+	 */
+	ValueT getOrLoad(KeyT key, CheckedFunction<? super KeyT, ? extends ValueT, IOException> loader) throws IOException {
+		Flight<ValueT> read = new Flight<>(false, Thread.currentThread());
+		Flight<ValueT> existing = readsInFlight.putIfAbsent(key, read);
+		if (existing != null) {
+			return join(key, existing);
+		}
+		LoadRecord load = loads != null ? loads.getIfPresent(key) : null;
+		long now = ticker.read();
+		ValueT value;
+		boolean cached;
+		try {
+			value = readCached(key, load, now);
+			cached = value != null;
+			if (!cached) {
+				value = load(key, loader);
+			}
+			read.result.complete(value);
+		} catch (IOException | RuntimeException | Error e) {
+			read.result.completeExceptionally(e);
+			throw e;
+		} finally {
+			readsInFlight.remove(key, read);
+		}
+		if (cached && load != null && shouldRefreshEarly(load, now)) {
+			refreshInBackground(key, loader);
+		}
+		return value;
+	}
+
+	/**
+	 * Wait for a read or refresh of the key that is already in flight. A value being refreshed is still read from the cache until it expires, so
+	 * only readers that find it expired wait for the refresh.
+	 */
+	private ValueT join(KeyT key, Flight<ValueT> flight) throws IOException {
+		checkState(flight.thread != Thread.currentThread(), "The loader of %s asked for the same key again", key);
+		if (flight.refresh) {
+			ValueT value = readCached(key, loads.getIfPresent(key), ticker.read());
+			if (value != null) {
+				return value;
+			}
+		}
+		return await(flight.result);
+	}
+
+	/**
+	 * @return The value in the cache, or {@code null} if it has none or the value's time to live for early refresh has passed
+	 */
+	private ValueT readCached(KeyT key, LoadRecord load, long now) throws IOException {
+		return load != null && now >= load.expiresAtNanos ? null : cache.get(key);
+	}
+
+	private boolean shouldRefreshEarly(LoadRecord load, long now) {
+		return now - load.loadNanos * beta * Math.log(ThreadLocalRandom.current().nextDouble()) >= load.expiresAtNanos;
+	}
+
+	/**
+	 * Reload a value in the background, unless the key is already being read or refreshed
+	 */
+	private void refreshInBackground(KeyT key, CheckedFunction<? super KeyT, ? extends ValueT, IOException> loader) {
+		Flight<ValueT> refresh = new Flight<>(true, null);
+		if (readsInFlight.putIfAbsent(key, refresh) != null) {
+			return;
+		}
+		try {
+			refreshExecutor.execute(() -> {
+				refresh.thread = Thread.currentThread();
+				try {
+					refresh.result.complete(load(key, loader));
+				} catch (IOException | RuntimeException e) {
+					refresh.result.completeExceptionally(e);
+					LOG.warn("Could not refresh the value of {}", key, e);
+				} catch (Error e) {
+					refresh.result.completeExceptionally(e);
+					throw e;
+				} finally {
+					readsInFlight.remove(key, refresh);
+				}
+			});
+		} catch (RuntimeException e) {
+			readsInFlight.remove(key, refresh);
+			refresh.result.completeExceptionally(e);
+			LOG.warn("Could not schedule a refresh of the value of {}", key, e);
+		}
+	}
+
+	private ValueT load(KeyT key, CheckedFunction<? super KeyT, ? extends ValueT, IOException> loader) throws IOException {
+		long start = ticker.read();
+		ValueT value = loader.apply(key);
+		if (value == null) {
+			return null;
+		}
+		long loaded = ticker.read();
+		if (loads == null) {
+			cache.put(key, value);
+			return value;
+		}
+		cache.put(key, value, timeToLiveNanos, TimeUnit.NANOSECONDS);
+		loads.put(key, new LoadRecord(loaded - start, loaded + timeToLiveNanos));
+		return value;
+	}
+
+	private static final class LoadRecord {
+
+		private final long loadNanos;
+		private final long expiresAtNanos;
+
+		private LoadRecord(long loadNanos, long expiresAtNanos) {
+			this.loadNanos = loadNanos;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+	/**
+	 * A read or early refresh of a key in flight, which later readers of the key wait for instead of making their own
+	 *
+	 * @param <ValueT> The type of values in the cache
+	 */
+	private static final class Flight<ValueT> {
+
+		private final CompletableFuture<ValueT> result = new CompletableFuture<>();
+		private final boolean refresh;
+		/**
+		 * The thread loading the key, so a loader that asks for its own key fails rather than waiting for itself; set once a refresh starts
+		 */
+		private volatile Thread thread;
+
+		Flight(boolean refresh, Thread thread) {
+			this.refresh = refresh;
+			this.thread = thread;
+		}
+	}
+}
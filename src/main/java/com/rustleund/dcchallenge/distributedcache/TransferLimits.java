@@ -0,0 +1,49 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+
+/**
+ * Limits shared by the {@link BulkTransfer}s of one redistribution, which move values out of several nodes at once: each destination node has
+ * at most a fixed number of batch writes outstanding, whichever nodes they come from, and a transfer that would exceed that waits before
+ * reading its next batch. Optionally, the keys written by all of them together are capped at a rate, so moving values does not crowd out
+ * requests.
+ */
+final class TransferLimits {
+
+	private final int writesPerDestination;
+	private final RateLimiter keyRate;
+	private final ConcurrentMap<Node, Semaphore> outstandingWrites = new ConcurrentHashMap<>();
+
+	/**
+	 * @param writesPerDestination The most batch writes outstanding on one destination node
+	 * @param keyRate Caps the keys written per second, shared with other redistributions, or {@code null} for no cap
+	 */
+	TransferLimits(int writesPerDestination, RateLimiter keyRate) {
+		this.writesPerDestination = writesPerDestination;
+		this.keyRate = keyRate;
+	}
+
+	/**
+	 * Wait until a batch of the given size may be written to the destination, then hold one of its write slots until
+	 * {@link #writeFinished(Node)}
+	 */
+	void awaitWrite(Node destination, int keys) {
+		if (keyRate != null) {
+			keyRate.acquire(keys);
+		}
+		permits(destination).acquireUninterruptibly();
+	}
+
+	void writeFinished(Node destination) {
+		permits(destination).release();
+	}
+
+	private Semaphore permits(Node destination) {
+		return outstandingWrites.computeIfAbsent(destination, node -> new Semaphore(writesPerDestination));
+	}
+}
@@ -0,0 +1,104 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+
+/**
+ * Live progress of moving values out of one {@link Node}, either because the node is shutting down or because part of its hash range moved to
+ * another node. Counters are updated while the transfer runs and can be read at any time.
+ */
+public final class TransferProgress {
+
+	private final Node sourceNode;
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong keysScanned = new AtomicLong();
+	private final AtomicLong keysMoved = new AtomicLong();
+	private final AtomicLong keysFailed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private volatile long finishNanos;
+
+	TransferProgress(Node sourceNode) {
+		this.sourceNode = sourceNode;
+	}
+
+	void scanned(int keys) {
+		keysScanned.addAndGet(keys);
+		batches.incrementAndGet();
+	}
+
+	void moved(int keys) {
+		keysMoved.addAndGet(keys);
+	}
+
+	void failed(int keys) {
+		keysFailed.addAndGet(keys);
+	}
+
+	void finish() {
+		finishNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return The {@link Node} values are moved out of
+	 */
+	public Node getSourceNode() {
+		return sourceNode;
+	}
+
+	/**
+	 * @return The number of keys read from the source node so far, including keys that did not have to move
+	 */
+	public long getKeysScanned() {
+		return keysScanned.get();
+	}
+
+	/**
+	 * @return The number of keys written to their new node so far
+	 */
+	public long getKeysMoved() {
+		return keysMoved.get();
+	}
+
+	/**
+	 * @return The number of keys that could not be moved because reading or writing them failed, or their new node had no connection
+	 */
+	public long getKeysFailed() {
+		return keysFailed.get();
+	}
+
+	/**
+	 * @return The number of batches read from the source node so far
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public boolean isFinished() {
+		return finishNanos != 0;
+	}
+
+	/**
+	 * @param unit The {@link TimeUnit} to return the time in
+	 * @return How long the transfer ran, or has been running if it is not finished
+	 */
+	public long getElapsed(TimeUnit unit) {
+		long endNanos = isFinished() ? finishNanos : System.nanoTime();
+		return unit.convert(endNanos - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return The average number of keys moved per second since the transfer started
+	 */
+	public double getKeysMovedPerSecond() {
+		long elapsedNanos = Math.max(1, getElapsed(TimeUnit.NANOSECONDS));
+		return getKeysMoved() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("node %s: %d keys scanned, %d moved, %d failed in %d batches, %d ms (%.0f keys/s)%s", sourceNode.getNodeId(), getKeysScanned(),
+				getKeysMoved(), getKeysFailed(), getBatches(), getElapsed(TimeUnit.MILLISECONDS), getKeysMovedPerSecond(), isFinished() ? "" : ", running");
+	}
+}
@@ -0,0 +1,283 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import static com.rustleund.dcchallenge.util.FutureUtil.failedFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.util.LambdaUtil.CheckedConsumer;
+
+/**
+ * Holds the writes of a {@link DistributedCache} in write-behind mode until they are sent to the nodes in batches. Writes are grouped by the
+ * node that owns their key when they are made, and a later write of a key replaces the buffered one, so a key rewritten many times between
+ * flushes is sent once. A node's writes are flushed once it has a full batch of them, and every buffered write is flushed at a fixed interval.
+ * The buffer holds a bounded number of keys; once it is full, writes of keys it does not already hold are rejected until a flush succeeds, so
+ * writers find out that the nodes are failing rather than fill the heap.
+ * <p>
+ * Buffered writes stay readable through {@link #pendingWrite(Object)} until the flush that sent them succeeded, so the cache that made them
+ * reads them back. Flushes run one at a time and are routed when they are sent, not when the writes were made, so an older write of a key
+ * never lands after a newer one and writes follow their keys when nodes come and go. Writes whose flush failed stay buffered and are sent by the
+ * next flush; they are only dropped when there are no nodes left to send them to.
+ *
+ * @param <KeyT> The type of keys in the cache
+ * @param <ValueT> The type of values in the cache
+ */
+final class WriteBehindBuffer<KeyT, ValueT> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+	private final ConcurrentMap<KeyT, PendingWrite<ValueT>> pending = new ConcurrentHashMap<>();
+	/**
+	 * The keys with a pending write, by the node that owned them when they were written. A node's set is only changed inside
+	 * {@link ConcurrentMap#compute} and is owned by whoever removed it from the map, so no key is added to a set that is being flushed.
+	 */
+	private final ConcurrentMap<Node, Set<KeyT>> keysByNode = new ConcurrentHashMap<>();
+	private final Lock flushLock = new ReentrantLock();
+	private final Function<KeyT, Node> owners;
+	private final CheckedConsumer<Map<KeyT, PendingWrite<ValueT>>, IOException> destination;
+	private final int batchSize;
+	private final int maximumSize;
+	private final Executor flushExecutor;
+	private final Ticker ticker;
+	private final ScheduledFuture<?> timedFlush;
+
+	/**
+	 * @param owners Finds the node that currently owns a key, or {@code null} if there are no nodes
+	 * @param destination Sends a batch of writes to the nodes that currently own their keys
+	 * @param batchSize The number of buffered writes of one node that makes it flush
+	 * @param maximumSize The most keys with a buffered write
+	 * @param flushExecutor The {@link Executor} full batches are flushed on
+	 * @param timer The {@link ScheduledExecutorService} that flushes every buffered write at the interval
+	 * @param flushIntervalNanos How often every buffered write is flushed
+	 * @param ticker The source of time for the time to live of buffered writes
+	 */
+	WriteBehindBuffer(Function<KeyT, Node> owners, CheckedConsumer<Map<KeyT, PendingWrite<ValueT>>, IOException> destination, int batchSize,
+			int maximumSize, Executor flushExecutor, ScheduledExecutorService timer, long flushIntervalNanos, Ticker ticker) {
+		this.owners = owners;
+		this.destination = destination;
+		this.batchSize = batchSize;
+		this.maximumSize = maximumSize;
+		this.flushExecutor = flushExecutor;
+		this.ticker = ticker;
+		this.timedFlush = timer.scheduleWithFixedDelay(this::flushQuietly, flushIntervalNanos, flushIntervalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Buffer a write, replacing any buffered write of the same key
+	 *
+	 * @param value The value to put, or {@code null} to invalidate the key
+	 * @param timeToLiveNanos How long the value lives for from now, or 0 for no time to live
+	 * @return A future that is already complete, unless the write filled a batch: then it completes once that batch was sent or failed to send
+	 *         and stayed buffered, so writers that outpace the nodes wait for them. Completed without buffering if there are no nodes, and
+	 *         failed with an {@link IOException} without buffering if the buffer is full.
+	 */
+	CompletableFuture<Void> write(KeyT key, ValueT value, long timeToLiveNanos) {
+		Node owner = owners.apply(key);
+		if (owner == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (pending.size() >= maximumSize && !pending.containsKey(key)) {
+			return failedFuture(new IOException("The write-behind buffer is full with " + maximumSize + " writes the nodes have not taken"));
+		}
+		pending.put(key, new PendingWrite<>(value, timeToLiveNanos, ticker.read()));
+		if (!buffer(owner, key)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> flush = new CompletableFuture<>();
+		try {
+			flushExecutor.execute(() -> {
+				try {
+					flush(owner);
+				} catch (IOException | RuntimeException e) {
+					LOG.warn("Could not flush the buffered writes of node {}, they are retried with the next flush", owner.getNodeId(), e);
+				}
+				flush.complete(null);
+			});
+		} catch (RejectedExecutionException e) {
+			LOG.warn("Could not start flushing the buffered writes of node {}, they are sent with the next flush", owner.getNodeId(), e);
+			return CompletableFuture.completedFuture(null);
+		}
+		return flush;
+	}
+
+	/**
+	 * @return Whether the node's buffer is now full
+	 */
+	private boolean buffer(Node owner, KeyT key) {
+		int[] size = new int[1];
+		keysByNode.compute(owner, (node, keys) -> {
+			Set<KeyT> buffered = keys != null ? keys : new LinkedHashSet<>();
+			buffered.add(key);
+			size[0] = buffered.size();
+			return buffered;
+		});
+		return size[0] >= batchSize;
+	}
+
+	/**
+	 * @return The buffered write of the key, or {@code null} if it has none
+	 */
+	PendingWrite<ValueT> pendingWrite(KeyT key) {
+		return pending.get(key);
+	}
+
+	/**
+	 * @return The current time of the ticker buffered writes were timed with, to pass to {@link PendingWrite#valueAt(long)}
+	 */
+	long now() {
+		return ticker.read();
+	}
+
+	/**
+	 * Move the buffered writes of a node that left to the buffers of the nodes that own their keys now
+	 */
+	void reroute(Node node) {
+		Set<KeyT> keys = keysByNode.remove(node);
+		if (keys == null) {
+			return;
+		}
+		keys.forEach(this::rebuffer);
+	}
+
+	/**
+	 * Buffer a key again for the node that owns it now, or drop its write if there are no nodes left to send it to
+	 */
+	private void rebuffer(KeyT key) {
+		Node owner = owners.apply(key);
+		if (owner != null) {
+			buffer(owner, key);
+		} else {
+			pending.remove(key);
+		}
+	}
+
+	/**
+	 * Flush every buffered write
+	 *
+	 * @throws IOException If the writes could not be sent; they stay buffered
+	 */
+	void flush() throws IOException {
+		flush(new ArrayList<>(keysByNode.keySet()));
+	}
+
+	private void flush(Node node) throws IOException {
+		flush(Collections.singletonList(node));
+	}
+
+	private void flush(List<Node> nodes) throws IOException {
+		flushLock.lock();
+		try {
+			Map<KeyT, PendingWrite<ValueT>> batch = new LinkedHashMap<>();
+			for (Node node : nodes) {
+				Set<KeyT> keys = keysByNode.remove(node);
+				if (keys != null) {
+					keys.forEach(key -> {
+						PendingWrite<ValueT> write = pending.get(key);
+						if (write != null) {
+							batch.put(key, write);
+						}
+					});
+				}
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+			try {
+				destination.accept(batch);
+			} catch (IOException | RuntimeException e) {
+				batch.keySet().forEach(this::rebuffer);
+				throw e;
+			}
+			batch.forEach(pending::remove);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the timed flushes and flush every buffered write
+	 *
+	 * @throws IOException If the writes could not be sent; they stay buffered
+	 */
+	void close() throws IOException {
+		timedFlush.cancel(false);
+		flush();
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Could not flush buffered writes, they are retried with the next flush", e);
+		}
+	}
+
+	/**
+	 * A buffered put or invalidation of a key
+	 *
+	 * @param <ValueT> The type of values in the cache
+	 */
+	static final class PendingWrite<ValueT> {
+
+		private final ValueT value;
+		private final long timeToLiveNanos;
+		private final long writtenAtNanos;
+
+		private PendingWrite(ValueT value, long timeToLiveNanos, long writtenAtNanos) {
+			this.value = value;
+			this.timeToLiveNanos = timeToLiveNanos;
+			this.writtenAtNanos = writtenAtNanos;
+		}
+
+		/**
+		 * @return The value the key has after this write at the given time, {@code null} if it invalidated the key or its time to live has
+		 *         passed
+		 */
+		ValueT valueAt(long nowNanos) {
+			return timeToLiveNanos == 0 || remainingNanos(nowNanos) > 0 ? value : null;
+		}
+
+		/**
+		 * @return The value put, or {@code null} for an invalidation
+		 */
+		ValueT getValue() {
+			return value;
+		}
+
+		/**
+		 * @return Whether the value was put with a time to live
+		 */
+		boolean expires() {
+			return timeToLiveNanos != 0;
+		}
+
+		/**
+		 * @return How much of the time to live of the value is left at the given time
+		 */
+		long remainingNanos(long nowNanos) {
+			return timeToLiveNanos - (nowNanos - writtenAtNanos);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Counts the writes routed with one generation of the routing table that have not finished yet. A membership change swaps in a new fence
+ * along with the new table and closes the old one; values are only read for moving once the old fence has drained, so a write routed with
+ * the previous table cannot land on a node after its values were read and be lost there or removed with them. A fence also waits for the
+ * fences before it, as their writes were routed with even older tables.
+ */
+final class WriteFence {
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final CountDownLatch drained = new CountDownLatch(1);
+	private volatile boolean closed;
+	private volatile WriteFence previous;
+
+	/**
+	 * @param previous The fence this one replaces, or {@code null} for the first one
+	 */
+	WriteFence(WriteFence previous) {
+		this.previous = previous;
+	}
+
+	/**
+	 * Count a write about to read the routing table
+	 *
+	 * @return {@code false} if the fence was closed, the write then has to enter the current fence instead
+	 */
+	boolean enter() {
+		inFlight.incrementAndGet();
+		if (closed) {
+			exit();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Count one more request of a write that already entered, which may finish after the write itself returns
+	 */
+	<T> CompletableFuture<T> track(CompletableFuture<T> request) {
+		inFlight.incrementAndGet();
+		request.whenComplete((result, error) -> exit());
+		return request;
+	}
+
+	void exit() {
+		if (inFlight.decrementAndGet() == 0 && closed) {
+			drained.countDown();
+		}
+	}
+
+	/**
+	 * Stop counting new writes, they go to the next fence
+	 */
+	void close() {
+		closed = true;
+		if (inFlight.get() == 0) {
+			drained.countDown();
+		}
+	}
+
+	/**
+	 * Wait until every write counted before {@link #close()}, and by the fences before this one, has finished
+	 */
+	void awaitDrained() {
+		WriteFence before = previous;
+		if (before != null) {
+			before.awaitDrained();
+			previous = null;
+		}
+		Uninterruptibles.awaitUninterruptibly(drained);
+	}
+}
@@ -0,0 +1,75 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import java.util.concurrent.TimeUnit;
+
+import com.rustleund.dcchallenge.metrics.NodeOperation;
+
+/**
+ * One traced request to a node, as handed to the sink of an {@link AccessTracer}
+ */
+public final class AccessTraceEvent {
+
+	private final long timestampMillis;
+	private final Node node;
+	private final NodeOperation operation;
+	private final Object key;
+	private final int keyCount;
+	private final long durationNanos;
+	private final boolean failed;
+
+	AccessTraceEvent(long timestampMillis, Node node, NodeOperation operation, Object key, int keyCount, long durationNanos, boolean failed) {
+		this.timestampMillis = timestampMillis;
+		this.node = node;
+		this.operation = operation;
+		this.key = key;
+		this.keyCount = keyCount;
+		this.durationNanos = durationNanos;
+		this.failed = failed;
+	}
+
+	/**
+	 * @return The wall clock time the request finished at, in milliseconds since the epoch
+	 */
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	public Node getNode() {
+		return node;
+	}
+
+	public NodeOperation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return The key of a single key request, or {@code null} for requests on several keys
+	 */
+	public Object getKey() {
+		return key;
+	}
+
+	/**
+	 * @return The number of keys in the request
+	 */
+	public int getKeyCount() {
+		return keyCount;
+	}
+
+	public long getDuration(TimeUnit unit) {
+		return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return Whether the request failed with an exception
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("node=%s operation=%s %s=%s durationMicros=%d%s", node.getNodeId(), operation, key != null ? "key" : "keys",
+				key != null ? key : keyCount, getDuration(TimeUnit.MICROSECONDS), failed ? " failed" : "");
+	}
+}
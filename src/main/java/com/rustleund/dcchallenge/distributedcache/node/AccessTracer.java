@@ -0,0 +1,207 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.math.IntMath;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rustleund.dcchallenge.metrics.NodeOperation;
+
+/**
+ * Sampled tracing of individual requests to nodes, for debugging. Tracing is off until it is turned on at runtime, either for specific
+ * {@link Node}s with {@link #traceNode(Node)} or for a fraction of all requests with {@link #setSamplingRate(double)}. While it is off, deciding
+ * not to trace a request costs one volatile read.
+ * <p>
+ * Traced requests are written to a fixed size ring buffer without locking or allocating, and a daemon thread drains the buffer to the sink
+ * (an slf4j logger by default) in the background. If the buffer is full, new events are dropped and counted rather than slowing requests
+ * down.
+ */
+public final class AccessTracer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AccessTracer.class);
+
+	private final Slot[] slots;
+	private final int mask;
+	private final AtomicLong writeSequence = new AtomicLong();
+	private final AtomicLong readSequence = new AtomicLong();
+	private final LongAdder dropped = new LongAdder();
+	private final Consumer<AccessTraceEvent> sink;
+	private final long drainIntervalNanos;
+	private final Set<Node> tracedNodes = ConcurrentHashMap.newKeySet();
+	private volatile double samplingRate;
+	private volatile boolean active;
+	private ScheduledExecutorService drainer;
+
+	/**
+	 * A tracer with room for 8192 events that logs them at INFO
+	 */
+	public AccessTracer() {
+		this(8192, event -> LOG.info("{}", event));
+	}
+
+	/**
+	 * @param capacity The number of events the buffer holds, rounded up to a power of two
+	 * @param sink Receives every drained event, on the drain thread
+	 */
+	public AccessTracer(int capacity, Consumer<AccessTraceEvent> sink) {
+		this(capacity, sink, 100, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param capacity The number of events the buffer holds, rounded up to a power of two
+	 * @param sink Receives every drained event, on the drain thread
+	 * @param drainInterval How long the drain thread waits between drains
+	 * @param unit The {@link TimeUnit} of the drain interval
+	 */
+	public AccessTracer(int capacity, Consumer<AccessTraceEvent> sink, long drainInterval, TimeUnit unit) {
+		checkArgument(drainInterval > 0, "Drain interval must be positive");
+		checkArgument(capacity >= 1, "Capacity must be at least 1");
+		int size = IntMath.ceilingPowerOfTwo(capacity);
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.sink = checkNotNull(sink);
+		this.drainIntervalNanos = unit.toNanos(drainInterval);
+	}
+
+	/**
+	 * Trace every request to the given {@link Node}
+	 */
+	public void traceNode(Node node) {
+		tracedNodes.add(node);
+		updateActive();
+	}
+
+	/**
+	 * Stop tracing every request to the given {@link Node}. Requests may still be traced by sampling.
+	 */
+	public void untraceNode(Node node) {
+		tracedNodes.remove(node);
+		updateActive();
+	}
+
+	/**
+	 * @param samplingRate The fraction of requests to any node to trace, from 0 (the default) to 1
+	 */
+	public void setSamplingRate(double samplingRate) {
+		checkArgument(samplingRate >= 0 && samplingRate <= 1, "Sampling rate must be between 0 and 1");
+		this.samplingRate = samplingRate;
+		updateActive();
+	}
+
+	/**
+	 * Stop all tracing. Events already buffered are still drained.
+	 */
+	public void disable() {
+		tracedNodes.clear();
+		setSamplingRate(0);
+	}
+
+	private synchronized void updateActive() {
+		active = !tracedNodes.isEmpty() || samplingRate > 0;
+		if (active && drainer == null) {
+			drainer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("access-trace-drain-%d").build());
+			drainer.scheduleWithFixedDelay(this::drain, drainIntervalNanos, drainIntervalNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * @return Whether a request to the given {@link Node} should be traced
+	 */
+	public boolean shouldTrace(Node node) {
+		if (!active) {
+			return false;
+		}
+		double rate = samplingRate;
+		return tracedNodes.contains(node) || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+	}
+
+	/**
+	 * Buffer one traced request, or drop it if the buffer is full
+	 *
+	 * @param key The key of a single key request, or {@code null}
+	 * @param keyCount The number of keys in the request
+	 */
+	public void record(Node node, NodeOperation operation, Object key, int keyCount, long durationNanos, boolean failed) {
+		long sequence;
+		do {
+			sequence = writeSequence.get();
+			if (sequence - readSequence.get() >= slots.length) {
+				dropped.increment();
+				return;
+			}
+		} while (!writeSequence.compareAndSet(sequence, sequence + 1));
+		Slot slot = slots[(int) sequence & mask];
+		slot.timestampMillis = System.currentTimeMillis();
+		slot.node = node;
+		slot.operation = operation;
+		slot.key = key;
+		slot.keyCount = keyCount;
+		slot.durationNanos = durationNanos;
+		slot.failed = failed;
+		slot.published = sequence;
+	}
+
+	/**
+	 * Hand every published event to the sink. Called periodically by the drain thread; only one thread may drain at a time.
+	 *
+	 * @return The number of events drained
+	 */
+	synchronized int drain() {
+		long sequence = readSequence.get();
+		int drained = 0;
+		Slot slot;
+		while ((slot = slots[(int) sequence & mask]).published == sequence) {
+			AccessTraceEvent event = new AccessTraceEvent(slot.timestampMillis, slot.node, slot.operation, slot.key, slot.keyCount, slot.durationNanos,
+					slot.failed);
+			slot.node = null;
+			slot.key = null;
+			readSequence.lazySet(++sequence);
+			drained++;
+			try {
+				sink.accept(event);
+			} catch (RuntimeException e) {
+				LOG.warn("Access trace sink failed", e);
+			}
+		}
+		return drained;
+	}
+
+	/**
+	 * @return The number of events dropped because the buffer was full
+	 */
+	public long getDroppedEvents() {
+		return dropped.sum();
+	}
+
+	/**
+	 * A preallocated buffer entry. Fields are written by the producer that claimed the slot before it publishes the sequence, and read by the
+	 * drain thread after it sees the sequence.
+	 */
+	private static final class Slot {
+
+		private volatile long published = -1;
+		private long timestampMillis;
+		private Node node;
+		private NodeOperation operation;
+		private Object key;
+		private int keyCount;
+		private long durationNanos;
+		private boolean failed;
+	}
+}
@@ -0,0 +1,67 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import static com.rustleund.dcchallenge.util.FutureUtil.await;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link NodeConnection} that can have many requests outstanding at once without blocking a thread for each of them. Futures complete
+ * exceptionally with an {@link IOException} if a communication error occurs. The blocking methods wait on the asynchronous ones by default.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public interface AsyncNodeConnection<KeyT, ValueT> extends NodeConnection<KeyT, ValueT> {
+
+	/**
+	 * @see NodeConnection#put(Object, Object)
+	 */
+	CompletableFuture<Void> putAsync(KeyT key, ValueT value);
+
+	/**
+	 * @see NodeConnection#put(Object, Object, long, TimeUnit)
+	 */
+	CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit);
+
+	/**
+	 * @see NodeConnection#get(Object)
+	 */
+	CompletableFuture<ValueT> getAsync(KeyT key);
+
+	/**
+	 * @see NodeConnection#invalidate(Object)
+	 */
+	CompletableFuture<Void> invalidateAsync(KeyT key);
+
+	/**
+	 * @see NodeConnection#putIfNewer(Object, Versioned)
+	 */
+	CompletableFuture<Void> putIfNewerAsync(KeyT key, Versioned<ValueT> entry);
+
+	@Override
+	default void put(KeyT key, ValueT value) throws IOException {
+		await(putAsync(key, value));
+	}
+
+	@Override
+	default void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		await(putAsync(key, value, timeToLive, unit));
+	}
+
+	@Override
+	default ValueT get(KeyT key) throws IOException {
+		return await(getAsync(key));
+	}
+
+	@Override
+	default void invalidate(KeyT key) throws IOException {
+		await(invalidateAsync(key));
+	}
+
+	@Override
+	default void putIfNewer(KeyT key, Versioned<ValueT> entry) throws IOException {
+		await(putIfNewerAsync(key, entry));
+	}
+}
@@ -0,0 +1,83 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the consecutive failures of requests to one node. After {@code failureThreshold} requests in a row fail the breaker opens, and
+ * stays open until it is {@link #reset()}, typically once a health check succeeds. The delay between health checks starts at the initial
+ * retry delay and doubles after every failed check, up to the maximum retry delay.
+ */
+public final class CircuitBreaker {
+
+	private final int failureThreshold;
+	private final long initialRetryDelayNanos;
+	private final long maximumRetryDelayNanos;
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicBoolean open = new AtomicBoolean();
+	private volatile long retryDelayNanos;
+
+	/**
+	 * @param failureThreshold The number of consecutive failures that open the breaker, at least 1
+	 * @param initialRetryDelay The delay before the first health check once the breaker is open
+	 * @param maximumRetryDelay The longest delay between health checks, at least the initial delay
+	 * @param unit The unit of both delays
+	 */
+	public CircuitBreaker(int failureThreshold, long initialRetryDelay, long maximumRetryDelay, TimeUnit unit) {
+		checkArgument(failureThreshold >= 1, "Failure threshold must be at least 1");
+		checkArgument(initialRetryDelay > 0, "Initial retry delay must be positive");
+		checkArgument(maximumRetryDelay >= initialRetryDelay, "Maximum retry delay must be at least the initial retry delay");
+		this.failureThreshold = failureThreshold;
+		this.initialRetryDelayNanos = unit.toNanos(initialRetryDelay);
+		this.maximumRetryDelayNanos = unit.toNanos(maximumRetryDelay);
+		this.retryDelayNanos = initialRetryDelayNanos;
+	}
+
+	/**
+	 * @return Whether requests should fail fast rather than be sent to the node
+	 */
+	public boolean isOpen() {
+		return open.get();
+	}
+
+	public void recordSuccess() {
+		consecutiveFailures.set(0);
+	}
+
+	/**
+	 * @return Whether this failure opened the breaker
+	 */
+	public boolean recordFailure() {
+		return consecutiveFailures.incrementAndGet() >= failureThreshold && trip();
+	}
+
+	/**
+	 * Open the breaker straight away, for example when a node fails while it is being brought back
+	 *
+	 * @return Whether the breaker was closed before
+	 */
+	public boolean trip() {
+		return open.compareAndSet(false, true);
+	}
+
+	/**
+	 * Close the breaker once the node is healthy again, and start the next run of health checks from the initial delay
+	 */
+	public void reset() {
+		consecutiveFailures.set(0);
+		retryDelayNanos = initialRetryDelayNanos;
+		open.set(false);
+	}
+
+	/**
+	 * @return The delay before the next health check, in nanoseconds; each call doubles the delay returned by the next one, up to the maximum
+	 */
+	public long nextRetryDelayNanos() {
+		long delay = retryDelayNanos;
+		retryDelayNanos = Math.min(delay * 2, maximumRetryDelayNanos);
+		return delay;
+	}
+}
@@ -0,0 +1,212 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import static com.rustleund.dcchallenge.util.FutureUtil.failedFuture;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+import com.google.common.collect.RangeSet;
+import com.rustleund.dcchallenge.util.LambdaUtil.CheckedFunction;
+
+/**
+ * An {@link AsyncNodeConnection} that counts the failures of requests to the wrapped connection in a {@link CircuitBreaker}. Once the breaker
+ * opens, every request fails straight away with a {@link NodeUnavailableException}, so callers do not queue up behind a node that is down,
+ * and the listener given to the constructor is told, so the node can be taken out of routing. {@link #ping()} is always sent to the node, so
+ * health checks can tell when it is back.
+ * <p>
+ * Only {@link IOException}s count as failures; a runtime exception means the request was bad, not the node.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public class CircuitBreakingNodeConnection<KeyT, ValueT> extends ForwardingNodeConnection<KeyT, ValueT> implements AsyncNodeConnection<KeyT, ValueT> {
+
+	private final AsyncNodeConnection<KeyT, ValueT> nodeConnection;
+	private final Node node;
+	private final CircuitBreaker circuitBreaker;
+	private final Runnable onOpen;
+
+	/**
+	 * @param nodeConnection The {@link AsyncNodeConnection} to wrap
+	 * @param node The {@link Node} the connection is for
+	 * @param circuitBreaker The {@link CircuitBreaker} to count failures in
+	 * @param onOpen Run on the thread that saw the failure which opened the breaker
+	 */
+	public CircuitBreakingNodeConnection(AsyncNodeConnection<KeyT, ValueT> nodeConnection, Node node, CircuitBreaker circuitBreaker, Runnable onOpen) {
+		this.nodeConnection = nodeConnection;
+		this.node = node;
+		this.circuitBreaker = circuitBreaker;
+		this.onOpen = onOpen;
+	}
+
+	@Override
+	protected NodeConnection<KeyT, ValueT> delegate() {
+		return nodeConnection;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) throws IOException {
+		call(con -> {
+			con.put(key, value);
+			return null;
+		});
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		call(con -> {
+			con.put(key, value, timeToLive, unit);
+			return null;
+		});
+	}
+
+	@Override
+	public ValueT get(KeyT key) throws IOException {
+		return call(con -> con.get(key));
+	}
+
+	@Override
+	public void invalidate(KeyT key) throws IOException {
+		call(con -> {
+			con.invalidate(key);
+			return null;
+		});
+	}
+
+	@Override
+	public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		return call(con -> con.getAll(keys));
+	}
+
+	@Override
+	public void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		call(con -> {
+			con.putAll(entries);
+			return null;
+		});
+	}
+
+	@Override
+	public void invalidateAll(Collection<KeyT> keys) throws IOException {
+		call(con -> {
+			con.invalidateAll(keys);
+			return null;
+		});
+	}
+
+	@Override
+	public Stream<KeyT> keys() throws IOException {
+		return call(NodeConnection::keys);
+	}
+
+	@Override
+	public Stream<KeyT> keysInHashRanges(RangeSet<Integer> hashRanges, ToIntFunction<? super KeyT> keyHasher) throws IOException {
+		return call(con -> con.keysInHashRanges(hashRanges, keyHasher));
+	}
+
+	@Override
+	public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) throws IOException {
+		return call(con -> con.getAllVersioned(keys));
+	}
+
+	@Override
+	public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) throws IOException {
+		call(con -> {
+			con.putAllIfNewer(entries);
+			return null;
+		});
+	}
+
+	@Override
+	public void putIfNewer(KeyT key, Versioned<ValueT> entry) throws IOException {
+		call(con -> {
+			con.putIfNewer(key, entry);
+			return null;
+		});
+	}
+
+	@Override
+	public void invalidateAllIfNotNewer(Map<KeyT, Long> versions) throws IOException {
+		call(con -> {
+			con.invalidateAllIfNotNewer(versions);
+			return null;
+		});
+	}
+
+	@Override
+	public void purgeTombstones(long beforeVersion) throws IOException {
+		call(con -> {
+			con.purgeTombstones(beforeVersion);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value) {
+		return circuitBreaker.isOpen() ? failedFuture(new NodeUnavailableException(node)) : recordOnCompletion(nodeConnection.putAsync(key, value));
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		return circuitBreaker.isOpen() ? failedFuture(new NodeUnavailableException(node))
+				: recordOnCompletion(nodeConnection.putAsync(key, value, timeToLive, unit));
+	}
+
+	@Override
+	public CompletableFuture<ValueT> getAsync(KeyT key) {
+		return circuitBreaker.isOpen() ? failedFuture(new NodeUnavailableException(node)) : recordOnCompletion(nodeConnection.getAsync(key));
+	}
+
+	@Override
+	public CompletableFuture<Void> invalidateAsync(KeyT key) {
+		return circuitBreaker.isOpen() ? failedFuture(new NodeUnavailableException(node)) : recordOnCompletion(nodeConnection.invalidateAsync(key));
+	}
+
+	@Override
+	public CompletableFuture<Void> putIfNewerAsync(KeyT key, Versioned<ValueT> entry) {
+		return circuitBreaker.isOpen() ? failedFuture(new NodeUnavailableException(node)) : recordOnCompletion(nodeConnection.putIfNewerAsync(key, entry));
+	}
+
+	private <T> T call(CheckedFunction<NodeConnection<KeyT, ValueT>, T, IOException> request) throws IOException {
+		if (circuitBreaker.isOpen()) {
+			throw new NodeUnavailableException(node);
+		}
+		T result;
+		try {
+			result = request.apply(nodeConnection);
+		} catch (IOException e) {
+			recordFailure();
+			throw e;
+		}
+		circuitBreaker.recordSuccess();
+		return result;
+	}
+
+	private <T> CompletableFuture<T> recordOnCompletion(CompletableFuture<T> future) {
+		future.whenComplete((result, error) -> {
+			Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+			if (cause == null) {
+				circuitBreaker.recordSuccess();
+			} else if (cause instanceof IOException) {
+				recordFailure();
+			}
+		});
+		return future;
+	}
+
+	private void recordFailure() {
+		if (circuitBreaker.recordFailure()) {
+			onOpen.run();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import static com.rustleund.dcchallenge.util.FutureUtil.supplyAsync;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts a blocking {@link NodeConnection} to {@link AsyncNodeConnection} by running each asynchronous request on an {@link Executor}. Blocking
+ * calls are forwarded straight to the wrapped connection.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public class ExecutorAsyncNodeConnection<KeyT, ValueT> extends ForwardingNodeConnection<KeyT, ValueT> implements AsyncNodeConnection<KeyT, ValueT> {
+
+	private final NodeConnection<KeyT, ValueT> nodeConnection;
+	private final Executor executor;
+
+	/**
+	 * @param nodeConnection The blocking {@link NodeConnection} to wrap
+	 * @param executor The {@link Executor} to run asynchronous requests on
+	 */
+	public ExecutorAsyncNodeConnection(NodeConnection<KeyT, ValueT> nodeConnection, Executor executor) {
+		this.nodeConnection = nodeConnection;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param nodeConnection A {@link NodeConnection}
+	 * @param executor The {@link Executor} to run asynchronous requests on if the connection is blocking
+	 * @return The given connection if it is already an {@link AsyncNodeConnection}, otherwise a {@link ExecutorAsyncNodeConnection} wrapping it
+	 */
+	public static <KeyT, ValueT> AsyncNodeConnection<KeyT, ValueT> asAsync(NodeConnection<KeyT, ValueT> nodeConnection, Executor executor) {
+		if (nodeConnection instanceof AsyncNodeConnection) {
+			return (AsyncNodeConnection<KeyT, ValueT>) nodeConnection;
+		}
+		return new ExecutorAsyncNodeConnection<>(nodeConnection, executor);
+	}
+
+	@Override
+	protected NodeConnection<KeyT, ValueT> delegate() {
+		return nodeConnection;
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value) {
+		return supplyAsync(nodeConnection, con -> {
+			con.put(key, value);
+			return null;
+		}, executor);
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		return supplyAsync(nodeConnection, con -> {
+			con.put(key, value, timeToLive, unit);
+			return null;
+		}, executor);
+	}
+
+	@Override
+	public CompletableFuture<ValueT> getAsync(KeyT key) {
+		return supplyAsync(nodeConnection, con -> con.get(key), executor);
+	}
+
+	@Override
+	public CompletableFuture<Void> invalidateAsync(KeyT key) {
+		return supplyAsync(nodeConnection, con -> {
+			con.invalidate(key);
+			return null;
+		}, executor);
+	}
+
+	@Override
+	public CompletableFuture<Void> putIfNewerAsync(KeyT key, Versioned<ValueT> entry) {
+		return supplyAsync(nodeConnection, con -> {
+			con.putIfNewer(key, entry);
+			return null;
+		}, executor);
+	}
+
+}
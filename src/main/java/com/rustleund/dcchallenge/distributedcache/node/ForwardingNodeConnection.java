@@ -0,0 +1,116 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+import com.google.common.collect.RangeSet;
+
+/**
+ * A {@link NodeConnection} which forwards all its method calls to another {@link NodeConnection}. Subclasses override the methods they
+ * decorate, every other method (including ones added to {@link NodeConnection} later) keeps reaching the delegate.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public abstract class ForwardingNodeConnection<KeyT, ValueT> implements NodeConnection<KeyT, ValueT> {
+
+	/**
+	 * @return The {@link NodeConnection} that calls are forwarded to
+	 */
+	protected abstract NodeConnection<KeyT, ValueT> delegate();
+
+	@Override
+	public void open() throws IOException {
+		delegate().open();
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) throws IOException {
+		delegate().put(key, value);
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		delegate().put(key, value, timeToLive, unit);
+	}
+
+	@Override
+	public ValueT get(KeyT key) throws IOException {
+		return delegate().get(key);
+	}
+
+	@Override
+	public void invalidate(KeyT key) throws IOException {
+		delegate().invalidate(key);
+	}
+
+	@Override
+	public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		return delegate().getAll(keys);
+	}
+
+	@Override
+	public void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		delegate().putAll(entries);
+	}
+
+	@Override
+	public void invalidateAll(Collection<KeyT> keys) throws IOException {
+		delegate().invalidateAll(keys);
+	}
+
+	@Override
+	public Stream<KeyT> keys() throws IOException {
+		return delegate().keys();
+	}
+
+	@Override
+	public Stream<KeyT> keysInHashRanges(RangeSet<Integer> hashRanges, ToIntFunction<? super KeyT> keyHasher) throws IOException {
+		return delegate().keysInHashRanges(hashRanges, keyHasher);
+	}
+
+	@Override
+	public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) throws IOException {
+		return delegate().getAllVersioned(keys);
+	}
+
+	@Override
+	public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) throws IOException {
+		delegate().putAllIfNewer(entries);
+	}
+
+	@Override
+	public void putIfNewer(KeyT key, Versioned<ValueT> entry) throws IOException {
+		delegate().putIfNewer(key, entry);
+	}
+
+	@Override
+	public void invalidateAllIfNotNewer(Map<KeyT, Long> versions) throws IOException {
+		delegate().invalidateAllIfNotNewer(versions);
+	}
+
+	@Override
+	public void purgeTombstones(long beforeVersion) throws IOException {
+		delegate().purgeTombstones(beforeVersion);
+	}
+
+	@Override
+	public Clock getClock() {
+		return delegate().getClock();
+	}
+
+	@Override
+	public void ping() throws IOException {
+		delegate().ping();
+	}
+
+	@Override
+	public void close() throws IOException {
+		delegate().close();
+	}
+}
@@ -0,0 +1,234 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+import com.google.common.collect.RangeSet;
+import com.rustleund.dcchallenge.metrics.NodeMetrics;
+import com.rustleund.dcchallenge.metrics.NodeOperation;
+
+/**
+ * An {@link AsyncNodeConnection} that records the latency and failures of every request to the wrapped connection in a {@link NodeMetrics}.
+ * Blocking requests are timed without allocating; asynchronous requests are timed until their future completes. Key scans are timed until the
+ * {@link Stream} is returned, not until it is consumed.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public class InstrumentedNodeConnection<KeyT, ValueT> extends ForwardingNodeConnection<KeyT, ValueT> implements AsyncNodeConnection<KeyT, ValueT> {
+
+	private final AsyncNodeConnection<KeyT, ValueT> nodeConnection;
+	private final NodeMetrics metrics;
+
+	/**
+	 * @param nodeConnection The {@link AsyncNodeConnection} to wrap
+	 * @param metrics The {@link NodeMetrics} to record into
+	 */
+	public InstrumentedNodeConnection(AsyncNodeConnection<KeyT, ValueT> nodeConnection, NodeMetrics metrics) {
+		this.nodeConnection = nodeConnection;
+		this.metrics = metrics;
+	}
+
+	@Override
+	protected NodeConnection<KeyT, ValueT> delegate() {
+		return nodeConnection;
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) throws IOException {
+		long start = System.nanoTime();
+		try {
+			nodeConnection.put(key, value);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.PUT);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.PUT, start);
+		}
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		long start = System.nanoTime();
+		try {
+			nodeConnection.put(key, value, timeToLive, unit);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.PUT);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.PUT, start);
+		}
+	}
+
+	@Override
+	public ValueT get(KeyT key) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return nodeConnection.get(key);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.GET);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.GET, start);
+		}
+	}
+
+	@Override
+	public void invalidate(KeyT key) throws IOException {
+		long start = System.nanoTime();
+		try {
+			nodeConnection.invalidate(key);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.INVALIDATE);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.INVALIDATE, start);
+		}
+	}
+
+	@Override
+	public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return nodeConnection.getAll(keys);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.GET_ALL);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.GET_ALL, start);
+		}
+	}
+
+	@Override
+	public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return nodeConnection.getAllVersioned(keys);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.GET_ALL);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.GET_ALL, start);
+		}
+	}
+
+	@Override
+	public void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		long start = System.nanoTime();
+		try {
+			nodeConnection.putAll(entries);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.PUT_ALL);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.PUT_ALL, start);
+		}
+	}
+
+	@Override
+	public void invalidateAll(Collection<KeyT> keys) throws IOException {
+		long start = System.nanoTime();
+		try {
+			nodeConnection.invalidateAll(keys);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.INVALIDATE_ALL);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.INVALIDATE_ALL, start);
+		}
+	}
+
+	@Override
+	public void putIfNewer(KeyT key, Versioned<ValueT> entry) throws IOException {
+		NodeOperation operation = entry.isTombstone() ? NodeOperation.INVALIDATE : NodeOperation.PUT;
+		long start = System.nanoTime();
+		try {
+			nodeConnection.putIfNewer(key, entry);
+		} catch (IOException e) {
+			metrics.recordError(operation);
+			throw e;
+		} finally {
+			metrics.record(operation, start);
+		}
+	}
+
+	@Override
+	public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) throws IOException {
+		long start = System.nanoTime();
+		try {
+			nodeConnection.putAllIfNewer(entries);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.PUT_ALL);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.PUT_ALL, start);
+		}
+	}
+
+	@Override
+	public Stream<KeyT> keys() throws IOException {
+		long start = System.nanoTime();
+		try {
+			return nodeConnection.keys();
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.KEYS);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.KEYS, start);
+		}
+	}
+
+	@Override
+	public Stream<KeyT> keysInHashRanges(RangeSet<Integer> hashRanges, ToIntFunction<? super KeyT> keyHasher) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return nodeConnection.keysInHashRanges(hashRanges, keyHasher);
+		} catch (IOException e) {
+			metrics.recordError(NodeOperation.KEYS);
+			throw e;
+		} finally {
+			metrics.record(NodeOperation.KEYS, start);
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value) {
+		return recordOnCompletion(NodeOperation.PUT, System.nanoTime(), nodeConnection.putAsync(key, value));
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		return recordOnCompletion(NodeOperation.PUT, System.nanoTime(), nodeConnection.putAsync(key, value, timeToLive, unit));
+	}
+
+	@Override
+	public CompletableFuture<ValueT> getAsync(KeyT key) {
+		return recordOnCompletion(NodeOperation.GET, System.nanoTime(), nodeConnection.getAsync(key));
+	}
+
+	@Override
+	public CompletableFuture<Void> invalidateAsync(KeyT key) {
+		return recordOnCompletion(NodeOperation.INVALIDATE, System.nanoTime(), nodeConnection.invalidateAsync(key));
+	}
+
+	@Override
+	public CompletableFuture<Void> putIfNewerAsync(KeyT key, Versioned<ValueT> entry) {
+		return recordOnCompletion(entry.isTombstone() ? NodeOperation.INVALIDATE : NodeOperation.PUT, System.nanoTime(),
+				nodeConnection.putIfNewerAsync(key, entry));
+	}
+
+	private <T> CompletableFuture<T> recordOnCompletion(NodeOperation operation, long start, CompletableFuture<T> future) {
+		future.whenComplete((result, error) -> {
+			if (error != null) {
+				metrics.recordError(operation);
+			}
+			metrics.record(operation, start);
+		});
+		return future;
+	}
+}
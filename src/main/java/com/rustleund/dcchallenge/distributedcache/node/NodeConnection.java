@@ -2,10 +2,19 @@ package com.rustleund.dcchallenge.distributedcache.node;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
 import java.util.stream.Stream;
 
+import com.google.common.collect.RangeSet;
+
 /**
  * Represents a connection interface to a RemoteCache node
  *
@@ -30,6 +39,19 @@ public interface NodeConnection<KeyT, ValueT> extends Closeable {
 	 */
 	void put(KeyT key, ValueT value) throws IOException;
 
+	/**
+	 * Store a key/value pair into the node that expires once the given time to live has passed. An expired entry reads as missing straight
+	 * away and is not included in {@link #keys()}, and the node frees it in the background. Storing the key again, with or without a time to
+	 * live, replaces the expiry.
+	 *
+	 * @param key The key to store
+	 * @param value The value to store
+	 * @param timeToLive How long the value is kept for, must be positive
+	 * @param unit The unit of the time to live
+	 * @throws IOException If a communication error occurs
+	 */
+	void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException;
+
 	/**
 	 * Get the value currently stored in this node for the given key, or {@code null} if there is no value
 	 *
@@ -47,8 +69,175 @@ public interface NodeConnection<KeyT, ValueT> extends Closeable {
 	 */
 	void invalidate(KeyT key) throws IOException;
 
+	/**
+	 * Get the values stored in this node for many keys in one request. The default implementation calls {@link #get(Object)} for each key,
+	 * implementations that talk to a remote node should override this to use a single round trip.
+	 *
+	 * @param keys The keys to lookup values for
+	 * @return A {@link Map} of each key that has a value to its value, keys without a value are not included
+	 * @throws IOException If a communication error occurs
+	 */
+	default Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		Map<KeyT, ValueT> values = new HashMap<>();
+		for (KeyT key : keys) {
+			ValueT value = get(key);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Store many key/value pairs into the node in one request. The default implementation calls {@link #put(Object, Object)} for each entry.
+	 *
+	 * @param entries The key/value pairs to store
+	 * @throws IOException If a communication error occurs
+	 */
+	default void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		for (Map.Entry<KeyT, ValueT> entry : entries.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Invalidate the entries under many keys in one request. The default implementation calls {@link #invalidate(Object)} for each key.
+	 *
+	 * @param keys The keys to invalidate the values for
+	 * @throws IOException If a communication error occurs
+	 */
+	default void invalidateAll(Collection<KeyT> keys) throws IOException {
+		for (KeyT key : keys) {
+			invalidate(key);
+		}
+	}
+
 	/**
 	 * @return A {@link Stream} that includes all currently stored keys in this node
 	 */
 	Stream<KeyT> keys() throws IOException;
+
+	/**
+	 * Stream the keys stored in this node whose hash is in the given ranges. Used to find only the keys that have to move when the owner of
+	 * some hash ranges changes. The default implementation filters {@link #keys()}; implementations that keep keys ordered or bucketed by hash
+	 * can avoid looking at the other keys at all.
+	 *
+	 * @param hashRanges The hash ranges to find keys in
+	 * @param keyHasher The function that places a key on the ring, keys are included if its result is in one of the ranges
+	 * @return A {@link Stream} of the currently stored keys with a hash in the given ranges
+	 * @throws IOException If a communication error occurs
+	 */
+	default Stream<KeyT> keysInHashRanges(RangeSet<Integer> hashRanges, ToIntFunction<? super KeyT> keyHasher) throws IOException {
+		return keys().filter(key -> hashRanges.contains(keyHasher.applyAsInt(key)));
+	}
+
+	/**
+	 * Get the stored entries for many keys with their versions, for moving them to another node. Keys without a value are not included;
+	 * tombstones may be. The default implementation reads {@link #getAll(Collection)} and reports every value as
+	 * {@link Versioned#UNVERSIONED}, for nodes that do not keep versions.
+	 *
+	 * @param keys The keys to lookup entries for
+	 * @return A {@link Map} of each key that has an entry to its entry
+	 * @throws IOException If a communication error occurs
+	 */
+	default Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) throws IOException {
+		Map<KeyT, Versioned<ValueT>> entries = new HashMap<>();
+		getAll(keys).forEach((key, value) -> entries.put(key, Versioned.of(value, Versioned.UNVERSIONED)));
+		return entries;
+	}
+
+	/**
+	 * Store each entry unless the node holds a newer version of it, see {@link Versioned#supersedes(Versioned)}. A tombstone invalidates the key
+	 * and is remembered, so an older value cannot bring the key back, until {@link #purgeTombstones(long)}. Used for every put, invalidations
+	 * made while values are moving, and the values being moved between nodes, so none of them clobbers a newer one.
+	 * <p>
+	 * Entries with an expiry keep it; ones that have already expired are not stored.
+	 * <p>
+	 * The default implementation writes every entry unconditionally with {@link #putAll(Map)}, {@link #put(Object, Object, long, TimeUnit)} for
+	 * entries with an expiry, and {@link #invalidateAll(Collection)}, for nodes that do not keep versions. What is left of each expiry is
+	 * measured with {@link #getClock()}.
+	 *
+	 * @param entries The entries to store
+	 * @throws IOException If a communication error occurs
+	 */
+	default void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) throws IOException {
+		Map<KeyT, ValueT> values = new HashMap<>();
+		Map<KeyT, Versioned<ValueT>> expiring = new HashMap<>();
+		List<KeyT> tombstones = new ArrayList<>();
+		entries.forEach((key, entry) -> {
+			if (entry.isTombstone()) {
+				tombstones.add(key);
+			} else if (entry.getExpiresAtMillis() == Versioned.NEVER_EXPIRES) {
+				values.put(key, entry.getValue());
+			} else {
+				expiring.put(key, entry);
+			}
+		});
+		if (!values.isEmpty()) {
+			putAll(values);
+		}
+		long now = getClock().millis();
+		for (Map.Entry<KeyT, Versioned<ValueT>> entry : expiring.entrySet()) {
+			if (!entry.getValue().isExpired(now)) {
+				put(entry.getKey(), entry.getValue().getValue(), entry.getValue().getExpiresAtMillis() - now, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (!tombstones.isEmpty()) {
+			invalidateAll(tombstones);
+		}
+	}
+
+	/**
+	 * Store one entry unless the node holds a newer version of it, see {@link #putAllIfNewer(Map)}. Used for single key writes, which are all
+	 * versioned. The default implementation calls {@link #putAllIfNewer(Map)} with the one entry.
+	 *
+	 * @param key The key to store the entry under
+	 * @param entry The entry to store
+	 * @throws IOException If a communication error occurs
+	 */
+	default void putIfNewer(KeyT key, Versioned<ValueT> entry) throws IOException {
+		putAllIfNewer(Collections.singletonMap(key, entry));
+	}
+
+	/**
+	 * Invalidate each key unless the node holds a newer version than the given one, so a value moved off this node is removed without removing
+	 * a newer write that arrived after it was read. The default implementation invalidates every key, for nodes that do not keep versions.
+	 *
+	 * @param versions Each key to invalidate, to the newest version it may be invalidated at
+	 * @throws IOException If a communication error occurs
+	 */
+	default void invalidateAllIfNotNewer(Map<KeyT, Long> versions) throws IOException {
+		invalidateAll(versions.keySet());
+	}
+
+	/**
+	 * Forget the tombstones left by {@link #putAllIfNewer(Map)} once no values are moving that they have to guard against. Does nothing by
+	 * default.
+	 *
+	 * @param beforeVersion Only tombstones older than this version are forgotten, so ones guarding a move that has just started are kept
+	 * @throws IOException If a communication error occurs
+	 */
+	default void purgeTombstones(long beforeVersion) throws IOException {
+		//
+	}
+
+	/**
+	 * The clock the default implementations measure expiries with, which has to agree with the {@link Clock} of the caches writing to this
+	 * node. The system clock by default; nodes that take a clock return it.
+	 *
+	 * @return The {@link Clock} of this node
+	 */
+	default Clock getClock() {
+		return Clock.systemUTC();
+	}
+
+	/**
+	 * Check that the node answers requests, for health checks of a node that has been failing. Does nothing by default, for nodes in the same
+	 * process; implementations that talk to a remote node should make a round trip.
+	 *
+	 * @throws IOException If the node cannot be reached
+	 */
+	default void ping() throws IOException {
+		//
+	}
 }
@@ -0,0 +1,15 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a node that has been failing, see {@link CircuitBreakingNodeConnection}
+ */
+public class NodeUnavailableException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public NodeUnavailableException(Node node) {
+		super("Node " + node.getNodeId() + " is unavailable");
+	}
+}
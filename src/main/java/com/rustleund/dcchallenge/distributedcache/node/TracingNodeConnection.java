@@ -0,0 +1,211 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.rustleund.dcchallenge.metrics.NodeOperation;
+
+/**
+ * An {@link AsyncNodeConnection} that reports the requests an {@link AccessTracer} chooses to trace. Requests that are not traced go straight to
+ * the wrapped connection.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public class TracingNodeConnection<KeyT, ValueT> extends ForwardingNodeConnection<KeyT, ValueT> implements AsyncNodeConnection<KeyT, ValueT> {
+
+	private final AsyncNodeConnection<KeyT, ValueT> nodeConnection;
+	private final Node node;
+	private final AccessTracer tracer;
+
+	/**
+	 * @param nodeConnection The {@link AsyncNodeConnection} to wrap
+	 * @param node The {@link Node} the connection is for
+	 * @param tracer The {@link AccessTracer} that decides which requests are traced
+	 */
+	public TracingNodeConnection(AsyncNodeConnection<KeyT, ValueT> nodeConnection, Node node, AccessTracer tracer) {
+		this.nodeConnection = nodeConnection;
+		this.node = node;
+		this.tracer = tracer;
+	}
+
+	@Override
+	protected NodeConnection<KeyT, ValueT> delegate() {
+		return nodeConnection;
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			nodeConnection.put(key, value);
+			return;
+		}
+		trace(NodeOperation.PUT, key, 1, () -> {
+			nodeConnection.put(key, value);
+			return null;
+		});
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			nodeConnection.put(key, value, timeToLive, unit);
+			return;
+		}
+		trace(NodeOperation.PUT, key, 1, () -> {
+			nodeConnection.put(key, value, timeToLive, unit);
+			return null;
+		});
+	}
+
+	@Override
+	public ValueT get(KeyT key) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			return nodeConnection.get(key);
+		}
+		return trace(NodeOperation.GET, key, 1, () -> nodeConnection.get(key));
+	}
+
+	@Override
+	public void invalidate(KeyT key) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			nodeConnection.invalidate(key);
+			return;
+		}
+		trace(NodeOperation.INVALIDATE, key, 1, () -> {
+			nodeConnection.invalidate(key);
+			return null;
+		});
+	}
+
+	@Override
+	public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			return nodeConnection.getAll(keys);
+		}
+		return trace(NodeOperation.GET_ALL, null, keys.size(), () -> nodeConnection.getAll(keys));
+	}
+
+	@Override
+	public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			return nodeConnection.getAllVersioned(keys);
+		}
+		return trace(NodeOperation.GET_ALL, null, keys.size(), () -> nodeConnection.getAllVersioned(keys));
+	}
+
+	@Override
+	public void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			nodeConnection.putAll(entries);
+			return;
+		}
+		trace(NodeOperation.PUT_ALL, null, entries.size(), () -> {
+			nodeConnection.putAll(entries);
+			return null;
+		});
+	}
+
+	@Override
+	public void invalidateAll(Collection<KeyT> keys) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			nodeConnection.invalidateAll(keys);
+			return;
+		}
+		trace(NodeOperation.INVALIDATE_ALL, null, keys.size(), () -> {
+			nodeConnection.invalidateAll(keys);
+			return null;
+		});
+	}
+
+	@Override
+	public void putIfNewer(KeyT key, Versioned<ValueT> entry) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			nodeConnection.putIfNewer(key, entry);
+			return;
+		}
+		trace(entry.isTombstone() ? NodeOperation.INVALIDATE : NodeOperation.PUT, key, 1, () -> {
+			nodeConnection.putIfNewer(key, entry);
+			return null;
+		});
+	}
+
+	@Override
+	public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) throws IOException {
+		if (!tracer.shouldTrace(node)) {
+			nodeConnection.putAllIfNewer(entries);
+			return;
+		}
+		trace(NodeOperation.PUT_ALL, null, entries.size(), () -> {
+			nodeConnection.putAllIfNewer(entries);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value) {
+		if (!tracer.shouldTrace(node)) {
+			return nodeConnection.putAsync(key, value);
+		}
+		return traceOnCompletion(NodeOperation.PUT, key, System.nanoTime(), nodeConnection.putAsync(key, value));
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		if (!tracer.shouldTrace(node)) {
+			return nodeConnection.putAsync(key, value, timeToLive, unit);
+		}
+		return traceOnCompletion(NodeOperation.PUT, key, System.nanoTime(), nodeConnection.putAsync(key, value, timeToLive, unit));
+	}
+
+	@Override
+	public CompletableFuture<ValueT> getAsync(KeyT key) {
+		if (!tracer.shouldTrace(node)) {
+			return nodeConnection.getAsync(key);
+		}
+		return traceOnCompletion(NodeOperation.GET, key, System.nanoTime(), nodeConnection.getAsync(key));
+	}
+
+	@Override
+	public CompletableFuture<Void> invalidateAsync(KeyT key) {
+		if (!tracer.shouldTrace(node)) {
+			return nodeConnection.invalidateAsync(key);
+		}
+		return traceOnCompletion(NodeOperation.INVALIDATE, key, System.nanoTime(), nodeConnection.invalidateAsync(key));
+	}
+
+	@Override
+	public CompletableFuture<Void> putIfNewerAsync(KeyT key, Versioned<ValueT> entry) {
+		if (!tracer.shouldTrace(node)) {
+			return nodeConnection.putIfNewerAsync(key, entry);
+		}
+		return traceOnCompletion(entry.isTombstone() ? NodeOperation.INVALIDATE : NodeOperation.PUT, key, System.nanoTime(),
+				nodeConnection.putIfNewerAsync(key, entry));
+	}
+
+	private <T> T trace(NodeOperation operation, KeyT key, int keyCount, TracedRequest<T> request) throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			T result = request.send();
+			failed = false;
+			return result;
+		} finally {
+			tracer.record(node, operation, key, keyCount, System.nanoTime() - start, failed);
+		}
+	}
+
+	private <T> CompletableFuture<T> traceOnCompletion(NodeOperation operation, KeyT key, long start, CompletableFuture<T> future) {
+		future.whenComplete((result, error) -> tracer.record(node, operation, key, 1, System.nanoTime() - start, error != null));
+		return future;
+	}
+
+	@FunctionalInterface
+	private interface TracedRequest<T> {
+
+		T send() throws IOException;
+	}
+}
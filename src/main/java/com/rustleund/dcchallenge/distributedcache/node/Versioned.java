@@ -0,0 +1,136 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.math.LongMath;
+
+/**
+ * A value, or the absence of one, with the version it was written at. Every put through a cache, and every invalidation while values are
+ * moving, is stamped with a version from the cache's hybrid logical clock, so a node keeps the newest write of a key whichever order writes
+ * and values copied from other nodes arrive in, see {@link NodeConnection#putAllIfNewer(java.util.Map)}. {@link #UNVERSIONED}, which every
+ * versioned write is newer than, only marks values written with the plain {@code put} calls of a node and entries read from nodes that do not
+ * keep versions.
+ * <p>
+ * A value written with a time to live carries the wall clock time it expires at, so moving it to another node does not extend its life.
+ *
+ * @param <ValueT> The type of the value
+ */
+public final class Versioned<ValueT> {
+
+	/**
+	 * The version of entries written without a version
+	 */
+	public static final long UNVERSIONED = 0;
+
+	/**
+	 * The expiry of entries written without a time to live
+	 */
+	public static final long NEVER_EXPIRES = 0;
+
+	private final ValueT value;
+	private final long version;
+	private final long expiresAtMillis;
+
+	private Versioned(ValueT value, long version, long expiresAtMillis) {
+		this.value = value;
+		this.version = version;
+		this.expiresAtMillis = expiresAtMillis;
+	}
+
+	/**
+	 * @param nowMillis The current time in milliseconds since the epoch
+	 * @param timeToLive How long a value written now lives, must be positive
+	 * @param unit The unit of the time to live
+	 * @return The time a value written now with the given time to live expires at, rounded up to the next millisecond
+	 */
+	public static long expiryAfter(long nowMillis, long timeToLive, TimeUnit unit) {
+		checkArgument(timeToLive > 0, "Time to live must be positive");
+		long millis = unit.toMillis(timeToLive);
+		if (unit.toNanos(timeToLive) > TimeUnit.MILLISECONDS.toNanos(millis)) {
+			millis++;
+		}
+		return LongMath.saturatedAdd(nowMillis, millis);
+	}
+
+	/**
+	 * @param value A value, must not be {@code null}
+	 * @param version The version the value was written at
+	 */
+	public static <ValueT> Versioned<ValueT> of(ValueT value, long version) {
+		return new Versioned<>(Objects.requireNonNull(value), version, NEVER_EXPIRES);
+	}
+
+	/**
+	 * @param version The version the value was invalidated at
+	 * @return A tombstone: the entry was invalidated at the given version, so older values must not bring it back
+	 */
+	public static <ValueT> Versioned<ValueT> tombstone(long version) {
+		return new Versioned<>(null, version, NEVER_EXPIRES);
+	}
+
+	/**
+	 * @return The value, or {@code null} for a tombstone
+	 */
+	public ValueT getValue() {
+		return value;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public boolean isTombstone() {
+		return value == null;
+	}
+
+	/**
+	 * @param expiresAtMillis The time the value expires at, in milliseconds since the epoch, or {@link #NEVER_EXPIRES}
+	 * @return This entry, expiring at the given time; tombstones never expire
+	 */
+	public Versioned<ValueT> expiringAt(long expiresAtMillis) {
+		return value == null || expiresAtMillis == this.expiresAtMillis ? this : new Versioned<>(value, version, expiresAtMillis);
+	}
+
+	/**
+	 * @return The time the value expires at, in milliseconds since the epoch, or {@link #NEVER_EXPIRES}
+	 */
+	public long getExpiresAtMillis() {
+		return expiresAtMillis;
+	}
+
+	/**
+	 * @return Whether the value has expired by the given time, in milliseconds since the epoch
+	 */
+	public boolean isExpired(long nowMillis) {
+		return expiresAtMillis != NEVER_EXPIRES && expiresAtMillis <= nowMillis;
+	}
+
+	/**
+	 * @return Whether this entry should replace the given stored entry: it is at least as new, so copying the same write twice is harmless
+	 */
+	public boolean supersedes(Versioned<?> stored) {
+		return stored == null || version >= stored.version;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Versioned)) {
+			return false;
+		}
+		Versioned<?> other = (Versioned<?>) obj;
+		return version == other.version && expiresAtMillis == other.expiresAtMillis && Objects.equals(value, other.value);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(value, version, expiresAtMillis);
+	}
+
+	@Override
+	public String toString() {
+		return (value == null ? "tombstone" : value) + "@" + version + (expiresAtMillis != NEVER_EXPIRES ? " until " + expiresAtMillis : "");
+	}
+}
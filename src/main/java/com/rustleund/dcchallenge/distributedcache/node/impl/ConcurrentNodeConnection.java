@@ -0,0 +1,368 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * An in-process {@link NodeConnection} that is safe to use from many threads at once, for embedded and test deployments. Values are kept in a
+ * {@link ConcurrentHashMap}, so reads never lock. When a maximum size is set, keys are split over lock stripes that each track their keys in
+ * insertion order and evict with the CLOCK (second chance) policy: reading a value marks it, and a marked key is moved to the back of its stripe
+ * once instead of being evicted.
+ * <p>
+ * Entries written through {@link #putAllIfNewer(Map)} keep their version, and invalidations there leave a versioned tombstone entry until
+ * {@link #purgeTombstones(long)}. Tombstones read as missing and count towards the maximum size.
+ * <p>
+ * Entries with a time to live read as missing once they expire. Their keys are scheduled in a {@link TimingWheel}, which reads and writes
+ * advance at most once a tick, so expired entries are removed without a timer thread or a scan of the map, whether the store is written to or
+ * only read.
+ * <p>
+ * {@link #keys()} streams straight from the map and is weakly consistent: it never fails because of concurrent changes and does not copy the
+ * keys, but may or may not include changes made while it is consumed.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public class ConcurrentNodeConnection<KeyT, ValueT> implements NodeConnection<KeyT, ValueT> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConcurrentNodeConnection.class);
+	private static final int MAX_STRIPES = 64;
+
+	private final ConcurrentHashMap<KeyT, Entry<ValueT>> store = new ConcurrentHashMap<>();
+	private final List<Stripe<KeyT>> stripes;
+	private final AtomicLong evictions = new AtomicLong();
+	private final ReentrantLock expiryLock = new ReentrantLock();
+	private final TimingWheel<KeyT> expiryWheel;
+	private volatile long nextExpiryMillis;
+
+	private final Node node;
+	private final Clock clock;
+
+	/**
+	 * @param node The {@link Node} this connection stores values for
+	 * @param maximumSize The maximum number of entries to keep, or {@code 0} for no limit
+	 */
+	public ConcurrentNodeConnection(Node node, long maximumSize) {
+		this(node, maximumSize, Clock.systemUTC());
+	}
+
+	/**
+	 * @param node The {@link Node} this connection stores values for
+	 * @param maximumSize The maximum number of entries to keep, or {@code 0} for no limit
+	 * @param clock The source of time for expiring entries
+	 */
+	public ConcurrentNodeConnection(Node node, long maximumSize, Clock clock) {
+		checkArgument(maximumSize >= 0, "Maximum size must not be negative");
+		this.node = node;
+		this.clock = clock;
+		this.expiryWheel = new TimingWheel<>(TimingWheel.DEFAULT_TICK_MILLIS, clock.millis());
+		if (maximumSize == 0) {
+			this.stripes = null;
+		} else {
+			int stripeCount = Integer.highestOneBit((int) Math.min(MAX_STRIPES, maximumSize));
+			this.stripes = new ArrayList<>(stripeCount);
+			// The first maximumSize % stripeCount stripes hold one entry more, so the stripes together hold exactly the maximum size
+			for (int i = 0; i < stripeCount; i++) {
+				stripes.add(new Stripe<>(maximumSize / stripeCount + (i < maximumSize % stripeCount ? 1 : 0)));
+			}
+		}
+	}
+
+	/**
+	 * @param maximumSize The maximum number of entries each connection keeps, or {@code 0} for no limit
+	 * @return A {@link NodeConnectionFactory} that builds {@link ConcurrentNodeConnection}s
+	 */
+	public static NodeConnectionFactory factory(long maximumSize) {
+		return new NodeConnectionFactory() {
+			@Override
+			public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+				return new ConcurrentNodeConnection<>(node, maximumSize);
+			}
+		};
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) {
+		expireEntries();
+		store(key, new Entry<>(value, Versioned.UNVERSIONED, Versioned.NEVER_EXPIRES));
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		long expiresAt = Versioned.expiryAfter(clock.millis(), timeToLive, unit);
+		expireEntries();
+		store(key, new Entry<>(value, Versioned.UNVERSIONED, expiresAt));
+		scheduleExpiry(key, expiresAt);
+	}
+
+	private void store(KeyT key, Entry<ValueT> entry) {
+		if (stripes == null) {
+			store.put(key, entry);
+			return;
+		}
+		Stripe<KeyT> stripe = stripeFor(key);
+		synchronized (stripe) {
+			if (store.put(key, entry) == null) {
+				stripe.keys.add(key);
+				evictIfFull(stripe);
+			}
+		}
+	}
+
+	@Override
+	public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) {
+		long now = expireEntries();
+		Map<KeyT, Versioned<ValueT>> entries = new HashMap<>();
+		keys.forEach(key -> {
+			Entry<ValueT> entry = store.get(key);
+			if (entry != null && !entry.isExpired(now)) {
+				entries.put(key, entry.value != null ? Versioned.of(entry.value, entry.version).expiringAt(entry.expiresAtMillis) : Versioned.tombstone(entry.version));
+			}
+		});
+		return entries;
+	}
+
+	@Override
+	public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) {
+		expireEntries();
+		entries.forEach((key, versioned) -> {
+			Entry<ValueT> entry = new Entry<>(versioned.getValue(), versioned.getVersion(), versioned.getExpiresAtMillis());
+			if (stripes == null) {
+				store.merge(key, entry, (stored, replacement) -> replacement.version >= stored.version ? replacement : stored);
+			} else {
+				Stripe<KeyT> stripe = stripeFor(key);
+				synchronized (stripe) {
+					Entry<ValueT> stored = store.get(key);
+					if (stored == null || entry.version >= stored.version) {
+						store(key, entry);
+					}
+				}
+			}
+			if (entry.expiresAtMillis != Versioned.NEVER_EXPIRES) {
+				scheduleExpiry(key, entry.expiresAtMillis);
+			}
+		});
+	}
+
+	@Override
+	public void invalidateAllIfNotNewer(Map<KeyT, Long> maximumVersions) {
+		maximumVersions.forEach((key, maximumVersion) -> {
+			Entry<ValueT> stored = store.get(key);
+			if (stored != null && stored.value != null && stored.version <= maximumVersion) {
+				remove(key, stored);
+			}
+		});
+	}
+
+	@Override
+	public void purgeTombstones(long beforeVersion) {
+		store.forEach((key, entry) -> {
+			if (entry.value == null && entry.version < beforeVersion) {
+				remove(key, entry);
+			}
+		});
+	}
+
+	/**
+	 * Remove the given key only if it still maps to the given entry
+	 */
+	private void remove(KeyT key, Entry<ValueT> entry) {
+		if (stripes == null) {
+			store.remove(key, entry);
+			return;
+		}
+		Stripe<KeyT> stripe = stripeFor(key);
+		synchronized (stripe) {
+			if (store.remove(key, entry)) {
+				stripe.keys.remove(key);
+			}
+		}
+	}
+
+	private void scheduleExpiry(KeyT key, long expiresAt) {
+		expiryLock.lock();
+		try {
+			expiryWheel.schedule(key, expiresAt);
+		} finally {
+			expiryLock.unlock();
+		}
+	}
+
+	/**
+	 * Advance the expiry wheel, at most once a tick and never waiting for another thread that is already advancing it, and remove the entries
+	 * it finds expired
+	 *
+	 * @return The current time
+	 */
+	private long expireEntries() {
+		long now = clock.millis();
+		if (now < nextExpiryMillis || !expiryLock.tryLock()) {
+			return now;
+		}
+		List<KeyT> expired = new ArrayList<>();
+		try {
+			nextExpiryMillis = now + TimingWheel.DEFAULT_TICK_MILLIS;
+			expiryWheel.advance(now, key -> {
+				Entry<ValueT> entry = store.get(key);
+				return entry != null ? entry.expiresAtMillis : TimingWheel.NO_DEADLINE;
+			}, expired::add);
+		} finally {
+			expiryLock.unlock();
+		}
+		expired.forEach(key -> {
+			Entry<ValueT> entry = store.get(key);
+			if (entry != null && entry.isExpired(now)) {
+				remove(key, entry);
+			}
+		});
+		return now;
+	}
+
+	private Stripe<KeyT> stripeFor(KeyT key) {
+		int hash = key.hashCode();
+		return stripes.get((hash ^ (hash >>> 16)) & (stripes.size() - 1));
+	}
+
+	private void evictIfFull(Stripe<KeyT> stripe) {
+		while (stripe.keys.size() > stripe.capacity) {
+			Iterator<KeyT> oldestFirst = stripe.keys.iterator();
+			KeyT candidate = oldestFirst.next();
+			oldestFirst.remove();
+			Entry<ValueT> entry = store.get(candidate);
+			if (entry != null && entry.referenced) {
+				entry.referenced = false;
+				stripe.keys.add(candidate);
+			} else {
+				store.remove(candidate);
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public ValueT get(KeyT key) {
+		long now = expireEntries();
+		Entry<ValueT> entry = store.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired(now)) {
+			remove(key, entry);
+			return null;
+		}
+		if (entry.value != null && !entry.referenced) {
+			entry.referenced = true;
+		}
+		return entry.value;
+	}
+
+	@Override
+	public void invalidate(KeyT key) {
+		if (stripes == null) {
+			store.remove(key);
+			return;
+		}
+		Stripe<KeyT> stripe = stripeFor(key);
+		synchronized (stripe) {
+			if (store.remove(key) != null) {
+				stripe.keys.remove(key);
+			}
+		}
+	}
+
+	@Override
+	public Stream<KeyT> keys() {
+		long now = expireEntries();
+		return store.entrySet().stream().filter(entry -> entry.getValue().value != null && !entry.getValue().isExpired(now)).map(Map.Entry::getKey);
+	}
+
+	/**
+	 * @return The number of entries currently stored
+	 */
+	public int size() {
+		return store.size();
+	}
+
+	/**
+	 * @return The number of entries evicted to stay within the maximum size
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public void open() {
+		LOG.info("Opening connection for node: {}", node.getNodeId());
+	}
+
+	@Override
+	public Clock getClock() {
+		return clock;
+	}
+
+	@Override
+	public void close() {
+		LOG.info("Closing connection for node: {}", node.getNodeId());
+		if (stripes == null) {
+			store.clear();
+			return;
+		}
+		for (Stripe<KeyT> stripe : stripes) {
+			synchronized (stripe) {
+				stripe.keys.forEach(store::remove);
+				stripe.keys.clear();
+			}
+		}
+	}
+
+	private static final class Entry<ValueT> {
+
+		/**
+		 * The value, or {@code null} for a tombstone
+		 */
+		private final ValueT value;
+		private final long version;
+		private final long expiresAtMillis;
+		private volatile boolean referenced;
+
+		Entry(ValueT value, long version, long expiresAtMillis) {
+			this.value = value;
+			this.version = version;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+
+		boolean isExpired(long nowMillis) {
+			return expiresAtMillis != Versioned.NEVER_EXPIRES && expiresAtMillis <= nowMillis;
+		}
+	}
+
+	private static final class Stripe<KeyT> {
+
+		private final LinkedHashSet<KeyT> keys = new LinkedHashSet<>();
+		private final long capacity;
+
+		Stripe(long capacity) {
+			this.capacity = capacity;
+		}
+	}
+}
@@ -0,0 +1,658 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.rustleund.dcchallenge.codec.Codec;
+import com.rustleund.dcchallenge.codec.Codecs;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * An in-process {@link NodeConnection} that keeps keys and values outside of the Java heap, so large nodes do not add to garbage collection
+ * pauses. Keys and values are encoded with {@link Codec}s and appended as records to direct {@link ByteBuffer} slabs. An open addressing
+ * index (linear probing, with backward shift deletion) maps the hash of each encoded key to the address of its latest record. When the cache
+ * hashes keys with {@link Codecs#funnel(Codec)} and the same key codec, the key bytes encoded for hashing are reused rather than encoded again.
+ * <p>
+ * Slabs are filled one after the other. Once the memory budget is used up, the oldest slab is recycled: every record still indexed in it is
+ * evicted, and space left behind by replaced or invalidated records is reclaimed at the same time.
+ * <p>
+ * Records written with a time to live carry their expiry, and read as missing once it has passed. The addresses of those records are
+ * scheduled in a {@link TimingWheel}, and cancelled once the index no longer points at them. Writes advance the wheel, and so do reads at
+ * most once a tick when the lock is free, so expired records are dropped from the index, and their space left to be reclaimed, without
+ * scanning the index.
+ * <p>
+ * Every record carries the version it was written at. {@link #putAllIfNewer(Map)} only appends a record if it is at least as new as the one
+ * indexed for its key, and invalidations there append a tombstone record, which reads as missing until {@link #purgeTombstones(long)} drops it
+ * from the index.
+ * <p>
+ * Reads take a shared lock and writes an exclusive one. {@link #keys()} copies the addresses of the indexed records, rather than the keys, and
+ * decodes the keys a chunk at a time from the records still indexed, so it never copies the whole key set. As an address stays the same when
+ * the index is resized or a removal shifts it to another slot, every key left alone while the stream is consumed is included exactly once;
+ * keys written or removed meanwhile may or may not be.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public class OffHeapNodeConnection<KeyT, ValueT> implements NodeConnection<KeyT, ValueT> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(OffHeapNodeConnection.class);
+
+	/**
+	 * Each record starts with the key hash, the encoded key length, the encoded value length, the expiry and the version
+	 */
+	private static final int RECORD_HEADER_BYTES = 28;
+	private static final int VALUE_LENGTH_OFFSET = 8;
+	private static final int EXPIRY_OFFSET = 12;
+	private static final int VERSION_OFFSET = 20;
+	/**
+	 * The value length of a tombstone record, which has no value bytes
+	 */
+	private static final int TOMBSTONE = -1;
+	private static final HashFunction KEY_HASH_FUNCTION = Hashing.murmur3_32();
+	private static final long EMPTY_SLOT = 0;
+	private static final int INITIAL_INDEX_CAPACITY = 1024;
+	private static final int KEYS_CHUNK_RECORDS = 1024;
+
+	private final Node node;
+	private final Codec<KeyT> keyCodec;
+	private final Codec<ValueT> valueCodec;
+	private final int slabSize;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final ByteBuffer[] slabs;
+	private final int[] slabWriteOffsets;
+	private int currentSlab = -1;
+
+	private long[] indexAddresses = new long[INITIAL_INDEX_CAPACITY];
+	private int[] indexHashes = new int[INITIAL_INDEX_CAPACITY];
+	private int indexSize;
+	private long evictions;
+	private final Clock clock;
+	private final TimingWheel<Long> expiryWheel;
+	private volatile long nextExpiryMillis;
+
+	/**
+	 * @param node The {@link Node} this connection stores values for
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param maximumMemoryBytes The maximum number of bytes to allocate outside of the heap for records
+	 * @param slabSizeBytes The size of each slab, and so the largest record that can be stored
+	 */
+	public OffHeapNodeConnection(Node node, Codec<KeyT> keyCodec, Codec<ValueT> valueCodec, long maximumMemoryBytes, int slabSizeBytes) {
+		this(node, keyCodec, valueCodec, maximumMemoryBytes, slabSizeBytes, Clock.systemUTC());
+	}
+
+	/**
+	 * @param node The {@link Node} this connection stores values for
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param maximumMemoryBytes The maximum number of bytes to allocate outside of the heap for records
+	 * @param slabSizeBytes The size of each slab, and so the largest record that can be stored
+	 * @param clock The source of time for expiring records
+	 */
+	public OffHeapNodeConnection(Node node, Codec<KeyT> keyCodec, Codec<ValueT> valueCodec, long maximumMemoryBytes, int slabSizeBytes,
+			Clock clock) {
+		checkArgument(slabSizeBytes > RECORD_HEADER_BYTES, "Slab size must be larger than %s bytes", RECORD_HEADER_BYTES);
+		checkArgument(maximumMemoryBytes >= slabSizeBytes, "Maximum memory must fit at least one slab");
+		this.node = node;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.slabSize = slabSizeBytes;
+		int slabCount = (int) Math.min(Integer.MAX_VALUE, maximumMemoryBytes / slabSizeBytes);
+		this.slabs = new ByteBuffer[slabCount];
+		this.slabWriteOffsets = new int[slabCount];
+		this.clock = clock;
+		this.expiryWheel = new TimingWheel<>(TimingWheel.DEFAULT_TICK_MILLIS, clock.millis());
+	}
+
+	/**
+	 * Build a factory of {@link OffHeapNodeConnection}s. As with any {@link NodeConnectionFactory}, the codecs must match the key and value
+	 * types of the cache the connections are used by.
+	 *
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param maximumMemoryBytes The maximum number of bytes each connection allocates outside of the heap
+	 * @param slabSizeBytes The size of each slab, and so the largest record that can be stored
+	 * @return A {@link NodeConnectionFactory} that builds {@link OffHeapNodeConnection}s
+	 */
+	public static NodeConnectionFactory factory(Codec<?> keyCodec, Codec<?> valueCodec, long maximumMemoryBytes, int slabSizeBytes) {
+		return new NodeConnectionFactory() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+				return new OffHeapNodeConnection<>(node, (Codec<KeyT>) keyCodec, (Codec<ValueT>) valueCodec, maximumMemoryBytes, slabSizeBytes);
+			}
+		};
+	}
+
+	@Override
+	public void open() {
+		LOG.info("Opening connection for node: {}", node.getNodeId());
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) {
+		write(key, Versioned.of(value, Versioned.UNVERSIONED), false);
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		write(key, Versioned.of(value, Versioned.UNVERSIONED).expiringAt(Versioned.expiryAfter(clock.millis(), timeToLive, unit)), false);
+	}
+
+	/**
+	 * Entries keep their expiry, so moving them to another node does not extend their life
+	 */
+	@Override
+	public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) {
+		Map<KeyT, Versioned<ValueT>> entries = new HashMap<>();
+		long now = expireRecordsFromRead();
+		for (KeyT key : keys) {
+			ByteBuffer keyBytes = encodeKey(key);
+			int hash = hashKey(keyBytes);
+			lock.readLock().lock();
+			try {
+				int slot = findSlot(hash, keyBytes);
+				if (slot >= 0 && !isExpired(indexAddresses[slot], now)) {
+					long address = indexAddresses[slot];
+					entries.put(key, isTombstone(address) ? Versioned.tombstone(versionOf(address))
+							: Versioned.of(readValue(address), versionOf(address)).expiringAt(expiryOf(address)));
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		return entries;
+	}
+
+	@Override
+	public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) {
+		long now = clock.millis();
+		entries.forEach((key, entry) -> {
+			if (!entry.isExpired(now)) {
+				write(key, entry, true);
+			}
+		});
+	}
+
+	@Override
+	public void invalidateAllIfNotNewer(Map<KeyT, Long> maximumVersions) {
+		maximumVersions.forEach((key, maximumVersion) -> {
+			ByteBuffer keyBytes = encodeKey(key);
+			int hash = hashKey(keyBytes);
+			lock.writeLock().lock();
+			try {
+				int slot = findSlot(hash, keyBytes);
+				if (slot >= 0 && !isTombstone(indexAddresses[slot]) && versionOf(indexAddresses[slot]) <= maximumVersion) {
+					removeSlot(slot);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		});
+	}
+
+	@Override
+	public void purgeTombstones(long beforeVersion) {
+		lock.writeLock().lock();
+		try {
+			// Collected first, as removing a slot shifts later slots back
+			long[] tombstones = Arrays.stream(indexAddresses)
+					.filter(address -> address != EMPTY_SLOT && isTombstone(address) && versionOf(address) < beforeVersion).toArray();
+			for (long address : tombstones) {
+				int slot = slotOfRecord(address);
+				if (slot >= 0) {
+					removeSlot(slot);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Append a record for the entry and index it
+	 *
+	 * @param ifNewer Whether to keep the indexed record instead if it is newer than the entry
+	 */
+	private void write(KeyT key, Versioned<ValueT> entry, boolean ifNewer) {
+		ByteBuffer keyBytes = encodeKey(key);
+		int keyLength = keyBytes.remaining();
+		int valueLength = entry.isTombstone() ? TOMBSTONE : valueCodec.encodedSize(entry.getValue());
+		int recordSize = RECORD_HEADER_BYTES + keyLength + Math.max(valueLength, 0);
+		checkArgument(recordSize <= slabSize, "Entry of %s bytes does not fit in a slab of %s bytes", recordSize, slabSize);
+		int hash = hashKey(keyBytes);
+		long expiresAt = entry.getExpiresAtMillis();
+		lock.writeLock().lock();
+		try {
+			expireRecords(clock.millis());
+			if (ifNewer) {
+				int slot = findSlot(hash, keyBytes);
+				if (slot >= 0 && versionOf(indexAddresses[slot]) > entry.getVersion()) {
+					return;
+				}
+			}
+			long address = allocateRecord(recordSize);
+			ByteBuffer slab = slabs[slabOf(address)];
+			int offset = offsetOf(address);
+			slab.putInt(offset, hash);
+			slab.putInt(offset + 4, keyLength);
+			slab.putInt(offset + VALUE_LENGTH_OFFSET, valueLength);
+			slab.putLong(offset + EXPIRY_OFFSET, expiresAt);
+			slab.putLong(offset + VERSION_OFFSET, entry.getVersion());
+			ByteBuffer target = slab.duplicate();
+			((Buffer) target).position(offset + RECORD_HEADER_BYTES);
+			target.put(keyBytes.duplicate());
+			if (!entry.isTombstone()) {
+				valueCodec.encode(entry.getValue(), target);
+			}
+			if (target.position() != offset + recordSize) {
+				throw new IllegalStateException("Value codec wrote " + (target.position() - offset - RECORD_HEADER_BYTES - keyLength) + " bytes, expected " + valueLength);
+			}
+			indexPut(hash, keyBytes, address);
+			if (expiresAt != Versioned.NEVER_EXPIRES) {
+				expiryWheel.schedule(address, expiresAt);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ValueT get(KeyT key) {
+		ByteBuffer keyBytes = encodeKey(key);
+		int hash = hashKey(keyBytes);
+		long now = expireRecordsFromRead();
+		lock.readLock().lock();
+		try {
+			int slot = findSlot(hash, keyBytes);
+			if (slot < 0 || isExpired(indexAddresses[slot], now) || isTombstone(indexAddresses[slot])) {
+				return null;
+			}
+			return readValue(indexAddresses[slot]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void invalidate(KeyT key) {
+		ByteBuffer keyBytes = encodeKey(key);
+		int hash = hashKey(keyBytes);
+		lock.writeLock().lock();
+		try {
+			int slot = findSlot(hash, keyBytes);
+			if (slot >= 0) {
+				removeSlot(slot);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Stream<KeyT> keys() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new IndexKeyIterator(), Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * @return The number of entries currently stored, including tombstones
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return indexSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of entries evicted because the memory budget was used up
+	 */
+	public long getEvictionCount() {
+		lock.readLock().lock();
+		try {
+			return evictions;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Clock getClock() {
+		return clock;
+	}
+
+	@Override
+	public void close() {
+		LOG.info("Closing connection for node: {}", node.getNodeId());
+		lock.writeLock().lock();
+		try {
+			Arrays.fill(slabs, null);
+			Arrays.fill(slabWriteOffsets, 0);
+			currentSlab = -1;
+			indexAddresses = new long[INITIAL_INDEX_CAPACITY];
+			indexHashes = new int[INITIAL_INDEX_CAPACITY];
+			indexSize = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private ValueT readValue(long address) {
+		ByteBuffer slab = slabs[slabOf(address)];
+		int offset = offsetOf(address);
+		int valueStart = offset + RECORD_HEADER_BYTES + slab.getInt(offset + 4);
+		return valueCodec.decode(slice(slab, valueStart, slab.getInt(offset + VALUE_LENGTH_OFFSET)));
+	}
+
+	private long expiryOf(long address) {
+		return slabs[slabOf(address)].getLong(offsetOf(address) + EXPIRY_OFFSET);
+	}
+
+	private long versionOf(long address) {
+		return slabs[slabOf(address)].getLong(offsetOf(address) + VERSION_OFFSET);
+	}
+
+	private boolean isTombstone(long address) {
+		return slabs[slabOf(address)].getInt(offsetOf(address) + VALUE_LENGTH_OFFSET) == TOMBSTONE;
+	}
+
+	private boolean isExpired(long address, long now) {
+		long expiresAt = expiryOf(address);
+		return expiresAt != Versioned.NEVER_EXPIRES && expiresAt <= now;
+	}
+
+	/**
+	 * @return The index slot pointing at the record at the given address, or -1 if the record was replaced, removed or its slab recycled
+	 */
+	private int slotOfRecord(long address) {
+		ByteBuffer slab = slabs[slabOf(address)];
+		return slab == null ? -1 : findSlotByAddress(slab.getInt(offsetOf(address)), address);
+	}
+
+	/**
+	 * Drop the records the expiry wheel finds expired from the index, under the write lock
+	 */
+	private void expireRecords(long now) {
+		nextExpiryMillis = now + TimingWheel.DEFAULT_TICK_MILLIS;
+		expiryWheel.advance(now, address -> slotOfRecord(address) >= 0 ? expiryOf(address) : TimingWheel.NO_DEADLINE, address -> {
+			int slot = slotOfRecord(address);
+			if (slot >= 0) {
+				removeSlot(slot);
+			}
+		});
+	}
+
+	/**
+	 * Advance the expiry wheel for a read, at most once a tick and only if no other thread holds the lock, so reads never wait for it
+	 *
+	 * @return The current time
+	 */
+	private long expireRecordsFromRead() {
+		long now = clock.millis();
+		if (now >= nextExpiryMillis && lock.writeLock().tryLock()) {
+			try {
+				expireRecords(now);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		return now;
+	}
+
+	/**
+	 * Stop tracking the expiry of a record the index no longer points at
+	 */
+	private void unscheduleExpiry(long address) {
+		if (expiryOf(address) != Versioned.NEVER_EXPIRES) {
+			expiryWheel.cancel(address);
+		}
+	}
+
+	private ByteBuffer encodeKey(KeyT key) {
+		return Codecs.encodeKey(keyCodec, key);
+	}
+
+	private static int hashKey(ByteBuffer keyBytes) {
+		return KEY_HASH_FUNCTION.hashBytes(keyBytes.array(), keyBytes.arrayOffset() + keyBytes.position(), keyBytes.remaining()).asInt();
+	}
+
+	private static ByteBuffer slice(ByteBuffer slab, int start, int length) {
+		ByteBuffer view = slab.duplicate();
+		((Buffer) view).position(start);
+		((Buffer) view).limit(start + length);
+		return view;
+	}
+
+	private static long address(int slab, int offset) {
+		return ((long) (slab + 1) << 32) | offset;
+	}
+
+	private static int slabOf(long address) {
+		return (int) (address >>> 32) - 1;
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+
+	/**
+	 * Reserve space for a record in the current slab, moving on to the next slab when it is full. The next slab is recycled if it was used before.
+	 */
+	private long allocateRecord(int recordSize) {
+		if (currentSlab < 0 || slabWriteOffsets[currentSlab] + recordSize > slabSize) {
+			int nextSlab = (currentSlab + 1) % slabs.length;
+			if (slabs[nextSlab] == null) {
+				slabs[nextSlab] = ByteBuffer.allocateDirect(slabSize);
+			} else {
+				evictSlab(nextSlab);
+			}
+			slabWriteOffsets[nextSlab] = 0;
+			currentSlab = nextSlab;
+		}
+		int offset = slabWriteOffsets[currentSlab];
+		slabWriteOffsets[currentSlab] += recordSize;
+		return address(currentSlab, offset);
+	}
+
+	private void evictSlab(int slabIndex) {
+		ByteBuffer slab = slabs[slabIndex];
+		int offset = 0;
+		while (offset < slabWriteOffsets[slabIndex]) {
+			int slot = findSlotByAddress(slab.getInt(offset), address(slabIndex, offset));
+			if (slot >= 0) {
+				removeSlot(slot);
+				evictions++;
+			}
+			offset += RECORD_HEADER_BYTES + slab.getInt(offset + 4) + Math.max(slab.getInt(offset + VALUE_LENGTH_OFFSET), 0);
+		}
+	}
+
+	private int findSlot(int hash, ByteBuffer keyBytes) {
+		int mask = indexAddresses.length - 1;
+		for (int slot = hash & mask; indexAddresses[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+			if (indexHashes[slot] == hash && keyEquals(indexAddresses[slot], keyBytes)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private int findSlotByAddress(int hash, long address) {
+		int mask = indexAddresses.length - 1;
+		for (int slot = hash & mask; indexAddresses[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+			if (indexAddresses[slot] == address) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private boolean keyEquals(long address, ByteBuffer keyBytes) {
+		ByteBuffer slab = slabs[slabOf(address)];
+		int offset = offsetOf(address);
+		int keyLength = slab.getInt(offset + 4);
+		if (keyLength != keyBytes.remaining()) {
+			return false;
+		}
+		int keyStart = offset + RECORD_HEADER_BYTES;
+		for (int i = 0; i < keyLength; i++) {
+			if (slab.get(keyStart + i) != keyBytes.get(keyBytes.position() + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void indexPut(int hash, ByteBuffer keyBytes, long address) {
+		int existingSlot = findSlot(hash, keyBytes);
+		if (existingSlot >= 0) {
+			unscheduleExpiry(indexAddresses[existingSlot]);
+			indexAddresses[existingSlot] = address;
+			return;
+		}
+		if ((indexSize + 1) * 4L > indexAddresses.length * 3L) {
+			resizeIndex(indexAddresses.length * 2);
+		}
+		insertSlot(hash, address);
+		indexSize++;
+	}
+
+	private void insertSlot(int hash, long address) {
+		int mask = indexAddresses.length - 1;
+		int slot = hash & mask;
+		while (indexAddresses[slot] != EMPTY_SLOT) {
+			slot = (slot + 1) & mask;
+		}
+		indexAddresses[slot] = address;
+		indexHashes[slot] = hash;
+	}
+
+	private void resizeIndex(int newCapacity) {
+		long[] oldAddresses = indexAddresses;
+		int[] oldHashes = indexHashes;
+		indexAddresses = new long[newCapacity];
+		indexHashes = new int[newCapacity];
+		for (int i = 0; i < oldAddresses.length; i++) {
+			if (oldAddresses[i] != EMPTY_SLOT) {
+				insertSlot(oldHashes[i], oldAddresses[i]);
+			}
+		}
+	}
+
+	/**
+	 * Empty a slot, shifting back any later entries of the same probe sequence so lookups never stop early at the hole
+	 */
+	private void removeSlot(int slot) {
+		unscheduleExpiry(indexAddresses[slot]);
+		int mask = indexAddresses.length - 1;
+		int hole = slot;
+		for (int next = (hole + 1) & mask; indexAddresses[next] != EMPTY_SLOT; next = (next + 1) & mask) {
+			int home = indexHashes[next] & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				indexAddresses[hole] = indexAddresses[next];
+				indexHashes[hole] = indexHashes[next];
+				hole = next;
+			}
+		}
+		indexAddresses[hole] = EMPTY_SLOT;
+		indexSize--;
+	}
+
+	private KeyT decodeKey(long address) {
+		ByteBuffer slab = slabs[slabOf(address)];
+		int offset = offsetOf(address);
+		return keyCodec.decode(slice(slab, offset + RECORD_HEADER_BYTES, slab.getInt(offset + 4)));
+	}
+
+	/**
+	 * Walks a copy of the record addresses in the index, decoding the keys of each chunk of records that are still indexed under the read lock
+	 */
+	private class IndexKeyIterator implements Iterator<KeyT> {
+
+		private final Deque<KeyT> chunk = new ArrayDeque<>();
+		private final long[] addresses;
+		private int nextAddress;
+
+		IndexKeyIterator() {
+			lock.readLock().lock();
+			try {
+				addresses = new long[indexSize];
+				int count = 0;
+				for (long address : indexAddresses) {
+					if (address != EMPTY_SLOT) {
+						addresses[count++] = address;
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (chunk.isEmpty() && readNextChunk()) {
+				//
+			}
+			return !chunk.isEmpty();
+		}
+
+		@Override
+		public KeyT next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return chunk.poll();
+		}
+
+		private boolean readNextChunk() {
+			if (nextAddress >= addresses.length) {
+				return false;
+			}
+			lock.readLock().lock();
+			try {
+				int end = Math.min(nextAddress + KEYS_CHUNK_RECORDS, addresses.length);
+				long now = clock.millis();
+				for (int i = nextAddress; i < end; i++) {
+					long address = addresses[i];
+					// A record that was replaced, removed or recycled since the copy is no longer indexed
+					if (slotOfRecord(address) >= 0 && !isExpired(address, now) && !isTombstone(address)) {
+						chunk.add(decodeKey(address));
+					}
+				}
+				nextAddress = end;
+				return true;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,894 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rustleund.dcchallenge.codec.Codec;
+import com.rustleund.dcchallenge.codec.Codecs;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * An in-process {@link NodeConnection} that keeps its entries in files, so a node that restarts comes back warm instead of empty. Every write
+ * appends a record to the current memory-mapped segment file of a directory, and an index on the heap maps each key to its latest record;
+ * invalidations append a tombstone record, so they survive a restart too. Values are read straight from the mapped segments.
+ * <p>
+ * {@link #close()} writes an index checkpoint holding the address of every indexed record, and {@link #open()} rebuilds the index from it,
+ * replaying only the records appended after it, so startup does not scan every segment. Without a usable checkpoint, after a crash for
+ * example, every segment is scanned. Records carry a CRC32, and a scan stops at the first record that does not match, such as one torn by a
+ * crash.
+ * <p>
+ * Replaced and invalidated records leave dead space behind. Once less than half of a full segment is live, a background task copies its live
+ * records to the current segment, writes a new checkpoint, unmaps the segment and deletes it. Tombstones are copied too, unless they are in
+ * the oldest segment, where no older record of their key can be left.
+ * <p>
+ * Entries with a time to live read as missing once they expire, and compaction drops them. Every entry expires at most the maximum time to
+ * live of the connection after it was written, whatever it was put with.
+ * <p>
+ * Every record carries the version it was written at, so {@link #putAllIfNewer(Map)} keeps the newer of a stored entry and the one written,
+ * across restarts too. Its invalidations are tombstone records like any other; {@link #purgeTombstones(long)} only stops them from turning
+ * away older values, as compaction removes them from disk once no older record of their key is left.
+ * <p>
+ * A node that restarts serves what it held when it went away. Values written through other nodes meanwhile carry newer versions, so they
+ * replace its own when they are moved back to it as it rejoins; invalidations made meanwhile leave nothing to move, and the maximum time to
+ * live bounds how long such a value comes back for.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public class PersistentNodeConnection<KeyT, ValueT> implements NodeConnection<KeyT, ValueT> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PersistentNodeConnection.class);
+
+	/**
+	 * Each record starts with its length, a CRC32 of the rest of the record, the encoded key length, the encoded value length (or
+	 * {@link #TOMBSTONE}), the expiry and the version
+	 */
+	private static final int RECORD_HEADER_BYTES = 32;
+	private static final int CRC_OFFSET = 4;
+	private static final int KEY_LENGTH_OFFSET = 8;
+	private static final int VALUE_LENGTH_OFFSET = 12;
+	private static final int EXPIRY_OFFSET = 16;
+	private static final int VERSION_OFFSET = 24;
+	private static final int TOMBSTONE = -1;
+	/**
+	 * Fed to the CRC of every record before its bytes, so records of an earlier layout fail the check and read as the end of their segment
+	 */
+	private static final int RECORD_FORMAT = 2;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_FILE = "index.checkpoint";
+	private static final long CHECKPOINT_MAGIC = 0x4443_4348_4b50_0002L;
+
+	/**
+	 * A full segment is compacted once less than this share of it is live
+	 */
+	private static final double COMPACTION_THRESHOLD = 0.5;
+	private static final long COMPACTION_INTERVAL_MILLIS = 1000;
+	/**
+	 * The most records compaction copies while holding the write lock
+	 */
+	private static final int COMPACTION_BATCH_RECORDS = 1024;
+	private static final ScheduledExecutorService COMPACTOR = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("persistent-node-compactor").build());
+
+	/**
+	 * {@code sun.misc.Unsafe} and its {@code invokeCleaner(ByteBuffer)}, from Java 9 on, for {@link #unmap(MappedByteBuffer)}; {@code null}
+	 * where they are not available
+	 */
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field instance = unsafeClass.getDeclaredField("theUnsafe");
+			instance.setAccessible(true);
+			unsafe = instance.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOG.debug("Segments cannot be unmapped directly, they are unmapped once garbage collected", e);
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private final Node node;
+	private final Codec<KeyT> keyCodec;
+	private final Codec<ValueT> valueCodec;
+	private final Path directory;
+	private final int segmentSize;
+	private final long maximumTimeToLive;
+	private final TimeUnit maximumTimeToLiveUnit;
+	private final Clock clock;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/**
+	 * Held while compacting, so {@link #close()} waits for a compaction that is running
+	 */
+	private final Object compactionLock = new Object();
+
+	/**
+	 * Open segments by id, oldest first
+	 */
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private Segment activeSegment;
+	/**
+	 * The address of the latest record of every key with a value
+	 */
+	private final Map<KeyT, Long> index = new HashMap<>();
+	/**
+	 * The address of the latest record of every invalidated key whose older records may still be in a segment
+	 */
+	private final Map<KeyT, Long> tombstones = new HashMap<>();
+	/**
+	 * Tombstones older than this version no longer turn away older values, see {@link #purgeTombstones(long)}
+	 */
+	private long tombstonesPurgedBefore = Versioned.UNVERSIONED;
+	private boolean opened;
+	private ScheduledFuture<?> compaction;
+
+	/**
+	 * @param node The {@link Node} this connection stores values for
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param directory The directory to keep the segment files and checkpoint of this node in, created if missing
+	 * @param segmentSizeBytes The size of each segment file, and so the largest record that can be stored
+	 * @param maximumTimeToLive The longest an entry is kept after it was written, which bounds how long the node serves a value invalidated
+	 *            while it was away, must be positive
+	 * @param unit The unit of the maximum time to live
+	 */
+	public PersistentNodeConnection(Node node, Codec<KeyT> keyCodec, Codec<ValueT> valueCodec, Path directory, int segmentSizeBytes,
+			long maximumTimeToLive, TimeUnit unit) {
+		this(node, keyCodec, valueCodec, directory, segmentSizeBytes, maximumTimeToLive, unit, Clock.systemUTC());
+	}
+
+	/**
+	 * @param node The {@link Node} this connection stores values for
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param directory The directory to keep the segment files and checkpoint of this node in, created if missing
+	 * @param segmentSizeBytes The size of each segment file, and so the largest record that can be stored
+	 * @param maximumTimeToLive The longest an entry is kept after it was written, which bounds how long the node serves a value invalidated
+	 *            while it was away, must be positive
+	 * @param unit The unit of the maximum time to live
+	 * @param clock The source of time for expiring entries
+	 */
+	public PersistentNodeConnection(Node node, Codec<KeyT> keyCodec, Codec<ValueT> valueCodec, Path directory, int segmentSizeBytes,
+			long maximumTimeToLive, TimeUnit unit, Clock clock) {
+		checkArgument(segmentSizeBytes > RECORD_HEADER_BYTES, "Segment size must be larger than %s bytes", RECORD_HEADER_BYTES);
+		checkArgument(maximumTimeToLive > 0, "Maximum time to live must be positive");
+		this.node = node;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.directory = directory;
+		this.segmentSize = segmentSizeBytes;
+		this.maximumTimeToLive = maximumTimeToLive;
+		this.maximumTimeToLiveUnit = unit;
+		this.clock = clock;
+	}
+
+	/**
+	 * Build a factory of {@link PersistentNodeConnection}s that keep each node's files in a subdirectory named after its id, so a node that is
+	 * added again finds its values. As with any {@link NodeConnectionFactory}, the codecs must match the key and value types of the cache the
+	 * connections are used by.
+	 *
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param baseDirectory The directory to keep the subdirectories of the nodes in
+	 * @param segmentSizeBytes The size of each segment file, and so the largest record that can be stored
+	 * @param maximumTimeToLive The longest an entry is kept after it was written, must be positive
+	 * @param unit The unit of the maximum time to live
+	 * @return A {@link NodeConnectionFactory} that builds {@link PersistentNodeConnection}s
+	 */
+	public static NodeConnectionFactory factory(Codec<?> keyCodec, Codec<?> valueCodec, Path baseDirectory, int segmentSizeBytes,
+			long maximumTimeToLive, TimeUnit unit) {
+		checkArgument(maximumTimeToLive > 0, "Maximum time to live must be positive");
+		return new NodeConnectionFactory() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+				return new PersistentNodeConnection<>(node, (Codec<KeyT>) keyCodec, (Codec<ValueT>) valueCodec,
+						baseDirectory.resolve(node.getNodeId().toString()), segmentSizeBytes, maximumTimeToLive, unit);
+			}
+		};
+	}
+
+	@Override
+	public void open() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (opened) {
+				return;
+			}
+			long start = System.nanoTime();
+			Files.createDirectories(directory);
+			mapSegments();
+			if (!restoreCheckpoint()) {
+				resetIndex();
+				for (Segment segment : segments.values()) {
+					replay(segment, 0);
+				}
+			}
+			if (segments.isEmpty()) {
+				startSegment();
+			} else {
+				activeSegment = segments.lastEntry().getValue();
+			}
+			opened = true;
+			compaction = COMPACTOR.scheduleWithFixedDelay(this::compactQuietly, COMPACTION_INTERVAL_MILLIS, COMPACTION_INTERVAL_MILLIS,
+					TimeUnit.MILLISECONDS);
+			LOG.info("Opened connection for node: {} with {} entries in {} segments in {} ms", node.getNodeId(), index.size(), segments.size(),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		} catch (IOException | RuntimeException e) {
+			resetIndex();
+			unmapSegments();
+			throw e;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value) throws IOException {
+		append(key, Versioned.of(value, Versioned.UNVERSIONED), false);
+	}
+
+	@Override
+	public void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) throws IOException {
+		append(key, Versioned.of(value, Versioned.UNVERSIONED).expiringAt(Versioned.expiryAfter(clock.millis(), timeToLive, unit)), false);
+	}
+
+	@Override
+	public ValueT get(KeyT key) {
+		lock.readLock().lock();
+		try {
+			Long address = index.get(key);
+			if (address == null || isExpired(address, clock.millis())) {
+				return null;
+			}
+			return readValue(address);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void invalidate(KeyT key) throws IOException {
+		lock.readLock().lock();
+		try {
+			if (!index.containsKey(key)) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		append(key, Versioned.tombstone(Versioned.UNVERSIONED), false);
+	}
+
+	/**
+	 * Entries keep their expiry, so moving them to another node does not extend their life
+	 */
+	@Override
+	public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) {
+		Map<KeyT, Versioned<ValueT>> entries = new HashMap<>();
+		long now = clock.millis();
+		lock.readLock().lock();
+		try {
+			for (KeyT key : keys) {
+				Long address = index.get(key);
+				if (address != null && !isExpired(address, now)) {
+					entries.put(key, Versioned.of(readValue(address), versionOf(address)).expiringAt(expiryOf(address)));
+				} else if (address == null && (address = guardingTombstone(key)) != null) {
+					entries.put(key, Versioned.tombstone(versionOf(address)));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return entries;
+	}
+
+	@Override
+	public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) throws IOException {
+		long now = clock.millis();
+		for (Map.Entry<KeyT, Versioned<ValueT>> entry : entries.entrySet()) {
+			if (!entry.getValue().isExpired(now)) {
+				append(entry.getKey(), entry.getValue(), true);
+			}
+		}
+	}
+
+	/**
+	 * Each value removed appends a tombstone at the version of the value, so the removal survives a restart
+	 */
+	@Override
+	public void invalidateAllIfNotNewer(Map<KeyT, Long> maximumVersions) throws IOException {
+		for (Map.Entry<KeyT, Long> entry : maximumVersions.entrySet()) {
+			long version;
+			lock.readLock().lock();
+			try {
+				Long address = index.get(entry.getKey());
+				if (address == null || versionOf(address) > entry.getValue()) {
+					continue;
+				}
+				version = versionOf(address);
+			} finally {
+				lock.readLock().unlock();
+			}
+			// Only appended if no newer write arrived meanwhile
+			append(entry.getKey(), Versioned.tombstone(version), true);
+		}
+	}
+
+	@Override
+	public void purgeTombstones(long beforeVersion) {
+		lock.writeLock().lock();
+		try {
+			tombstonesPurgedBefore = Math.max(tombstonesPurgedBefore, beforeVersion);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The keys are copied under the read lock, so the stream is a snapshot
+	 */
+	@Override
+	public Stream<KeyT> keys() {
+		long now = clock.millis();
+		lock.readLock().lock();
+		try {
+			return index.entrySet().stream().filter(entry -> !isExpired(entry.getValue(), now)).map(Map.Entry::getKey).collect(Collectors.toList())
+					.stream();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of keys with a value, including expired ones not yet compacted away
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of segment files in use
+	 */
+	public int getSegmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Compact every full segment that is less than half live, then write a checkpoint. Runs in the background every second; calling it
+	 * directly is only needed to reclaim space straight away.
+	 *
+	 * @return The number of segments compacted
+	 * @throws IOException If a segment could not be written or deleted
+	 */
+	public int compact() throws IOException {
+		synchronized (compactionLock) {
+			List<Segment> candidates;
+			lock.readLock().lock();
+			try {
+				if (!opened) {
+					return 0;
+				}
+				candidates = segments.values().stream().filter(segment -> segment != activeSegment && segment.liveBytes < segment.writeOffset * COMPACTION_THRESHOLD)
+						.collect(Collectors.toList());
+			} finally {
+				lock.readLock().unlock();
+			}
+			List<Segment> compacted = new ArrayList<>();
+			for (Segment segment : candidates) {
+				if (!compact(segment)) {
+					break;
+				}
+				compacted.add(segment);
+			}
+			if (compacted.isEmpty()) {
+				return 0;
+			}
+			lock.readLock().lock();
+			try {
+				if (opened) {
+					writeCheckpoint();
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			for (Segment segment : compacted) {
+				delete(segment);
+			}
+			LOG.debug("Compacted {} segments of node {}", compacted.size(), node.getNodeId());
+			return compacted.size();
+		}
+	}
+
+	private void compactQuietly() {
+		try {
+			compact();
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Could not compact the segments of node {}", node.getNodeId(), e);
+		}
+	}
+
+	/**
+	 * Copy the live records of a full segment to the active one a batch at a time, and stop using it once all of them are copied
+	 *
+	 * @return Whether the segment is no longer used and can be deleted; {@code false} if the connection was closed meanwhile
+	 */
+	private boolean compact(Segment segment) throws IOException {
+		int offset = 0;
+		while (true) {
+			lock.writeLock().lock();
+			try {
+				if (!opened) {
+					return false;
+				}
+				long now = clock.millis();
+				boolean oldest = segments.firstKey() == segment.id;
+				for (int i = 0; i < COMPACTION_BATCH_RECORDS && offset < segment.writeOffset; i++) {
+					long address = address(segment.id, offset);
+					int recordSize = segment.buffer.getInt(offset);
+					KeyT key = decodeKey(address);
+					if (Long.valueOf(address).equals(index.get(key))) {
+						if (!isExpired(address, now)) {
+							track(key, copyRecord(segment, offset, recordSize), recordSize, false);
+						} else if (oldest) {
+							index.remove(key);
+							segment.liveBytes -= recordSize;
+						} else {
+							append(key, Versioned.tombstone(versionOf(address)), false);
+						}
+					} else if (Long.valueOf(address).equals(tombstones.get(key))) {
+						if (oldest) {
+							tombstones.remove(key);
+							segment.liveBytes -= recordSize;
+						} else {
+							track(key, copyRecord(segment, offset, recordSize), recordSize, true);
+						}
+					}
+					offset += recordSize;
+				}
+				if (offset >= segment.writeOffset) {
+					segments.remove(segment.id);
+					return true;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Write a checkpoint and flush the segments; the files are kept for the next {@link #open()}
+	 */
+	@Override
+	public Clock getClock() {
+		return clock;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (compaction != null) {
+			compaction.cancel(false);
+		}
+		synchronized (compactionLock) {
+			lock.writeLock().lock();
+			try {
+				if (!opened) {
+					return;
+				}
+				LOG.info("Closing connection for node: {}", node.getNodeId());
+				opened = false;
+				writeCheckpoint();
+			} finally {
+				resetIndex();
+				unmapSegments();
+				activeSegment = null;
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param ifNewer Whether to keep the stored entry instead if it is newer than the given one
+	 */
+	private void append(KeyT key, Versioned<ValueT> entry, boolean ifNewer) throws IOException {
+		ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, key);
+		ValueT value = entry.getValue();
+		int valueLength = value != null ? valueCodec.encodedSize(value) : 0;
+		int recordSize = RECORD_HEADER_BYTES + keyBytes.remaining() + valueLength;
+		checkArgument(recordSize <= segmentSize, "Entry of %s bytes does not fit in a segment of %s bytes", recordSize, segmentSize);
+		lock.writeLock().lock();
+		try {
+			if (!opened) {
+				throw new IOException("Connection for node " + node.getNodeId() + " is not open");
+			}
+			if (ifNewer) {
+				Long stored = index.containsKey(key) ? index.get(key) : guardingTombstone(key);
+				if (stored != null && versionOf(stored) > entry.getVersion()) {
+					return;
+				}
+			}
+			Segment segment = segmentWithRoomFor(recordSize);
+			int offset = segment.writeOffset;
+			int keyLength = keyBytes.remaining();
+			ByteBuffer target = segment.buffer.duplicate();
+			((Buffer) target).position(offset + KEY_LENGTH_OFFSET);
+			target.putInt(keyLength).putInt(value != null ? valueLength : TOMBSTONE).putLong(value != null ? cappedExpiry(entry) : Versioned.NEVER_EXPIRES)
+					.putLong(entry.getVersion()).put(keyBytes.duplicate());
+			if (value != null) {
+				valueCodec.encode(value, target);
+			}
+			if (target.position() != offset + recordSize) {
+				throw new IllegalStateException("Value codec wrote " + (target.position() - offset - RECORD_HEADER_BYTES - keyLength) + " bytes, expected " + valueLength);
+			}
+			sealRecord(segment, offset, recordSize);
+			track(key, address(segment.id, offset), recordSize, value == null);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The expiry of the entry, or the maximum time to live from now if that comes first
+	 */
+	private long cappedExpiry(Versioned<ValueT> entry) {
+		long latest = Versioned.expiryAfter(clock.millis(), maximumTimeToLive, maximumTimeToLiveUnit);
+		long expiresAt = entry.getExpiresAtMillis();
+		return expiresAt == Versioned.NEVER_EXPIRES ? latest : Math.min(expiresAt, latest);
+	}
+
+	/**
+	 * @return The address of the tombstone of the given key if it still turns away older values, otherwise {@code null}
+	 */
+	private Long guardingTombstone(KeyT key) {
+		Long address = tombstones.get(key);
+		return address != null && versionOf(address) >= tombstonesPurgedBefore ? address : null;
+	}
+
+	private long copyRecord(Segment source, int offset, int recordSize) throws IOException {
+		Segment segment = segmentWithRoomFor(recordSize);
+		ByteBuffer target = segment.buffer.duplicate();
+		((Buffer) target).position(segment.writeOffset);
+		target.put(slice(source.buffer, offset, recordSize));
+		long address = address(segment.id, segment.writeOffset);
+		segment.writeOffset += recordSize;
+		return address;
+	}
+
+	/**
+	 * Write the CRC and then the length of a record whose body is written, so a record torn by a crash reads as the end of the segment
+	 */
+	private static void sealRecord(Segment segment, int offset, int recordSize) {
+		segment.buffer.putInt(offset + CRC_OFFSET, crc(segment.buffer, offset, recordSize));
+		segment.buffer.putInt(offset, recordSize);
+		segment.writeOffset += recordSize;
+	}
+
+	private static int crc(ByteBuffer buffer, int offset, int recordSize) {
+		CRC32 crc = new CRC32();
+		crc.update(RECORD_FORMAT);
+		crc.update(slice(buffer, offset + KEY_LENGTH_OFFSET, recordSize - KEY_LENGTH_OFFSET));
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Point the key at its new record, taking the bytes of the record it replaces off the live bytes of its segment
+	 */
+	private void track(KeyT key, long address, int recordSize, boolean tombstone) {
+		release(index.remove(key));
+		release(tombstones.remove(key));
+		(tombstone ? tombstones : index).put(key, address);
+		segments.get(segmentOf(address)).liveBytes += recordSize;
+	}
+
+	private void release(Long address) {
+		if (address != null) {
+			Segment segment = segments.get(segmentOf(address));
+			segment.liveBytes -= segment.buffer.getInt(offsetOf(address));
+		}
+	}
+
+	private Segment segmentWithRoomFor(int recordSize) throws IOException {
+		if (activeSegment.writeOffset + recordSize > activeSegment.buffer.capacity()) {
+			startSegment();
+		}
+		return activeSegment;
+	}
+
+	private void startSegment() throws IOException {
+		int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		Segment segment = mapSegment(id, directory.resolve(SEGMENT_PREFIX + String.format("%010d", id) + SEGMENT_SUFFIX), segmentSize);
+		segments.put(id, segment);
+		activeSegment = segment;
+	}
+
+	private void mapSegments() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(id, mapSegment(id, file, (int) Files.size(file)));
+			}
+		}
+	}
+
+	/**
+	 * Unmap a segment no longer in use, which must be unreachable from the index and {@link #segments}, and delete its file
+	 */
+	private static void delete(Segment segment) throws IOException {
+		unmap(segment.buffer);
+		Files.deleteIfExists(segment.path);
+	}
+
+	/**
+	 * Stop using every segment; their files are kept
+	 */
+	private void unmapSegments() {
+		segments.values().forEach(segment -> unmap(segment.buffer));
+		segments.clear();
+	}
+
+	/**
+	 * Release the mapping of a buffer straight away, rather than once it is garbage collected, so the memory and the space of a deleted file
+	 * are freed and the file can be deleted on every platform. Nothing may read the buffer afterwards. Only the JDK's internal cleaner can do
+	 * this, so where it is not available the mapping is left to the garbage collector.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOG.debug("Could not unmap a segment, it is unmapped once garbage collected", e);
+		}
+	}
+
+	private static Segment mapSegment(int id, Path file, int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return new Segment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+		}
+	}
+
+	/**
+	 * Index every intact record of a segment from the given offset on, stopping at the first one that is missing or torn
+	 */
+	private void replay(Segment segment, int fromOffset) {
+		ByteBuffer buffer = segment.buffer;
+		int offset = fromOffset;
+		while (offset + RECORD_HEADER_BYTES <= buffer.capacity()) {
+			int recordSize = buffer.getInt(offset);
+			if (recordSize < RECORD_HEADER_BYTES || recordSize > buffer.capacity() - offset || buffer.getInt(offset + CRC_OFFSET) != crc(buffer, offset, recordSize)) {
+				break;
+			}
+			long address = address(segment.id, offset);
+			track(decodeKey(address), address, recordSize, buffer.getInt(offset + VALUE_LENGTH_OFFSET) == TOMBSTONE);
+			offset += recordSize;
+		}
+		segment.writeOffset = offset;
+	}
+
+	/**
+	 * The checkpoint holds the id of the active segment, the write offset of every segment, and the address and tombstone flag of every indexed
+	 * record, followed by a CRC32 of all of it. Segments are flushed first, so the checkpoint never points at records that are not on disk.
+	 */
+	private void writeCheckpoint() throws IOException {
+		for (Segment segment : segments.values()) {
+			segment.buffer.force();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(CHECKPOINT_MAGIC);
+			out.writeInt(activeSegment.id);
+			out.writeInt(segments.size());
+			for (Segment segment : segments.values()) {
+				out.writeInt(segment.id);
+				out.writeInt(segment.writeOffset);
+			}
+			out.writeInt(index.size() + tombstones.size());
+			for (Long address : index.values()) {
+				out.writeLong(address);
+				out.writeBoolean(false);
+			}
+			for (Long address : tombstones.values()) {
+				out.writeLong(address);
+				out.writeBoolean(true);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			out.writeInt((int) crc.getValue());
+		}
+		Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+		Files.write(temporary, bytes.toByteArray());
+		Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Rebuild the index from the checkpoint, then replay the records appended after it. Segments older than the checkpoint's active segment that
+	 * it does not list were compacted away before they could be deleted, and are deleted now.
+	 *
+	 * @return Whether the checkpoint was usable; if not the index may be partly filled and must be reset
+	 */
+	private boolean restoreCheckpoint() throws IOException {
+		Path file = directory.resolve(CHECKPOINT_FILE);
+		if (!Files.exists(file)) {
+			return false;
+		}
+		ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(file));
+		int contentLength = checkpoint.remaining() - Integer.BYTES;
+		if (contentLength < Long.BYTES + 2 * Integer.BYTES) {
+			LOG.warn("Ignoring the truncated checkpoint of node {}", node.getNodeId());
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(checkpoint.array(), 0, contentLength);
+		if (checkpoint.getInt(contentLength) != (int) crc.getValue() || checkpoint.getLong() != CHECKPOINT_MAGIC) {
+			LOG.warn("Ignoring the corrupt checkpoint of node {}", node.getNodeId());
+			return false;
+		}
+		int checkpointSegment = checkpoint.getInt();
+		Map<Integer, Integer> writeOffsets = new HashMap<>();
+		int segmentCount = checkpoint.getInt();
+		for (int i = 0; i < segmentCount; i++) {
+			int id = checkpoint.getInt();
+			int writeOffset = checkpoint.getInt();
+			Segment segment = segments.get(id);
+			if (segment == null) {
+				LOG.warn("Ignoring the checkpoint of node {}, segment {} is missing", node.getNodeId(), id);
+				return false;
+			}
+			segment.writeOffset = writeOffset;
+			writeOffsets.put(id, writeOffset);
+		}
+		int entryCount = checkpoint.getInt();
+		for (int i = 0; i < entryCount; i++) {
+			long address = checkpoint.getLong();
+			boolean tombstone = checkpoint.get() != 0;
+			Segment segment = segments.get(segmentOf(address));
+			if (segment == null || offsetOf(address) >= segment.writeOffset) {
+				LOG.warn("Ignoring the checkpoint of node {}, it points past the end of a segment", node.getNodeId());
+				return false;
+			}
+			track(decodeKey(address), address, segment.buffer.getInt(offsetOf(address)), tombstone);
+		}
+		for (Segment segment : new ArrayList<>(segments.values())) {
+			if (segment.id > checkpointSegment) {
+				replay(segment, 0);
+			} else if (segment.id == checkpointSegment) {
+				replay(segment, segment.writeOffset);
+			} else if (!writeOffsets.containsKey(segment.id)) {
+				segments.remove(segment.id);
+				delete(segment);
+			}
+		}
+		return true;
+	}
+
+	private void resetIndex() {
+		index.clear();
+		tombstones.clear();
+		segments.values().forEach(segment -> {
+			segment.writeOffset = 0;
+			segment.liveBytes = 0;
+		});
+	}
+
+	private ValueT readValue(long address) {
+		ByteBuffer buffer = segments.get(segmentOf(address)).buffer;
+		int offset = offsetOf(address);
+		int valueStart = offset + RECORD_HEADER_BYTES + buffer.getInt(offset + KEY_LENGTH_OFFSET);
+		return valueCodec.decode(slice(buffer, valueStart, buffer.getInt(offset + VALUE_LENGTH_OFFSET)));
+	}
+
+	private KeyT decodeKey(long address) {
+		ByteBuffer buffer = segments.get(segmentOf(address)).buffer;
+		int offset = offsetOf(address);
+		return keyCodec.decode(slice(buffer, offset + RECORD_HEADER_BYTES, buffer.getInt(offset + KEY_LENGTH_OFFSET)));
+	}
+
+	private long expiryOf(long address) {
+		return segments.get(segmentOf(address)).buffer.getLong(offsetOf(address) + EXPIRY_OFFSET);
+	}
+
+	private long versionOf(long address) {
+		return segments.get(segmentOf(address)).buffer.getLong(offsetOf(address) + VERSION_OFFSET);
+	}
+
+	private boolean isExpired(long address, long now) {
+		long expiresAt = expiryOf(address);
+		return expiresAt != Versioned.NEVER_EXPIRES && expiresAt <= now;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int length) {
+		ByteBuffer view = buffer.duplicate();
+		((Buffer) view).position(start);
+		((Buffer) view).limit(start + length);
+		return view;
+	}
+
+	private static long address(int segment, int offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	private static int segmentOf(long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+
+	private static final class Segment {
+
+		private final int id;
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		/**
+		 * The end of the last record
+		 */
+		private int writeOffset;
+		/**
+		 * The bytes of the records that the index points at
+		 */
+		private long liveBytes;
+
+		Segment(int id, Path path, MappedByteBuffer buffer) {
+			this.id = id;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+}
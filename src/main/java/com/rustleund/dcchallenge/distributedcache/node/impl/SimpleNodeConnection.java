@@ -1,8 +1,12 @@
 package com.rustleund.dcchallenge.distributedcache.node.impl;
 
+import java.time.Clock;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
@@ -10,9 +14,15 @@ import org.slf4j.LoggerFactory;
 
 import com.rustleund.dcchallenge.distributedcache.node.Node;
 import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
 
 /**
- * A simple implementation of {@link NodeConnection} that simply stores values locally in a Map
+ * A simple implementation of {@link NodeConnection} that simply stores values locally in a Map. Every request holds the connection's lock,
+ * as requests, and values moving between nodes, reach it from several threads at once; {@link ConcurrentNodeConnection} scales better under
+ * load. Individual requests are not logged, use an {@link com.rustleund.dcchallenge.distributedcache.node.AccessTracer} to see them.
+ * <p>
+ * Entries with a time to live read as missing once they expire, and are removed by the next read or write after that with a
+ * {@link TimingWheel}.
  *
  * @param <KeyT> The type of the keys of the map
  */
@@ -21,34 +31,162 @@ public class SimpleNodeConnection<KeyT, ValueT> implements NodeConnection<KeyT,
 	private static final Logger LOG = LoggerFactory.getLogger(SimpleNodeConnection.class);
 
 	private final Map<KeyT, ValueT> store = new HashMap<>();
+	/**
+	 * The version of every entry written with one, including tombstones: keys here but not in the store
+	 */
+	private final Map<KeyT, Long> versions = new HashMap<>();
+	/**
+	 * The expiry of every entry written with a time to live
+	 */
+	private final Map<KeyT, Long> expiries = new HashMap<>();
+	private final TimingWheel<KeyT> expiryWheel;
 
 	private final Node node;
+	private final Clock clock;
 
 	public SimpleNodeConnection(Node node) {
+		this(node, Clock.systemUTC());
+	}
+
+	/**
+	 * @param node The {@link Node} this connection stores values for
+	 * @param clock The source of time for expiring entries
+	 */
+	public SimpleNodeConnection(Node node, Clock clock) {
 		this.node = node;
+		this.clock = clock;
+		this.expiryWheel = new TimingWheel<>(TimingWheel.DEFAULT_TICK_MILLIS, clock.millis());
+	}
+
+	@Override
+	public synchronized void put(KeyT key, ValueT value) {
+		expireEntries();
+		store.put(key, value);
+		versions.remove(key);
+		setExpiry(key, Versioned.NEVER_EXPIRES);
 	}
 
 	@Override
-	public void put(KeyT key, ValueT value) {
-		LOG.info("Putting key {} in node {}", key, node.getNodeId());
+	public synchronized void put(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		long expiresAt = Versioned.expiryAfter(expireEntries(), timeToLive, unit);
 		store.put(key, value);
+		versions.remove(key);
+		setExpiry(key, expiresAt);
 	}
 
 	@Override
-	public ValueT get(KeyT key) {
-		LOG.info("Retrieving value for key {} from node {}", key, node.getNodeId());
-		return store.get(key);
+	public synchronized ValueT get(KeyT key) {
+		return isExpired(key, expireEntries()) ? null : store.get(key);
 	}
 
 	@Override
-	public void invalidate(KeyT key) {
-		LOG.info("Invalidating value for key {} in node {}", key, node.getNodeId());
+	public synchronized void invalidate(KeyT key) {
 		store.remove(key);
+		versions.remove(key);
+		setExpiry(key, Versioned.NEVER_EXPIRES);
 	}
 
 	@Override
-	public Stream<KeyT> keys() {
-		return new HashSet<>(store.keySet()).stream();
+	public synchronized Map<KeyT, ValueT> getAll(Collection<KeyT> keys) {
+		Map<KeyT, ValueT> values = new HashMap<>();
+		keys.forEach(key -> Optional.ofNullable(get(key)).ifPresent(value -> values.put(key, value)));
+		return values;
+	}
+
+	@Override
+	public synchronized void putAll(Map<KeyT, ValueT> entries) {
+		entries.forEach(this::put);
+	}
+
+	@Override
+	public synchronized void invalidateAll(Collection<KeyT> keys) {
+		keys.forEach(this::invalidate);
+	}
+
+	@Override
+	public synchronized Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) {
+		long now = expireEntries();
+		Map<KeyT, Versioned<ValueT>> entries = new HashMap<>();
+		keys.forEach(key -> Optional.ofNullable(storedEntry(key)).filter(entry -> !entry.isExpired(now)).ifPresent(entry -> entries.put(key, entry)));
+		return entries;
+	}
+
+	/**
+	 * @return The entry stored under the key even if it has expired, so an older entry cannot replace it
+	 */
+	private Versioned<ValueT> storedEntry(KeyT key) {
+		ValueT value = store.get(key);
+		Long version = versions.get(key);
+		if (value != null) {
+			Long expiresAt = expiries.get(key);
+			return Versioned.of(value, version != null ? version : Versioned.UNVERSIONED).expiringAt(expiresAt != null ? expiresAt : Versioned.NEVER_EXPIRES);
+		}
+		return version != null ? Versioned.tombstone(version) : null;
+	}
+
+	@Override
+	public synchronized void putIfNewer(KeyT key, Versioned<ValueT> entry) {
+		expireEntries();
+		if (entry.supersedes(storedEntry(key))) {
+			if (entry.isTombstone()) {
+				store.remove(key);
+			} else {
+				store.put(key, entry.getValue());
+			}
+			versions.put(key, entry.getVersion());
+			setExpiry(key, entry.getExpiresAtMillis());
+		}
+	}
+
+	@Override
+	public synchronized void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) {
+		entries.forEach(this::putIfNewer);
+	}
+
+	@Override
+	public synchronized void invalidateAllIfNotNewer(Map<KeyT, Long> maximumVersions) {
+		maximumVersions.forEach((key, maximumVersion) -> {
+			Versioned<ValueT> stored = storedEntry(key);
+			if (stored != null && !stored.isTombstone() && stored.getVersion() <= maximumVersion) {
+				invalidate(key);
+			}
+		});
+	}
+
+	@Override
+	public synchronized void purgeTombstones(long beforeVersion) {
+		versions.entrySet().removeIf(entry -> entry.getValue() < beforeVersion && !store.containsKey(entry.getKey()));
+	}
+
+	@Override
+	public synchronized Stream<KeyT> keys() {
+		long now = expireEntries();
+		return store.keySet().stream().filter(key -> !isExpired(key, now)).collect(Collectors.toList()).stream();
+	}
+
+	private boolean isExpired(KeyT key, long now) {
+		Long expiresAt = expiries.get(key);
+		return expiresAt != null && expiresAt <= now;
+	}
+
+	private void setExpiry(KeyT key, long expiresAt) {
+		if (expiresAt == Versioned.NEVER_EXPIRES) {
+			if (expiries.remove(key) != null) {
+				expiryWheel.cancel(key);
+			}
+		} else {
+			expiries.put(key, expiresAt);
+			expiryWheel.schedule(key, expiresAt);
+		}
+	}
+
+	/**
+	 * @return The current time
+	 */
+	private long expireEntries() {
+		long now = clock.millis();
+		expiryWheel.advance(now, key -> expiries.getOrDefault(key, TimingWheel.NO_DEADLINE), this::invalidate);
+		return now;
 	}
 
 	@Override
@@ -57,8 +195,15 @@ public class SimpleNodeConnection<KeyT, ValueT> implements NodeConnection<KeyT,
 	}
 
 	@Override
-	public void close() {
+	public Clock getClock() {
+		return clock;
+	}
+
+	@Override
+	public synchronized void close() {
 		LOG.info("Closing connection for node: {}", node.getNodeId());
 		store.clear();
+		versions.clear();
+		expiries.clear();
 	}
 }
@@ -1,17 +1,39 @@
 package com.rustleund.dcchallenge.distributedcache.node.impl;
 
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
 import com.rustleund.dcchallenge.distributedcache.node.Node;
 import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
 import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
 import com.rustleund.dcchallenge.distributedcache.node.NodeType;
 
 /**
- * A simple {@link NodeConnectionFactory}, always returns a {@link SimpleNodeConnection}
+ * A simple {@link NodeConnectionFactory} for in-process nodes. By default it always returns a {@link SimpleNodeConnection}, but a different
+ * store can be chosen for each {@link NodeType}, for example {@link ConcurrentNodeConnection#factory(long)}.
  */
 public class SimpleNodeConnectionFactory implements NodeConnectionFactory {
 
+	private final Map<NodeType, NodeConnectionFactory> factoriesByNodeType;
+
+	public SimpleNodeConnectionFactory() {
+		this(Collections.emptyMap());
+	}
+
+	/**
+	 * @param factoriesByNodeType The {@link NodeConnectionFactory} to use for each {@link NodeType}, types without one get a {@link SimpleNodeConnection}
+	 */
+	public SimpleNodeConnectionFactory(Map<NodeType, NodeConnectionFactory> factoriesByNodeType) {
+		this.factoriesByNodeType = factoriesByNodeType.isEmpty() ? Collections.emptyMap() : new EnumMap<>(factoriesByNodeType);
+	}
+
 	@Override
 	public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+		NodeConnectionFactory factoryForNodeType = factoriesByNodeType.get(node.getType());
+		if (factoryForNodeType != null) {
+			return factoryForNodeType.findNodeConnectionForNodeType(node);
+		}
 		// Just using the same kind of connection for each type here, but could use different connections for each node
 		if (node.getType() == NodeType.A) {
 			return new SimpleNodeConnection<>(node);
@@ -0,0 +1,197 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * A hierarchical timing wheel that finds the keys whose deadlines have passed, for node stores that expire entries. Each level has 64 slots;
+ * a slot on the first level covers one tick, and a slot on each level above covers a full turn of the level below it. A key is placed in the
+ * slot its deadline falls in on the lowest level that reaches that far, and moves down a level each time the wheel reaches its slot, so both
+ * scheduling a key and advancing the wheel by a tick take amortized constant time, however many keys are scheduled. Deadlines past the top
+ * level wait in its furthest slot.
+ * <p>
+ * Each key has one timer, linked into the list of its slot: scheduling a key that is already scheduled moves its timer to the slot of the new
+ * deadline, so rewriting a key with a new time to live never leaves a stale entry behind. When a key's slot is reached the wheel still asks
+ * the store for the key's current deadline, so a key that was removed or rewritten without a time to live needs no cancelling.
+ * <p>
+ * Not thread safe; callers synchronize.
+ *
+ * @param <KeyT> The type of keys to schedule
+ */
+final class TimingWheel<KeyT> {
+
+	/**
+	 * Returned by a deadline lookup for a key that no longer expires
+	 */
+	static final long NO_DEADLINE = 0;
+
+	/**
+	 * The tick node stores expire entries with
+	 */
+	static final long DEFAULT_TICK_MILLIS = 100;
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	/**
+	 * The furthest a key can be scheduled ahead, in ticks
+	 */
+	private static final long SPAN_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+	private final long tickMillis;
+	/**
+	 * The first timer of each slot, or {@code null} for an empty slot, indexed by {@code level * SLOTS + slot}
+	 */
+	private final List<Timer<KeyT>> slots = new ArrayList<>(Collections.nCopies(LEVELS * SLOTS, null));
+	private final Map<KeyT, Timer<KeyT>> timers = new HashMap<>();
+	/**
+	 * The next tick to process
+	 */
+	private long currentTick;
+
+	/**
+	 * @param tickMillis The length of a tick in milliseconds; keys expire up to a tick after their deadline
+	 * @param nowMillis The current time in milliseconds since the epoch
+	 */
+	TimingWheel(long tickMillis, long nowMillis) {
+		checkArgument(tickMillis > 0, "Tick must be positive");
+		this.tickMillis = tickMillis;
+		this.currentTick = nowMillis / tickMillis;
+	}
+
+	/**
+	 * Schedule a key, or move it to the given deadline if it is already scheduled
+	 *
+	 * @param key The key to schedule
+	 * @param deadlineMillis The time the key expires at, in milliseconds since the epoch
+	 */
+	void schedule(KeyT key, long deadlineMillis) {
+		Timer<KeyT> timer = timers.get(key);
+		if (timer == null) {
+			timer = new Timer<>(key);
+			timers.put(key, timer);
+		} else {
+			unlink(timer);
+		}
+		link(timer, deadlineMillis);
+	}
+
+	/**
+	 * Stop tracking a key, for stores that know a key no longer expires
+	 */
+	void cancel(KeyT key) {
+		Timer<KeyT> timer = timers.remove(key);
+		if (timer != null) {
+			unlink(timer);
+		}
+	}
+
+	private void link(Timer<KeyT> timer, long deadlineMillis) {
+		long deadlineTick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick);
+		long delay = Math.min(deadlineTick - currentTick, SPAN_TICKS - 1);
+		int level = 0;
+		while (delay >= 1L << (SLOT_BITS * (level + 1))) {
+			level++;
+		}
+		int index = level * SLOTS + ((int) ((currentTick + delay) >>> (SLOT_BITS * level)) & SLOT_MASK);
+		Timer<KeyT> first = slots.get(index);
+		timer.slot = index;
+		timer.next = first;
+		if (first != null) {
+			first.previous = timer;
+		}
+		slots.set(index, timer);
+	}
+
+	private void unlink(Timer<KeyT> timer) {
+		if (timer.previous != null) {
+			timer.previous.next = timer.next;
+		} else {
+			slots.set(timer.slot, timer.next);
+		}
+		if (timer.next != null) {
+			timer.next.previous = timer.previous;
+		}
+		timer.previous = null;
+		timer.next = null;
+	}
+
+	/**
+	 * Process every tick up to the given time, passing each key whose deadline has passed to {@code expire}
+	 *
+	 * @param nowMillis The current time in milliseconds since the epoch
+	 * @param deadlines Looks up the current deadline of a key, or {@link #NO_DEADLINE} if it is gone or no longer expires
+	 * @param expire Called with each key whose deadline has passed
+	 */
+	void advance(long nowMillis, ToLongFunction<? super KeyT> deadlines, Consumer<? super KeyT> expire) {
+		long nowTick = nowMillis / tickMillis;
+		while (currentTick <= nowTick) {
+			if (timers.isEmpty()) {
+				currentTick = nowTick + 1;
+				return;
+			}
+			int topLevel = 0;
+			while (topLevel + 1 < LEVELS && (currentTick & ((1L << (SLOT_BITS * (topLevel + 1))) - 1)) == 0) {
+				topLevel++;
+			}
+			for (int level = topLevel; level > 0; level--) {
+				fire(level, (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK, nowMillis, deadlines, expire);
+			}
+			fire(0, (int) currentTick & SLOT_MASK, nowMillis, deadlines, expire);
+			currentTick++;
+		}
+	}
+
+	private void fire(int level, int slot, long nowMillis, ToLongFunction<? super KeyT> deadlines, Consumer<? super KeyT> expire) {
+		Timer<KeyT> timer = slots.get(level * SLOTS + slot);
+		if (timer == null) {
+			return;
+		}
+		slots.set(level * SLOTS + slot, null);
+		while (timer != null) {
+			Timer<KeyT> next = timer.next;
+			timer.previous = null;
+			timer.next = null;
+			long deadline = deadlines.applyAsLong(timer.key);
+			if (deadline == NO_DEADLINE) {
+				timers.remove(timer.key);
+			} else if (deadline <= nowMillis) {
+				timers.remove(timer.key);
+				expire.accept(timer.key);
+			} else {
+				link(timer, deadline);
+			}
+			timer = next;
+		}
+	}
+
+	/**
+	 * @return The number of scheduled keys
+	 */
+	int size() {
+		return timers.size();
+	}
+
+	/**
+	 * The place of a scheduled key in the doubly linked list of its slot
+	 */
+	private static final class Timer<KeyT> {
+
+		private final KeyT key;
+		private int slot;
+		private Timer<KeyT> previous;
+		private Timer<KeyT> next;
+
+		Timer(KeyT key) {
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.rustleund.dcchallenge.distributedcache.node.tcp;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the bytes read from a socket into {@link Protocol} frames. Bytes are read into one buffer, which only grows when a single frame does
+ * not fit, and each complete frame is handed on as a view of that buffer, so it is only valid until the handler returns.
+ */
+final class FrameReader {
+
+	@FunctionalInterface
+	interface FrameHandler {
+
+		/**
+		 * @param payload A view of the payload, only valid during this call
+		 */
+		void frame(int requestId, byte code, ByteBuffer payload) throws IOException;
+	}
+
+	private ByteBuffer buffer;
+
+	FrameReader(int initialCapacity) {
+		this.buffer = ByteBuffer.allocate(initialCapacity);
+	}
+
+	/**
+	 * Read everything the channel has available, handing each complete frame to the handler as soon as it is read
+	 *
+	 * @return {@code false} if the channel reached the end of its stream
+	 * @throws IOException If reading fails, or the stream holds a frame with an invalid length
+	 */
+	boolean read(ReadableByteChannel channel, FrameHandler handler) throws IOException {
+		while (true) {
+			ensureCapacityForPartialFrame();
+			int read = channel.read(buffer);
+			if (read < 0) {
+				return false;
+			}
+			if (read == 0) {
+				return true;
+			}
+			handleCompleteFrames(handler);
+		}
+	}
+
+	private void handleCompleteFrames(FrameHandler handler) throws IOException {
+		((Buffer) buffer).flip();
+		try {
+			while (buffer.remaining() >= Protocol.LENGTH_BYTES) {
+				int start = buffer.position();
+				int length = frameLength(start);
+				if (buffer.remaining() < Protocol.LENGTH_BYTES + length) {
+					break;
+				}
+				int requestId = buffer.getInt(start + Protocol.LENGTH_BYTES);
+				byte code = buffer.get(start + Protocol.HEADER_BYTES - 1);
+				((Buffer) buffer).position(start + Protocol.HEADER_BYTES);
+				ByteBuffer payload = Protocol.next(buffer, length - (Protocol.HEADER_BYTES - Protocol.LENGTH_BYTES));
+				handler.frame(requestId, code, payload);
+			}
+		} finally {
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * A partial frame is always at the start of the buffer, grow the buffer if that frame does not fit in it
+	 */
+	private void ensureCapacityForPartialFrame() throws IOException {
+		if (buffer.position() < Protocol.LENGTH_BYTES) {
+			return;
+		}
+		int frameBytes = Protocol.LENGTH_BYTES + frameLength(0);
+		if (frameBytes > buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(frameBytes);
+			((Buffer) buffer).flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+
+	private int frameLength(int start) throws IOException {
+		int length = buffer.getInt(start);
+		if (length < Protocol.HEADER_BYTES - Protocol.LENGTH_BYTES || length > Protocol.MAXIMUM_FRAME_BYTES) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		return length;
+	}
+}
@@ -0,0 +1,430 @@
+package com.rustleund.dcchallenge.distributedcache.node.tcp;
+
+import static com.rustleund.dcchallenge.distributedcache.node.tcp.Protocol.prefixedBytes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rustleund.dcchallenge.codec.BufferPool;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * Serves a store over TCP for {@link TcpNodeConnection}s, see {@link Protocol}. The store holds the encoded bytes of keys and values, so the
+ * server does not need the codecs of the cache; any {@link NodeConnection} can be the store, for example a
+ * {@link com.rustleund.dcchallenge.distributedcache.node.impl.ConcurrentNodeConnection}.
+ * <p>
+ * One thread runs a {@link Selector} for every client socket. Requests are served on that thread in the order they arrive, which suits an
+ * in-memory store, and all the responses to the requests read in one go are written back with a single gathering write.
+ * <p>
+ * Keys are listed a bounded page at a time through cursors, so listing a large store neither builds one huge response nor holds up the
+ * other clients. The server keeps a limited number of open cursors, and drops those of listings that were abandoned.
+ */
+public class NodeServer implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NodeServer.class);
+
+	private static final int READ_BUFFER_BYTES = 64 << 10;
+	/**
+	 * A page of keys ends once it holds this many bytes, however many keys were asked for
+	 */
+	private static final int KEYS_PAGE_BYTES = 1 << 20;
+	private static final int MAXIMUM_KEY_CURSORS = 64;
+	private static final long KEY_CURSOR_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private final NodeConnection<ByteBuffer, byte[]> store;
+	private final BufferPool bufferPool = new BufferPool(READ_BUFFER_BYTES, 256);
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+	private volatile boolean closed;
+	/**
+	 * The open key listings by cursor, least recently used first, only used on the selector thread
+	 */
+	private final Map<Long, KeyCursor> keyCursors = new LinkedHashMap<>();
+	private long nextKeyCursor = Protocol.NO_CURSOR + 1;
+
+	/**
+	 * @param store The store to serve, it must accept the heap {@link ByteBuffer}s of encoded keys as keys
+	 */
+	public NodeServer(NodeConnection<ByteBuffer, byte[]> store) {
+		this.store = store;
+	}
+
+	/**
+	 * Open the store, bind to the given address and start serving requests
+	 *
+	 * @param address The address to listen on, with port 0 for any free port
+	 * @return The address the server listens on
+	 * @throws IOException If the store cannot be opened or the address cannot be bound
+	 */
+	public synchronized InetSocketAddress start(InetSocketAddress address) throws IOException {
+		if (serverChannel != null) {
+			throw new IllegalStateException("Server already started");
+		}
+		store.open();
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			serverChannel.bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+		InetSocketAddress boundAddress = (InetSocketAddress) serverChannel.getLocalAddress();
+		selectorThread = new Thread(this::serve, "node-server-" + boundAddress.getPort());
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		LOG.info("Serving node store on {}", boundAddress);
+		return boundAddress;
+	}
+
+	/**
+	 * Stop serving, close every client socket and then the store
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed || serverChannel == null) {
+			return;
+		}
+		closed = true;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		selector.keys().forEach(key -> closeQuietly(key.channel()));
+		selector.close();
+		keyCursors.values().forEach(KeyCursor::close);
+		keyCursors.clear();
+		store.close();
+	}
+
+	private void serve() {
+		try {
+			while (!closed) {
+				selector.select();
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						((ClientConnection) key.attachment()).handle(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("Node server stopped", e);
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel socket = serverChannel.accept();
+		if (socket == null) {
+			return;
+		}
+		socket.configureBlocking(false);
+		socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		socket.register(selector, SelectionKey.OP_READ, new ClientConnection(socket));
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			LOG.debug("Could not close {}", closeable, e);
+		}
+	}
+
+	/**
+	 * Serve one request
+	 *
+	 * @return The response frame, flipped and ready to write
+	 */
+	private ByteBuffer respond(int requestId, byte opcode, ByteBuffer payload) {
+		ByteBuffer response;
+		try {
+			response = execute(requestId, opcode, payload);
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Request {} with opcode {} failed", requestId, opcode, e);
+			byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+			response = Protocol.startFrame(bufferPool, requestId, Protocol.STATUS_ERROR, message.length).put(message);
+		}
+		((Buffer) response).flip();
+		return response;
+	}
+
+	private ByteBuffer execute(int requestId, byte opcode, ByteBuffer payload) throws IOException {
+		switch (opcode) {
+		case Protocol.GET: {
+			byte[] value = store.get(payload);
+			if (value == null) {
+				return ok(requestId, 1).put((byte) 0);
+			}
+			return ok(requestId, 1 + value.length).put((byte) 1).put(value);
+		}
+		case Protocol.PUT:
+			store.put(copy(Protocol.nextPrefixed(payload)), remainingBytes(payload));
+			return ok(requestId, 0);
+		case Protocol.PUT_WITH_TTL: {
+			long timeToLiveNanos = payload.getLong();
+			store.put(copy(Protocol.nextPrefixed(payload)), remainingBytes(payload), timeToLiveNanos, TimeUnit.NANOSECONDS);
+			return ok(requestId, 0);
+		}
+		case Protocol.INVALIDATE:
+			store.invalidate(payload);
+			return ok(requestId, 0);
+		case Protocol.GET_ALL: {
+			Map<ByteBuffer, byte[]> values = store.getAll(readKeys(payload));
+			int size = Integer.BYTES;
+			for (Map.Entry<ByteBuffer, byte[]> entry : values.entrySet()) {
+				size += prefixedBytes(entry.getKey()) + Integer.BYTES + entry.getValue().length;
+			}
+			ByteBuffer response = ok(requestId, size).putInt(values.size());
+			values.forEach((key, value) -> {
+				Protocol.putPrefixed(response, key);
+				response.putInt(value.length).put(value);
+			});
+			return response;
+		}
+		case Protocol.PUT_ALL: {
+			int count = payload.getInt();
+			Map<ByteBuffer, byte[]> entries = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++) {
+				ByteBuffer key = copy(Protocol.nextPrefixed(payload));
+				entries.put(key, remainingBytes(Protocol.nextPrefixed(payload)));
+			}
+			store.putAll(entries);
+			return ok(requestId, 0);
+		}
+		case Protocol.INVALIDATE_ALL:
+			store.invalidateAll(readKeys(payload));
+			return ok(requestId, 0);
+		case Protocol.KEYS:
+			return listKeys(requestId, payload.getLong(), payload.getInt());
+		case Protocol.GET_ALL_VERSIONED: {
+			Map<ByteBuffer, Versioned<byte[]>> entries = store.getAllVersioned(readKeys(payload));
+			int size = Integer.BYTES;
+			for (Map.Entry<ByteBuffer, Versioned<byte[]>> entry : entries.entrySet()) {
+				Versioned<byte[]> versioned = entry.getValue();
+				size += prefixedBytes(entry.getKey()) + 2 * Long.BYTES + Integer.BYTES + (versioned.isTombstone() ? 0 : versioned.getValue().length);
+			}
+			ByteBuffer response = ok(requestId, size).putInt(entries.size());
+			entries.forEach((key, versioned) -> {
+				Protocol.putPrefixed(response, key);
+				response.putLong(versioned.getVersion()).putLong(versioned.getExpiresAtMillis());
+				if (versioned.isTombstone()) {
+					response.putInt(Protocol.TOMBSTONE);
+				} else {
+					response.putInt(versioned.getValue().length).put(versioned.getValue());
+				}
+			});
+			return response;
+		}
+		case Protocol.PUT_ALL_IF_NEWER: {
+			int count = payload.getInt();
+			Map<ByteBuffer, Versioned<byte[]>> entries = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++) {
+				ByteBuffer key = copy(Protocol.nextPrefixed(payload));
+				long version = payload.getLong();
+				long expiresAt = payload.getLong();
+				int valueLength = payload.getInt();
+				entries.put(key, valueLength == Protocol.TOMBSTONE ? Versioned.tombstone(version)
+						: Versioned.of(remainingBytes(Protocol.next(payload, valueLength)), version).expiringAt(expiresAt));
+			}
+			store.putAllIfNewer(entries);
+			return ok(requestId, 0);
+		}
+		case Protocol.INVALIDATE_ALL_IF_NOT_NEWER: {
+			int count = payload.getInt();
+			Map<ByteBuffer, Long> versions = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++) {
+				ByteBuffer key = Protocol.nextPrefixed(payload);
+				versions.put(key, payload.getLong());
+			}
+			store.invalidateAllIfNotNewer(versions);
+			return ok(requestId, 0);
+		}
+		case Protocol.PURGE_TOMBSTONES:
+			store.purgeTombstones(payload.getLong());
+			return ok(requestId, 0);
+		case Protocol.PING:
+			store.ping();
+			return ok(requestId, 0);
+		default:
+			throw new IllegalArgumentException("Unknown opcode " + opcode);
+		}
+	}
+
+	/**
+	 * List the next page of keys of a cursor, starting a new listing for {@link Protocol#NO_CURSOR}. The cursor is kept for the next page
+	 * unless this was the last one or the limit is 0.
+	 */
+	private ByteBuffer listKeys(int requestId, long cursorId, int limit) throws IOException {
+		dropIdleKeyCursors();
+		long id = cursorId;
+		KeyCursor cursor;
+		if (id == Protocol.NO_CURSOR) {
+			id = nextKeyCursor++;
+			cursor = new KeyCursor(store.keys());
+		} else {
+			cursor = keyCursors.remove(id);
+			if (cursor == null) {
+				throw new IOException("Key cursor " + id + " is unknown or expired");
+			}
+		}
+		List<ByteBuffer> keys = new ArrayList<>(Math.min(limit, 1024));
+		int size = Long.BYTES + Integer.BYTES;
+		while (keys.size() < limit && size < KEYS_PAGE_BYTES && cursor.keys.hasNext()) {
+			ByteBuffer key = cursor.keys.next();
+			keys.add(key);
+			size += prefixedBytes(key);
+		}
+		boolean more = limit > 0 && cursor.keys.hasNext();
+		if (more) {
+			cursor.lastUsedNanos = System.nanoTime();
+			keyCursors.put(id, cursor);
+			if (keyCursors.size() > MAXIMUM_KEY_CURSORS) {
+				Iterator<KeyCursor> oldest = keyCursors.values().iterator();
+				oldest.next().close();
+				oldest.remove();
+			}
+		} else {
+			cursor.close();
+		}
+		ByteBuffer response = ok(requestId, size).putLong(more ? id : Protocol.NO_CURSOR).putInt(keys.size());
+		keys.forEach(key -> Protocol.putPrefixed(response, key));
+		return response;
+	}
+
+	private void dropIdleKeyCursors() {
+		long now = System.nanoTime();
+		for (Iterator<KeyCursor> it = keyCursors.values().iterator(); it.hasNext();) {
+			KeyCursor cursor = it.next();
+			if (now - cursor.lastUsedNanos < KEY_CURSOR_IDLE_NANOS) {
+				return;
+			}
+			cursor.close();
+			it.remove();
+		}
+	}
+
+	private ByteBuffer ok(int requestId, int payloadBytes) {
+		return Protocol.startFrame(bufferPool, requestId, Protocol.STATUS_OK, payloadBytes);
+	}
+
+	/**
+	 * Keys are only used to look up entries during the request, so they stay views of the request
+	 */
+	private static List<ByteBuffer> readKeys(ByteBuffer payload) {
+		int count = payload.getInt();
+		List<ByteBuffer> keys = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			keys.add(Protocol.nextPrefixed(payload));
+		}
+		return keys;
+	}
+
+	/**
+	 * Keys that are stored must not share the read buffer
+	 */
+	private static ByteBuffer copy(ByteBuffer view) {
+		return ByteBuffer.wrap(remainingBytes(view));
+	}
+
+	private static byte[] remainingBytes(ByteBuffer view) {
+		byte[] bytes = new byte[view.remaining()];
+		view.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * A client socket, with the responses still to be written to it
+	 */
+	private final class ClientConnection {
+
+		private final SocketChannel socket;
+		private final FrameReader reader = new FrameReader(READ_BUFFER_BYTES);
+		private final Deque<ByteBuffer> responses = new ArrayDeque<>();
+
+		private ClientConnection(SocketChannel socket) {
+			this.socket = socket;
+		}
+
+		private void handle(SelectionKey key) {
+			try {
+				if (key.isReadable() && !reader.read(socket, (requestId, opcode, payload) -> responses.add(respond(requestId, opcode, payload)))) {
+					disconnect(key);
+					return;
+				}
+				if (Protocol.writeFrames(socket, responses, bufferPool)) {
+					key.interestOps(SelectionKey.OP_READ);
+				} else {
+					// Stop reading until the client takes its responses
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				LOG.debug("Closing client connection {}", socket, e);
+				disconnect(key);
+			}
+		}
+
+		private void disconnect(SelectionKey key) {
+			key.cancel();
+			closeQuietly(socket);
+			for (ByteBuffer response; (response = responses.poll()) != null;) {
+				bufferPool.release(response);
+			}
+		}
+	}
+
+	/**
+	 * A listing of the keys of the store that continues with the next request for its cursor
+	 */
+	private static final class KeyCursor {
+
+		private final Stream<ByteBuffer> stream;
+		private final Iterator<ByteBuffer> keys;
+		private long lastUsedNanos;
+
+		private KeyCursor(Stream<ByteBuffer> stream) {
+			this.stream = stream;
+			this.keys = stream.iterator();
+		}
+
+		private void close() {
+			stream.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.rustleund.dcchallenge.distributedcache.node.tcp;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Deque;
+import java.util.Iterator;
+
+import com.rustleund.dcchallenge.codec.BufferPool;
+
+/**
+ * The binary protocol between {@link TcpNodeConnection} and {@link NodeServer}. Every request and response is a frame:
+ *
+ * <pre>
+ * int  length      number of bytes after this field
+ * int  requestId   chosen by the client, echoed in the response so many requests can be in flight on one socket
+ * byte code        the opcode of a request, the status of a response
+ * ...  payload
+ * </pre>
+ *
+ * Keys and values are sent as the bytes of their {@link com.rustleund.dcchallenge.codec.Codec}s, so the server never decodes them. Inside
+ * payloads, variable length fields are length prefixed with an int, and a value length of {@link #TOMBSTONE} marks a tombstone.
+ */
+final class Protocol {
+
+	static final int LENGTH_BYTES = Integer.BYTES;
+	static final int HEADER_BYTES = LENGTH_BYTES + Integer.BYTES + 1;
+	static final int MAXIMUM_FRAME_BYTES = 64 << 20;
+	static final int TOMBSTONE = -1;
+	/**
+	 * The cursor that starts a listing of keys, and that ends one in a response
+	 */
+	static final long NO_CURSOR = 0;
+
+	/**
+	 * Payload: key. Response: byte 1 and the value, or byte 0 if there is none.
+	 */
+	static final byte GET = 1;
+	/**
+	 * Payload: length prefixed key, value. Response: empty.
+	 */
+	static final byte PUT = 2;
+	/**
+	 * Payload: key. Response: empty.
+	 */
+	static final byte INVALIDATE = 3;
+	/**
+	 * Payload: count, length prefixed keys. Response: count, length prefixed key and value of each key that has one.
+	 */
+	static final byte GET_ALL = 4;
+	/**
+	 * Payload: count, length prefixed key and value of each entry. Response: empty.
+	 */
+	static final byte PUT_ALL = 5;
+	/**
+	 * Payload: count, length prefixed keys. Response: empty.
+	 */
+	static final byte INVALIDATE_ALL = 6;
+	/**
+	 * Payload: long cursor, {@link #NO_CURSOR} to start listing, and int most keys to list, 0 to only release the cursor. Response: long cursor
+	 * of the next page, {@link #NO_CURSOR} once every key was listed, count, length prefixed keys.
+	 */
+	static final byte KEYS = 7;
+	/**
+	 * Payload: count, length prefixed keys. Response: count, then for each entry the length prefixed key, long version, long expiry in
+	 * milliseconds since the epoch (0 for none) and length prefixed value.
+	 */
+	static final byte GET_ALL_VERSIONED = 8;
+	/**
+	 * Payload: count, then for each entry the length prefixed key, long version, long expiry and length prefixed value. Response: empty.
+	 */
+	static final byte PUT_ALL_IF_NEWER = 9;
+	/**
+	 * Payload: count, then for each key the length prefixed key and long version. Response: empty.
+	 */
+	static final byte INVALIDATE_ALL_IF_NOT_NEWER = 10;
+	/**
+	 * Payload: long version. Response: empty.
+	 */
+	static final byte PURGE_TOMBSTONES = 11;
+	/**
+	 * Payload: empty. Response: empty.
+	 */
+	static final byte PING = 12;
+	/**
+	 * Payload: long time to live in nanoseconds, length prefixed key, value. Response: empty.
+	 */
+	static final byte PUT_WITH_TTL = 13;
+
+	static final byte STATUS_OK = 0;
+	/**
+	 * Payload: UTF-8 message
+	 */
+	static final byte STATUS_ERROR = 1;
+
+	/**
+	 * The most buffers handed to one gathering write
+	 */
+	private static final int MAXIMUM_GATHERED_BUFFERS = 128;
+
+	private Protocol() {
+		//
+	}
+
+	/**
+	 * @return A buffer from the pool with the header of a frame written, ready for {@code payloadBytes} bytes of payload
+	 */
+	static ByteBuffer startFrame(BufferPool pool, int requestId, byte code, int payloadBytes) {
+		ByteBuffer frame = pool.acquire(HEADER_BYTES + payloadBytes);
+		frame.putInt(HEADER_BYTES - LENGTH_BYTES + payloadBytes).putInt(requestId).put(code);
+		return frame;
+	}
+
+	static boolean fitsInFrame(long payloadBytes) {
+		return HEADER_BYTES - LENGTH_BYTES + payloadBytes <= MAXIMUM_FRAME_BYTES;
+	}
+
+	static int prefixedBytes(ByteBuffer bytes) {
+		return Integer.BYTES + bytes.remaining();
+	}
+
+	static void putPrefixed(ByteBuffer target, ByteBuffer bytes) {
+		target.putInt(bytes.remaining()).put(bytes.duplicate());
+	}
+
+	/**
+	 * @return A view of the next length prefixed field of the source, which is skipped in the source
+	 */
+	static ByteBuffer nextPrefixed(ByteBuffer source) {
+		return next(source, source.getInt());
+	}
+
+	/**
+	 * @return A view of the next {@code length} bytes of the source, which are skipped in the source
+	 */
+	static ByteBuffer next(ByteBuffer source, int length) {
+		ByteBuffer view = source.duplicate();
+		((Buffer) view).limit(view.position() + length);
+		((Buffer) source).position(source.position() + length);
+		return view;
+	}
+
+	/**
+	 * Write as many of the queued frames as the channel takes, gathering up to {@link #MAXIMUM_GATHERED_BUFFERS} of them into each write call.
+	 * Frames that are written completely are removed from the queue and released to the pool.
+	 *
+	 * @return Whether every queued frame was written; if not, the channel is full and the rest should be written once it is writable again
+	 */
+	static boolean writeFrames(GatheringByteChannel channel, Deque<ByteBuffer> frames, BufferPool pool) throws IOException {
+		ByteBuffer[] batch = new ByteBuffer[Math.min(frames.size(), MAXIMUM_GATHERED_BUFFERS)];
+		while (!frames.isEmpty()) {
+			int count = 0;
+			for (Iterator<ByteBuffer> it = frames.iterator(); it.hasNext() && count < batch.length;) {
+				batch[count++] = it.next();
+			}
+			channel.write(batch, 0, count);
+			boolean batchWritten = !batch[count - 1].hasRemaining();
+			while (!frames.isEmpty() && !frames.peekFirst().hasRemaining()) {
+				pool.release(frames.pollFirst());
+			}
+			if (!batchWritten) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
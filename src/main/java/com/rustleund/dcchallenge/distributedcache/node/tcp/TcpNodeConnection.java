@@ -0,0 +1,1099 @@
+package com.rustleund.dcchallenge.distributedcache.node.tcp;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.rustleund.dcchallenge.distributedcache.node.tcp.Protocol.prefixedBytes;
+import static com.rustleund.dcchallenge.util.FutureUtil.await;
+import static com.rustleund.dcchallenge.util.FutureUtil.failedFuture;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rustleund.dcchallenge.codec.BufferPool;
+import com.rustleund.dcchallenge.codec.Codec;
+import com.rustleund.dcchallenge.codec.Codecs;
+import com.rustleund.dcchallenge.distributedcache.node.AsyncNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+
+/**
+ * A {@link NodeConnection} to a {@link NodeServer} at the hostname and port of its {@link Node}, speaking the binary {@link Protocol}. Keys and
+ * values are encoded with {@link Codec}s straight into pooled frame buffers, and keys hashed with {@link Codecs#funnel(Codec)} are not encoded
+ * again.
+ * <p>
+ * The connection keeps a pool of sockets to the node and spreads requests over them round robin. Requests are pipelined: any number can be in
+ * flight on a socket, and responses are matched to them by request id. One thread runs a {@link Selector} for the sockets; it writes every
+ * frame queued for a socket since its last write with a single gathering write, and decodes responses as they arrive. Futures are completed
+ * on that thread, so code depending on them must not block. A request that gets no response within the request timeout fails with a
+ * {@link SocketTimeoutException}, which counts as a failure of the node like any other {@link IOException}.
+ * <p>
+ * The pool starts with its minimum number of sockets, and opens another one in the background, up to its maximum, whenever requests find the
+ * next socket busy. Once no socket has been busy for the idle timeout, the pool shrinks by one socket each timeout until it is back at its
+ * minimum: the socket stops taking requests and is closed once the requests in flight on it completed. If a socket fails, the requests in
+ * flight on it fail with an {@link IOException}, later requests use the remaining sockets, and a replacement is connected in the background,
+ * backing off while the node cannot be reached. Sockets opened after {@link #open()} are connected without blocking by the selector thread.
+ * Requests never wait for a connect: while no socket is open they fail straight away.
+ * <p>
+ * {@link #keys()} lists the keys of the node a page at a time as the stream is consumed, so no response holds every key.
+ *
+ * @param <KeyT> The type of keys to store
+ * @param <ValueT> The type of values to store
+ */
+public class TcpNodeConnection<KeyT, ValueT> implements AsyncNodeConnection<KeyT, ValueT> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TcpNodeConnection.class);
+
+	private static final int READ_BUFFER_BYTES = 64 << 10;
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+	private static final long INITIAL_RECONNECT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long MAXIMUM_RECONNECT_DELAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+	/**
+	 * A socket with this many requests in flight is busy; sending on a busy socket grows the pool
+	 */
+	private static final int BUSY_SOCKET_REQUESTS = 64;
+	private static final long DEFAULT_IDLE_SOCKET_NANOS = TimeUnit.SECONDS.toNanos(30);
+	private static final long DEFAULT_REQUEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+	/**
+	 * The most keys fetched with each request of {@link #keys()}
+	 */
+	private static final int KEYS_PAGE_SIZE = 1024;
+	/**
+	 * Times out requests and connects, and starts reconnects, for every connection. Its tasks never block.
+	 */
+	private static final ScheduledExecutorService TIMER = newTimer();
+
+	private final Node node;
+	private final Codec<KeyT> keyCodec;
+	private final Codec<ValueT> valueCodec;
+	private final int minimumSockets;
+	private final int maximumSockets;
+	private final long idleSocketNanos;
+	private final long requestTimeoutNanos;
+	private final BufferPool bufferPool = BufferPool.shared();
+	private final AtomicInteger nextSocket = new AtomicInteger();
+	private final Queue<PipelinedSocket> socketsToFlush = new ConcurrentLinkedQueue<>();
+	private final Queue<PipelinedSocket> socketsToRegister = new ConcurrentLinkedQueue<>();
+	private final Object socketsLock = new Object();
+	private volatile List<PipelinedSocket> sockets = Collections.emptyList();
+	private final AtomicInteger targetSockets;
+	private final AtomicBoolean connecting = new AtomicBoolean();
+	private volatile long lastBusyNanos = System.nanoTime();
+	/**
+	 * Sockets taken out of the pool that are closed once their requests completed, only used on the selector thread
+	 */
+	private final List<PipelinedSocket> retiring = new ArrayList<>();
+	/**
+	 * The socket being connected in the background, if any
+	 */
+	private volatile PipelinedSocket connectingSocket;
+	private volatile long reconnectDelayNanos = INITIAL_RECONNECT_DELAY_NANOS;
+	/**
+	 * The address of the node, resolved once when the connection is opened so reconnects never wait for a lookup
+	 */
+	private volatile InetSocketAddress address;
+	private Selector selector;
+	private Thread selectorThread;
+	private volatile boolean closed;
+
+	/**
+	 * @param node The {@link Node} to connect to
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param socketsPerNode The number of sockets to open to the node, at least 1
+	 */
+	public TcpNodeConnection(Node node, Codec<KeyT> keyCodec, Codec<ValueT> valueCodec, int socketsPerNode) {
+		this(node, keyCodec, valueCodec, socketsPerNode, socketsPerNode);
+	}
+
+	/**
+	 * @param node The {@link Node} to connect to
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param minimumSockets The number of sockets to open to the node up front, and to keep open, at least 1
+	 * @param maximumSockets The number of sockets the pool may grow to under load, at least the minimum
+	 */
+	public TcpNodeConnection(Node node, Codec<KeyT> keyCodec, Codec<ValueT> valueCodec, int minimumSockets, int maximumSockets) {
+		this(node, keyCodec, valueCodec, minimumSockets, maximumSockets, DEFAULT_IDLE_SOCKET_NANOS, DEFAULT_REQUEST_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param node The {@link Node} to connect to
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param minimumSockets The number of sockets to open to the node up front, and to keep open, at least 1
+	 * @param maximumSockets The number of sockets the pool may grow to under load, at least the minimum
+	 * @param idleTimeout How long no socket must be busy before the pool closes a socket above its minimum. Defaults to 30 seconds.
+	 * @param requestTimeout How long a request waits for its response before it fails. Defaults to 10 seconds.
+	 * @param unit The unit of both timeouts
+	 */
+	public TcpNodeConnection(Node node, Codec<KeyT> keyCodec, Codec<ValueT> valueCodec, int minimumSockets, int maximumSockets, long idleTimeout,
+			long requestTimeout, TimeUnit unit) {
+		checkArgument(minimumSockets >= 1, "Minimum sockets must be at least 1");
+		checkArgument(maximumSockets >= minimumSockets, "Maximum sockets must be at least the minimum");
+		checkArgument(idleTimeout > 0, "Idle timeout must be positive");
+		checkArgument(requestTimeout > 0, "Request timeout must be positive");
+		this.node = node;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.minimumSockets = minimumSockets;
+		this.maximumSockets = maximumSockets;
+		this.idleSocketNanos = unit.toNanos(idleTimeout);
+		this.requestTimeoutNanos = unit.toNanos(requestTimeout);
+		this.targetSockets = new AtomicInteger(minimumSockets);
+	}
+
+	private static ScheduledExecutorService newTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("tcp-node-timer-%d").build());
+		// Almost every request timeout is cancelled by its response, so drop them straight away
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+
+	/**
+	 * Build a factory of {@link TcpNodeConnection}s. As with any {@link NodeConnectionFactory}, the codecs must match the key and value types of
+	 * the cache the connections are used by.
+	 *
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param socketsPerNode The number of sockets each connection opens to its node
+	 * @return A {@link NodeConnectionFactory} that builds {@link TcpNodeConnection}s
+	 */
+	public static NodeConnectionFactory factory(Codec<?> keyCodec, Codec<?> valueCodec, int socketsPerNode) {
+		return factory(keyCodec, valueCodec, socketsPerNode, socketsPerNode);
+	}
+
+	/**
+	 * Build a factory of {@link TcpNodeConnection}s whose socket pools grow under load, see {@link #factory(Codec, Codec, int)}
+	 *
+	 * @param keyCodec The {@link Codec} to encode keys with
+	 * @param valueCodec The {@link Codec} to encode values with
+	 * @param minimumSockets The number of sockets each connection opens to its node up front
+	 * @param maximumSockets The number of sockets each connection may grow to under load
+	 * @return A {@link NodeConnectionFactory} that builds {@link TcpNodeConnection}s
+	 */
+	public static NodeConnectionFactory factory(Codec<?> keyCodec, Codec<?> valueCodec, int minimumSockets, int maximumSockets) {
+		return new NodeConnectionFactory() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+				return new TcpNodeConnection<>(node, (Codec<KeyT>) keyCodec, (Codec<ValueT>) valueCodec, minimumSockets, maximumSockets);
+			}
+		};
+	}
+
+	/**
+	 * Connect the minimum number of sockets, failing if the node cannot be reached. This is the only time the caller waits for connects.
+	 */
+	@Override
+	public synchronized void open() throws IOException {
+		if (selector != null) {
+			throw new IllegalStateException("Connection already opened");
+		}
+		address = new InetSocketAddress(node.getHostname(), node.getPort());
+		Selector newSelector = Selector.open();
+		List<SocketChannel> channels = new ArrayList<>(minimumSockets);
+		try {
+			for (int i = 0; i < minimumSockets; i++) {
+				channels.add(connect());
+			}
+		} catch (IOException e) {
+			channels.forEach(TcpNodeConnection::closeQuietly);
+			newSelector.close();
+			throw e;
+		}
+		selector = newSelector;
+		channels.forEach(this::addSocket);
+		selectorThread = new Thread(this::runSelector, "tcp-node-" + node.getHostname() + ":" + node.getPort());
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		LOG.info("Opened {} sockets to node {} at {}:{}", minimumSockets, node.getNodeId(), node.getHostname(), node.getPort());
+	}
+
+	/**
+	 * @return The number of sockets currently open to the node
+	 */
+	public int getOpenSockets() {
+		return sockets.size();
+	}
+
+	/**
+	 * Make a round trip to the node
+	 */
+	@Override
+	public void ping() throws IOException {
+		await(send(Protocol.PING, 0, frame -> {
+			//
+		}, payload -> null));
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value) {
+		ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, key);
+		return send(Protocol.PUT, prefixedBytes(keyBytes) + (long) valueCodec.encodedSize(value), frame -> {
+			Protocol.putPrefixed(frame, keyBytes);
+			valueCodec.encode(value, frame);
+		}, payload -> null);
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(KeyT key, ValueT value, long timeToLive, TimeUnit unit) {
+		checkArgument(timeToLive > 0, "Time to live must be positive");
+		ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, key);
+		return send(Protocol.PUT_WITH_TTL, Long.BYTES + prefixedBytes(keyBytes) + (long) valueCodec.encodedSize(value), frame -> {
+			frame.putLong(unit.toNanos(timeToLive));
+			Protocol.putPrefixed(frame, keyBytes);
+			valueCodec.encode(value, frame);
+		}, payload -> null);
+	}
+
+	@Override
+	public CompletableFuture<ValueT> getAsync(KeyT key) {
+		ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, key);
+		return send(Protocol.GET, keyBytes.remaining(), frame -> frame.put(keyBytes.duplicate()),
+				payload -> payload.get() != 0 ? valueCodec.decode(payload) : null);
+	}
+
+	@Override
+	public CompletableFuture<Void> invalidateAsync(KeyT key) {
+		ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, key);
+		return send(Protocol.INVALIDATE, keyBytes.remaining(), frame -> frame.put(keyBytes.duplicate()), payload -> null);
+	}
+
+	@Override
+	public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+		if (keys.isEmpty()) {
+			return new HashMap<>();
+		}
+		return await(sendKeys(Protocol.GET_ALL, keys, payload -> {
+			int count = payload.getInt();
+			Map<KeyT, ValueT> values = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++) {
+				KeyT key = keyCodec.decode(Protocol.nextPrefixed(payload));
+				values.put(key, valueCodec.decode(Protocol.nextPrefixed(payload)));
+			}
+			return values;
+		}));
+	}
+
+	@Override
+	public void putAll(Map<KeyT, ValueT> entries) throws IOException {
+		if (entries.isEmpty()) {
+			return;
+		}
+		List<ByteBuffer> keys = new ArrayList<>(entries.size());
+		List<ValueT> values = new ArrayList<>(entries.size());
+		int[] valueSizes = new int[entries.size()];
+		long payloadBytes = Integer.BYTES;
+		for (Map.Entry<KeyT, ValueT> entry : entries.entrySet()) {
+			ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, entry.getKey());
+			valueSizes[keys.size()] = valueCodec.encodedSize(entry.getValue());
+			payloadBytes += prefixedBytes(keyBytes) + Integer.BYTES + (long) valueSizes[keys.size()];
+			keys.add(keyBytes);
+			values.add(entry.getValue());
+		}
+		await(send(Protocol.PUT_ALL, payloadBytes, frame -> {
+			frame.putInt(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				Protocol.putPrefixed(frame, keys.get(i));
+				frame.putInt(valueSizes[i]);
+				valueCodec.encode(values.get(i), frame);
+			}
+		}, payload -> null));
+	}
+
+	@Override
+	public void invalidateAll(Collection<KeyT> keys) throws IOException {
+		if (!keys.isEmpty()) {
+			await(sendKeys(Protocol.INVALIDATE_ALL, keys, payload -> null));
+		}
+	}
+
+	/**
+	 * Keys are fetched a page at a time as the stream is consumed, through a cursor the node keeps until the last page was fetched or the stream
+	 * is closed. Like the keys of a local store the listing is weakly consistent. If fetching a later page fails, the stream throws an
+	 * {@link UncheckedIOException}.
+	 */
+	@Override
+	public Stream<KeyT> keys() throws IOException {
+		KeyPages pages = new KeyPages(await(fetchKeys(Protocol.NO_CURSOR, KEYS_PAGE_SIZE)));
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.NONNULL), false).onClose(pages::release);
+	}
+
+	/**
+	 * @param cursor The cursor of the page to fetch, or {@link Protocol#NO_CURSOR} for the first page
+	 * @param limit The most keys to fetch, or 0 to only release the cursor
+	 */
+	private CompletableFuture<KeyPage<KeyT>> fetchKeys(long cursor, int limit) {
+		return send(Protocol.KEYS, Long.BYTES + Integer.BYTES, frame -> frame.putLong(cursor).putInt(limit), payload -> {
+			long nextCursor = payload.getLong();
+			int count = payload.getInt();
+			List<KeyT> keys = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				keys.add(keyCodec.decode(Protocol.nextPrefixed(payload)));
+			}
+			return new KeyPage<>(keys, nextCursor);
+		});
+	}
+
+	@Override
+	public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) throws IOException {
+		if (keys.isEmpty()) {
+			return new HashMap<>();
+		}
+		return await(sendKeys(Protocol.GET_ALL_VERSIONED, keys, payload -> {
+			int count = payload.getInt();
+			Map<KeyT, Versioned<ValueT>> entries = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++) {
+				KeyT key = keyCodec.decode(Protocol.nextPrefixed(payload));
+				long version = payload.getLong();
+				long expiresAt = payload.getLong();
+				int valueLength = payload.getInt();
+				entries.put(key, valueLength == Protocol.TOMBSTONE ? Versioned.tombstone(version)
+						: Versioned.of(valueCodec.decode(Protocol.next(payload, valueLength)), version).expiringAt(expiresAt));
+			}
+			return entries;
+		}));
+	}
+
+	@Override
+	public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) throws IOException {
+		if (entries.isEmpty()) {
+			return;
+		}
+		await(sendIfNewer(entries));
+	}
+
+	@Override
+	public CompletableFuture<Void> putIfNewerAsync(KeyT key, Versioned<ValueT> entry) {
+		return sendIfNewer(Collections.singletonMap(key, entry));
+	}
+
+	private CompletableFuture<Void> sendIfNewer(Map<KeyT, Versioned<ValueT>> entries) {
+		List<ByteBuffer> keys = new ArrayList<>(entries.size());
+		List<Versioned<ValueT>> versionedValues = new ArrayList<>(entries.size());
+		int[] valueSizes = new int[entries.size()];
+		long payloadBytes = Integer.BYTES;
+		for (Map.Entry<KeyT, Versioned<ValueT>> entry : entries.entrySet()) {
+			ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, entry.getKey());
+			Versioned<ValueT> versioned = entry.getValue();
+			valueSizes[keys.size()] = versioned.isTombstone() ? 0 : valueCodec.encodedSize(versioned.getValue());
+			payloadBytes += prefixedBytes(keyBytes) + 2 * Long.BYTES + Integer.BYTES + (long) valueSizes[keys.size()];
+			keys.add(keyBytes);
+			versionedValues.add(versioned);
+		}
+		return send(Protocol.PUT_ALL_IF_NEWER, payloadBytes, frame -> {
+			frame.putInt(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				Versioned<ValueT> versioned = versionedValues.get(i);
+				Protocol.putPrefixed(frame, keys.get(i));
+				frame.putLong(versioned.getVersion()).putLong(versioned.getExpiresAtMillis());
+				if (versioned.isTombstone()) {
+					frame.putInt(Protocol.TOMBSTONE);
+				} else {
+					frame.putInt(valueSizes[i]);
+					valueCodec.encode(versioned.getValue(), frame);
+				}
+			}
+		}, payload -> null);
+	}
+
+	@Override
+	public void invalidateAllIfNotNewer(Map<KeyT, Long> versions) throws IOException {
+		if (versions.isEmpty()) {
+			return;
+		}
+		List<ByteBuffer> keys = new ArrayList<>(versions.size());
+		long[] keyVersions = new long[versions.size()];
+		long payloadBytes = Integer.BYTES;
+		for (Map.Entry<KeyT, Long> entry : versions.entrySet()) {
+			ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, entry.getKey());
+			keyVersions[keys.size()] = entry.getValue();
+			payloadBytes += prefixedBytes(keyBytes) + Long.BYTES;
+			keys.add(keyBytes);
+		}
+		await(send(Protocol.INVALIDATE_ALL_IF_NOT_NEWER, payloadBytes, frame -> {
+			frame.putInt(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				Protocol.putPrefixed(frame, keys.get(i));
+				frame.putLong(keyVersions[i]);
+			}
+		}, payload -> null));
+	}
+
+	@Override
+	public void purgeTombstones(long beforeVersion) throws IOException {
+		await(send(Protocol.PURGE_TOMBSTONES, Long.BYTES, frame -> frame.putLong(beforeVersion), payload -> null));
+	}
+
+	/**
+	 * Close every socket, failing the requests still in flight
+	 */
+	@Override
+	public void close() throws IOException {
+		Thread thread;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			thread = selectorThread;
+		}
+		LOG.info("Closing connection for node: {}", node.getNodeId());
+		if (thread == null) {
+			return;
+		}
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		selector.close();
+	}
+
+	private <T> CompletableFuture<T> sendKeys(byte opcode, Collection<KeyT> keys, Function<ByteBuffer, T> responseDecoder) {
+		List<ByteBuffer> encodedKeys = new ArrayList<>(keys.size());
+		long payloadBytes = Integer.BYTES;
+		for (KeyT key : keys) {
+			ByteBuffer keyBytes = Codecs.encodeKey(keyCodec, key);
+			payloadBytes += prefixedBytes(keyBytes);
+			encodedKeys.add(keyBytes);
+		}
+		return send(opcode, payloadBytes, frame -> {
+			frame.putInt(encodedKeys.size());
+			encodedKeys.forEach(keyBytes -> Protocol.putPrefixed(frame, keyBytes));
+		}, responseDecoder);
+	}
+
+	/**
+	 * Queue a request on the next open socket
+	 *
+	 * @param payloadWriter Writes exactly {@code payloadBytes} bytes of payload into the frame. It may be called again if the socket it wrote
+	 *            for was retired meanwhile, so it must not consume its input.
+	 * @param responseDecoder Decodes the payload of a successful response, on the selector thread
+	 */
+	private <T> CompletableFuture<T> send(byte opcode, long payloadBytes, Consumer<ByteBuffer> payloadWriter, Function<ByteBuffer, T> responseDecoder) {
+		if (!Protocol.fitsInFrame(payloadBytes)) {
+			return failedFuture(new IOException("Request of " + payloadBytes + " bytes does not fit in a frame"));
+		}
+		while (true) {
+			PipelinedSocket socket = nextOpenSocket();
+			if (socket == null) {
+				return failedFuture(new IOException("No open connection to node " + node.getNodeId()));
+			}
+			CompletableFuture<T> response = socket.send(opcode, (int) payloadBytes, payloadWriter, responseDecoder);
+			if (response != null) {
+				return response;
+			}
+		}
+	}
+
+	private PipelinedSocket nextOpenSocket() {
+		if (closed) {
+			return null;
+		}
+		List<PipelinedSocket> current = sockets;
+		for (int attempt = 0; attempt < current.size(); attempt++) {
+			PipelinedSocket socket = current.get(Math.floorMod(nextSocket.getAndIncrement(), current.size()));
+			if (socket.failure == null) {
+				if (socket.inFlight.size() >= BUSY_SOCKET_REQUESTS) {
+					lastBusyNanos = System.nanoTime();
+					grow(current.size());
+				}
+				return socket;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Connect one more socket in the background, unless the pool is at its maximum or already growing
+	 */
+	private void grow(int openSockets) {
+		int target = targetSockets.get();
+		if (target < maximumSockets && openSockets >= target && targetSockets.compareAndSet(target, target + 1)) {
+			scheduleConnect(0);
+		}
+	}
+
+	/**
+	 * Retire one socket above the minimum once no socket has been busy for the idle timeout, and close the retired sockets whose requests
+	 * completed, on the selector thread
+	 */
+	private void shrinkIfIdle() {
+		retiring.removeIf(PipelinedSocket::closeIfIdle);
+		long now = System.nanoTime();
+		if (now - lastBusyNanos < idleSocketNanos) {
+			return;
+		}
+		// Shrink by one socket each idle timeout
+		lastBusyNanos = now;
+		List<PipelinedSocket> current = sockets;
+		int target = targetSockets.get();
+		if (current.size() > minimumSockets && target > minimumSockets && targetSockets.compareAndSet(target, target - 1)) {
+			PipelinedSocket socket = current.get(current.size() - 1);
+			socket.retire();
+			retiring.add(socket);
+			LOG.debug("Retiring an idle socket to node {}, {} left", node.getNodeId(), current.size() - 1);
+		}
+	}
+
+	private void scheduleConnect(long delayNanos) {
+		if (!closed && connecting.compareAndSet(false, true)) {
+			TIMER.schedule(this::connectNext, delayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Start connecting one more socket if the pool has fewer than it should, on the timer thread. The connect is finished by the selector
+	 * thread, see {@link #connectSucceeded(PipelinedSocket)} and {@link #connectFailed(PipelinedSocket, IOException)}.
+	 */
+	private void connectNext() {
+		if (closed || sockets.size() >= targetSockets.get()) {
+			connecting.set(false);
+			// A socket may have failed after the check
+			if (sockets.size() < targetSockets.get()) {
+				scheduleConnect(reconnectDelayNanos);
+			}
+			return;
+		}
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open();
+		} catch (IOException e) {
+			connectFailed(null, e);
+			return;
+		}
+		PipelinedSocket socket = new PipelinedSocket(channel, false);
+		connectingSocket = socket;
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(address);
+		} catch (IOException e) {
+			connectFailed(socket, e);
+			return;
+		}
+		socket.connectTimeout = TIMER.schedule(
+				() -> connectFailed(socket, new SocketTimeoutException("Connect timed out after " + CONNECT_TIMEOUT_MILLIS + " ms")),
+				CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		socketsToRegister.add(socket);
+		selector.wakeup();
+		if (closed) {
+			connectFailed(socket, new IOException("Connection to node " + node.getNodeId() + " closed"));
+		}
+	}
+
+	/**
+	 * Add a socket connected in the background to the pool, and connect the next one if the pool is still short
+	 */
+	private void connectSucceeded(PipelinedSocket socket) {
+		connectingSocket = null;
+		reconnectDelayNanos = INITIAL_RECONNECT_DELAY_NANOS;
+		addToPool(socket);
+		connecting.set(false);
+		if (sockets.size() < targetSockets.get()) {
+			scheduleConnect(0);
+		}
+	}
+
+	/**
+	 * Give up on a socket being connected in the background, and try again after a delay that doubles with every failure. Only the first
+	 * outcome of a connect counts, so a connect that timed out cannot succeed later.
+	 *
+	 * @param socket The socket being connected, or {@code null} if it could not even be opened
+	 */
+	private void connectFailed(PipelinedSocket socket, IOException cause) {
+		if (socket != null) {
+			if (!socket.connectFinished.compareAndSet(false, true)) {
+				return;
+			}
+			socket.failure = cause;
+			socket.cancelConnectTimeout();
+			closeQuietly(socket.channel);
+		}
+		connectingSocket = null;
+		long delay = reconnectDelayNanos;
+		reconnectDelayNanos = Math.min(delay * 2, MAXIMUM_RECONNECT_DELAY_NANOS);
+		connecting.set(false);
+		if (!closed) {
+			LOG.warn("Could not connect to node {}, retrying in {} ms: {}", node.getNodeId(), TimeUnit.NANOSECONDS.toMillis(delay), cause.toString());
+			scheduleConnect(delay);
+		}
+	}
+
+	/**
+	 * Connect a socket while opening the connection, blocking until it is connected
+	 */
+	private SocketChannel connect() throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			return channel;
+		} catch (IOException e) {
+			closeQuietly(channel);
+			throw e;
+		}
+	}
+
+	/**
+	 * Start sending requests on a socket connected by {@link #open()}. It is registered with the selector on the selector thread, as
+	 * registering from another thread can block until the selector wakes up.
+	 */
+	private void addSocket(SocketChannel channel) {
+		PipelinedSocket socket = new PipelinedSocket(channel, true);
+		socketsToRegister.add(socket);
+		addToPool(socket);
+		selector.wakeup();
+	}
+
+	private void addToPool(PipelinedSocket socket) {
+		synchronized (socketsLock) {
+			sockets = ImmutableList.<PipelinedSocket> builder().addAll(sockets).add(socket).build();
+		}
+		if (closed) {
+			socket.fail(new IOException("Connection to node " + node.getNodeId() + " closed"));
+		}
+	}
+
+	private void removeSocket(PipelinedSocket socket) {
+		synchronized (socketsLock) {
+			if (sockets.contains(socket)) {
+				ImmutableList.Builder<PipelinedSocket> remaining = ImmutableList.builder();
+				sockets.stream().filter(existing -> existing != socket).forEach(remaining::add);
+				sockets = remaining.build();
+			}
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.debug("Could not close socket {}", channel, e);
+		}
+	}
+
+	private void runSelector() {
+		long selectTimeoutMillis = maximumSockets > minimumSockets ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleSocketNanos) / 4) : 0;
+		try {
+			while (!closed) {
+				selector.select(selectTimeoutMillis);
+				for (PipelinedSocket socket; (socket = socketsToRegister.poll()) != null;) {
+					socket.register();
+				}
+				for (PipelinedSocket socket; (socket = socketsToFlush.poll()) != null;) {
+					socket.flush();
+				}
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					TcpNodeConnection<?, ?>.PipelinedSocket socket = (TcpNodeConnection<?, ?>.PipelinedSocket) key.attachment();
+					if (key.isValid() && key.isConnectable()) {
+						socket.finishConnect();
+					}
+					if (key.isValid() && key.isReadable()) {
+						socket.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						socket.flush();
+					}
+				}
+				if (maximumSockets > minimumSockets) {
+					shrinkIfIdle();
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			closed = true;
+			LOG.error("Selector for node {} failed", node.getNodeId(), e);
+		} finally {
+			IOException closedException = new IOException("Connection to node " + node.getNodeId() + " closed");
+			sockets.forEach(socket -> socket.fail(closedException));
+			retiring.forEach(socket -> socket.fail(closedException));
+			PipelinedSocket connectingNow = connectingSocket;
+			if (connectingNow != null) {
+				connectFailed(connectingNow, closedException);
+			}
+		}
+	}
+
+	/**
+	 * A request waiting for its response
+	 */
+	private static final class PendingRequest<T> {
+
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+		private final Function<ByteBuffer, T> responseDecoder;
+		private volatile ScheduledFuture<?> timeout;
+
+		private PendingRequest(Function<ByteBuffer, T> responseDecoder) {
+			this.responseDecoder = responseDecoder;
+		}
+
+		private void cancelTimeout() {
+			ScheduledFuture<?> scheduled = timeout;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+		}
+
+		private void complete(byte status, ByteBuffer payload) {
+			cancelTimeout();
+			if (status != Protocol.STATUS_OK) {
+				future.completeExceptionally(new IOException("Node failed the request: " + StandardCharsets.UTF_8.decode(payload)));
+				return;
+			}
+			T response;
+			try {
+				response = responseDecoder.apply(payload);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+				return;
+			}
+			future.complete(response);
+		}
+	}
+
+	/**
+	 * One socket to the node, with the frames queued for it and the requests in flight on it
+	 */
+	private final class PipelinedSocket {
+
+		private final SocketChannel channel;
+		private final FrameReader reader = new FrameReader(READ_BUFFER_BYTES);
+		private final AtomicInteger nextRequestId = new AtomicInteger();
+		private final Map<Integer, PendingRequest<?>> inFlight = new ConcurrentHashMap<>();
+		private final Queue<ByteBuffer> queued = new ConcurrentLinkedQueue<>();
+		/**
+		 * Frames taken from the queue that are not completely written yet, only used on the selector thread
+		 */
+		private final Deque<ByteBuffer> writing = new ArrayDeque<>();
+		/**
+		 * Whether the selector thread will flush this socket, either because it is in {@link #socketsToFlush} or waiting for it to be writable
+		 */
+		private final AtomicBoolean flushScheduled = new AtomicBoolean();
+		private volatile SelectionKey selectionKey;
+		private volatile IOException failure;
+		/**
+		 * Whether the socket was taken out of the pool; it takes no more requests and is closed once those in flight completed
+		 */
+		private volatile boolean retired;
+		/**
+		 * Whether connecting the socket succeeded or failed; set up front for sockets connected by {@link #open()}
+		 */
+		private final AtomicBoolean connectFinished;
+		private volatile ScheduledFuture<?> connectTimeout;
+
+		private PipelinedSocket(SocketChannel channel, boolean connected) {
+			this.channel = channel;
+			this.connectFinished = new AtomicBoolean(connected);
+		}
+
+		/**
+		 * @return The future of the response, or {@code null} if the socket was retired and the request should be sent on another
+		 */
+		private <T> CompletableFuture<T> send(byte opcode, int payloadBytes, Consumer<ByteBuffer> payloadWriter, Function<ByteBuffer, T> responseDecoder) {
+			if (retired) {
+				return null;
+			}
+			int requestId = nextRequestId.incrementAndGet();
+			ByteBuffer frame = Protocol.startFrame(bufferPool, requestId, opcode, payloadBytes);
+			try {
+				payloadWriter.accept(frame);
+				if (frame.position() != Protocol.HEADER_BYTES + payloadBytes) {
+					throw new IllegalStateException("Wrote " + (frame.position() - Protocol.HEADER_BYTES) + " bytes of payload, expected " + payloadBytes);
+				}
+			} catch (RuntimeException e) {
+				bufferPool.release(frame);
+				return failedFuture(e);
+			}
+			((Buffer) frame).flip();
+			PendingRequest<T> request = new PendingRequest<>(responseDecoder);
+			inFlight.put(requestId, request);
+			IOException failed = failure;
+			if (failed != null) {
+				inFlight.remove(requestId);
+				bufferPool.release(frame);
+				return failedFuture(failed);
+			}
+			// Checked after adding the request, so either the request backs out here or the socket is not closed while it is in flight
+			if (retired) {
+				inFlight.remove(requestId);
+				bufferPool.release(frame);
+				return null;
+			}
+			request.timeout = TIMER.schedule(() -> timeOut(requestId, request), requestTimeoutNanos, TimeUnit.NANOSECONDS);
+			queued.add(frame);
+			if (flushScheduled.compareAndSet(false, true)) {
+				socketsToFlush.add(this);
+				selector.wakeup();
+			}
+			return request.future;
+		}
+
+		/**
+		 * Fail a request that is still waiting for its response once the request timeout passed. A response that arrives later is ignored.
+		 */
+		private void timeOut(int requestId, PendingRequest<?> request) {
+			if (inFlight.remove(requestId, request)) {
+				request.future.completeExceptionally(new SocketTimeoutException(
+						"Node " + node.getNodeId() + " did not answer within " + TimeUnit.NANOSECONDS.toMillis(requestTimeoutNanos) + " ms"));
+			}
+		}
+
+		/**
+		 * Finish connecting a socket connected in the background, on the selector thread
+		 */
+		private void finishConnect() {
+			try {
+				if (!channel.finishConnect()) {
+					return;
+				}
+			} catch (IOException e) {
+				connectFailed(this, e);
+				return;
+			}
+			if (connectFinished.compareAndSet(false, true)) {
+				cancelConnectTimeout();
+				selectionKey.interestOps(SelectionKey.OP_READ);
+				connectSucceeded(this);
+			}
+		}
+
+		private void cancelConnectTimeout() {
+			ScheduledFuture<?> scheduled = connectTimeout;
+			if (scheduled != null) {
+				scheduled.cancel(false);
+			}
+		}
+
+		/**
+		 * Take the socket out of the pool, so it takes no more requests
+		 */
+		private void retire() {
+			removeSocket(this);
+			retired = true;
+		}
+
+		/**
+		 * Close a retired socket if no requests are in flight on it, on the selector thread
+		 *
+		 * @return Whether the socket is closed
+		 */
+		private boolean closeIfIdle() {
+			if (failure == null && (!inFlight.isEmpty() || !queued.isEmpty() || !writing.isEmpty())) {
+				return false;
+			}
+			if (failure == null) {
+				failure = new IOException("Socket to node " + node.getNodeId() + " was retired");
+			}
+			fail(failure);
+			return true;
+		}
+
+		/**
+		 * Start reading responses from the socket, on the selector thread
+		 */
+		private void register() {
+			if (selectionKey != null || failure != null) {
+				return;
+			}
+			try {
+				selectionKey = channel.register(selector, connectFinished.get() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+			} catch (ClosedChannelException e) {
+				if (connectFinished.get()) {
+					fail(e);
+				} else {
+					connectFailed(this, e);
+				}
+			}
+		}
+
+		/**
+		 * Write every queued frame, or as many as the socket takes and the rest once it is writable again
+		 */
+		private void flush() {
+			register();
+			if (failure != null) {
+				return;
+			}
+			try {
+				while (true) {
+					for (ByteBuffer frame; (frame = queued.poll()) != null;) {
+						writing.add(frame);
+					}
+					if (!Protocol.writeFrames(channel, writing, bufferPool)) {
+						selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					flushScheduled.set(false);
+					if (queued.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+						break;
+					}
+				}
+				selectionKey.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void read() {
+			try {
+				if (!reader.read(channel, this::responseRead)) {
+					fail(new IOException("Node " + node.getNodeId() + " closed the connection"));
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void responseRead(int requestId, byte status, ByteBuffer payload) {
+			PendingRequest<?> request = inFlight.remove(requestId);
+			if (request != null) {
+				request.complete(status, payload);
+			}
+		}
+
+		/**
+		 * Close the socket and fail every request in flight on it. Requests sent afterwards see the failure and fail straight away, and unless the
+		 * connection is closed a replacement socket is connected in the background.
+		 */
+		private void fail(IOException cause) {
+			if (failure == null) {
+				failure = cause;
+				removeSocket(this);
+				if (!closed) {
+					LOG.warn("Connection to node {} failed", node.getNodeId(), cause);
+					scheduleConnect(reconnectDelayNanos);
+				}
+			}
+			SelectionKey key = selectionKey;
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOG.debug("Could not close socket to node {}", node.getNodeId(), e);
+			}
+			for (Iterator<PendingRequest<?>> it = inFlight.values().iterator(); it.hasNext();) {
+				PendingRequest<?> request = it.next();
+				it.remove();
+				request.cancelTimeout();
+				request.future.completeExceptionally(failure);
+			}
+			for (ByteBuffer frame; (frame = queued.poll()) != null;) {
+				bufferPool.release(frame);
+			}
+			for (ByteBuffer frame; (frame = writing.poll()) != null;) {
+				bufferPool.release(frame);
+			}
+		}
+	}
+
+	/**
+	 * One page of the keys of the node
+	 */
+	private static final class KeyPage<KeyT> {
+
+		private final List<KeyT> keys;
+		/**
+		 * The cursor of the next page, or {@link Protocol#NO_CURSOR} if this is the last page
+		 */
+		private final long nextCursor;
+
+		private KeyPage(List<KeyT> keys, long nextCursor) {
+			this.keys = keys;
+			this.nextCursor = nextCursor;
+		}
+	}
+
+	/**
+	 * Iterates over the keys of the node, fetching the next page once the current one is used up
+	 */
+	private final class KeyPages extends AbstractIterator<KeyT> {
+
+		private Iterator<KeyT> page;
+		private long cursor;
+
+		private KeyPages(KeyPage<KeyT> first) {
+			this.page = first.keys.iterator();
+			this.cursor = first.nextCursor;
+		}
+
+		@Override
+		protected KeyT computeNext() {
+			while (!page.hasNext()) {
+				if (cursor == Protocol.NO_CURSOR) {
+					return endOfData();
+				}
+				KeyPage<KeyT> next;
+				try {
+					next = await(fetchKeys(cursor, KEYS_PAGE_SIZE));
+				} catch (IOException e) {
+					cursor = Protocol.NO_CURSOR;
+					throw new UncheckedIOException(e);
+				}
+				page = next.keys.iterator();
+				cursor = next.nextCursor;
+			}
+			return page.next();
+		}
+
+		/**
+		 * Let the node drop the cursor of a listing that was not read to the end, without waiting for it
+		 */
+		private void release() {
+			if (cursor != Protocol.NO_CURSOR) {
+				fetchKeys(cursor, 0);
+				cursor = Protocol.NO_CURSOR;
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.rustleund.dcchallenge.hashinglookup;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the load on a set of values, such as the requests in flight to each node, for consistent hashing with bounded loads. Every value has a
+ * capacity of {@code ceil((1 + balanceFactor) * (totalLoad + 1) / values)}, so no value takes more than {@code 1 + balanceFactor} times the
+ * average load. A lookup that skips values without capacity, see {@link HashRing#valueFor(int, java.util.function.Predicate)}, walks on to the
+ * next value on the ring, which keeps most keys on their usual value while capping hot ones.
+ *
+ * @param <ValueT> The type of values to track
+ */
+public final class BoundedLoad<ValueT> {
+
+	private final double balanceFactor;
+	private final Map<ValueT, AtomicInteger> loads = new ConcurrentHashMap<>();
+	private final AtomicInteger totalLoad = new AtomicInteger();
+
+	/**
+	 * @param balanceFactor How far above the average load a value may go, as a fraction of the average. Must not be negative; 0.25 is a good
+	 *            trade off between balance and keys moving away from their usual value.
+	 */
+	public BoundedLoad(double balanceFactor) {
+		checkArgument(balanceFactor >= 0, "Balance factor must not be negative");
+		this.balanceFactor = balanceFactor;
+	}
+
+	/**
+	 * Start tracking the load of a value. Tracking a value that is already tracked has no effect.
+	 */
+	public void track(ValueT value) {
+		loads.putIfAbsent(value, new AtomicInteger());
+	}
+
+	/**
+	 * Stop tracking the load of a value. Its load no longer counts towards the total, and releasing it later has no effect.
+	 */
+	public void untrack(ValueT value) {
+		AtomicInteger load = loads.remove(value);
+		if (load != null) {
+			totalLoad.addAndGet(-load.get());
+		}
+	}
+
+	/**
+	 * Add one unit of load to a tracked value, for example when a request is sent to it
+	 */
+	public void acquire(ValueT value) {
+		AtomicInteger load = loads.get(value);
+		if (load != null) {
+			load.incrementAndGet();
+			totalLoad.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Remove one unit of load from a tracked value, for example when a request to it completes
+	 */
+	public void release(ValueT value) {
+		AtomicInteger load = loads.get(value);
+		if (load != null) {
+			load.decrementAndGet();
+			totalLoad.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The current load of the value, 0 if it is not tracked
+	 */
+	public int load(ValueT value) {
+		AtomicInteger load = loads.get(value);
+		return load != null ? load.get() : 0;
+	}
+
+	/**
+	 * @return The most load any value may carry after taking one more unit, or {@link Integer#MAX_VALUE} if no values are tracked
+	 */
+	public int capacity() {
+		int values = loads.size();
+		if (values == 0) {
+			return Integer.MAX_VALUE;
+		}
+		return (int) Math.ceil((1 + balanceFactor) * (Math.max(0, totalLoad.get()) + 1) / values);
+	}
+
+	/**
+	 * @return Whether the value can take one more unit of load without going over {@link #capacity()}. Untracked values always can.
+	 */
+	public boolean hasCapacity(ValueT value) {
+		AtomicInteger load = loads.get(value);
+		return load == null || load.get() + 1 <= capacity();
+	}
+}
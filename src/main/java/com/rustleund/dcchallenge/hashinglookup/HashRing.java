@@ -0,0 +1,282 @@
+package com.rustleund.dcchallenge.hashinglookup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.Table;
+import com.google.common.collect.TreeRangeSet;
+
+/**
+ * An immutable snapshot of a consistent hashing ring: a sorted array of replica hashes with a parallel array of the values owning them. A hash
+ * is owned by the value of the first replica at or after it, wrapping around to the first replica.
+ *
+ * @param <ValueT> The type of values on the ring
+ */
+public final class HashRing<ValueT> {
+
+	private static final HashRing<?> EMPTY = new HashRing<>(new int[0], new Object[0]);
+
+	private final int[] hashes;
+	private final Object[] values;
+	/**
+	 * The number of distinct values on the ring, so looking up more values than there are stops once it found them all rather than walking the
+	 * whole ring
+	 */
+	private final int distinctValues;
+
+	private HashRing(int[] hashes, Object[] values) {
+		this.hashes = hashes;
+		this.values = values;
+		this.distinctValues = (int) Arrays.stream(values).distinct().count();
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <ValueT> HashRing<ValueT> empty() {
+		return (HashRing<ValueT>) EMPTY;
+	}
+
+	public boolean isEmpty() {
+		return hashes.length == 0;
+	}
+
+	/**
+	 * @return The number of replicas on the ring
+	 */
+	public int size() {
+		return hashes.length;
+	}
+
+	/**
+	 * @param hashCode A hash
+	 * @return The value owning the given hash, or {@code null} if the ring is empty
+	 */
+	public ValueT valueFor(int hashCode) {
+		if (isEmpty()) {
+			return null;
+		}
+		int index = firstIndexAtOrAfter(hashCode);
+		if (index == hashes.length) {
+			index = 0;
+		}
+		return valueAt(index);
+	}
+
+	/**
+	 * Walk clockwise from the given hash to the first value that is accepted, for consistent hashing with bounded loads, see {@link BoundedLoad}
+	 *
+	 * @param hashCode A hash
+	 * @param accept Whether a value may take the hash, for example because it is under its load cap
+	 * @return The first accepted value at or after the hash, the owner if no value is accepted, or {@code null} if the ring is empty
+	 */
+	public ValueT valueFor(int hashCode, Predicate<? super ValueT> accept) {
+		if (isEmpty()) {
+			return null;
+		}
+		int start = firstIndexAtOrAfter(hashCode);
+		for (int i = 0; i < hashes.length; i++) {
+			ValueT value = valueAt((start + i) % hashes.length);
+			if (accept.test(value)) {
+				return value;
+			}
+		}
+		return valueAt(start % hashes.length);
+	}
+
+	/**
+	 * @param hashCode A hash
+	 * @param n The maximum number of values to return
+	 * @return The owner of the given hash followed by the next distinct values clockwise around the ring, up to {@code n} values in total
+	 */
+	public List<ValueT> valuesFor(int hashCode, int n) {
+		if (isEmpty()) {
+			return Collections.emptyList();
+		}
+		int wanted = Math.min(n, distinctValues);
+		List<ValueT> found = new ArrayList<>(wanted);
+		int start = firstIndexAtOrAfter(hashCode);
+		for (int i = 0; found.size() < wanted; i++) {
+			ValueT value = valueAt((start + i) % hashes.length);
+			if (!found.contains(value)) {
+				found.add(value);
+			}
+		}
+		return found;
+	}
+
+	@SuppressWarnings("unchecked")
+	private ValueT valueAt(int index) {
+		return (ValueT) values[index];
+	}
+
+	private int firstIndexAtOrAfter(int hashCode) {
+		int low = 0;
+		int high = hashes.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (hashes[mid] < hashCode) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Merge the given sorted replica hashes into a copy of this ring. New replicas are placed before existing replicas with an equal hash.
+	 *
+	 * @param value The value the replicas belong to
+	 * @param sortedReplicaHashes The hashes of the new replicas, sorted ascending
+	 * @return A new ring including the replicas
+	 */
+	public HashRing<ValueT> withReplicas(ValueT value, int[] sortedReplicaHashes) {
+		int[] newHashes = new int[hashes.length + sortedReplicaHashes.length];
+		Object[] newValues = new Object[newHashes.length];
+		int existingIndex = 0;
+		int replicaIndex = 0;
+		for (int i = 0; i < newHashes.length; i++) {
+			if (existingIndex == hashes.length || (replicaIndex < sortedReplicaHashes.length && sortedReplicaHashes[replicaIndex] <= hashes[existingIndex])) {
+				newHashes[i] = sortedReplicaHashes[replicaIndex++];
+				newValues[i] = value;
+			} else {
+				newHashes[i] = hashes[existingIndex];
+				newValues[i] = values[existingIndex++];
+			}
+		}
+		return new HashRing<>(newHashes, newValues);
+	}
+
+	/**
+	 * @param value The value to remove replicas of
+	 * @param maxReplicas The maximum number of replicas to remove, in ring order
+	 * @return A new ring without the first {@code maxReplicas} replicas of the given value, or this ring if it has none
+	 */
+	public HashRing<ValueT> withoutReplicas(ValueT value, int maxReplicas) {
+		int[] newHashes = new int[hashes.length];
+		Object[] newValues = new Object[values.length];
+		int kept = 0;
+		int found = 0;
+		for (int i = 0; i < hashes.length; i++) {
+			if (found < maxReplicas && values[i].equals(value)) {
+				found++;
+			} else {
+				newHashes[kept] = hashes[i];
+				newValues[kept++] = values[i];
+			}
+		}
+		if (found == 0) {
+			return this;
+		}
+		return new HashRing<>(Arrays.copyOf(newHashes, kept), Arrays.copyOf(newValues, kept));
+	}
+
+	/**
+	 * @param value The value to remove replicas of
+	 * @param replicaHashes The hashes of the replicas to remove
+	 * @return A new ring without the replicas of the given value at the given hashes, or this ring if it has none of them
+	 */
+	public HashRing<ValueT> withoutReplicas(ValueT value, int[] replicaHashes) {
+		Multiset<Integer> toRemove = HashMultiset.create();
+		Arrays.stream(replicaHashes).forEach(toRemove::add);
+		int[] newHashes = new int[hashes.length];
+		Object[] newValues = new Object[values.length];
+		int kept = 0;
+		for (int i = 0; i < hashes.length; i++) {
+			if (!values[i].equals(value) || !toRemove.remove(hashes[i])) {
+				newHashes[kept] = hashes[i];
+				newValues[kept++] = values[i];
+			}
+		}
+		if (kept == hashes.length) {
+			return this;
+		}
+		return new HashRing<>(Arrays.copyOf(newHashes, kept), Arrays.copyOf(newValues, kept));
+	}
+
+	/**
+	 * Find the hash ranges whose owner differs between this ring and a newer ring. Nothing is reported if either ring is empty, as there is
+	 * then either nothing to move or nowhere to move it to.
+	 *
+	 * @param newRing The ring to compare against
+	 * @return A {@link Table} of previous owner, new owner to the hash ranges that moved between them
+	 */
+	public Table<ValueT, ValueT, RangeSet<Integer>> ownershipChangesTo(HashRing<ValueT> newRing) {
+		Table<ValueT, ValueT, RangeSet<Integer>> changes = HashBasedTable.create();
+		if (isEmpty() || newRing.isEmpty()) {
+			return changes;
+		}
+		int[] boundaries = mergeBoundaries(hashes, newRing.hashes);
+		for (int i = 0; i < boundaries.length; i++) {
+			ValueT previousOwner = valueFor(boundaries[i]);
+			ValueT newOwner = newRing.valueFor(boundaries[i]);
+			if (!previousOwner.equals(newOwner)) {
+				RangeSet<Integer> ranges = changes.get(previousOwner, newOwner);
+				if (ranges == null) {
+					ranges = TreeRangeSet.create();
+					changes.put(previousOwner, newOwner, ranges);
+				}
+				int startExclusive = boundaries[i == 0 ? boundaries.length - 1 : i - 1];
+				addRange(ranges, startExclusive, boundaries[i]);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Find the hash ranges whose first {@code n} distinct values differ between this ring and a newer ring, for replicated values: a change in
+	 * any of a hash's replicas means its values must be copied or removed. Nothing is reported if either ring is empty.
+	 *
+	 * @param newRing The ring to compare against
+	 * @param n The number of values each hash is stored on
+	 * @return Each value of this ring to the ranges it was one of the {@code n} values of, whose values have changed
+	 */
+	public Map<ValueT, RangeSet<Integer>> replicaChangesTo(HashRing<ValueT> newRing, int n) {
+		Map<ValueT, RangeSet<Integer>> changes = new HashMap<>();
+		if (isEmpty() || newRing.isEmpty()) {
+			return changes;
+		}
+		int[] boundaries = mergeBoundaries(hashes, newRing.hashes);
+		for (int i = 0; i < boundaries.length; i++) {
+			List<ValueT> previousValues = valuesFor(boundaries[i], n);
+			if (!new HashSet<>(previousValues).equals(new HashSet<>(newRing.valuesFor(boundaries[i], n)))) {
+				int startExclusive = boundaries[i == 0 ? boundaries.length - 1 : i - 1];
+				for (ValueT value : previousValues) {
+					addRange(changes.computeIfAbsent(value, v -> TreeRangeSet.create()), startExclusive, boundaries[i]);
+				}
+			}
+		}
+		return changes;
+	}
+
+	private static int[] mergeBoundaries(int[] first, int[] second) {
+		int[] merged = new int[first.length + second.length];
+		System.arraycopy(first, 0, merged, 0, first.length);
+		System.arraycopy(second, 0, merged, first.length, second.length);
+		return Arrays.stream(merged).sorted().distinct().toArray();
+	}
+
+	/**
+	 * Add the ring range ({@code startExclusive}, {@code endInclusive}], which wraps past {@link Integer#MAX_VALUE} when the start is not below the end
+	 */
+	private static void addRange(RangeSet<Integer> ranges, int startExclusive, int endInclusive) {
+		if (startExclusive < endInclusive) {
+			ranges.add(Range.openClosed(startExclusive, endInclusive));
+		} else {
+			if (startExclusive < Integer.MAX_VALUE) {
+				ranges.add(Range.openClosed(startExclusive, Integer.MAX_VALUE));
+			}
+			ranges.add(Range.closed(Integer.MIN_VALUE, endInclusive));
+		}
+	}
+}
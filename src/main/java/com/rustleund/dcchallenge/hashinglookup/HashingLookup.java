@@ -1,5 +1,8 @@
 package com.rustleund.dcchallenge.hashinglookup;
 
+import java.util.Collections;
+import java.util.List;
+
 import com.google.common.hash.Funnel;
 
 /**
@@ -36,4 +39,20 @@ public interface HashingLookup<ValueT> {
 	 * @return The value that best matches the key in the lookup, or {@code null} if no match is found or the lookup is empty
 	 */
 	<KeyT> ValueT lookupValue(KeyT key, Funnel<? super KeyT> keyFunnel);
+
+	/**
+	 * Find up to {@code n} distinct values for a key, for example to store copies of a value on several nodes. The first value is the one
+	 * {@link #lookupValue(Object, Funnel)} returns, the rest are the following best matches in order. Fewer than {@code n} values are returned if
+	 * the lookup holds fewer. Implementations that have no natural order of matches return only the best match.
+	 *
+	 * @param key The key to find values for in the lookup
+	 * @param keyFunnel A {@link Funnel} to create a hash for the key
+	 * @param n The maximum number of values to return
+	 * @param <KeyT> The type of the key
+	 * @return The distinct values that best match the key, best first, or an empty list if the lookup is empty
+	 */
+	default <KeyT> List<ValueT> lookupValues(KeyT key, Funnel<? super KeyT> keyFunnel, int n) {
+		ValueT value = lookupValue(key, keyFunnel);
+		return value == null ? Collections.emptyList() : Collections.singletonList(value);
+	}
 }
@@ -0,0 +1,41 @@
+package com.rustleund.dcchallenge.hashinglookup;
+
+import java.util.function.Predicate;
+
+import com.google.common.hash.Funnel;
+
+/**
+ * A {@link HashingLookup} backed by a consistent hashing ring. Exposing the ring lets callers work out exactly which hash ranges changed owner
+ * when values are stored or removed, see {@link HashRing#ownershipChangesTo(HashRing)}.
+ *
+ * @param <ValueT> The type of values stored in the lookup
+ */
+public interface RingHashingLookup<ValueT> extends HashingLookup<ValueT> {
+
+	/**
+	 * @return The current ring, which will not change after it is returned
+	 */
+	HashRing<ValueT> snapshot();
+
+	/**
+	 * @param key The key to hash
+	 * @param keyFunnel A {@link Funnel} to create a hash for the key
+	 * @param <KeyT> The type of the key
+	 * @return The position of the key on the ring, as used by {@link #lookupValue(Object, Funnel)}
+	 */
+	<KeyT> int hash(KeyT key, Funnel<? super KeyT> keyFunnel);
+
+	/**
+	 * Look up a value with bounded loads: the first value clockwise from the key that is accepted, typically {@link BoundedLoad#hasCapacity}
+	 *
+	 * @param key The key to look up
+	 * @param keyFunnel A {@link Funnel} to create a hash for the key
+	 * @param accept Whether a value may take the key
+	 * @param <KeyT> The type of the key
+	 * @return The first accepted value, the owner of the key if no value is accepted, or {@code null} if nothing is stored
+	 * @see HashRing#valueFor(int, Predicate)
+	 */
+	default <KeyT> ValueT lookupValue(KeyT key, Funnel<? super KeyT> keyFunnel, Predicate<? super ValueT> accept) {
+		return snapshot().valueFor(hash(key, keyFunnel), accept);
+	}
+}
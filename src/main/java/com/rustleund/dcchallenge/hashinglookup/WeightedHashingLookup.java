@@ -0,0 +1,19 @@
+package com.rustleund.dcchallenge.hashinglookup;
+
+/**
+ * A {@link HashingLookup} where each value gets a share of keys proportional to its weight, for example the capacity of a node. Weights can be
+ * changed while the lookup is in use.
+ *
+ * @param <ValueT> The type of values stored in the lookup
+ */
+public interface WeightedHashingLookup<ValueT> extends HashingLookup<ValueT> {
+
+	/**
+	 * Change the weight of a stored value. Only keys in the share the value gains or loses change owner.
+	 *
+	 * @param value A value stored in the lookup
+	 * @param weight The new weight, relative to a weight of 1, must be positive
+	 * @throws IllegalArgumentException If the value is not stored, or the weight is not positive
+	 */
+	void setWeight(ValueT value, double weight);
+}
@@ -3,34 +3,46 @@ package com.rustleund.dcchallenge.hashinglookup.impl;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
 import java.util.stream.IntStream;
 
 import com.google.common.hash.Funnel;
 import com.google.common.hash.Funnels;
 import com.google.common.hash.HashFunction;
+import com.rustleund.dcchallenge.hashinglookup.HashRing;
 import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+import com.rustleund.dcchallenge.hashinglookup.RingHashingLookup;
+import com.rustleund.dcchallenge.hashinglookup.WeightedHashingLookup;
 
 /**
  * Implementation of {@link HashingLookup} that uses a consistent hashing algorithm, with replicas. Values will be turned into a string
  * for hashing purposes.
+ * <p>
+ * The ring is kept as an immutable {@link HashRing} of sorted replica hashes with a parallel array of values. {@link #storeValue(Object)} and
+ * {@link #removeValue(Object)} build and publish a new snapshot, so {@link #lookupValue(Object, Funnel)} never takes a lock and only
+ * reads the currently published snapshot.
+ * <p>
+ * Each value gets {@code numberOfReplicas} replicas scaled by its weight, so a value of weight 2 owns about twice as many keys as a value of
+ * weight 1. Replica {@code i} of a value always hashes to the same place, so {@link #setWeight(Object, double)} only adds or removes the
+ * replicas past the smaller count, and only the ranges of those replicas change owner.
  *
  * @param <ValueT> The type of the value to store in the lookup
  */
-public class ConsistentHashingLookup<ValueT> implements HashingLookup<ValueT> {
+public class ConsistentHashingLookup<ValueT> implements RingHashingLookup<ValueT>, WeightedHashingLookup<ValueT> {
 
 	private static final Funnel<? super String> VALUE_ID_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
 
-	private final List<ValueReplica> valueReplicas = new ArrayList<>();
-	private final List<Integer> valueReplicaHashes = new ArrayList<>();
+	private volatile HashRing<ValueT> ring = HashRing.empty();
+	private final Map<ValueT, Integer> replicaCounts = new HashMap<>();
 
 	private final int numberOfReplicas;
 	private final HashFunction hashFunction;
 	private final Function<? super ValueT, ? extends String> valueIdFunction;
+	private final ToDoubleFunction<? super ValueT> weightFunction;
 
 	/**
 	 * @param numberOfReplicas The number of replicas to put in the lookup for each value added, must be at least 1
@@ -38,81 +50,95 @@ public class ConsistentHashingLookup<ValueT> implements HashingLookup<ValueT> {
 	 * @param valueIdFunction  A {@link Function} to turn stored values into a String, will be used to help produce a hash for the value
 	 */
 	public ConsistentHashingLookup(int numberOfReplicas, HashFunction hashFunction, Function<? super ValueT, ? extends String> valueIdFunction) {
+		this(numberOfReplicas, hashFunction, valueIdFunction, value -> 1);
+	}
+
+	/**
+	 * @param numberOfReplicas The number of replicas to put in the lookup for a value of weight 1, must be at least 1
+	 * @param hashFunction     The {@link HashFunction} to use to hash values and keys for lookup, must produce hashes no more than 32 bits
+	 * @param valueIdFunction  A {@link Function} to turn stored values into a String, will be used to help produce a hash for the value
+	 * @param weightFunction   The initial weight of a value when it is stored, for example from the type of a node. Every value gets at least
+	 *                         one replica.
+	 */
+	public ConsistentHashingLookup(int numberOfReplicas, HashFunction hashFunction, Function<? super ValueT, ? extends String> valueIdFunction,
+			ToDoubleFunction<? super ValueT> weightFunction) {
 		checkArgument(numberOfReplicas >= 1, "Number of replicas must be greater than or equal to 1");
 		checkArgument(hashFunction.bits() <= 32, "Hash Function must produce hashes less than or equal to 32 bits");
 		this.numberOfReplicas = numberOfReplicas;
 		this.hashFunction = hashFunction;
 		this.valueIdFunction = valueIdFunction;
+		this.weightFunction = weightFunction;
 	}
 
+	/**
+	 * Storing a value that is already stored has no effect
+	 */
 	@Override
 	public synchronized void storeValue(ValueT value) {
-		IntStream.range(0, numberOfReplicas).forEach(replicaIndex -> storeValueReplica(value, replicaIndex));
+		if (replicaCounts.containsKey(value)) {
+			return;
+		}
+		int count = replicaCount(weightFunction.applyAsDouble(value));
+		ring = ring.withReplicas(value, replicaHashes(value, 0, count));
+		replicaCounts.put(value, count);
 	}
 
-	private void storeValueReplica(ValueT value, int replicaIndex) {
-		ValueReplica replica = new ValueReplica(value, replicaIndex);
-		String replicaId = replica.toString();
-		int replicaIdHashCode = hashFunction.hashObject(replicaId, VALUE_ID_FUNNEL).asInt();
-		int insertionIndex = getInsertionIndex(replicaIdHashCode);
-		valueReplicas.add(insertionIndex, replica);
-		valueReplicaHashes.add(insertionIndex, replicaIdHashCode);
+	@Override
+	public synchronized void setWeight(ValueT value, double weight) {
+		Integer current = replicaCounts.get(value);
+		checkArgument(current != null, "%s is not stored", value);
+		int count = replicaCount(weight);
+		if (count > current) {
+			ring = ring.withReplicas(value, replicaHashes(value, current, count));
+		} else if (count < current) {
+			ring = ring.withoutReplicas(value, replicaHashes(value, count, current));
+		}
+		replicaCounts.put(value, count);
 	}
 
-	private int getInsertionIndex(int hashCode) {
-		int binarySearchResult = Collections.binarySearch(valueReplicaHashes, hashCode);
-		if (binarySearchResult < 0) {
-			return (binarySearchResult + 1) * -1;
-		}
-		return binarySearchResult;
+	private int replicaCount(double weight) {
+		checkArgument(weight > 0, "Weight must be positive");
+		return Math.max(1, (int) Math.round(numberOfReplicas * weight));
+	}
+
+	private int[] replicaHashes(ValueT value, int fromIndex, int toIndex) {
+		return IntStream.range(fromIndex, toIndex).map(replicaIndex -> hashReplica(value, replicaIndex)).sorted().toArray();
+	}
+
+	private int hashReplica(ValueT value, int replicaIndex) {
+		String replicaId = valueIdFunction.apply(value) + "_" + replicaIndex;
+		return hashFunction.hashObject(replicaId, VALUE_ID_FUNNEL).asInt();
 	}
 
 	@Override
 	public synchronized void removeValue(ValueT value) {
-		Iterator<ValueReplica> replicaIterator = valueReplicas.iterator();
-		Iterator<Integer> valueHashesIterator = valueReplicaHashes.iterator();
-		int foundReplicas = 0;
-		while (replicaIterator.hasNext() && foundReplicas < numberOfReplicas) {
-			ValueReplica replica = replicaIterator.next();
-			valueHashesIterator.next();
-			if (replica.getValue().equals(value)) {
-				foundReplicas++;
-				replicaIterator.remove();
-				valueHashesIterator.remove();
-			}
+		Integer count = replicaCounts.remove(value);
+		if (count != null) {
+			ring = ring.withoutReplicas(value, count);
 		}
 	}
 
 	@Override
-	public synchronized <KeyT> ValueT lookupValue(KeyT key, Funnel<? super KeyT> keyFunnel) {
-		if (valueReplicas.isEmpty()) {
+	public <KeyT> ValueT lookupValue(KeyT key, Funnel<? super KeyT> keyFunnel) {
+		HashRing<ValueT> current = ring;
+		if (current.isEmpty()) {
 			return null;
 		}
-		int hashCode = hashFunction.hashObject(key, keyFunnel).asInt();
-		int insertionIndex = getInsertionIndex(hashCode);
-		if (insertionIndex == valueReplicas.size()) {
-			insertionIndex = 0;
-		}
-		return valueReplicas.get(insertionIndex).getValue();
+		return current.valueFor(hash(key, keyFunnel));
 	}
 
-	private class ValueReplica {
-
-		private final ValueT value;
-		private final int replicaIndex;
-
-		ValueReplica(ValueT value, int replicaIndex) {
-			this.value = value;
-			this.replicaIndex = replicaIndex;
-		}
+	@Override
+	public <KeyT> List<ValueT> lookupValues(KeyT key, Funnel<? super KeyT> keyFunnel, int n) {
+		return ring.valuesFor(hash(key, keyFunnel), n);
+	}
 
-		ValueT getValue() {
-			return value;
-		}
+	@Override
+	public HashRing<ValueT> snapshot() {
+		return ring;
+	}
 
-		@Override
-		public String toString() {
-			return valueIdFunction.apply(value) + "_" + replicaIndex;
-		}
+	@Override
+	public <KeyT> int hash(KeyT key, Funnel<? super KeyT> keyFunnel) {
+		return hashFunction.hashObject(key, keyFunnel).asInt();
 	}
 }
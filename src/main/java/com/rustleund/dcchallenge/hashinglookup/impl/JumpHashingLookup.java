@@ -0,0 +1,68 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+
+/**
+ * Implementation of {@link HashingLookup} using jump consistent hashing ({@link Hashing#consistentHash(long, int)}). Values are numbered in
+ * the order they are stored, and a key is mapped to a number without any table, so the lookup uses no memory beyond the list of values and
+ * gives a near perfect spread.
+ * <p>
+ * Jump hashing can only add or remove the highest number. Adding a value, or removing the most recently added one, moves only the keys that
+ * must move. Removing any other value moves the most recently added value into its number, so the keys of both move. Jump hashing has no
+ * order of next best values, so {@link #lookupValues(Object, Funnel, int)} only returns the best one.
+ *
+ * @param <ValueT> The type of the value to store in the lookup
+ */
+public class JumpHashingLookup<ValueT> implements HashingLookup<ValueT> {
+
+	private volatile Object[] values = new Object[0];
+
+	private final HashFunction hashFunction;
+
+	/**
+	 * @param hashFunction The {@link HashFunction} to use to hash keys for lookup, must produce hashes of at least 32 bits
+	 */
+	public JumpHashingLookup(HashFunction hashFunction) {
+		checkArgument(hashFunction.bits() >= 32, "Hash Function must produce hashes of at least 32 bits");
+		this.hashFunction = hashFunction;
+	}
+
+	@Override
+	public synchronized void storeValue(ValueT value) {
+		Object[] current = values;
+		Object[] newValues = Arrays.copyOf(current, current.length + 1);
+		newValues[current.length] = value;
+		values = newValues;
+	}
+
+	@Override
+	public synchronized void removeValue(ValueT value) {
+		Object[] current = values;
+		int index = Arrays.asList(current).indexOf(value);
+		if (index < 0) {
+			return;
+		}
+		Object[] newValues = Arrays.copyOf(current, current.length - 1);
+		if (index < newValues.length) {
+			newValues[index] = current[current.length - 1];
+		}
+		values = newValues;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <KeyT> ValueT lookupValue(KeyT key, Funnel<? super KeyT> keyFunnel) {
+		Object[] current = values;
+		if (current.length == 0) {
+			return null;
+		}
+		return (ValueT) current[Hashing.consistentHash(hashFunction.hashObject(key, keyFunnel).padToLong(), current.length)];
+	}
+}
@@ -0,0 +1,161 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.math.IntMath;
+import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+
+/**
+ * Implementation of {@link HashingLookup} using Maglev hashing. Every value gets a permutation of the slots of a fixed size lookup table, and
+ * values take turns claiming their next free slot until the table is full, so each value owns almost exactly {@code 1 / n} of the table. A
+ * lookup hashes the key to a slot and reads the table, which takes constant time however many values are stored.
+ * <p>
+ * When a value is added or removed, a small fraction of slots change owner in addition to those that must move, in exchange for the even
+ * spread. The table is rebuilt and published as a whole, so lookups never take a lock. Values will be turned into a string for hashing
+ * purposes.
+ *
+ * @param <ValueT> The type of the value to store in the lookup
+ */
+public class MaglevHashingLookup<ValueT> implements HashingLookup<ValueT> {
+
+	/**
+	 * The default table size, a prime a little over 2^16
+	 */
+	public static final int DEFAULT_TABLE_SIZE = 65537;
+
+	private static final Funnel<? super String> VALUE_ID_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+
+	private final Map<ValueT, String> valueIds = new LinkedHashMap<>();
+	private volatile LookupTable table;
+
+	private final int tableSize;
+	private final HashFunction hashFunction;
+	private final Function<? super ValueT, ? extends String> valueIdFunction;
+
+	/**
+	 * @param hashFunction The {@link HashFunction} to use to hash values and keys for lookup, must produce hashes of at least 32 bits
+	 * @param valueIdFunction A {@link Function} to turn stored values into a String, will be used to place the value in the table
+	 */
+	public MaglevHashingLookup(HashFunction hashFunction, Function<? super ValueT, ? extends String> valueIdFunction) {
+		this(DEFAULT_TABLE_SIZE, hashFunction, valueIdFunction);
+	}
+
+	/**
+	 * @param tableSize The number of slots in the lookup table, must be prime. Should be much larger than the number of values, the spread
+	 *            between values is within about {@code n / tableSize}.
+	 * @param hashFunction The {@link HashFunction} to use to hash values and keys for lookup, must produce hashes of at least 32 bits
+	 * @param valueIdFunction A {@link Function} to turn stored values into a String, will be used to place the value in the table
+	 */
+	public MaglevHashingLookup(int tableSize, HashFunction hashFunction, Function<? super ValueT, ? extends String> valueIdFunction) {
+		checkArgument(IntMath.isPrime(tableSize), "Table size must be prime");
+		checkArgument(hashFunction.bits() >= 32, "Hash Function must produce hashes of at least 32 bits");
+		this.tableSize = tableSize;
+		this.hashFunction = hashFunction;
+		this.valueIdFunction = valueIdFunction;
+	}
+
+	@Override
+	public synchronized void storeValue(ValueT value) {
+		checkState(valueIds.size() < tableSize, "Cannot store more values than the table has slots");
+		valueIds.put(value, valueIdFunction.apply(value));
+		table = new LookupTable(populate(), valueIds.size());
+	}
+
+	@Override
+	public synchronized void removeValue(ValueT value) {
+		if (valueIds.remove(value) != null) {
+			table = valueIds.isEmpty() ? null : new LookupTable(populate(), valueIds.size());
+		}
+	}
+
+	/**
+	 * Build the table from scratch. Values take turns in order of their id, so the table only depends on which values are stored, not the
+	 * order they were added in.
+	 */
+	private Object[] populate() {
+		Object[] values = valueIds.keySet().stream().sorted(Comparator.comparing(valueIds::get)).toArray();
+		int[] offsets = new int[values.length];
+		int[] skips = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			String valueId = valueIds.get(values[i]);
+			offsets[i] = Math.floorMod(hashFunction.hashObject(valueId + "_offset", VALUE_ID_FUNNEL).asInt(), tableSize);
+			skips[i] = Math.floorMod(hashFunction.hashObject(valueId + "_skip", VALUE_ID_FUNNEL).asInt(), tableSize - 1) + 1;
+		}
+		Object[] newTable = new Object[tableSize];
+		long[] nextIndexes = new long[values.length];
+		int filled = 0;
+		while (true) {
+			for (int i = 0; i < values.length; i++) {
+				int slot;
+				do {
+					slot = (int) ((offsets[i] + nextIndexes[i] * skips[i]) % tableSize);
+					nextIndexes[i]++;
+				} while (newTable[slot] != null);
+				newTable[slot] = values[i];
+				if (++filled == tableSize) {
+					return newTable;
+				}
+			}
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <KeyT> ValueT lookupValue(KeyT key, Funnel<? super KeyT> keyFunnel) {
+		LookupTable current = table;
+		if (current == null) {
+			return null;
+		}
+		return (ValueT) current.slots[Math.floorMod(hashFunction.hashObject(key, keyFunnel).asInt(), tableSize)];
+	}
+
+	/**
+	 * The owner of the key's slot followed by the owners of the next slots in the table, skipping values already found, and stopping once every
+	 * stored value was found
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <KeyT> List<ValueT> lookupValues(KeyT key, Funnel<? super KeyT> keyFunnel, int n) {
+		LookupTable current = table;
+		if (current == null) {
+			return Collections.emptyList();
+		}
+		int wanted = Math.min(n, current.valueCount);
+		List<ValueT> found = new ArrayList<>(wanted);
+		int start = Math.floorMod(hashFunction.hashObject(key, keyFunnel).asInt(), tableSize);
+		for (int i = 0; found.size() < wanted; i++) {
+			ValueT value = (ValueT) current.slots[(start + i) % tableSize];
+			if (!found.contains(value)) {
+				found.add(value);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * A populated table with the number of values it holds, published together so lookups never look for more values than the table has
+	 */
+	private static final class LookupTable {
+
+		private final Object[] slots;
+		private final int valueCount;
+
+		LookupTable(Object[] slots, int valueCount) {
+			this.slots = slots;
+			this.valueCount = valueCount;
+		}
+	}
+}
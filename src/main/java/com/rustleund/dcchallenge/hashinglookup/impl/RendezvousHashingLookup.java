@@ -0,0 +1,151 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.rustleund.dcchallenge.hashinglookup.HashingLookup;
+
+/**
+ * Implementation of {@link HashingLookup} using rendezvous (highest random weight) hashing. Each key scores every stored value by mixing the
+ * key's hash with the value's hash, and belongs to the value with the highest score. Only the keys of a removed value move, and only keys that
+ * now score highest for an added value move to it, with no replicas needed for an even spread.
+ * <p>
+ * A lookup takes time proportional to the number of values, but hashes the key only once and does not allocate, which is cheaper than a ring
+ * search for small clusters. Values will be turned into a string for hashing purposes.
+ *
+ * @param <ValueT> The type of the value to store in the lookup
+ */
+public class RendezvousHashingLookup<ValueT> implements HashingLookup<ValueT> {
+
+	private static final Funnel<? super String> VALUE_ID_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+
+	private volatile Members members = new Members(new Object[0], new long[0]);
+
+	private final HashFunction hashFunction;
+	private final Function<? super ValueT, ? extends String> valueIdFunction;
+
+	/**
+	 * @param hashFunction The {@link HashFunction} to use to hash values and keys for lookup, must produce hashes of at least 32 bits
+	 * @param valueIdFunction A {@link Function} to turn stored values into a String, will be used to produce a hash for the value
+	 */
+	public RendezvousHashingLookup(HashFunction hashFunction, Function<? super ValueT, ? extends String> valueIdFunction) {
+		checkArgument(hashFunction.bits() >= 32, "Hash Function must produce hashes of at least 32 bits");
+		this.hashFunction = hashFunction;
+		this.valueIdFunction = valueIdFunction;
+	}
+
+	@Override
+	public synchronized void storeValue(ValueT value) {
+		Members current = members;
+		Object[] values = Arrays.copyOf(current.values, current.values.length + 1);
+		long[] hashes = Arrays.copyOf(current.hashes, current.hashes.length + 1);
+		values[values.length - 1] = value;
+		hashes[hashes.length - 1] = hashFunction.hashObject(valueIdFunction.apply(value), VALUE_ID_FUNNEL).padToLong();
+		members = new Members(values, hashes);
+	}
+
+	@Override
+	public synchronized void removeValue(ValueT value) {
+		Members current = members;
+		int index = Arrays.asList(current.values).indexOf(value);
+		if (index < 0) {
+			return;
+		}
+		Object[] values = new Object[current.values.length - 1];
+		long[] hashes = new long[values.length];
+		System.arraycopy(current.values, 0, values, 0, index);
+		System.arraycopy(current.values, index + 1, values, index, values.length - index);
+		System.arraycopy(current.hashes, 0, hashes, 0, index);
+		System.arraycopy(current.hashes, index + 1, hashes, index, hashes.length - index);
+		members = new Members(values, hashes);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <KeyT> ValueT lookupValue(KeyT key, Funnel<? super KeyT> keyFunnel) {
+		Members current = members;
+		if (current.values.length == 0) {
+			return null;
+		}
+		long keyHash = hashFunction.hashObject(key, keyFunnel).padToLong();
+		int best = 0;
+		long bestScore = score(keyHash, current.hashes[0]);
+		for (int i = 1; i < current.hashes.length; i++) {
+			long score = score(keyHash, current.hashes[i]);
+			if (score > bestScore) {
+				best = i;
+				bestScore = score;
+			}
+		}
+		return (ValueT) current.values[best];
+	}
+
+	/**
+	 * The values with the {@code n} highest scores for the key, highest first. The best {@code n} so far are kept sorted in small arrays while
+	 * the values are scored, so a lookup takes time proportional to the number of values times {@code n} without boxing or sorting them all.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public <KeyT> List<ValueT> lookupValues(KeyT key, Funnel<? super KeyT> keyFunnel, int n) {
+		Members current = members;
+		int wanted = Math.min(n, current.hashes.length);
+		if (wanted <= 0) {
+			return new ArrayList<>();
+		}
+		long keyHash = hashFunction.hashObject(key, keyFunnel).padToLong();
+		int[] best = new int[wanted];
+		long[] bestScores = new long[wanted];
+		int kept = 0;
+		for (int i = 0; i < current.hashes.length; i++) {
+			long score = score(keyHash, current.hashes[i]);
+			if (kept == wanted && score <= bestScores[wanted - 1]) {
+				continue;
+			}
+			int position = kept < wanted ? kept++ : wanted - 1;
+			while (position > 0 && bestScores[position - 1] < score) {
+				best[position] = best[position - 1];
+				bestScores[position] = bestScores[position - 1];
+				position--;
+			}
+			best[position] = i;
+			bestScores[position] = score;
+		}
+		List<ValueT> found = new ArrayList<>(wanted);
+		for (int i = 0; i < wanted; i++) {
+			found.add((ValueT) current.values[best[i]]);
+		}
+		return found;
+	}
+
+	/**
+	 * The 64 bit finalizer of MurmurHash3, applied to the combined hashes so every bit of both affects the score
+	 */
+	private static long score(long keyHash, long valueHash) {
+		long h = keyHash ^ valueHash * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Members {
+
+		private final Object[] values;
+		private final long[] hashes;
+
+		Members(Object[] values, long[] hashes) {
+			this.values = values;
+			this.hashes = hashes;
+		}
+	}
+}
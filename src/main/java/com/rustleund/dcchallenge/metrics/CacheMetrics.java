@@ -0,0 +1,277 @@
+package com.rustleund.dcchallenge.metrics;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+
+/**
+ * Metrics of a {@link com.rustleund.dcchallenge.distributedcache.DistributedCache}: per-node operation latencies, throughput and error counts,
+ * the time taken to look up a key's owner, and the keys moved between nodes when the cluster changes. Pass an instance to
+ * {@link com.rustleund.dcchallenge.distributedcache.DistributedCacheOptions.Builder#metrics(CacheMetrics)} to have the cache record into it.
+ * <p>
+ * Statistics can be read with the getters here, or through JMX after {@link #registerMBeans(String)}.
+ */
+public final class CacheMetrics {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CacheMetrics.class);
+	private static final String DOMAIN = "com.rustleund.dcchallenge";
+
+	private final ConcurrentMap<Node, NodeMetrics> nodeMetrics = new ConcurrentHashMap<>();
+	private final LatencyHistogram ringLookupLatency = new LatencyHistogram();
+	private final LatencyHistogram redistributionDuration = new LatencyHistogram();
+	private final LongAdder redistributedKeysMoved = new LongAdder();
+	private final LongAdder redistributedKeysFailed = new LongAdder();
+	private volatile MBeanServer mBeanServer;
+	private volatile String cacheName;
+
+	/**
+	 * @return The metrics of the given {@link Node}, created the first time the node is seen
+	 */
+	public NodeMetrics forNode(Node node) {
+		return nodeMetrics.computeIfAbsent(node, n -> {
+			NodeMetrics metrics = new NodeMetrics(n);
+			registerNodeMBeans(metrics);
+			return metrics;
+		});
+	}
+
+	/**
+	 * Forget the metrics of a {@link Node} that left the cluster
+	 */
+	public void removeNode(Node node) {
+		if (nodeMetrics.remove(node) != null) {
+			unregisterNodeMBeans(node);
+		}
+	}
+
+	/**
+	 * @return The metrics of every node currently known
+	 */
+	public Collection<NodeMetrics> getNodeMetrics() {
+		return Collections.unmodifiableCollection(nodeMetrics.values());
+	}
+
+	/**
+	 * @param nanos The time taken to find the {@link Node} owning one key
+	 */
+	public void recordRingLookup(long nanos) {
+		ringLookupLatency.record(nanos);
+	}
+
+	/**
+	 * @param keysMoved The number of keys moved to another node
+	 * @param keysFailed The number of keys that could not be moved
+	 * @param nanos The time the transfer took
+	 */
+	public void recordRedistribution(long keysMoved, long keysFailed, long nanos) {
+		redistributedKeysMoved.add(keysMoved);
+		redistributedKeysFailed.add(keysFailed);
+		redistributionDuration.record(nanos);
+	}
+
+	public LatencyHistogram.Snapshot getRingLookupLatency() {
+		return ringLookupLatency.snapshot();
+	}
+
+	/**
+	 * @return The durations of transfers of values out of a node, one value per transfer
+	 */
+	public LatencyHistogram.Snapshot getRedistributionDuration() {
+		return redistributionDuration.snapshot();
+	}
+
+	public long getRedistributedKeysMoved() {
+		return redistributedKeysMoved.sum();
+	}
+
+	public long getRedistributedKeysFailed() {
+		return redistributedKeysFailed.sum();
+	}
+
+	/**
+	 * Register MXBeans for these metrics, and for every node's operations, with the platform {@link MBeanServer}. Nodes added later are
+	 * registered as they are first seen, and unregistered when they are removed.
+	 *
+	 * @param name The name of the cache, used in the {@link ObjectName}s to tell several caches in one JVM apart
+	 * @throws JMException If the MXBeans could not be registered
+	 */
+	public synchronized void registerMBeans(String name) throws JMException {
+		checkState(mBeanServer == null, "MBeans are already registered as %s", cacheName);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(new CacheMetricsBean(), cacheObjectName(name));
+		this.cacheName = name;
+		this.mBeanServer = server;
+		nodeMetrics.values().forEach(this::registerNodeMBeans);
+	}
+
+	/**
+	 * Unregister every MXBean registered by {@link #registerMBeans(String)}
+	 */
+	public synchronized void unregisterMBeans() {
+		MBeanServer server = mBeanServer;
+		if (server == null) {
+			return;
+		}
+		nodeMetrics.keySet().forEach(this::unregisterNodeMBeans);
+		try {
+			server.unregisterMBean(cacheObjectName(cacheName));
+		} catch (JMException e) {
+			LOG.warn("Could not unregister metrics of cache {}", cacheName, e);
+		}
+		mBeanServer = null;
+	}
+
+	private ObjectName cacheObjectName(String name) throws JMException {
+		return new ObjectName(DOMAIN + ":type=CacheMetrics,cache=" + ObjectName.quote(name));
+	}
+
+	private ObjectName operationObjectName(Node node, NodeOperation operation) throws JMException {
+		return new ObjectName(DOMAIN + ":type=CacheMetrics,cache=" + ObjectName.quote(cacheName) + ",node=" + node.getNodeId() + ",operation="
+				+ operation.name().toLowerCase());
+	}
+
+	private void registerNodeMBeans(NodeMetrics metrics) {
+		MBeanServer server = mBeanServer;
+		if (server == null) {
+			return;
+		}
+		for (NodeOperation operation : NodeOperation.values()) {
+			try {
+				server.registerMBean(new OperationStatsBean(metrics, operation), operationObjectName(metrics.getNode(), operation));
+			} catch (JMException e) {
+				LOG.warn("Could not register {} metrics of Node {}", operation, metrics.getNode().getNodeId(), e);
+			}
+		}
+	}
+
+	private void unregisterNodeMBeans(Node node) {
+		MBeanServer server = mBeanServer;
+		if (server == null) {
+			return;
+		}
+		for (NodeOperation operation : NodeOperation.values()) {
+			try {
+				ObjectName name = operationObjectName(node, operation);
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (JMException e) {
+				LOG.warn("Could not unregister {} metrics of Node {}", operation, node.getNodeId(), e);
+			}
+		}
+	}
+
+	private class CacheMetricsBean implements CacheMetricsMXBean {
+
+		@Override
+		public int getNodeCount() {
+			return nodeMetrics.size();
+		}
+
+		@Override
+		public long getRingLookups() {
+			return getRingLookupLatency().getCount();
+		}
+
+		@Override
+		public double getRingLookupMeanMicros() {
+			return getRingLookupLatency().getMean(TimeUnit.MICROSECONDS);
+		}
+
+		@Override
+		public double getRingLookupPercentile99Micros() {
+			return getRingLookupLatency().getPercentile(99, TimeUnit.MICROSECONDS);
+		}
+
+		@Override
+		public long getRedistributions() {
+			return getRedistributionDuration().getCount();
+		}
+
+		@Override
+		public long getRedistributedKeysMoved() {
+			return CacheMetrics.this.getRedistributedKeysMoved();
+		}
+
+		@Override
+		public long getRedistributedKeysFailed() {
+			return CacheMetrics.this.getRedistributedKeysFailed();
+		}
+
+		@Override
+		public double getRedistributionMeanMillis() {
+			return getRedistributionDuration().getMean(TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public double getRedistributionMaxMillis() {
+			return getRedistributionDuration().getMax(TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static class OperationStatsBean implements OperationStatsMXBean {
+
+		private final NodeMetrics metrics;
+		private final NodeOperation operation;
+
+		OperationStatsBean(NodeMetrics metrics, NodeOperation operation) {
+			this.metrics = metrics;
+			this.operation = operation;
+		}
+
+		@Override
+		public long getCount() {
+			return metrics.getStats(operation).getCount();
+		}
+
+		@Override
+		public long getErrors() {
+			return metrics.getStats(operation).getErrors();
+		}
+
+		@Override
+		public double getOperationsPerSecond() {
+			return metrics.getStats(operation).getOperationsPerSecond();
+		}
+
+		@Override
+		public double getMeanMicros() {
+			return metrics.getStats(operation).getLatency().getMean(TimeUnit.MICROSECONDS);
+		}
+
+		@Override
+		public double getMedianMicros() {
+			return metrics.getStats(operation).getLatency().getPercentile(50, TimeUnit.MICROSECONDS);
+		}
+
+		@Override
+		public double getPercentile99Micros() {
+			return metrics.getStats(operation).getLatency().getPercentile(99, TimeUnit.MICROSECONDS);
+		}
+
+		@Override
+		public double getPercentile999Micros() {
+			return metrics.getStats(operation).getLatency().getPercentile(99.9, TimeUnit.MICROSECONDS);
+		}
+
+		@Override
+		public double getMaxMicros() {
+			return metrics.getStats(operation).getLatency().getMax(TimeUnit.MICROSECONDS);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.rustleund.dcchallenge.metrics;
+
+/**
+ * JMX view of the cache-wide statistics in {@link CacheMetrics}
+ */
+public interface CacheMetricsMXBean {
+
+	int getNodeCount();
+
+	long getRingLookups();
+
+	double getRingLookupMeanMicros();
+
+	double getRingLookupPercentile99Micros();
+
+	long getRedistributions();
+
+	long getRedistributedKeysMoved();
+
+	long getRedistributedKeysFailed();
+
+	double getRedistributionMeanMillis();
+
+	double getRedistributionMaxMillis();
+}
@@ -0,0 +1,132 @@
+package com.rustleund.dcchallenge.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, with log-linear buckets in the style of HdrHistogram: every power of two is split into
+ * {@value #SUB_BUCKETS} equal buckets, so any recorded value is reported within about 6% of its real value. Recording is a few atomic increments
+ * on preallocated counters and never allocates.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder totalCount = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * @param nanos A latency in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucketIndex(value));
+		totalCount.increment();
+		totalNanos.add(value);
+		long max = maxNanos.get();
+		while (value > max && !maxNanos.compareAndSet(max, value)) {
+			max = maxNanos.get();
+		}
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The largest value that falls in the given bucket
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * @return A copy of the current counts. Values recorded while the copy is taken may be partly included.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, totalCount.sum(), totalNanos.sum(), maxNanos.get());
+	}
+
+	/**
+	 * An immutable copy of a {@link LatencyHistogram}
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long totalNanos;
+		private final long maxNanos;
+
+		private Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+			this.counts = counts;
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @param unit The {@link TimeUnit} to return the value in
+		 * @return The mean of the recorded values, or 0 if nothing was recorded
+		 */
+		public double getMean(TimeUnit unit) {
+			return count == 0 ? 0 : (double) totalNanos / count / unit.toNanos(1);
+		}
+
+		/**
+		 * @param unit The {@link TimeUnit} to return the value in
+		 * @return The largest recorded value
+		 */
+		public double getMax(TimeUnit unit) {
+			return (double) maxNanos / unit.toNanos(1);
+		}
+
+		/**
+		 * @param percentile The percentile to find, between 0 and 100
+		 * @param unit The {@link TimeUnit} to return the value in
+		 * @return The upper bound of the bucket holding the given percentile, never more than the largest recorded value, or 0 if nothing was recorded
+		 */
+		public double getPercentile(double percentile, TimeUnit unit) {
+			long countTotal = 0;
+			for (long bucketCount : counts) {
+				countTotal += bucketCount;
+			}
+			if (countTotal == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long) Math.ceil(countTotal * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= target) {
+					return (double) Math.min(bucketUpperBound(i), maxNanos) / unit.toNanos(1);
+				}
+			}
+			return getMax(unit);
+		}
+	}
+}
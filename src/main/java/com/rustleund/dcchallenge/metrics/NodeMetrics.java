@@ -0,0 +1,66 @@
+package com.rustleund.dcchallenge.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+
+/**
+ * The per-operation counters and latency histograms of one {@link Node}. Everything is allocated up front, so recording an operation only
+ * updates existing counters.
+ */
+public final class NodeMetrics {
+
+	private static final NodeOperation[] OPERATIONS = NodeOperation.values();
+
+	private final Node node;
+	private final long startNanos = System.nanoTime();
+	private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+	private final LongAdder[] errors = new LongAdder[OPERATIONS.length];
+
+	NodeMetrics(Node node) {
+		this.node = node;
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			latencies[i] = new LatencyHistogram();
+			errors[i] = new LongAdder();
+		}
+	}
+
+	public Node getNode() {
+		return node;
+	}
+
+	/**
+	 * @param operation The operation that completed, successfully or not
+	 * @param operationStartNanos The value of {@link System#nanoTime()} when the operation started
+	 */
+	public void record(NodeOperation operation, long operationStartNanos) {
+		latencies[operation.ordinal()].record(System.nanoTime() - operationStartNanos);
+	}
+
+	/**
+	 * Count a failed operation. The operation's latency is recorded separately with {@link #record(NodeOperation, long)}.
+	 */
+	public void recordError(NodeOperation operation) {
+		errors[operation.ordinal()].increment();
+	}
+
+	public OperationStats getStats(NodeOperation operation) {
+		LatencyHistogram.Snapshot latency = latencies[operation.ordinal()].snapshot();
+		double elapsedSeconds = Math.max(1, System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+		return new OperationStats(operation, errors[operation.ordinal()].sum(), latency.getCount() / elapsedSeconds, latency);
+	}
+
+	/**
+	 * @return The statistics of every operation, in {@link NodeOperation} order
+	 */
+	public Map<NodeOperation, OperationStats> getStats() {
+		Map<NodeOperation, OperationStats> stats = new EnumMap<>(NodeOperation.class);
+		for (NodeOperation operation : OPERATIONS) {
+			stats.put(operation, getStats(operation));
+		}
+		return stats;
+	}
+}
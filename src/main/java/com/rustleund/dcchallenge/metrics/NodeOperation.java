@@ -0,0 +1,9 @@
+package com.rustleund.dcchallenge.metrics;
+
+/**
+ * The operations recorded for each node in {@link CacheMetrics}
+ */
+public enum NodeOperation {
+
+	GET, PUT, INVALIDATE, GET_ALL, PUT_ALL, INVALIDATE_ALL, KEYS
+}
@@ -0,0 +1,48 @@
+package com.rustleund.dcchallenge.metrics;
+
+/**
+ * Statistics for one {@link NodeOperation} on one node, as of the time they were read from {@link CacheMetrics}
+ */
+public final class OperationStats {
+
+	private final NodeOperation operation;
+	private final long errors;
+	private final double operationsPerSecond;
+	private final LatencyHistogram.Snapshot latency;
+
+	OperationStats(NodeOperation operation, long errors, double operationsPerSecond, LatencyHistogram.Snapshot latency) {
+		this.operation = operation;
+		this.errors = errors;
+		this.operationsPerSecond = operationsPerSecond;
+		this.latency = latency;
+	}
+
+	public NodeOperation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return The number of completed operations, including failed ones
+	 */
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	/**
+	 * @return The number of operations that failed with an {@link java.io.IOException}
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return The average number of operations per second since the node's metrics were created
+	 */
+	public double getOperationsPerSecond() {
+		return operationsPerSecond;
+	}
+
+	public LatencyHistogram.Snapshot getLatency() {
+		return latency;
+	}
+}
@@ -0,0 +1,23 @@
+package com.rustleund.dcchallenge.metrics;
+
+/**
+ * JMX view of the statistics of one {@link NodeOperation} on one node. Latencies are in microseconds.
+ */
+public interface OperationStatsMXBean {
+
+	long getCount();
+
+	long getErrors();
+
+	double getOperationsPerSecond();
+
+	double getMeanMicros();
+
+	double getMedianMicros();
+
+	double getPercentile99Micros();
+
+	double getPercentile999Micros();
+
+	double getMaxMicros();
+}
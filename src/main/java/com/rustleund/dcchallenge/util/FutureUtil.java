@@ -0,0 +1,91 @@
+package com.rustleund.dcchallenge.util;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import com.rustleund.dcchallenge.util.LambdaUtil.CheckedFunction;
+
+/**
+ * Utilities for bridging {@link CompletableFuture}s and the blocking, {@link IOException} throwing APIs.
+ */
+public final class FutureUtil {
+	private FutureUtil() {
+		//
+	}
+
+	/**
+	 * Wait for a {@link CompletableFuture} to complete and return its value. If it completed exceptionally with an {@link IOException}, that
+	 * {@link IOException} is thrown; runtime exceptions and errors are rethrown as they are, and any other cause is wrapped in an {@link IOException}.
+	 *
+	 * @param future The {@link CompletableFuture} to wait for
+	 * @return The value of the future
+	 * @throws IOException If the future completed with an {@link IOException}, or with a checked exception that is not an {@link IOException}
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw toIOException(e.getCause());
+		}
+	}
+
+	/**
+	 * @param cause The cause of a failed future, possibly wrapped in a {@link CompletionException} or {@link ExecutionException}
+	 * @return The cause as an {@link IOException}
+	 * @throws RuntimeException If the cause is a {@link RuntimeException}
+	 * @throws Error If the cause is an {@link Error}
+	 */
+	public static IOException toIOException(Throwable cause) {
+		Throwable unwrapped = cause;
+		while ((unwrapped instanceof CompletionException || unwrapped instanceof ExecutionException) && unwrapped.getCause() != null) {
+			unwrapped = unwrapped.getCause();
+		}
+		if (unwrapped instanceof IOException) {
+			return (IOException) unwrapped;
+		}
+		if (unwrapped instanceof RuntimeException) {
+			throw (RuntimeException) unwrapped;
+		}
+		if (unwrapped instanceof Error) {
+			throw (Error) unwrapped;
+		}
+		return new IOException(unwrapped);
+	}
+
+	/**
+	 * @param cause The exception to complete the returned future with
+	 * @return A {@link CompletableFuture} that is already completed exceptionally
+	 */
+	public static <T> CompletableFuture<T> failedFuture(Throwable cause) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(cause);
+		return future;
+	}
+
+	/**
+	 * Run a blocking call on an {@link Executor}, completing the returned future with its result or with the exception it throws.
+	 *
+	 * @param input The input to pass to the blocking call
+	 * @param blockingCall The blocking call to make
+	 * @param executor The {@link Executor} to run the blocking call on
+	 * @return A {@link CompletableFuture} of the result of the blocking call
+	 */
+	public static <T, R> CompletableFuture<R> supplyAsync(T input, CheckedFunction<T, R, Exception> blockingCall, Executor executor) {
+		CompletableFuture<R> future = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(blockingCall.apply(input));
+				} catch (Exception | Error e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+}
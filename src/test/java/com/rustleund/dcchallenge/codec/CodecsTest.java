@@ -0,0 +1,129 @@
+package com.rustleund.dcchallenge.codec;
+
+import static org.junit.Assert.*;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+public class CodecsTest {
+
+	@Test
+	public void roundTrips() {
+		assertRoundTrip(Codecs.utf8(), "plain ascii");
+		assertRoundTrip(Codecs.utf8(), "\u00c4\u4e2d\ud83d\ude00");
+		assertRoundTrip(Codecs.utf8(), "");
+		assertRoundTrip(Codecs.int32(), Integer.MIN_VALUE);
+		assertRoundTrip(Codecs.int64(), Long.MAX_VALUE);
+		assertRoundTrip(Codecs.float64(), -0.5);
+		assertRoundTrip(Codecs.list(Codecs.utf8()), Arrays.asList("a", "", "\u00e9t\u00e9"));
+		assertRoundTrip(Codecs.list(Codecs.int64()), Collections.<Long> emptyList());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, decode(Codecs.byteArray(), encode(Codecs.byteArray(), new byte[] { 1, 2, 3 })));
+	}
+
+	@Test
+	public void compositesAndLengthPrefixedValuesShareABuffer() {
+		Codec<Map.Entry<String, Integer>> entryCodec = Codecs.composite(Codecs.utf8(), Map.Entry::getKey, Codecs.int32(), Map.Entry::getValue,
+				SimpleImmutableEntry::new);
+		assertRoundTrip(entryCodec, new SimpleImmutableEntry<>("key", 42));
+
+		Codec<String> prefixed = Codecs.lengthPrefixed(Codecs.utf8());
+		ByteBuffer buffer = ByteBuffer.allocate(prefixed.encodedSize("one") + prefixed.encodedSize("two"));
+		prefixed.encode("one", buffer);
+		prefixed.encode("two", buffer);
+		((Buffer) buffer).flip();
+		assertEquals("one", prefixed.decode(buffer));
+		assertEquals("two", prefixed.decode(buffer));
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void pooledBuffersAreReused() {
+		BufferPool pool = new BufferPool(1024, 2);
+		ByteBuffer encoded = Codecs.utf8().encode("value", pool);
+		assertEquals("value", Codecs.utf8().decode(encoded.duplicate()));
+		assertEquals(64, encoded.capacity());
+		pool.release(encoded);
+		ByteBuffer reused = pool.acquire(10);
+		assertSame(encoded, reused);
+		assertEquals(0, reused.position());
+		assertEquals(64, reused.limit());
+		assertEquals(128, pool.acquire(65).capacity());
+		assertEquals(5000, pool.acquire(5000).capacity());
+	}
+
+	@Test
+	public void funnelHashesEncodedBytesAndEncodesEachKeyOnce() {
+		AtomicInteger encodings = new AtomicInteger();
+		Codec<String> countingCodec = new Codec<String>() {
+			@Override
+			public int encodedSize(String value) {
+				return Codecs.utf8().encodedSize(value);
+			}
+
+			@Override
+			public void encode(String value, ByteBuffer target) {
+				encodings.incrementAndGet();
+				Codecs.utf8().encode(value, target);
+			}
+
+			@Override
+			public String decode(ByteBuffer source) {
+				return Codecs.utf8().decode(source);
+			}
+		};
+		HashFunction hashFunction = Hashing.murmur3_32();
+		String key = new String("key");
+		assertEquals(hashFunction.hashBytes("key".getBytes(StandardCharsets.UTF_8)), hashFunction.hashObject(key, Codecs.funnel(countingCodec)));
+		assertEquals("key", countingCodec.decode(Codecs.encodeKey(countingCodec, key)));
+		assertEquals(1, encodings.get());
+		// An encoding is handed over once, and an equal but different key instance is encoded again
+		Codecs.encodeKey(countingCodec, key);
+		assertEquals(2, encodings.get());
+		Codecs.encodeKey(countingCodec, new String("key"));
+		assertEquals(3, encodings.get());
+	}
+
+	@Test
+	public void mutableKeysAreEncodedAgain() {
+		byte[] key = { 1, 2 };
+		Codecs.funnel(Codecs.byteArray()).funnel(key, Hashing.murmur3_32().newHasher());
+		key[0] = 3;
+		ByteBuffer encoded = Codecs.encodeKey(Codecs.byteArray(), key);
+		assertArrayEquals(new byte[] { 3, 2 }, Codecs.byteArray().decode(encoded));
+	}
+
+	@Test
+	public void unpairedSurrogatesAreSizedAsTheyAreEncoded() {
+		for (String value : Arrays.asList("a\ud800b", "\udc00", "\ud83d", "\ud83d\ude00\ud83d")) {
+			assertEquals(value.getBytes(StandardCharsets.UTF_8).length, Codecs.utf8().encodedSize(value));
+			encode(Codecs.utf8(), value);
+		}
+	}
+
+	private static <T> void assertRoundTrip(Codec<T> codec, T value) {
+		assertEquals(value, decode(codec, encode(codec, value)));
+	}
+
+	private static <T> ByteBuffer encode(Codec<T> codec, T value) {
+		ByteBuffer buffer = ByteBuffer.allocate(codec.encodedSize(value));
+		codec.encode(value, buffer);
+		assertFalse(buffer.hasRemaining());
+		((Buffer) buffer).flip();
+		return buffer;
+	}
+
+	private static <T> T decode(Codec<T> codec, ByteBuffer buffer) {
+		return codec.decode(buffer);
+	}
+}
@@ -0,0 +1,711 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.RangeSet;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.rustleund.dcchallenge.BlockingRemoteCache;
+import com.rustleund.dcchallenge.RemoteCache;
+import com.rustleund.dcchallenge.distributedcache.node.ForwardingNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+import com.rustleund.dcchallenge.distributedcache.node.impl.SimpleNodeConnection;
+import com.rustleund.dcchallenge.hashinglookup.impl.ConsistentHashingLookup;
+import com.rustleund.dcchallenge.metrics.CacheMetrics;
+import com.rustleund.dcchallenge.metrics.NodeOperation;
+import com.rustleund.dcchallenge.metrics.OperationStats;
+import com.rustleund.dcchallenge.util.LambdaUtil;
+import com.rustleund.dcchallenge.util.ManualClock;
+
+public class DistributedCacheTest {
+
+	private final AtomicInteger bulkRequests = new AtomicInteger();
+	private final AtomicInteger rangeScans = new AtomicInteger();
+	private final AtomicInteger movedKeys = new AtomicInteger();
+	private final Set<Node> failingNodes = ConcurrentHashMap.newKeySet();
+	private final ManualClock clock = new ManualClock();
+	private final CountDownLatch blockedPutStarted = new CountDownLatch(1);
+	private final CountDownLatch blockedPutReleased = new CountDownLatch(1);
+	private volatile Node blockedNode;
+	private DistributedCache<String, String> testee;
+
+	@Before
+	public void setUp() {
+		testee = newCacheWithNodes(options());
+	}
+
+	@Test
+	public void batchOperations() throws Exception {
+		Map<String, String> entries = IntStream.range(0, 100).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		testee.putAll(entries);
+		assertEquals(3, bulkRequests.getAndSet(0));
+
+		entries.forEach((key, value) -> assertEquals(value, get(key)));
+
+		List<String> keys = new ArrayList<>(entries.keySet());
+		keys.add("missing");
+		assertEquals(entries, testee.getAll(keys));
+		assertEquals(3, bulkRequests.getAndSet(0));
+
+		List<String> keysToInvalidate = keys.subList(0, 50);
+		testee.invalidateAll(keysToInvalidate);
+		Map<String, String> remaining = new HashMap<>(entries);
+		remaining.keySet().removeAll(keysToInvalidate);
+		assertEquals(remaining, testee.getAll(entries.keySet()));
+	}
+
+	@Test
+	public void asyncOperations() throws Exception {
+		// The puts reach the nodes from several request threads at once
+		CompletableFuture.allOf(IntStream.range(0, 20).mapToObj(i -> testee.putAsync("key" + i, "value" + i)).toArray(CompletableFuture[]::new))
+				.join();
+		IntStream.range(0, 20).forEach(i -> assertEquals("value" + i, get("key" + i)));
+		assertEquals("value7", testee.getAsync("key7").join());
+
+		RemoteCache<String, String> blocking = new BlockingRemoteCache<>(testee);
+		assertEquals("value3", blocking.get("key3"));
+		blocking.invalidate("key3");
+		assertNull(testee.getAsync("key3").join());
+	}
+
+	@Test
+	public void addingNodeOnlyMovesValuesInChangedRanges() throws Exception {
+		Map<String, String> entries = IntStream.range(0, 200).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		testee.putAll(entries);
+
+		rangeScans.set(0);
+		Node newNode = new Node(UUID.randomUUID(), "host3", 3, NodeType.B);
+		testee.nodeAdded(newNode);
+		testee.rebalanced().join();
+		// Only nodes that lost part of the ring to the new node are scanned
+		assertTrue(rangeScans.get() >= 1 && rangeScans.get() <= 3);
+		assertTrue(movedKeys.get() > 0);
+		assertEquals(movedKeys.get(), entries.keySet().stream().filter(key -> testee.getOwningNode(key) == newNode).count());
+		assertEquals(entries, testee.getAll(entries.keySet()));
+	}
+
+	@Test
+	public void shuttingDownNodeMovesValuesInBatches() throws Exception {
+		Map<String, String> entries = IntStream.range(0, 200).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		testee.putAll(entries);
+		Node nodeToShutdown = testee.getOwningNode("key0");
+		long keysOnNode = entries.keySet().stream().filter(key -> testee.getOwningNode(key) == nodeToShutdown).count();
+
+		bulkRequests.set(0);
+		testee.nodeShuttingDown(nodeToShutdown);
+		// One read from the leaving node, at most one write to each of the two remaining nodes
+		assertTrue(bulkRequests.get() <= 3);
+		TransferProgress progress = testee.getRecentTransfers().get(testee.getRecentTransfers().size() - 1);
+		assertSame(nodeToShutdown, progress.getSourceNode());
+		assertTrue(progress.isFinished());
+		assertEquals(keysOnNode, progress.getKeysScanned());
+		assertEquals(keysOnNode, progress.getKeysMoved());
+		assertEquals(0, progress.getKeysFailed());
+		assertEquals(entries, testee.getAll(entries.keySet()));
+	}
+
+	@Test
+	public void changingNodeWeightOnlyMovesValuesInChangedRanges() throws Exception {
+		Map<String, String> entries = IntStream.range(0, 300).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		testee.putAll(entries);
+		Node node = testee.getOwningNode("key0");
+		Set<String> ownedBefore = entries.keySet().stream().filter(key -> testee.getOwningNode(key) == node).collect(Collectors.toSet());
+
+		movedKeys.set(0);
+		testee.setNodeWeight(node, 3);
+		testee.rebalanced().join();
+		Set<String> ownedAfter = entries.keySet().stream().filter(key -> testee.getOwningNode(key) == node).collect(Collectors.toSet());
+		assertTrue(ownedAfter.containsAll(ownedBefore));
+		assertEquals(ownedAfter.size() - ownedBefore.size(), movedKeys.get());
+		assertEquals(entries, testee.getAll(entries.keySet()));
+
+		testee.setNodeWeight(node, 0.5);
+		testee.rebalanced().join();
+		assertTrue(entries.keySet().stream().filter(key -> testee.getOwningNode(key) == node).allMatch(ownedAfter::contains));
+		assertEquals(entries, testee.getAll(entries.keySet()));
+	}
+
+	@Test
+	public void requestsReadThroughToPreviousOwnersWhileValuesMove() throws Exception {
+		Queue<Runnable> pendingRebalances = new ArrayDeque<>();
+		DistributedCache<String, String> cache = newCache(DistributedCacheOptions.builder().rebalanceExecutor(pendingRebalances::add));
+		IntStream.range(0, 3).forEach(i -> cache.nodeAdded(new Node(UUID.randomUUID(), "host" + i, i, NodeType.A)));
+		pendingRebalances.forEach(Runnable::run);
+		pendingRebalances.clear();
+		Map<String, String> entries = IntStream.range(0, 200).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		cache.putAll(entries);
+
+		Node newNode = new Node(UUID.randomUUID(), "host3", 3, NodeType.B);
+		cache.nodeAdded(newNode);
+		List<String> movingKeys = entries.keySet().stream().filter(key -> cache.getOwningNode(key) == newNode).collect(Collectors.toList());
+		assertFalse(movingKeys.isEmpty());
+		assertEquals(1, pendingRebalances.size());
+		// Nothing has moved yet, but every value can still be read
+		assertEquals(entries, cache.getAll(entries.keySet()));
+		assertEquals(entries.get(movingKeys.get(0)), cache.get(movingKeys.get(0)));
+		assertEquals(entries.get(movingKeys.get(1)), cache.getAsync(movingKeys.get(1)).join());
+
+		// Writes during the move win over the values still being moved
+		cache.invalidate(movingKeys.get(0));
+		cache.put(movingKeys.get(1), "updated");
+		assertNull(cache.get(movingKeys.get(0)));
+		assertFalse(cache.rebalanced().isDone());
+		pendingRebalances.poll().run();
+		assertTrue(cache.rebalanced().isDone());
+		assertNull(cache.get(movingKeys.get(0)));
+		assertEquals("updated", cache.get(movingKeys.get(1)));
+		Map<String, String> expected = new HashMap<>(entries);
+		expected.remove(movingKeys.get(0));
+		expected.put(movingKeys.get(1), "updated");
+		assertEquals(expected, cache.getAll(entries.keySet()));
+	}
+
+	@Test
+	public void writesRoutedBeforeANodeJoinsAreMovedToIt() throws Exception {
+		List<Node> nodes = IntStream.range(0, 3).mapToObj(i -> new Node(UUID.randomUUID(), "host" + i, i, NodeType.A)).collect(Collectors.toList());
+		Node newNode = new Node(UUID.randomUUID(), "host3", 3, NodeType.B);
+		DistributedCache<String, String> withNewNode = newCache();
+		nodes.forEach(withNewNode::nodeAdded);
+		withNewNode.nodeAdded(newNode);
+		String key = IntStream.range(0, 1000).mapToObj(i -> "key" + i).filter(k -> withNewNode.getOwningNode(k) == newNode).findFirst().get();
+
+		DistributedCache<String, String> cache = newCache();
+		nodes.forEach(cache::nodeAdded);
+		cache.rebalanced().join();
+		blockedNode = cache.getOwningNode(key);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			// The put is routed to the current owner, and only reaches it after the new node has joined
+			Future<?> put = executor.submit(() -> {
+				cache.put(key, "value");
+				return null;
+			});
+			Uninterruptibles.awaitUninterruptibly(blockedPutStarted);
+			cache.nodeAdded(newNode);
+			assertSame(newNode, cache.getOwningNode(key));
+			assertFalse(cache.rebalanced().isDone());
+			blockedPutReleased.countDown();
+			put.get();
+			cache.rebalanced().join();
+			assertEquals("value", cache.get(key));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void batchOperationsWithoutNodes() throws Exception {
+		DistributedCache<String, String> empty = newCache();
+		empty.putAll(Collections.singletonMap("A", "AValue"));
+		assertTrue(empty.getAll(Collections.singletonList("A")).isEmpty());
+		assertEquals(0, bulkRequests.get());
+	}
+
+	@Test
+	public void metricsRecordRequestsLookupsAndTransfers() throws Exception {
+		CacheMetrics metrics = new CacheMetrics();
+		DistributedCache<String, String> instrumented = newCache(metrics);
+		Node node = new Node(UUID.randomUUID(), "host0", 0, NodeType.A);
+		instrumented.nodeAdded(node);
+		instrumented.rebalanced().join();
+		instrumented.put("A", "AValue");
+		assertEquals("AValue", instrumented.get("A"));
+		assertEquals("AValue", instrumented.getAsync("A").join());
+		instrumented.putAll(Collections.singletonMap("B", "BValue"));
+
+		Map<NodeOperation, OperationStats> stats = metrics.forNode(node).getStats();
+		assertEquals(1, stats.get(NodeOperation.PUT).getCount());
+		assertEquals(2, stats.get(NodeOperation.GET).getCount());
+		assertEquals(1, stats.get(NodeOperation.PUT_ALL).getCount());
+		assertEquals(0, stats.get(NodeOperation.GET).getErrors());
+		assertTrue(stats.get(NodeOperation.GET).getOperationsPerSecond() > 0);
+		assertEquals(4, metrics.getRingLookupLatency().getCount());
+
+		instrumented.nodeAdded(new Node(UUID.randomUUID(), "host1", 1, NodeType.A));
+		instrumented.rebalanced().join();
+		instrumented.nodeShuttingDown(node);
+		// Each value moves once, either to the new node or away from the node shutting down
+		assertEquals(2, metrics.getRedistributedKeysMoved());
+		assertEquals(1, metrics.getNodeMetrics().size());
+
+		metrics.registerMBeans("test");
+		try {
+			ObjectName name = new ObjectName("com.rustleund.dcchallenge:type=CacheMetrics,cache=\"test\"");
+			assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Redistributions"));
+		} finally {
+			metrics.unregisterMBeans();
+		}
+	}
+
+	@Test
+	public void replicatedValuesSurviveNodeLoss() throws Exception {
+		DistributedCache<String, String> replicated = newCache(options().replicationFactor(2));
+		List<Node> nodes = IntStream.range(0, 3).mapToObj(i -> new Node(UUID.randomUUID(), "host" + i, i, NodeType.A)).collect(Collectors.toList());
+		nodes.forEach(replicated::nodeAdded);
+		replicated.rebalanced().join();
+		Map<String, String> entries = IntStream.range(0, 100).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		replicated.putAll(entries);
+		replicated.put("single", "singleValue");
+		assertEquals(2, replicated.getReplicaNodes("single").size());
+		assertEquals(replicated.getOwningNode("single"), replicated.getReplicaNodes("single").get(0));
+
+		replicated.nodeRemoved(nodes.get(0));
+		replicated.rebalanced().join();
+		assertEquals(entries, replicated.getAll(entries.keySet()));
+		assertEquals("singleValue", replicated.get("single"));
+
+		// Values were copied again to restore two replicas, so losing a second node loses nothing either
+		replicated.nodeRemoved(nodes.get(1));
+		replicated.rebalanced().join();
+		assertEquals(entries, replicated.getAll(entries.keySet()));
+		assertEquals("singleValue", replicated.get("single"));
+	}
+
+	@Test
+	public void addingNodeWithReplicationOnlyReadsTheRangesItTakesACopyOf() throws Exception {
+		DistributedCache<String, String> replicated = newCacheWithNodes(options().replicationFactor(2));
+		Map<String, String> entries = IntStream.range(0, 300).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		replicated.putAll(entries);
+
+		movedKeys.set(0);
+		rangeScans.set(0);
+		Node newNode = new Node(UUID.randomUUID(), "host3", 3, NodeType.B);
+		replicated.nodeAdded(newNode);
+		replicated.rebalanced().join();
+		Map<String, String> copied = entries.entrySet().stream().filter(entry -> replicated.getReplicaNodes(entry.getKey()).contains(newNode))
+				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+		assertFalse(copied.isEmpty());
+		// Each key the new node takes a copy of is read from its two previous replicas, and no other key is read
+		assertEquals(2 * copied.size(), movedKeys.get());
+		assertTrue(rangeScans.get() <= 3);
+
+		// The new node holds its copies
+		entries.keySet().forEach(key -> failingNodes.addAll(replicated.getReplicaNodes(key)));
+		failingNodes.remove(newNode);
+		assertEquals(copied, replicated.getAll(copied.keySet()));
+	}
+
+	@Test
+	public void writesNeedConfiguredAcknowledgements() throws Exception {
+		DistributedCache<String, String> replicated = newCache(options().replicationFactor(3).writeAcknowledgements(2));
+		List<Node> nodes = IntStream.range(0, 3).mapToObj(i -> new Node(UUID.randomUUID(), "host" + i, i, NodeType.A)).collect(Collectors.toList());
+		nodes.forEach(replicated::nodeAdded);
+		replicated.rebalanced().join();
+
+		failingNodes.add(nodes.get(0));
+		replicated.put("A", "AValue");
+		replicated.putAll(Collections.singletonMap("B", "BValue"));
+		// Reads skip the failing replica
+		assertEquals("AValue", replicated.get("A"));
+		assertEquals(Collections.singletonMap("B", "BValue"), replicated.getAll(Collections.singletonList("B")));
+
+		failingNodes.add(nodes.get(1));
+		try {
+			replicated.put("C", "CValue");
+			fail("Expected only one acknowledgement");
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			replicated.putAll(Collections.singletonMap("D", "DValue"));
+			fail("Expected only one acknowledgement");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void missesFromAnsweringReplicasAreNotReadAgain() throws Exception {
+		DistributedCache<String, String> replicated = newCacheWithNodes(options().replicationFactor(3));
+		List<String> missing = IntStream.range(0, 30).mapToObj(i -> "missing" + i).collect(Collectors.toList());
+		bulkRequests.set(0);
+		assertEquals(Collections.emptyMap(), replicated.getAll(missing));
+		// One round, with at most one request per node
+		assertTrue(bulkRequests.get() <= 3);
+	}
+
+	@Test
+	public void failingNodeLeavesRoutingUntilHealthy() throws Exception {
+		DistributedCache<String, String> cache = newCacheWithNodes(options().circuitBreaker(2, 1, 10, TimeUnit.MILLISECONDS));
+		Node failing = cache.getOwningNode("A");
+		cache.put("A", "AValue");
+
+		failingNodes.add(failing);
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.get("A");
+				fail("Expected the failing node to fail the request");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+		// The breaker opened, so the key goes to the next node on the ring
+		cache.rebalanced().join();
+		assertNotEquals(failing, cache.getOwningNode("A"));
+		cache.put("A", "NewValue");
+		assertEquals("NewValue", cache.get("A"));
+
+		failingNodes.remove(failing);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!failing.equals(cache.getOwningNode("A"))) {
+			assertTrue("Expected the node to be brought back", System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+		cache.rebalanced().join();
+		// The stale value was emptied from the node, and the newer one moved back to it
+		assertEquals("NewValue", cache.get("A"));
+	}
+
+	@Test
+	public void concurrentMissesLoadOnce() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> values = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				values.add(callers.submit(() -> testee.getOrLoad("A", key -> {
+					loads.incrementAndGet();
+					loading.countDown();
+					Uninterruptibles.awaitUninterruptibly(release);
+					return key + "Value";
+				})));
+			}
+			loading.await();
+			release.countDown();
+			for (Future<String> value : values) {
+				assertEquals("AValue", value.get());
+			}
+		} finally {
+			callers.shutdownNow();
+		}
+		assertEquals(1, loads.get());
+		assertEquals("AValue", get("A"));
+		assertNull(testee.getOrLoad("missing", key -> null));
+		assertNull(get("missing"));
+	}
+
+	@Test
+	public void hotValuesRefreshEarly() throws Exception {
+		// A huge beta makes every read of a loaded value refresh it
+		DistributedCache<String, String> cache = newCache(options().requestExecutor(MoreExecutors.directExecutor()).earlyRefresh(1, TimeUnit.HOURS, 1e12));
+		cache.nodeAdded(new Node(UUID.randomUUID(), "host", 0, NodeType.A));
+		cache.rebalanced().join();
+		AtomicInteger loads = new AtomicInteger();
+		LambdaUtil.CheckedFunction<String, String, IOException> loader = key -> {
+			clock.advance(1, TimeUnit.MILLISECONDS);
+			return key + loads.incrementAndGet();
+		};
+		assertEquals("A1", cache.getOrLoad("A", loader));
+		// The read returns the current value and refreshes it for later reads
+		assertEquals("A1", cache.getOrLoad("A", loader));
+		assertEquals("A2", cache.get("A"));
+
+		DistributedCache<String, String> withoutEarlyRefresh = newCache(options().earlyRefresh(1, TimeUnit.HOURS, 0));
+		withoutEarlyRefresh.nodeAdded(new Node(UUID.randomUUID(), "host", 0, NodeType.A));
+		withoutEarlyRefresh.rebalanced().join();
+		assertEquals("B3", withoutEarlyRefresh.getOrLoad("B", loader));
+		assertEquals("B3", withoutEarlyRefresh.getOrLoad("B", loader));
+		assertEquals(3, loads.get());
+	}
+
+	@Test
+	public void valuesExpireAndKeepTheirExpiryWhenMoved() throws Exception {
+		testee.put("expiring", "value", 50, TimeUnit.MILLISECONDS);
+		testee.putAsync("expiringAsync", "value", 50, TimeUnit.MILLISECONDS).join();
+		testee.put("moved", "value", 300, TimeUnit.MILLISECONDS);
+		testee.put("kept", "value", 1, TimeUnit.HOURS);
+		assertEquals("value", get("expiring"));
+		assertEquals("value", get("expiringAsync"));
+
+		testee.nodeShuttingDown(testee.getOwningNode("moved"));
+		assertEquals("value", get("moved"));
+		clock.advance(50, TimeUnit.MILLISECONDS);
+		assertNull(get("expiring"));
+		assertNull(get("expiringAsync"));
+		assertEquals("value", get("moved"));
+		clock.advance(250, TimeUnit.MILLISECONDS);
+		assertNull(get("moved"));
+		assertEquals("value", get("kept"));
+	}
+
+	@Test
+	public void redistributionIsRateLimited() throws Exception {
+		// One write at a time per destination
+		testee = newCacheWithNodes(options().transferBatchSize(10).transferParallelism(1).transferSourceParallelism(3).transferRateLimit(200));
+		Map<String, String> entries = IntStream.range(0, 300).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		testee.putAll(entries);
+
+		movedKeys.set(0);
+		long start = System.nanoTime();
+		testee.nodeAdded(new Node(UUID.randomUUID(), "host3", 3, NodeType.A));
+		testee.rebalanced().join();
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(movedKeys.get() > 20);
+		// The first batch is let through at once, every later one waits for the keys before it
+		assertTrue(elapsedMillis >= (movedKeys.get() - 10) * 1000 / 200 * 9 / 10);
+		assertEquals(entries, testee.getAll(entries.keySet()));
+	}
+
+	@Test
+	public void writeBehindCollapsesRepeatedWritesAndReadsThemBack() throws Exception {
+		testee = newCacheWithNodes(options().writeBehind(1000, 1, TimeUnit.HOURS));
+		testee.put("gone", "value");
+		testee.flush();
+		bulkRequests.set(0);
+
+		for (int i = 0; i < 100; i++) {
+			testee.put("key", "value" + i);
+		}
+		testee.invalidate("gone");
+		testee.put("expiring", "value", 50, TimeUnit.MILLISECONDS);
+		assertEquals(0, bulkRequests.get());
+		assertEquals("value99", get("key"));
+		assertNull(get("gone"));
+		assertEquals("value", testee.getAsync("expiring").join());
+		assertEquals(Collections.singletonMap("key", "value99"), testee.getAll(Arrays.asList("key", "gone", "missing")));
+		// Only the key without a buffered write is read from a node
+		assertEquals(1, bulkRequests.getAndSet(0));
+
+		testee.flush();
+		assertEquals(1, bulkRequests.getAndSet(0));
+		assertEquals("value99", get("key"));
+		assertNull(get("gone"));
+		clock.advance(50, TimeUnit.MILLISECONDS);
+		assertNull(get("expiring"));
+	}
+
+	@Test
+	public void writeBehindFlushesFullBatches() throws Exception {
+		testee = newCacheWithNodes(options().writeBehind(10, 1, TimeUnit.HOURS));
+		Map<String, String> entries = IntStream.range(0, 100).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		testee.putAll(entries);
+		assertTrue(bulkRequests.get() >= 100 / 10 - 3);
+		testee.flush();
+		bulkRequests.set(0);
+		assertEquals(entries, testee.getAll(entries.keySet()));
+		assertEquals(3, bulkRequests.get());
+	}
+
+	@Test
+	public void bufferedWritesFollowTheirKeysWhenNodesLeave() throws Exception {
+		testee = newCacheWithNodes(options().writeBehind(1000, 1, TimeUnit.HOURS));
+		Map<String, String> entries = IntStream.range(0, 100).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		testee.putAll(entries);
+		testee.nodeRemoved(testee.getOwningNode("key1"));
+		testee.nodeShuttingDown(testee.getOwningNode("key2"));
+		testee.flush();
+		bulkRequests.set(0);
+		assertEquals(entries, testee.getAll(entries.keySet()));
+		assertEquals(1, bulkRequests.get());
+	}
+
+	@Test
+	public void writeBehindKeepsWritesWhileNodesFailAndRejectsThemWhenFull() throws Exception {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+		timer.setRemoveOnCancelPolicy(true);
+		try {
+			testee = newCacheWithNodes(options().healthCheckExecutor(timer).writeBehind(2, 4, 1, TimeUnit.HOURS));
+			List<String> keys = Arrays.asList("a", "b", "c", "d");
+			failingNodes.addAll(keys.stream().map(testee::getOwningNode).collect(Collectors.toSet()));
+			// Writes that fill a batch wait for its flush, which fails, but stay buffered and succeed
+			for (String key : keys) {
+				testee.put(key, "value");
+			}
+			try {
+				testee.flush();
+				fail("Expected the flush to fail while the nodes fail");
+			} catch (IOException e) {
+				// Expected
+			}
+			try {
+				testee.put("e", "value");
+				fail("Expected the write to be rejected while the buffer is full");
+			} catch (IOException e) {
+				// Expected
+			}
+			// Keys already buffered can still be rewritten
+			testee.put("a", "newValue");
+			assertEquals("newValue", get("a"));
+
+			failingNodes.clear();
+			testee.close();
+			assertTrue(timer.getQueue().isEmpty());
+			bulkRequests.set(0);
+			assertEquals(ImmutableMap.of("a", "newValue", "b", "value", "c", "value", "d", "value"), testee.getAll(keys));
+			assertTrue(bulkRequests.get() > 0);
+			testee.put("e", "value");
+		} finally {
+			timer.shutdownNow();
+		}
+	}
+
+	private DistributedCache<String, String> newCacheWithNodes(DistributedCacheOptions.Builder options) {
+		DistributedCache<String, String> cache = newCache(options);
+		IntStream.range(0, 3).forEach(i -> cache.nodeAdded(new Node(UUID.randomUUID(), "host" + i, i, NodeType.A)));
+		cache.rebalanced().join();
+		return cache;
+	}
+
+	private DistributedCache<String, String> newCache() {
+		return newCache(options());
+	}
+
+	private DistributedCache<String, String> newCache(CacheMetrics metrics) {
+		return newCache(options().metrics(metrics));
+	}
+
+	/**
+	 * @return Options that time values with the test's clock. Values move in the background as they do in production, so tests wait for
+	 *         {@link DistributedCache#rebalanced()} after changing the nodes.
+	 */
+	private DistributedCacheOptions.Builder options() {
+		return DistributedCacheOptions.builder().clock(clock);
+	}
+
+	private DistributedCache<String, String> newCache(DistributedCacheOptions.Builder options) {
+		return new DistributedCache<>(new ConsistentHashingLookup<>(10, Hashing.murmur3_32(), node -> node.getNodeId().toString()),
+				Funnels.stringFunnel(Charset.defaultCharset()), new CountingFactory(), options.build());
+	}
+
+	private String get(String key) {
+		try {
+			return testee.get(key);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private class CountingFactory implements NodeConnectionFactory {
+		@Override
+		public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+			return new FailingNodeConnection<>(node, new CountingNodeConnection<>(node));
+		}
+	}
+
+	/**
+	 * Fails every request while its node is in {@link DistributedCacheTest#failingNodes}, and holds single key writes to
+	 * {@link DistributedCacheTest#blockedNode} until they are released
+	 */
+	private class FailingNodeConnection<KeyT, ValueT> extends ForwardingNodeConnection<KeyT, ValueT> {
+
+		private final Node node;
+		private final NodeConnection<KeyT, ValueT> delegate;
+
+		FailingNodeConnection(Node node, NodeConnection<KeyT, ValueT> delegate) {
+			this.node = node;
+			this.delegate = delegate;
+		}
+
+		@Override
+		protected NodeConnection<KeyT, ValueT> delegate() {
+			return delegate;
+		}
+
+		private void failIfFailing() throws IOException {
+			if (failingNodes.contains(node)) {
+				throw new IOException("Node " + node.getNodeId() + " is failing");
+			}
+		}
+
+		@Override
+		public void putIfNewer(KeyT key, Versioned<ValueT> entry) throws IOException {
+			failIfFailing();
+			if (node.equals(blockedNode)) {
+				blockedPutStarted.countDown();
+				Uninterruptibles.awaitUninterruptibly(blockedPutReleased);
+			}
+			super.putIfNewer(key, entry);
+		}
+
+		@Override
+		public ValueT get(KeyT key) throws IOException {
+			failIfFailing();
+			return super.get(key);
+		}
+
+		@Override
+		public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) throws IOException {
+			failIfFailing();
+			return super.getAll(keys);
+		}
+
+		@Override
+		public void ping() throws IOException {
+			failIfFailing();
+			super.ping();
+		}
+
+		@Override
+		public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) throws IOException {
+			failIfFailing();
+			super.putAllIfNewer(entries);
+		}
+	}
+
+	private class CountingNodeConnection<KeyT, ValueT> extends SimpleNodeConnection<KeyT, ValueT> {
+
+		CountingNodeConnection(Node node) {
+			super(node, clock);
+		}
+
+		@Override
+		public Map<KeyT, ValueT> getAll(Collection<KeyT> keys) {
+			bulkRequests.incrementAndGet();
+			return super.getAll(keys);
+		}
+
+		@Override
+		public void putAllIfNewer(Map<KeyT, Versioned<ValueT>> entries) {
+			bulkRequests.incrementAndGet();
+			super.putAllIfNewer(entries);
+		}
+
+		@Override
+		public Stream<KeyT> keysInHashRanges(RangeSet<Integer> hashRanges, ToIntFunction<? super KeyT> keyHasher) {
+			rangeScans.incrementAndGet();
+			return keys().filter(key -> hashRanges.contains(keyHasher.applyAsInt(key))).peek(key -> movedKeys.incrementAndGet());
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.rustleund.dcchallenge.distributedcache.node.ForwardingNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnectionFactory;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+import com.rustleund.dcchallenge.distributedcache.node.impl.SimpleNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.impl.SimpleNodeConnectionFactory;
+import com.rustleund.dcchallenge.hashinglookup.impl.ConsistentHashingLookup;
+import com.rustleund.dcchallenge.util.ManualClock;
+
+public class NearCacheTest {
+
+	/**
+	 * Run by the node after it read a value and before it answers, to make writes race with reads
+	 */
+	private final AtomicReference<CheckedRunnable> afterNextRead = new AtomicReference<>();
+	private final ManualClock clock = new ManualClock();
+	private DistributedCache<String, String> distributedCache;
+	private NearCache<String, String> testee;
+	private Node node1;
+
+	@Before
+	public void setUp() {
+		distributedCache = new DistributedCache<>(new ConsistentHashingLookup<>(10, Hashing.murmur3_32(), node -> node.getNodeId().toString()),
+				Funnels.stringFunnel(Charset.defaultCharset()), new RacingNodeConnectionFactory(),
+				DistributedCacheOptions.builder().rebalanceExecutor(MoreExecutors.directExecutor()).clock(clock).build());
+		testee = new NearCache<>(distributedCache, NearCacheOptions.<String, String> builder().maximumSize(100).build());
+		node1 = new Node(UUID.randomUUID(), "host1", 1, NodeType.A);
+		testee.nodeAdded(node1);
+	}
+
+	@Test
+	public void readsAreServedLocally() throws Exception {
+		testee.put("A", "AValue");
+		assertEquals("AValue", testee.get("A"));
+		assertEquals("AValue", testee.get("A"));
+		assertEquals(1, testee.getStats().missCount());
+		assertEquals(1, testee.getStats().hitCount());
+
+		// Changes made directly on the distributed cache are not seen until the local copy is dropped
+		distributedCache.put("A", "Changed");
+		assertEquals("AValue", testee.get("A"));
+	}
+
+	@Test
+	public void localCopiesExpireWithTheirValues() throws Exception {
+		testee.put("A", "AValue", 10, TimeUnit.SECONDS);
+		// Written by another client
+		distributedCache.put("B", "BValue", 20, TimeUnit.SECONDS);
+		assertEquals(ImmutableMap.of("A", "AValue", "B", "BValue"), testee.getAll(ImmutableList.of("A", "B")));
+		assertEquals("AValue", testee.get("A"));
+		assertEquals(1, testee.getStats().hitCount());
+
+		clock.advance(10, TimeUnit.SECONDS);
+		assertNull(testee.get("A"));
+		assertEquals("BValue", testee.get("B"));
+		clock.advance(10, TimeUnit.SECONDS);
+		assertNull(testee.get("B"));
+		assertEquals(0, testee.getLocalSize());
+	}
+
+	@Test
+	public void localWritesDropLocalCopies() throws Exception {
+		testee.put("A", "AValue");
+		testee.get("A");
+		testee.put("A", "NewValue");
+		assertEquals("NewValue", testee.get("A"));
+		testee.invalidate("A");
+		assertNull(testee.get("A"));
+		assertEquals(0, testee.getLocalSize());
+	}
+
+	@Test
+	public void valuesOverwrittenWhileReadAreNotKept() throws Exception {
+		testee.put("A", "OldValue");
+		afterNextRead.set(() -> testee.put("A", "NewValue"));
+		assertEquals("OldValue", testee.get("A"));
+		assertEquals("NewValue", testee.get("A"));
+		assertEquals("NewValue", testee.get("A"));
+		// Only the last read is served locally
+		assertEquals(1, testee.getStats().hitCount());
+	}
+
+	@Test
+	public void writesOfOtherKeysDoNotStopValuesBeingKept() throws Exception {
+		testee.put("A", "AValue");
+		// "B" hashes to a different write generation stripe than "A"
+		afterNextRead.set(() -> testee.put("B", "BValue"));
+		assertEquals("AValue", testee.get("A"));
+		assertEquals(1, testee.getLocalSize());
+	}
+
+	@Test
+	public void sizeIsBounded() throws Exception {
+		for (int i = 0; i < 500; i++) {
+			testee.put("key" + i, "value" + i);
+			testee.get("key" + i);
+		}
+		assertTrue(testee.getLocalSize() <= 100);
+	}
+
+	@Test
+	public void entriesThatMovedAreDropped() throws Exception {
+		for (int i = 0; i < 50; i++) {
+			testee.put("key" + i, "value" + i);
+			testee.get("key" + i);
+		}
+		assertEquals(50, testee.getLocalSize());
+
+		Node node2 = new Node(UUID.randomUUID(), "host2", 2, NodeType.B);
+		testee.nodeAdded(node2);
+		long keysStillOnNode1 = IntStream.range(0, 50).filter(i -> distributedCache.getOwningNode("key" + i) == node1).count();
+		assertEquals(keysStillOnNode1, testee.getLocalSize());
+
+		testee.nodeShuttingDown(node1);
+		testee.nodeRemoved(node1);
+		assertEquals(0, testee.getLocalSize());
+		for (int i = 0; i < 50; i++) {
+			assertEquals("value" + i, testee.get("key" + i));
+		}
+	}
+
+	@FunctionalInterface
+	private interface CheckedRunnable {
+
+		void run() throws IOException;
+	}
+
+	private class RacingNodeConnectionFactory implements NodeConnectionFactory {
+
+		@Override
+		public <KeyT, ValueT> NodeConnection<KeyT, ValueT> findNodeConnectionForNodeType(Node node) {
+			SimpleNodeConnection<KeyT, ValueT> store = new SimpleNodeConnection<>(node, clock);
+			return new ForwardingNodeConnection<KeyT, ValueT>() {
+				@Override
+				protected NodeConnection<KeyT, ValueT> delegate() {
+					return store;
+				}
+
+				@Override
+				public Map<KeyT, Versioned<ValueT>> getAllVersioned(Collection<KeyT> keys) throws IOException {
+					Map<KeyT, Versioned<ValueT>> entries = super.getAllVersioned(keys);
+					CheckedRunnable race = afterNextRead.getAndSet(null);
+					if (race != null) {
+						race.run();
+					}
+					return entries;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.rustleund.dcchallenge.distributedcache;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.impl.ConcurrentNodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.impl.SimpleNodeConnectionFactory;
+import com.rustleund.dcchallenge.hashinglookup.impl.ConsistentHashingLookup;
+import com.rustleund.dcchallenge.util.LambdaUtil.CheckedFunction;
+
+public class SingleFlightLoaderTest {
+
+	private static final long TIME_TO_LIVE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private final AtomicLong nanos = new AtomicLong();
+	private final AtomicInteger loads = new AtomicInteger();
+	private final CountDownLatch refreshStarted = new CountDownLatch(1);
+	private final CountDownLatch releaseRefresh = new CountDownLatch(1);
+	private ExecutorService executor;
+	private SingleFlightLoader<String, String> testee;
+
+	@Before
+	public void setUp() {
+		DistributedCache<String, String> cache = new DistributedCache<>(
+				new ConsistentHashingLookup<>(10, Hashing.murmur3_32(), node -> node.getNodeId().toString()), Funnels.stringFunnel(Charset.defaultCharset()),
+				new SimpleNodeConnectionFactory(Collections.singletonMap(NodeType.A, ConcurrentNodeConnection.factory(0))),
+				DistributedCacheOptions.builder().rebalanceExecutor(MoreExecutors.directExecutor()).build());
+		cache.nodeAdded(new Node(UUID.randomUUID(), "host", 0, NodeType.A));
+		executor = Executors.newCachedThreadPool();
+		// A huge beta makes every read of a loaded value refresh it
+		testee = new SingleFlightLoader<>(cache, executor, TIME_TO_LIVE_NANOS, 1e12, new Ticker() {
+			@Override
+			public long read() {
+				return nanos.get();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void readersOfAnExpiredValueWaitForItsRefresh() throws Exception {
+		assertEquals("A1", testee.getOrLoad("A", this::loadSlowlyAfterTheFirst));
+		// Starts a refresh that waits until it is released
+		assertEquals("A1", testee.getOrLoad("A", this::loadSlowlyAfterTheFirst));
+		refreshStarted.await();
+		// While the value has not expired it is still read, without waiting for the refresh or refreshing again
+		assertEquals("A1", testee.getOrLoad("A", this::loadSlowlyAfterTheFirst));
+
+		nanos.addAndGet(TIME_TO_LIVE_NANOS);
+		AtomicReference<Thread> reader = new AtomicReference<>();
+		Future<String> expiredRead = executor.submit(() -> {
+			reader.set(Thread.currentThread());
+			return testee.getOrLoad("A", this::loadSlowlyAfterTheFirst);
+		});
+		// Only released once the reader waits for it, a reader that came after it would read the new value and refresh it again
+		while (reader.get() == null || reader.get().getState() != Thread.State.WAITING) {
+			Thread.yield();
+		}
+		releaseRefresh.countDown();
+		assertEquals("A2", expiredRead.get());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void loaderAskingForItsOwnKeyFails() throws Exception {
+		CheckedFunction<String, String, IOException> reentrant = key -> testee.getOrLoad(key, k -> "inner");
+		try {
+			testee.getOrLoad("A", reentrant);
+			fail("Expected the loader to fail rather than wait for itself");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		// Other keys can be loaded from a loader
+		assertEquals("B", testee.getOrLoad("A", key -> testee.getOrLoad("B", k -> k)));
+	}
+
+	/**
+	 * Takes a microsecond on the ticker, and after the first load waits until released
+	 */
+	private String loadSlowlyAfterTheFirst(String key) {
+		nanos.addAndGet(1000);
+		int load = loads.incrementAndGet();
+		if (load > 1) {
+			refreshStarted.countDown();
+			Uninterruptibles.awaitUninterruptibly(releaseRefresh);
+		}
+		return key + load;
+	}
+}
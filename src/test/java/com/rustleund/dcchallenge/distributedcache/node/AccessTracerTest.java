@@ -0,0 +1,78 @@
+package com.rustleund.dcchallenge.distributedcache.node;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.rustleund.dcchallenge.distributedcache.node.impl.SimpleNodeConnection;
+import com.rustleund.dcchallenge.metrics.NodeOperation;
+
+public class AccessTracerTest {
+
+	private final Executor executor = MoreExecutors.directExecutor();
+	private final List<AccessTraceEvent> events = new ArrayList<>();
+	private final Node node = new Node(UUID.randomUUID(), "host0", 0, NodeType.A);
+	private final Node otherNode = new Node(UUID.randomUUID(), "host1", 1, NodeType.A);
+	private AccessTracer tracer;
+	private NodeConnection<String, String> connection;
+	private NodeConnection<String, String> otherConnection;
+
+	@Before
+	public void setUp() {
+		// Drained by hand, the drain thread never gets to run
+		tracer = new AccessTracer(4, events::add, 1, TimeUnit.HOURS);
+		connection = new TracingNodeConnection<>(ExecutorAsyncNodeConnection.asAsync(new SimpleNodeConnection<>(node), executor), node, tracer);
+		otherConnection = new TracingNodeConnection<>(ExecutorAsyncNodeConnection.asAsync(new SimpleNodeConnection<>(otherNode), executor), otherNode,
+				tracer);
+	}
+
+	@Test
+	public void offByDefault() throws Exception {
+		connection.put("A", "AValue");
+		assertFalse(tracer.shouldTrace(node));
+		assertEquals(0, tracer.drain());
+	}
+
+	@Test
+	public void tracesSelectedNodes() throws Exception {
+		tracer.traceNode(node);
+		connection.put("A", "AValue");
+		otherConnection.put("B", "BValue");
+		connection.getAll(Collections.singletonList("A"));
+		assertEquals(2, tracer.drain());
+
+		assertEquals(NodeOperation.PUT, events.get(0).getOperation());
+		assertEquals("A", events.get(0).getKey());
+		assertSame(node, events.get(0).getNode());
+		assertEquals(NodeOperation.GET_ALL, events.get(1).getOperation());
+		assertNull(events.get(1).getKey());
+		assertEquals(1, events.get(1).getKeyCount());
+
+		tracer.untraceNode(node);
+		connection.get("A");
+		assertEquals(0, tracer.drain());
+	}
+
+	@Test
+	public void dropsEventsWhenFull() throws Exception {
+		tracer.setSamplingRate(1);
+		for (int i = 0; i < 6; i++) {
+			otherConnection.put("key" + i, "value" + i);
+		}
+		assertEquals(2, tracer.getDroppedEvents());
+		assertEquals(4, tracer.drain());
+		otherConnection.get("key0");
+		assertEquals(1, tracer.drain());
+		assertEquals("key0", events.get(4).getKey());
+		tracer.disable();
+	}
+}
@@ -0,0 +1,162 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+import com.rustleund.dcchallenge.util.ManualClock;
+
+public class ConcurrentNodeConnectionTest {
+
+	private final Node node = new Node(UUID.randomUUID(), "host", 1, NodeType.A);
+
+	@Test
+	public void unbounded() {
+		ConcurrentNodeConnection<String, String> testee = new ConcurrentNodeConnection<>(node, 0);
+		IntStream.range(0, 1000).forEach(i -> testee.put("key" + i, "value" + i));
+		assertEquals(1000, testee.size());
+		assertEquals("value5", testee.get("key5"));
+		testee.invalidate("key5");
+		assertNull(testee.get("key5"));
+		assertEquals(999, testee.keys().count());
+	}
+
+	@Test
+	public void boundedEvictsUnreadValuesFirst() {
+		ConcurrentNodeConnection<Integer, String> testee = new ConcurrentNodeConnection<>(node, 1);
+		testee.put(1, "one");
+		testee.get(1);
+		testee.put(2, "two");
+		// 1 was read, so it gets a second chance and 2 is evicted instead
+		assertEquals("one", testee.get(1));
+		assertNull(testee.get(2));
+		assertEquals(1, testee.getEvictionCount());
+
+		testee.put(3, "three");
+		testee.put(4, "four");
+		assertEquals(1, testee.size());
+		assertEquals("four", testee.get(4));
+	}
+
+	@Test
+	public void boundedUnderConcurrentWrites() throws Exception {
+		ConcurrentNodeConnection<Integer, Integer> testee = new ConcurrentNodeConnection<>(node, 1000);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		IntStream.range(0, 8).forEach(thread -> executor.execute(() -> IntStream.range(0, 10_000).forEach(i -> {
+			int key = thread * 10_000 + i;
+			testee.put(key, key);
+			testee.get(key - 1);
+			if (i % 3 == 0) {
+				testee.invalidate(key);
+			}
+		})));
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+		assertTrue(testee.size() <= 1000);
+		assertEquals(testee.size(), testee.keys().collect(Collectors.toSet()).size());
+		testee.keys().forEach(key -> assertEquals(key, testee.get(key)));
+	}
+
+	@Test
+	public void versionedWrites() throws IOException {
+		assertVersionedWrites(new ConcurrentNodeConnection<>(node, 0));
+		assertVersionedWrites(new ConcurrentNodeConnection<>(node, 100));
+	}
+
+	private void assertVersionedWrites(NodeConnection<String, String> testee) throws IOException {
+		testee.put("written", "old");
+		testee.put("invalidated", "old");
+		// Writes made while the values were being copied elsewhere
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)));
+		assertEquals("new", testee.get("written"));
+		assertNull(testee.get("invalidated"));
+
+		// The copies arrive late, and do not bring back the old values
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("old", Versioned.UNVERSIONED), "invalidated", Versioned.of("old", 3),
+				"copied", Versioned.of("copy", Versioned.UNVERSIONED)));
+		assertEquals("new", testee.get("written"));
+		assertNull(testee.get("invalidated"));
+		assertEquals("copy", testee.get("copied"));
+		assertEquals(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)),
+				testee.getAllVersioned(Arrays.asList("written", "invalidated", "missing")));
+		assertEquals(ImmutableMap.of("written", "new", "copied", "copy").keySet(), testee.keys().collect(Collectors.toSet()));
+
+		// A source only removes the values it copied, not ones written since
+		testee.invalidateAllIfNotNewer(ImmutableMap.of("written", 4L, "copied", Versioned.UNVERSIONED));
+		assertEquals("new", testee.get("written"));
+		assertNull(testee.get("copied"));
+
+		testee.purgeTombstones(5);
+		assertEquals(Collections.singleton("invalidated"), testee.getAllVersioned(Collections.singleton("invalidated")).keySet());
+		testee.purgeTombstones(6);
+		assertTrue(testee.getAllVersioned(Collections.singleton("invalidated")).isEmpty());
+		testee.putAllIfNewer(Collections.singletonMap("invalidated", Versioned.of("old", Versioned.UNVERSIONED)));
+		assertEquals("old", testee.get("invalidated"));
+	}
+
+	@Test
+	public void entriesExpire() throws Exception {
+		assertEntriesExpire(0);
+		assertEntriesExpire(100);
+	}
+
+	private void assertEntriesExpire(long maximumSize) throws Exception {
+		ManualClock clock = new ManualClock();
+		ConcurrentNodeConnection<String, String> testee = new ConcurrentNodeConnection<>(node, maximumSize, clock);
+		testee.put("expiring", "value", 30, TimeUnit.MILLISECONDS);
+		testee.put("rewritten", "value", 30, TimeUnit.MILLISECONDS);
+		testee.put("rewritten", "value");
+		testee.put("kept", "value", 1, TimeUnit.HOURS);
+		assertEquals("value", testee.get("expiring"));
+		assertEquals(clock.millis() + TimeUnit.HOURS.toMillis(1), testee.getAllVersioned(Collections.singleton("kept")).get("kept").getExpiresAtMillis());
+
+		clock.advance(29, TimeUnit.MILLISECONDS);
+		assertEquals("value", testee.get("expiring"));
+		clock.advance(1, TimeUnit.MILLISECONDS);
+		assertNull(testee.get("expiring"));
+		assertEquals(ImmutableMap.of("rewritten", "value", "kept", "value").keySet(), testee.keys().collect(Collectors.toSet()));
+		assertTrue(testee.getAllVersioned(Collections.singleton("expiring")).isEmpty());
+
+		// A moved entry keeps its expiry, even if it has already passed
+		testee.putAllIfNewer(ImmutableMap.of("moved", Versioned.of("value", 1).expiringAt(clock.millis() - 1)));
+		assertNull(testee.get("moved"));
+	}
+
+	@Test
+	public void expiredEntriesAreRemovedByLaterReadsAndWrites() {
+		ManualClock clock = new ManualClock();
+		ConcurrentNodeConnection<Integer, String> testee = new ConcurrentNodeConnection<>(node, 0, clock);
+		IntStream.range(0, 100).forEach(i -> testee.put(i, "value", 10, TimeUnit.MILLISECONDS));
+		testee.put(100, "value", 1, TimeUnit.HOURS);
+		clock.advance(2 * TimingWheel.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+		// A read of another key advances the wheel as well as a write does
+		assertEquals("value", testee.get(100));
+		assertEquals(1, testee.size());
+		IntStream.range(0, 100).forEach(i -> testee.put(i, "value", 10, TimeUnit.MILLISECONDS));
+		clock.advance(2 * TimingWheel.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+		testee.put(101, "value");
+		assertEquals(2, testee.size());
+	}
+
+	@Test
+	public void selectedByNodeType() {
+		SimpleNodeConnectionFactory factory = new SimpleNodeConnectionFactory(Collections.singletonMap(NodeType.B, ConcurrentNodeConnection.factory(10)));
+		assertTrue(factory.findNodeConnectionForNodeType(node) instanceof SimpleNodeConnection);
+		assertTrue(factory.findNodeConnectionForNodeType(new Node(UUID.randomUUID(), "host", 2, NodeType.B)) instanceof ConcurrentNodeConnection);
+	}
+}
@@ -0,0 +1,157 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.rustleund.dcchallenge.codec.Codecs;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeConnection;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+import com.rustleund.dcchallenge.util.ManualClock;
+
+public class OffHeapNodeConnectionTest {
+
+	private final Node node = new Node(UUID.randomUUID(), "host", 1, NodeType.A);
+
+	@Test
+	public void putGetInvalidate() {
+		OffHeapNodeConnection<String, String> testee = new OffHeapNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 1 << 20, 1 << 16);
+		assertNull(testee.get("A"));
+		testee.put("A", "AValue");
+		testee.put("B", "BValue");
+		assertEquals("AValue", testee.get("A"));
+		testee.put("A", "\u00c4NewValue");
+		assertEquals("\u00c4NewValue", testee.get("A"));
+		assertEquals(2, testee.size());
+		testee.invalidate("A");
+		assertNull(testee.get("A"));
+		assertEquals("BValue", testee.get("B"));
+		assertEquals(Collections.singleton("B"), testee.keys().collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void indexGrowsAndRemovesWithoutLosingKeys() {
+		OffHeapNodeConnection<String, String> testee = new OffHeapNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 16 << 20, 1 << 20);
+		IntStream.range(0, 20_000).forEach(i -> testee.put("key" + i, "value" + i));
+		IntStream.range(0, 20_000).filter(i -> i % 2 == 0).forEach(i -> testee.invalidate("key" + i));
+		assertEquals(10_000, testee.size());
+		IntStream.range(0, 20_000).forEach(i -> assertEquals(i % 2 == 0 ? null : "value" + i, testee.get("key" + i)));
+		Set<String> keys = testee.keys().collect(Collectors.toSet());
+		assertEquals(10_000, keys.size());
+		assertTrue(keys.contains("key1"));
+		assertEquals(0, testee.getEvictionCount());
+	}
+
+	@Test
+	public void keysLeftAloneAreStreamedOnceWhileTheIndexChanges() {
+		OffHeapNodeConnection<String, String> testee = new OffHeapNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 16 << 20, 1 << 20);
+		IntStream.range(0, 5000).forEach(i -> testee.put("kept" + i, "value"));
+		List<String> streamed = new ArrayList<>();
+		Iterator<String> keys = testee.keys().iterator();
+		for (int i = 0; keys.hasNext(); i++) {
+			streamed.add(keys.next());
+			// Grows the index and shifts slots back on removal, which moves the slots of the kept keys
+			testee.put("added" + i, "value");
+			if (i % 2 == 1) {
+				testee.invalidate("added" + (i - 1));
+			}
+		}
+		List<String> kept = streamed.stream().filter(key -> key.startsWith("kept")).collect(Collectors.toList());
+		assertEquals(5000, kept.size());
+		assertEquals(5000, new HashSet<>(kept).size());
+	}
+
+	@Test
+	public void oldestSlabIsEvictedWhenMemoryIsUsedUp() {
+		// 4 slabs of 1 KiB, each record is 28 header bytes + 5 key bytes + 100 value bytes, so 7 records per slab
+		OffHeapNodeConnection<String, byte[]> testee = new OffHeapNodeConnection<>(node, Codecs.utf8(), Codecs.byteArray(), 4096, 1024);
+		IntStream.range(0, 40).forEach(i -> testee.put(String.format("k%04d", i), new byte[100]));
+		assertTrue(testee.getEvictionCount() > 0);
+		assertEquals(40 - testee.getEvictionCount(), testee.size());
+		assertNull(testee.get("k0000"));
+		assertArrayEquals(new byte[100], testee.get("k0039"));
+	}
+
+	@Test
+	public void versionedWrites() {
+		OffHeapNodeConnection<String, String> testee = new OffHeapNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 1 << 20, 1 << 16);
+		testee.put("written", "old");
+		testee.put("invalidated", "old");
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)));
+		// Late copies do not bring back the old values
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("old", 3), "invalidated", Versioned.of("old", 3), "copied",
+				Versioned.of("copy", Versioned.UNVERSIONED)));
+		assertEquals(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)),
+				testee.getAllVersioned(Arrays.asList("written", "invalidated", "missing")));
+		assertEquals(ImmutableSet.of("written", "copied"), testee.keys().collect(Collectors.toSet()));
+
+		testee.invalidateAllIfNotNewer(ImmutableMap.of("written", 4L, "copied", Versioned.UNVERSIONED));
+		assertEquals("new", testee.get("written"));
+		assertNull(testee.get("copied"));
+
+		testee.purgeTombstones(6);
+		assertEquals(1, testee.size());
+		testee.putAllIfNewer(Collections.singletonMap("invalidated", Versioned.of("old", Versioned.UNVERSIONED)));
+		assertEquals("old", testee.get("invalidated"));
+	}
+
+	@Test
+	public void entriesExpire() {
+		ManualClock clock = new ManualClock();
+		OffHeapNodeConnection<String, String> testee = new OffHeapNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 1 << 20, 1 << 16, clock);
+		IntStream.range(0, 100).forEach(i -> testee.put("expiring" + i, "value", 10, TimeUnit.MILLISECONDS));
+		testee.put("kept", "value", 1, TimeUnit.HOURS);
+		assertEquals("value", testee.get("expiring0"));
+		assertEquals(1, testee.getAllVersioned(Collections.singleton("kept")).size());
+
+		clock.advance(10, TimeUnit.MILLISECONDS);
+		assertNull(testee.get("expiring1"));
+		assertEquals(Collections.singleton("kept"), testee.keys().collect(Collectors.toSet()));
+		// Reads alone advance the wheel and free the expired records
+		clock.advance(2 * TimingWheel.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+		assertEquals("value", testee.get("kept"));
+		assertEquals(1, testee.size());
+	}
+
+	@Test
+	public void rewritingAnEntryMovesItsExpiry() {
+		ManualClock clock = new ManualClock();
+		OffHeapNodeConnection<String, String> testee = new OffHeapNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 1 << 20, 1 << 16, clock);
+		testee.put("key", "value", 10, TimeUnit.MILLISECONDS);
+		testee.put("key", "newValue", 1, TimeUnit.HOURS);
+		clock.advance(2 * TimingWheel.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+		assertEquals("newValue", testee.get("key"));
+		assertEquals(1, testee.size());
+		clock.advance(1, TimeUnit.HOURS);
+		assertNull(testee.get("key"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void entryLargerThanSlabIsRejected() {
+		new OffHeapNodeConnection<>(node, Codecs.utf8(), Codecs.byteArray(), 4096, 1024).put("key", new byte[2000]);
+	}
+
+	@Test
+	public void selectedByNodeType() {
+		SimpleNodeConnectionFactory factory = new SimpleNodeConnectionFactory(
+				Collections.singletonMap(NodeType.A, OffHeapNodeConnection.factory(Codecs.utf8(), Codecs.utf8(), 1 << 20, 1 << 16)));
+		NodeConnection<String, String> connection = factory.findNodeConnectionForNodeType(node);
+		assertTrue(connection instanceof OffHeapNodeConnection);
+	}
+}
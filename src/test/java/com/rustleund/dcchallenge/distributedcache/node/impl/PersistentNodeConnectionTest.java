@@ -0,0 +1,194 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+import com.rustleund.dcchallenge.codec.Codecs;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+import com.rustleund.dcchallenge.util.ManualClock;
+
+public class PersistentNodeConnectionTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final Node node = new Node(UUID.randomUUID(), "host", 1, NodeType.A);
+	private final ManualClock clock = new ManualClock();
+	private Path directory;
+	private PersistentNodeConnection<String, String> testee;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.getRoot().toPath().resolve("node");
+		testee = reopen();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		testee.close();
+	}
+
+	private PersistentNodeConnection<String, String> reopen() throws IOException {
+		if (testee != null) {
+			testee.close();
+		}
+		PersistentNodeConnection<String, String> connection = new PersistentNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), directory, 4096, 1,
+				TimeUnit.DAYS, clock);
+		connection.open();
+		return connection;
+	}
+
+	@Test
+	public void putGetInvalidate() throws IOException {
+		assertNull(testee.get("A"));
+		testee.put("A", "AValue");
+		testee.put("B", "BValue");
+		testee.put("A", "\u00c4NewValue");
+		assertEquals("\u00c4NewValue", testee.get("A"));
+		testee.invalidate("B");
+		assertNull(testee.get("B"));
+		assertEquals(Collections.singleton("A"), testee.keys().collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void reopensWarmFromTheCheckpoint() throws IOException {
+		IntStream.range(0, 500).forEach(i -> put("key" + i, "value" + i));
+		testee.invalidate("key7");
+		assertTrue(testee.getSegmentCount() > 1);
+		testee = reopen();
+		assertEquals(499, testee.size());
+		assertEquals("value1", testee.get("key1"));
+		assertEquals("value499", testee.get("key499"));
+		assertNull(testee.get("key7"));
+	}
+
+	@Test
+	public void reopensWarmByScanningWithoutACheckpoint() throws IOException {
+		IntStream.range(0, 500).forEach(i -> put("key" + i, "value" + i));
+		put("key1", "newValue");
+		testee.invalidate("key7");
+		testee.close();
+		Files.delete(directory.resolve("index.checkpoint"));
+		testee = reopen();
+		assertEquals(499, testee.size());
+		assertEquals("newValue", testee.get("key1"));
+		assertNull(testee.get("key7"));
+	}
+
+	@Test
+	public void writesAfterReopeningAreKept() throws IOException {
+		put("A", "AValue");
+		testee = reopen();
+		put("B", "BValue");
+		testee.invalidate("A");
+		testee = reopen();
+		assertNull(testee.get("A"));
+		assertEquals("BValue", testee.get("B"));
+	}
+
+	@Test
+	public void compactionReclaimsSegments() throws IOException {
+		for (int round = 0; round < 10; round++) {
+			int value = round;
+			IntStream.range(0, 50).forEach(i -> put("key" + i, "value" + value));
+		}
+		int segments = testee.getSegmentCount();
+		assertTrue(testee.compact() > 0);
+		assertTrue(testee.getSegmentCount() < segments);
+		try (Stream<Path> files = Files.list(directory)) {
+			assertEquals(testee.getSegmentCount(), files.filter(file -> file.getFileName().toString().startsWith("segment-")).count());
+		}
+		IntStream.range(0, 50).forEach(i -> assertEquals("value9", testee.get("key" + i)));
+		testee = reopen();
+		assertEquals(50, testee.size());
+		IntStream.range(0, 50).forEach(i -> assertEquals("value9", testee.get("key" + i)));
+	}
+
+	@Test
+	public void tombstonesSurviveCompactionAndReopening() throws IOException {
+		put("invalidated", "old");
+		IntStream.range(0, 200).forEach(i -> put("filler", "value" + i));
+		testee.invalidate("invalidated");
+		IntStream.range(0, 200).forEach(i -> put("filler", "value" + i));
+		testee.compact();
+		testee.close();
+		Files.delete(directory.resolve("index.checkpoint"));
+		testee = reopen();
+		assertNull(testee.get("invalidated"));
+		assertEquals("value199", testee.get("filler"));
+	}
+
+	@Test
+	public void versionsSurviveReopening() throws IOException {
+		put("written", "old");
+		put("invalidated", "old");
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)));
+		testee.invalidateAllIfNotNewer(ImmutableMap.of("written", 4L));
+		testee = reopen();
+		// Late copies do not bring back the old values
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("old", 3), "invalidated", Versioned.of("old", 3)));
+		// Values expire at the maximum time to live at the latest
+		assertEquals(ImmutableMap.of("written", Versioned.of("new", 5).expiringAt(clock.millis() + TimeUnit.DAYS.toMillis(1)), "invalidated",
+				Versioned.tombstone(5)), testee.getAllVersioned(Arrays.asList("written", "invalidated", "missing")));
+		assertEquals(Collections.singleton("written"), testee.keys().collect(Collectors.toSet()));
+
+		testee.invalidateAllIfNotNewer(ImmutableMap.of("written", 5L));
+		assertNull(testee.get("written"));
+		testee.purgeTombstones(6);
+		testee.putAllIfNewer(Collections.singletonMap("invalidated", Versioned.of("old", Versioned.UNVERSIONED)));
+		assertEquals("old", testee.get("invalidated"));
+	}
+
+	@Test
+	public void entriesExpire() throws IOException {
+		testee.put("expiring", "value", 30, TimeUnit.MILLISECONDS);
+		put("kept", "value");
+		assertEquals("value", testee.get("expiring"));
+		testee = reopen();
+		assertEquals("value", testee.get("expiring"));
+		clock.advance(30, TimeUnit.MILLISECONDS);
+		assertNull(testee.get("expiring"));
+		assertEquals(Collections.singleton("kept"), testee.keys().collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void entriesLiveAtMostTheMaximumTimeToLive() throws IOException {
+		put("written", "value");
+		testee.put("longer", "value", 2, TimeUnit.DAYS);
+		clock.advance(12, TimeUnit.HOURS);
+		put("rewritten", "value");
+		// An entry the node missed the invalidation of while it was away is only served until its maximum time to live
+		testee = reopen();
+		clock.advance(12, TimeUnit.HOURS);
+		assertNull(testee.get("written"));
+		assertNull(testee.get("longer"));
+		assertEquals(Collections.singleton("rewritten"), testee.keys().collect(Collectors.toSet()));
+	}
+
+	private void put(String key, String value) {
+		try {
+			testee.put(key, value);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
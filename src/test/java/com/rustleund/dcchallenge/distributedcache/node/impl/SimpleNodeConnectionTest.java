@@ -0,0 +1,87 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+import com.rustleund.dcchallenge.util.ManualClock;
+
+public class SimpleNodeConnectionTest {
+
+	private final ManualClock clock = new ManualClock();
+	private final SimpleNodeConnection<String, String> testee = new SimpleNodeConnection<>(new Node(UUID.randomUUID(), "host", 1, NodeType.A), clock);
+
+	@Test
+	public void putGetInvalidate() {
+		testee.put("A", "AValue");
+		testee.putAll(ImmutableMap.of("B", "BValue", "C", "CValue"));
+		testee.invalidate("B");
+		assertEquals("AValue", testee.get("A"));
+		assertNull(testee.get("B"));
+		assertEquals(ImmutableMap.of("A", "AValue", "C", "CValue"), testee.getAll(Arrays.asList("A", "B", "C")));
+		testee.invalidateAll(Collections.singleton("C"));
+		assertEquals(Collections.singleton("A"), testee.keys().collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void versionedWrites() {
+		testee.put("written", "old");
+		testee.put("invalidated", "old");
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)));
+		// Late copies do not bring back the old values
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("old", 3), "invalidated", Versioned.of("old", 3), "copied",
+				Versioned.of("copy", Versioned.UNVERSIONED)));
+		assertEquals(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)),
+				testee.getAllVersioned(Arrays.asList("written", "invalidated", "missing")));
+		assertEquals(ImmutableSet.of("written", "copied"), testee.keys().collect(Collectors.toSet()));
+
+		testee.invalidateAllIfNotNewer(ImmutableMap.of("written", 4L, "copied", Versioned.UNVERSIONED));
+		assertEquals("new", testee.get("written"));
+		assertNull(testee.get("copied"));
+
+		testee.purgeTombstones(6);
+		testee.putAllIfNewer(Collections.singletonMap("invalidated", Versioned.of("old", Versioned.UNVERSIONED)));
+		assertEquals("old", testee.get("invalidated"));
+	}
+
+	@Test
+	public void entriesExpire() {
+		testee.put("expiring", "value", 30, TimeUnit.MILLISECONDS);
+		testee.put("rewritten", "value", 30, TimeUnit.MILLISECONDS);
+		testee.put("rewritten", "value");
+		testee.put("kept", "value", 1, TimeUnit.HOURS);
+		assertEquals(clock.millis() + TimeUnit.HOURS.toMillis(1), testee.getAllVersioned(Collections.singleton("kept")).get("kept").getExpiresAtMillis());
+
+		clock.advance(29, TimeUnit.MILLISECONDS);
+		assertEquals("value", testee.get("expiring"));
+		clock.advance(1, TimeUnit.MILLISECONDS);
+		assertNull(testee.get("expiring"));
+		assertTrue(testee.getAllVersioned(Collections.singleton("expiring")).isEmpty());
+		assertEquals(ImmutableSet.of("rewritten", "kept"), testee.keys().collect(Collectors.toSet()));
+
+		testee.putAllIfNewer(ImmutableMap.of("moved", Versioned.of("value", 1).expiringAt(clock.millis() - 1)));
+		assertNull(testee.get("moved"));
+	}
+
+	@Test
+	public void rewritingAnEntryMovesItsExpiry() {
+		testee.put("key", "value", 30, TimeUnit.MILLISECONDS);
+		testee.put("key", "value", 1, TimeUnit.HOURS);
+		clock.advance(2 * TimingWheel.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS);
+		assertEquals("value", testee.get("key"));
+		clock.advance(1, TimeUnit.HOURS);
+		assertNull(testee.get("key"));
+		assertTrue(testee.getAllVersioned(Collections.singleton("key")).isEmpty());
+	}
+}
@@ -0,0 +1,104 @@
+package com.rustleund.dcchallenge.distributedcache.node.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	private final Map<String, Long> deadlines = new HashMap<>();
+	private final List<String> expired = new ArrayList<>();
+	private final TimingWheel<String> testee = new TimingWheel<>(10, 0);
+
+	private void schedule(String key, long deadline) {
+		deadlines.put(key, deadline);
+		testee.schedule(key, deadline);
+	}
+
+	private void advance(long now) {
+		testee.advance(now, key -> deadlines.getOrDefault(key, TimingWheel.NO_DEADLINE), key -> {
+			deadlines.remove(key);
+			expired.add(key);
+		});
+	}
+
+	@Test
+	public void keysExpireOnceTheirDeadlinePassesOnEveryLevel() {
+		// Within the first level, the second, the fourth, and beyond the last
+		long[] deadlineTimes = { 50, 6_400, 30_000_000, 200_000_000 };
+		for (long deadline : deadlineTimes) {
+			schedule("key" + deadline, deadline);
+		}
+		for (long deadline : deadlineTimes) {
+			advance(deadline - 1);
+			assertFalse(expired.contains("key" + deadline));
+			advance(deadline);
+			assertEquals("key" + deadline, expired.get(expired.size() - 1));
+		}
+		assertEquals(deadlineTimes.length, expired.size());
+		assertEquals(0, testee.size());
+	}
+
+	@Test
+	public void deadlinesAreLookedUpWhenReached() {
+		schedule("removed", 100);
+		schedule("extended", 100);
+		schedule("expiring", 105);
+		deadlines.remove("removed");
+		deadlines.put("extended", 1_000L);
+		advance(110);
+		assertEquals(1, expired.size());
+		assertEquals("expiring", expired.get(0));
+		advance(999);
+		assertEquals(1, expired.size());
+		advance(1_000);
+		assertEquals("extended", expired.get(1));
+	}
+
+	@Test
+	public void pastDeadlinesExpireOnTheNextTick() {
+		advance(500);
+		schedule("late", 10);
+		advance(509);
+		assertTrue(expired.isEmpty());
+		advance(510);
+		assertEquals("late", expired.get(0));
+	}
+
+	@Test
+	public void reschedulingAKeyMovesIt() {
+		schedule("earlier", 1_000);
+		schedule("earlier", 100);
+		schedule("later", 100);
+		schedule("later", 5_000);
+		assertEquals(2, testee.size());
+		advance(110);
+		assertEquals(Collections.singletonList("earlier"), expired);
+		assertEquals(1, testee.size());
+		advance(4_990);
+		assertEquals(1, expired.size());
+		advance(5_000);
+		assertEquals(Arrays.asList("earlier", "later"), expired);
+		assertEquals(0, testee.size());
+	}
+
+	@Test
+	public void cancelledKeysAreNotLookedUp() {
+		schedule("cancelled", 100);
+		schedule("kept", 100);
+		testee.cancel("cancelled");
+		testee.cancel("missing");
+		assertEquals(1, testee.size());
+		advance(110);
+		assertEquals(Collections.singletonList("kept"), expired);
+		// Still there for the deadline lookup, but the wheel no longer tracks it
+		assertTrue(deadlines.containsKey("cancelled"));
+	}
+}
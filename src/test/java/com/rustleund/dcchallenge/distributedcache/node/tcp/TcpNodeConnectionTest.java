@@ -0,0 +1,247 @@
+package com.rustleund.dcchallenge.distributedcache.node.tcp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.rustleund.dcchallenge.codec.Codecs;
+import com.rustleund.dcchallenge.distributedcache.DistributedCache;
+import com.rustleund.dcchallenge.distributedcache.node.Node;
+import com.rustleund.dcchallenge.distributedcache.node.NodeType;
+import com.rustleund.dcchallenge.distributedcache.node.Versioned;
+import com.rustleund.dcchallenge.distributedcache.node.impl.ConcurrentNodeConnection;
+import com.rustleund.dcchallenge.hashinglookup.impl.ConsistentHashingLookup;
+import com.rustleund.dcchallenge.util.ManualClock;
+
+public class TcpNodeConnectionTest {
+
+	private final ManualClock clock = new ManualClock();
+	private final List<NodeServer> servers = new ArrayList<>();
+	private Node node;
+	private TcpNodeConnection<String, String> testee;
+
+	@Before
+	public void setUp() throws IOException {
+		node = startServer();
+		testee = new TcpNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 2);
+		testee.open();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		testee.close();
+		for (NodeServer server : servers) {
+			server.close();
+		}
+	}
+
+	private Node startServer() throws IOException {
+		Node serverNode = new Node(UUID.randomUUID(), "localhost", 0, NodeType.A);
+		NodeServer server = new NodeServer(new ConcurrentNodeConnection<>(serverNode, 0, clock));
+		servers.add(server);
+		InetSocketAddress address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		return new Node(serverNode.getNodeId(), "localhost", address.getPort(), NodeType.A);
+	}
+
+	@Test
+	public void requests() throws IOException {
+		assertNull(testee.get("A"));
+		testee.put("A", "AValue");
+		testee.put("", "");
+		assertEquals("AValue", testee.get("A"));
+		assertEquals("", testee.get(""));
+		testee.invalidate("A");
+		assertNull(testee.get("A"));
+
+		Map<String, String> entries = ImmutableMap.of("B", "BValue", "C", "\u00c7Value");
+		testee.putAll(entries);
+		assertEquals(entries, testee.getAll(Arrays.asList("B", "C", "missing")));
+		assertEquals(ImmutableMap.of("B", "BValue", "C", "\u00c7Value", "", "").keySet(), testee.keys().collect(Collectors.toSet()));
+		testee.invalidateAll(Collections.singletonList("B"));
+		assertEquals(Collections.singletonMap("C", "\u00c7Value"), testee.getAll(entries.keySet()));
+	}
+
+	@Test
+	public void versionedRequests() throws IOException {
+		testee.put("written", "old");
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)));
+		testee.putAllIfNewer(ImmutableMap.of("written", Versioned.of("old", 1), "invalidated", Versioned.of("old", 1)));
+		assertEquals(ImmutableMap.of("written", Versioned.of("new", 5), "invalidated", Versioned.tombstone(5)),
+				testee.getAllVersioned(Arrays.asList("written", "invalidated")));
+		testee.invalidateAllIfNotNewer(Collections.singletonMap("written", 4L));
+		assertEquals("new", testee.get("written"));
+		testee.purgeTombstones(6);
+		assertEquals(Collections.singleton("written"), testee.getAllVersioned(Arrays.asList("written", "invalidated")).keySet());
+	}
+
+	@Test
+	public void expiringRequests() throws IOException {
+		testee.put("expiring", "value", 30, TimeUnit.MILLISECONDS);
+		long expiresAt = clock.millis() + TimeUnit.HOURS.toMillis(1);
+		testee.putAllIfNewer(Collections.singletonMap("moved", Versioned.of("value", 1).expiringAt(expiresAt)));
+		assertEquals(expiresAt, testee.getAllVersioned(Collections.singleton("moved")).get("moved").getExpiresAtMillis());
+		assertEquals("value", testee.get("expiring"));
+		clock.advance(30, TimeUnit.MILLISECONDS);
+		assertNull(testee.get("expiring"));
+		assertEquals("value", testee.get("moved"));
+	}
+
+	@Test
+	public void pipelinesManyRequestsOverFewSockets() {
+		List<CompletableFuture<Void>> puts = IntStream.range(0, 5000).mapToObj(i -> testee.putAsync("key" + i, "value" + i)).collect(Collectors.toList());
+		CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).join();
+		List<CompletableFuture<String>> gets = IntStream.range(0, 5000).mapToObj(i -> testee.getAsync("key" + i)).collect(Collectors.toList());
+		IntStream.range(0, 5000).forEach(i -> assertEquals("value" + i, gets.get(i).join()));
+	}
+
+	@Test
+	public void keysAreListedAPageAtATime() throws IOException {
+		Map<String, String> entries = IntStream.range(0, 2500).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		testee.putAll(entries);
+		try (Stream<String> keys = testee.keys()) {
+			assertEquals(entries.keySet(), keys.collect(Collectors.toSet()));
+		}
+		// A listing closed early releases its cursor, and does not get in the way of the next one
+		try (Stream<String> keys = testee.keys()) {
+			assertEquals(10, keys.limit(10).count());
+		}
+		try (Stream<String> keys = testee.keys()) {
+			assertEquals(2500, keys.count());
+		}
+	}
+
+	@Test
+	public void requestsTimeOutWithoutAResponse() throws IOException {
+		// The kernel accepts the connection, but nothing ever reads the requests
+		try (ServerSocket silentServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			Node silentNode = new Node(UUID.randomUUID(), "localhost", silentServer.getLocalPort(), NodeType.A);
+			TcpNodeConnection<String, String> connection = new TcpNodeConnection<>(silentNode, Codecs.utf8(), Codecs.utf8(), 1, 1, 10_000, 50,
+					TimeUnit.MILLISECONDS);
+			connection.open();
+			try {
+				connection.getAsync("A").join();
+				fail("Expected the request to time out");
+			} catch (CompletionException e) {
+				assertTrue(e.getCause() instanceof SocketTimeoutException);
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
+	@Test
+	public void largeValuesSpanManyReads() throws IOException {
+		char[] chars = new char[1 << 20];
+		Arrays.fill(chars, 'x');
+		String value = new String(chars);
+		testee.put("large", value);
+		assertEquals(value, testee.get("large"));
+	}
+
+	@Test
+	public void requestsFailOnceTheServerCloses() throws IOException {
+		testee.put("A", "AValue");
+		servers.get(0).close();
+		try {
+			testee.getAsync("A").join();
+			fail("Expected the request to fail");
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void reconnectsOnceTheServerIsBack() throws Exception {
+		testee.put("A", "AValue");
+		servers.get(0).close();
+		awaitCondition(() -> testee.getOpenSockets() == 0);
+
+		NodeServer restarted = new NodeServer(new ConcurrentNodeConnection<>(node, 0, clock));
+		servers.add(restarted);
+		restarted.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), node.getPort()));
+		awaitCondition(() -> testee.getOpenSockets() == 2);
+		testee.ping();
+		assertNull(testee.get("A"));
+		testee.put("A", "BValue");
+		assertEquals("BValue", testee.get("A"));
+	}
+
+	@Test
+	public void poolGrowsUnderLoad() throws Exception {
+		TcpNodeConnection<String, String> growing = new TcpNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 1, 3);
+		growing.open();
+		try {
+			assertEquals(1, growing.getOpenSockets());
+			List<CompletableFuture<Void>> puts = IntStream.range(0, 5000).mapToObj(i -> growing.putAsync("key" + i, "value" + i)).collect(Collectors.toList());
+			CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).join();
+			awaitCondition(() -> growing.getOpenSockets() > 1);
+			assertTrue(growing.getOpenSockets() <= 3);
+		} finally {
+			growing.close();
+		}
+	}
+
+	@Test
+	public void poolShrinksBackOnceIdle() throws Exception {
+		TcpNodeConnection<String, String> shrinking = new TcpNodeConnection<>(node, Codecs.utf8(), Codecs.utf8(), 1, 3, 50, 10_000,
+				TimeUnit.MILLISECONDS);
+		shrinking.open();
+		try {
+			List<CompletableFuture<Void>> puts = IntStream.range(0, 5000).mapToObj(i -> shrinking.putAsync("key" + i, "value" + i))
+					.collect(Collectors.toList());
+			CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).join();
+			awaitCondition(() -> shrinking.getOpenSockets() > 1);
+			awaitCondition(() -> shrinking.getOpenSockets() == 1);
+			assertEquals("value1", shrinking.get("key1"));
+		} finally {
+			shrinking.close();
+		}
+	}
+
+	private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timed out waiting", System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void distributedCacheOverTcp() throws IOException {
+		ConsistentHashingLookup<Node> hashingLookup = new ConsistentHashingLookup<>(100, Hashing.murmur3_32(), n -> n.getNodeId().toString());
+		DistributedCache<String, String> cache = new DistributedCache<>(hashingLookup, Codecs.funnel(Codecs.utf8()),
+				TcpNodeConnection.factory(Codecs.utf8(), Codecs.utf8(), 1));
+		cache.nodeAdded(node);
+		cache.nodeAdded(startServer());
+		Map<String, String> entries = IntStream.range(0, 100).boxed().collect(Collectors.toMap(i -> "key" + i, i -> "value" + i));
+		cache.putAll(entries);
+		assertEquals(entries, cache.getAll(entries.keySet()));
+		assertEquals("value1", cache.get("key1"));
+
+		cache.nodeShuttingDown(node);
+		assertEquals(entries, cache.getAll(entries.keySet()));
+	}
+}
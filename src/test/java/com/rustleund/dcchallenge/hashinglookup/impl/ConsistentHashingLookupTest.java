@@ -3,14 +3,23 @@ package com.rustleund.dcchallenge.hashinglookup.impl;
 import static org.junit.Assert.*;
 
 import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.Table;
 import com.google.common.hash.Funnel;
 import com.google.common.hash.Funnels;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.rustleund.dcchallenge.hashinglookup.BoundedLoad;
+import com.rustleund.dcchallenge.hashinglookup.HashRing;
 
 public class ConsistentHashingLookupTest {
 
@@ -85,6 +94,143 @@ public class ConsistentHashingLookupTest {
 		assertEquals("A", testee.lookupValue("E_1", stringFunnel));
 	}
 
+	@Test
+	public void ownershipChanges() {
+		Funnel<CharSequence> stringFunnel = Funnels.stringFunnel(Charset.defaultCharset());
+		ConsistentHashingLookup<String> testee = new ConsistentHashingLookup<>(20, Hashing.murmur3_32(), Function.identity());
+		testee.storeValue("A");
+		testee.storeValue("B");
+		HashRing<String> twoValues = testee.snapshot();
+		testee.storeValue("C");
+		HashRing<String> threeValues = testee.snapshot();
+
+		Table<String, String, RangeSet<Integer>> added = twoValues.ownershipChangesTo(threeValues);
+		assertEquals(ImmutableSet.of("C"), added.columnKeySet());
+		assertTrue(twoValues.ownershipChangesTo(twoValues).isEmpty());
+
+		testee.removeValue("A");
+		Table<String, String, RangeSet<Integer>> removed = threeValues.ownershipChangesTo(testee.snapshot());
+		assertEquals(ImmutableSet.of("A"), removed.rowKeySet());
+
+		for (int i = 0; i < 1000; i++) {
+			int keyHash = testee.hash("key" + i, stringFunnel);
+			assertOwnershipChange(added, twoValues.valueFor(keyHash), threeValues.valueFor(keyHash), keyHash);
+			assertOwnershipChange(removed, threeValues.valueFor(keyHash), testee.snapshot().valueFor(keyHash), keyHash);
+		}
+	}
+
+	@Test
+	public void replicaChanges() {
+		Funnel<CharSequence> stringFunnel = Funnels.stringFunnel(Charset.defaultCharset());
+		ConsistentHashingLookup<String> testee = new ConsistentHashingLookup<>(20, Hashing.murmur3_32(), Function.identity());
+		testee.storeValue("A");
+		testee.storeValue("B");
+		testee.storeValue("C");
+		HashRing<String> before = testee.snapshot();
+		testee.storeValue("D");
+		HashRing<String> after = testee.snapshot();
+
+		Map<String, RangeSet<Integer>> changes = before.replicaChangesTo(after, 2);
+		assertEquals(ImmutableSet.of("A", "B", "C"), changes.keySet());
+		assertTrue(before.replicaChangesTo(before, 2).isEmpty());
+		for (int i = 0; i < 1000; i++) {
+			int keyHash = testee.hash("key" + i, stringFunnel);
+			List<String> previousReplicas = before.valuesFor(keyHash, 2);
+			// A key's replicas change exactly when the new value becomes one of them, and then both previous replicas are asked for it
+			boolean changed = after.valuesFor(keyHash, 2).contains("D");
+			previousReplicas.forEach(replica -> assertEquals(changed, changes.get(replica).contains(keyHash)));
+		}
+	}
+
+	@Test
+	public void lookupValues() {
+		Funnel<CharSequence> stringFunnel = Funnels.stringFunnel(Charset.defaultCharset());
+		ConsistentHashingLookup<String> testee = new ConsistentHashingLookup<>(20, Hashing.murmur3_32(), Function.identity());
+		assertTrue(testee.lookupValues("key", stringFunnel, 2).isEmpty());
+		testee.storeValue("A");
+		testee.storeValue("B");
+		testee.storeValue("C");
+		for (int i = 0; i < 100; i++) {
+			List<String> values = testee.lookupValues("key" + i, stringFunnel, 2);
+			assertEquals(2, values.size());
+			assertEquals(testee.lookupValue("key" + i, stringFunnel), values.get(0));
+			assertNotEquals(values.get(0), values.get(1));
+			assertEquals(ImmutableSet.of("A", "B", "C"), ImmutableSet.copyOf(testee.lookupValues("key" + i, stringFunnel, 5)));
+		}
+	}
+
+	@Test
+	public void weights() {
+		Funnel<CharSequence> stringFunnel = Funnels.stringFunnel(Charset.defaultCharset());
+		ConsistentHashingLookup<String> testee = new ConsistentHashingLookup<>(160, Hashing.murmur3_32(), Function.identity(),
+				value -> value.equals("C") ? 2 : 1);
+		testee.storeValue("A");
+		testee.storeValue("B");
+		testee.storeValue("C");
+		Map<String, Long> counts = countOwners(testee, stringFunnel);
+		double ratio = counts.get("C") / ((counts.get("A") + counts.get("B")) / 2.0);
+		assertTrue("ratio was " + ratio, ratio > 1.6 && ratio < 2.4);
+
+		HashRing<String> before = testee.snapshot();
+		testee.setWeight("A", 3);
+		Table<String, String, RangeSet<Integer>> increased = before.ownershipChangesTo(testee.snapshot());
+		assertEquals(ImmutableSet.of("A"), increased.columnKeySet());
+
+		before = testee.snapshot();
+		testee.setWeight("C", 0.5);
+		Table<String, String, RangeSet<Integer>> decreased = before.ownershipChangesTo(testee.snapshot());
+		assertEquals(ImmutableSet.of("C"), decreased.rowKeySet());
+
+		testee.removeValue("C");
+		assertEquals(ImmutableSet.of("A", "B"), countOwners(testee, stringFunnel).keySet());
+		try {
+			testee.setWeight("C", 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void boundedLoads() {
+		Funnel<CharSequence> stringFunnel = Funnels.stringFunnel(Charset.defaultCharset());
+		ConsistentHashingLookup<String> testee = new ConsistentHashingLookup<>(20, Hashing.murmur3_32(), Function.identity());
+		BoundedLoad<String> loads = new BoundedLoad<>(0.25);
+		for (String value : ImmutableSet.of("A", "B", "C", "D")) {
+			testee.storeValue(value);
+			loads.track(value);
+		}
+		// Every request is for the same hot key and none complete, so the owner fills up and the rest spill clockwise
+		for (int i = 0; i < 100; i++) {
+			String value = testee.lookupValue("hot", stringFunnel, loads::hasCapacity);
+			assertTrue(loads.hasCapacity(value));
+			loads.acquire(value);
+		}
+		for (String value : ImmutableSet.of("A", "B", "C", "D")) {
+			assertTrue(loads.load(value) <= Math.ceil(1.25 * 100 / 4));
+		}
+		assertEquals(testee.lookupValue("hot", stringFunnel), testee.snapshot().valuesFor(testee.hash("hot", stringFunnel), 1).get(0));
+		assertEquals(testee.lookupValue("hot", stringFunnel), testee.lookupValue("hot", stringFunnel, value -> false));
+
+		String owner = testee.lookupValue("hot", stringFunnel);
+		assertEquals(loads.capacity(), loads.load(owner));
+		loads.untrack(owner);
+		assertEquals(0, loads.load(owner));
+		assertTrue(loads.hasCapacity(owner));
+	}
+
+	private Map<String, Long> countOwners(ConsistentHashingLookup<String> testee, Funnel<CharSequence> stringFunnel) {
+		return IntStream.range(0, 30000).mapToObj(i -> testee.lookupValue("key" + i, stringFunnel))
+				.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+	}
+
+	private void assertOwnershipChange(Table<String, String, RangeSet<Integer>> changes, String previousOwner, String newOwner, int keyHash) {
+		RangeSet<Integer> ranges = changes.get(previousOwner, newOwner);
+		assertEquals(!previousOwner.equals(newOwner), ranges != null && ranges.contains(keyHash));
+		changes.cellSet().stream().filter(cell -> !cell.getRowKey().equals(previousOwner) || !cell.getColumnKey().equals(newOwner))
+				.forEach(cell -> assertFalse(cell.getValue().contains(keyHash)));
+	}
+
 	private int hash(HashFunction hashFunction, Funnel<CharSequence> stringFunnel, String s) {
 		return hashFunction.hashObject(s, stringFunnel).asInt();
 	}
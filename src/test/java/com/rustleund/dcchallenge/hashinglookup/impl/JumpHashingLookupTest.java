@@ -0,0 +1,53 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+
+public class JumpHashingLookupTest {
+
+	private static final Funnel<CharSequence> KEY_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+
+	@Test
+	public void addingAndRemovingLastValue() {
+		JumpHashingLookup<String> testee = new JumpHashingLookup<>(Hashing.murmur3_128());
+		assertNull(testee.lookupValue("key", KEY_FUNNEL));
+		IntStream.range(0, 4).forEach(i -> testee.storeValue("node" + i));
+		String[] before = owners(testee);
+
+		testee.storeValue("node4");
+		String[] afterAdd = owners(testee);
+		IntStream.range(0, before.length).forEach(i -> assertTrue(afterAdd[i].equals(before[i]) || afterAdd[i].equals("node4")));
+		assertEquals(2000, IntStream.range(0, before.length).filter(i -> afterAdd[i].equals("node4")).count(), 200);
+
+		testee.removeValue("node4");
+		assertArrayEquals(before, owners(testee));
+	}
+
+	@Test
+	public void removingOtherValueMovesLastValueIntoItsPlace() {
+		JumpHashingLookup<String> testee = new JumpHashingLookup<>(Hashing.murmur3_128());
+		IntStream.range(0, 4).forEach(i -> testee.storeValue("node" + i));
+		String[] before = owners(testee);
+		testee.removeValue("node1");
+		String[] after = owners(testee);
+		IntStream.range(0, before.length).forEach(i -> {
+			if (before[i].equals("node1")) {
+				assertEquals("node3", after[i]);
+			} else if (!before[i].equals("node3")) {
+				assertEquals(before[i], after[i]);
+			}
+		});
+	}
+
+	private String[] owners(JumpHashingLookup<String> testee) {
+		return IntStream.range(0, 10000).mapToObj(i -> testee.lookupValue("key" + i, KEY_FUNNEL)).toArray(String[]::new);
+	}
+}
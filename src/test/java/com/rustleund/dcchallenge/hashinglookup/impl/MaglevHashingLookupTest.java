@@ -0,0 +1,76 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+
+public class MaglevHashingLookupTest {
+
+	private static final Funnel<CharSequence> KEY_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+
+	@Test
+	public void spreadsKeysEvenly() {
+		MaglevHashingLookup<String> testee = new MaglevHashingLookup<>(Hashing.murmur3_32(), Function.identity());
+		assertNull(testee.lookupValue("key", KEY_FUNNEL));
+
+		testee.storeValue("A");
+		testee.storeValue("B");
+		testee.storeValue("C");
+		long ownedByA = IntStream.range(0, 30000).filter(i -> "A".equals(testee.lookupValue("key" + i, KEY_FUNNEL))).count();
+		assertEquals(10000, ownedByA, 500);
+
+		testee.removeValue("A");
+		testee.removeValue("B");
+		testee.removeValue("C");
+		assertNull(testee.lookupValue("key", KEY_FUNNEL));
+	}
+
+	@Test
+	public void tableDependsOnlyOnStoredValues() {
+		MaglevHashingLookup<String> first = new MaglevHashingLookup<>(251, Hashing.murmur3_32(), Function.identity());
+		MaglevHashingLookup<String> second = new MaglevHashingLookup<>(251, Hashing.murmur3_32(), Function.identity());
+		first.storeValue("A");
+		first.storeValue("B");
+		second.storeValue("B");
+		second.storeValue("C");
+		second.storeValue("A");
+		second.removeValue("C");
+		IntStream.range(0, 1000).forEach(i -> assertEquals(first.lookupValue("key" + i, KEY_FUNNEL), second.lookupValue("key" + i, KEY_FUNNEL)));
+	}
+
+	@Test
+	public void addingValueMovesFewKeys() {
+		MaglevHashingLookup<String> testee = new MaglevHashingLookup<>(Hashing.murmur3_32(), Function.identity());
+		IntStream.range(0, 10).forEach(i -> testee.storeValue("node" + i));
+		String[] before = IntStream.range(0, 10000).mapToObj(i -> testee.lookupValue("key" + i, KEY_FUNNEL)).toArray(String[]::new);
+		testee.storeValue("node10");
+		long moved = IntStream.range(0, 10000).filter(i -> !before[i].equals(testee.lookupValue("key" + i, KEY_FUNNEL))).count();
+		// At least 1/11th of the keys must move to the new value, Maglev moves a few more
+		assertTrue(moved > 800 && moved < 1200);
+	}
+
+	@Test
+	public void lookupValuesStopsAtTheStoredValues() {
+		MaglevHashingLookup<String> testee = new MaglevHashingLookup<>(Hashing.murmur3_32(), Function.identity());
+		assertTrue(testee.lookupValues("key", KEY_FUNNEL, 2).isEmpty());
+		testee.storeValue("A");
+		testee.storeValue("B");
+		testee.storeValue("C");
+		for (int i = 0; i < 1000; i++) {
+			List<String> values = testee.lookupValues("key" + i, KEY_FUNNEL, 2);
+			assertEquals(testee.lookupValue("key" + i, KEY_FUNNEL), values.get(0));
+			assertEquals(2, ImmutableSet.copyOf(values).size());
+			assertEquals(ImmutableSet.of("A", "B", "C"), ImmutableSet.copyOf(testee.lookupValues("key" + i, KEY_FUNNEL, 5)));
+		}
+	}
+}
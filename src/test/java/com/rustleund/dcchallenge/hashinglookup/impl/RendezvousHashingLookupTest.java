@@ -0,0 +1,59 @@
+package com.rustleund.dcchallenge.hashinglookup.impl;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+
+public class RendezvousHashingLookupTest {
+
+	private static final Funnel<CharSequence> KEY_FUNNEL = Funnels.stringFunnel(Charset.defaultCharset());
+
+	@Test
+	public void onlyKeysOfChangedValueMove() {
+		RendezvousHashingLookup<String> testee = new RendezvousHashingLookup<>(Hashing.murmur3_128(), Function.identity());
+		assertNull(testee.lookupValue("key", KEY_FUNNEL));
+		IntStream.range(0, 5).forEach(i -> testee.storeValue("node" + i));
+		String[] before = owners(testee);
+		assertEquals(2000, IntStream.range(0, before.length).filter(i -> before[i].equals("node0")).count(), 200);
+
+		testee.storeValue("node5");
+		String[] afterAdd = owners(testee);
+		IntStream.range(0, before.length).forEach(i -> assertTrue(afterAdd[i].equals(before[i]) || afterAdd[i].equals("node5")));
+
+		testee.removeValue("node2");
+		String[] afterRemove = owners(testee);
+		IntStream.range(0, before.length).forEach(i -> assertTrue(afterRemove[i].equals(afterAdd[i]) || afterAdd[i].equals("node2")));
+	}
+
+	@Test
+	public void lookupValuesAreTheHighestScoringInOrder() {
+		RendezvousHashingLookup<String> testee = new RendezvousHashingLookup<>(Hashing.murmur3_128(), Function.identity());
+		assertEquals(Collections.emptyList(), testee.lookupValues("key", KEY_FUNNEL, 3));
+		IntStream.range(0, 10).forEach(i -> testee.storeValue("node" + i));
+		for (int i = 0; i < 1000; i++) {
+			String key = "key" + i;
+			List<String> values = testee.lookupValues(key, KEY_FUNNEL, 3);
+			assertEquals(3, values.size());
+			assertEquals(testee.lookupValue(key, KEY_FUNNEL), values.get(0));
+			// Removing the best value makes the next one the owner
+			testee.removeValue(values.get(0));
+			assertEquals(values.subList(1, 3), testee.lookupValues(key, KEY_FUNNEL, 2));
+			testee.storeValue(values.get(0));
+		}
+		assertEquals(10, testee.lookupValues("key", KEY_FUNNEL, 20).size());
+	}
+
+	private String[] owners(RendezvousHashingLookup<String> testee) {
+		return IntStream.range(0, 10000).mapToObj(i -> testee.lookupValue("key" + i, KEY_FUNNEL)).toArray(String[]::new);
+	}
+}
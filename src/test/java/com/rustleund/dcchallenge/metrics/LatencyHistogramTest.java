@@ -0,0 +1,35 @@
+package com.rustleund.dcchallenge.metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketsCoverEveryValue() {
+		for (long value : new long[] { 0, 1, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+			int index = LatencyHistogram.bucketIndex(value);
+			assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+			assertTrue(index == 0 || value > LatencyHistogram.bucketUpperBound(index - 1));
+		}
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int micros = 1; micros <= 1000; micros++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500.5, snapshot.getMean(TimeUnit.MICROSECONDS), 0.001);
+		assertEquals(1000, snapshot.getMax(TimeUnit.MICROSECONDS), 0.001);
+		assertEquals(500, snapshot.getPercentile(50, TimeUnit.MICROSECONDS), 500 * 0.07);
+		assertEquals(990, snapshot.getPercentile(99, TimeUnit.MICROSECONDS), 990 * 0.07);
+		assertEquals(1000, snapshot.getPercentile(100, TimeUnit.MICROSECONDS), 0.001);
+		assertEquals(0, new LatencyHistogram().snapshot().getPercentile(99, TimeUnit.MICROSECONDS), 0);
+	}
+}
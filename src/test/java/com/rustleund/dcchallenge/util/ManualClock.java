@@ -0,0 +1,44 @@
+package com.rustleund.dcchallenge.util;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Clock} that only moves when a test advances it, so expiry can be tested without sleeping
+ */
+public final class ManualClock extends Clock {
+
+	private final AtomicLong nanos = new AtomicLong(TimeUnit.DAYS.toNanos(365));
+
+	/**
+	 * Move the clock forward
+	 */
+	public void advance(long duration, TimeUnit unit) {
+		nanos.addAndGet(unit.toNanos(duration));
+	}
+
+	@Override
+	public long millis() {
+		return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+	}
+
+	@Override
+	public Instant instant() {
+		long now = nanos.get();
+		return Instant.ofEpochSecond(TimeUnit.NANOSECONDS.toSeconds(now), now % TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Override
+	public ZoneId getZone() {
+		return ZoneOffset.UTC;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+		return this;
+	}
+}